@@ -0,0 +1,77 @@
+package sample;
+
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.ActorSystem;
+import akka.actor.typed.Behavior;
+import akka.actor.typed.Props;
+import akka.actor.typed.javadsl.Behaviors;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+final class BenchmarkSystems {
+
+    private BenchmarkSystems() {}
+
+    /**
+     * Config overriding the default dispatcher, which every actor of the sample runs on.
+     * Valid names are "fork-join", "thread-pool" and "affinity".
+     */
+    static Config config(String dispatcher) {
+        String executor;
+        switch (dispatcher) {
+            case "fork-join":
+                executor = "fork-join-executor";
+                break;
+            case "thread-pool":
+                executor = "thread-pool-executor";
+                break;
+            case "affinity":
+                executor = "affinity-pool-executor";
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown dispatcher " + dispatcher);
+        }
+        // the affinity pool's default task queue of 512 overflows as soon as a burst wakes up
+        // thousands of device actors at once
+        return ConfigFactory.parseString(
+                "akka.actor.default-dispatcher {\n"
+                        + "  executor = \"" + executor + "\"\n"
+                        + "  affinity-pool-executor.task-queue-size = 262144\n"
+                        + "}")
+                .withFallback(ConfigFactory.load());
+    }
+
+    static <T> ActorSystem<T> start(Behavior<T> guardian, String name, String dispatcher) {
+        return ActorSystem.create(guardian, name, config(dispatcher));
+    }
+
+    static void stop(ActorSystem<?> system) {
+        system.terminate();
+        system.getWhenTerminated().toCompletableFuture().join();
+    }
+
+    /**
+     * Spawns an actor that counts down whatever latch is currently installed in {@code pending}
+     * for every message it receives, so a benchmark can wait for a known number of replies.
+     */
+    static <T> ActorRef<T> spawnCounter(
+            ActorSystem<?> system, String name, AtomicReference<CountDownLatch> pending) {
+        Behavior<T> counter =
+                Behaviors.receiveMessage(
+                        message -> {
+                            pending.get().countDown();
+                            return Behaviors.same();
+                        });
+        return system.systemActorOf(counter, name, Props.empty());
+    }
+
+    static void await(CountDownLatch latch) throws InterruptedException {
+        if (!latch.await(1, TimeUnit.MINUTES)) {
+            throw new IllegalStateException(latch.getCount() + " replies still missing");
+        }
+    }
+}
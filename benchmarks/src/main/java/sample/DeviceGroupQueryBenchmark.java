@@ -0,0 +1,98 @@
+package sample;
+
+import akka.actor.typed.ActorSystem;
+import akka.actor.typed.javadsl.AskPattern;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end latency of {@link DeviceManager.RequestAllTemperatures} against a {@link DeviceGroup}
+ * of {@code groupSize} devices that all have a reading, i.e. the full {@link DeviceGroupQuery}
+ * fan-out and collection, with {@code mode=cached} the snapshot of the readings pushed by the devices, or
+ * with {@code mode=compact} the scan of a {@link CompactDeviceGroup}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class DeviceGroupQueryBenchmark {
+
+    private static final Duration TIMEOUT = Duration.ofSeconds(30);
+
+    @Param({"fork-join", "thread-pool", "affinity"})
+    public String dispatcher;
+
+    @Param({"10", "1000", "10000", "100000"})
+    public int groupSize;
+
+    @Param({"actors", "cached", "compact"})
+    public String mode;
+
+    private ActorSystem<DeviceGroup.Command> system;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        DeviceSettings settings =
+                DeviceSettings.create(BenchmarkSystems.config(dispatcher).getConfig("iot.device"))
+                        .withCompact(mode.equals("compact"))
+                        .withQueryMaxStaleness(mode.equals("cached") ? Duration.ofSeconds(1) : Duration.ZERO);
+        system = BenchmarkSystems.start(DeviceGroup.create("bench", settings), "query", dispatcher);
+
+        List<CompletableFuture<DeviceManager.DeviceRegistered>> registrations = new ArrayList<>(groupSize);
+        for (int i = 0; i < groupSize; i++) {
+            String deviceId = "device" + i;
+            registrations.add(AskPattern.<DeviceGroup.Command, DeviceManager.DeviceRegistered>ask(
+                    system,
+                    replyTo -> new DeviceManager.RequestTrackDevice("bench", deviceId, replyTo),
+                    TIMEOUT,
+                    system.scheduler()).toCompletableFuture());
+        }
+
+        List<CompletableFuture<Device.TemperatureRecorded>> recordings = new ArrayList<>(groupSize);
+        for (int i = 0; i < groupSize; i++) {
+            registrations.get(i).join();
+            String deviceId = "device" + i;
+            long requestId = i;
+            recordings.add(AskPattern.<DeviceGroup.Command, Device.TemperatureRecorded>ask(
+                    system,
+                    replyTo -> new DeviceManager.DeviceEnvelope(
+                            "bench", deviceId, new Device.RecordTemperature(requestId, requestId, replyTo)),
+                    TIMEOUT,
+                    system.scheduler()).toCompletableFuture());
+        }
+        CompletableFuture.allOf(recordings.toArray(new CompletableFuture<?>[0])).join();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkSystems.stop(system);
+    }
+
+    @Benchmark
+    public DeviceManager.RespondAllTemperatures requestAllTemperatures() {
+        return AskPattern.<DeviceGroup.Command, DeviceManager.RespondAllTemperatures>ask(
+                system,
+                replyTo -> new DeviceManager.RequestAllTemperatures(0L, "bench", replyTo),
+                TIMEOUT,
+                system.scheduler()).toCompletableFuture().join();
+    }
+}
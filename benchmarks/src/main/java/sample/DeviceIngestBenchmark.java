@@ -0,0 +1,79 @@
+package sample;
+
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.ActorSystem;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Throughput of readings into a single device, measured from the first send until the last
+ * {@link Device.TemperatureRecorded} acknowledgement has arrived, with every reading acknowledged
+ * ({@link Device.RecordTemperature}) or only the last one ({@link Device.RecordTemperatureNoAck}).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@OperationsPerInvocation(DeviceIngestBenchmark.READINGS)
+@Warmup(iterations = 5, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class DeviceIngestBenchmark {
+
+    static final int READINGS = 10_000;
+
+    @Param({"fork-join", "thread-pool", "affinity"})
+    public String dispatcher;
+
+    private final AtomicReference<CountDownLatch> pending = new AtomicReference<>();
+    private ActorSystem<Device.Command> system;
+    private ActorRef<Device.TemperatureRecorded> acks;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        system = BenchmarkSystems.start(Device.create("bench", "device"), "ingest", dispatcher);
+        acks = BenchmarkSystems.spawnCounter(system, "acks", pending);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkSystems.stop(system);
+    }
+
+    @Benchmark
+    public void recordTemperature() throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(READINGS);
+        pending.set(latch);
+        for (int i = 0; i < READINGS; i++) {
+            system.tell(new Device.RecordTemperature(i, i, acks));
+        }
+        BenchmarkSystems.await(latch);
+    }
+
+    @Benchmark
+    public void recordTemperatureNoAck() throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(1);
+        pending.set(latch);
+        for (int i = 0; i < READINGS - 1; i++) {
+            system.tell(new Device.RecordTemperatureNoAck(i, i));
+        }
+        // only the last reading is acknowledged, to know when the device has caught up
+        system.tell(new Device.RecordTemperature(READINGS - 1, READINGS - 1, acks));
+        BenchmarkSystems.await(latch);
+    }
+}
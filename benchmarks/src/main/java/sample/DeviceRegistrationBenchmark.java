@@ -0,0 +1,98 @@
+package sample;
+
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.ActorSystem;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Rate at which {@link DeviceManager} registers new devices through
+ * {@link DeviceManager.RequestTrackDevice}, spread over {@code groups} device groups. Every
+ * registration creates a new device actor, so the system is restarted for each iteration. {@code trackDevices}
+ * registers them in bulk instead.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@OperationsPerInvocation(DeviceRegistrationBenchmark.DEVICES)
+@Warmup(iterations = 5, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class DeviceRegistrationBenchmark {
+
+    static final int DEVICES = 1_000;
+
+    @Param({"fork-join", "thread-pool", "affinity"})
+    public String dispatcher;
+
+    @Param({"1", "100"})
+    public int groups;
+
+    private final AtomicReference<CountDownLatch> pending = new AtomicReference<>();
+    private ActorSystem<DeviceManager.Command> system;
+    private ActorRef<DeviceManager.DeviceRegistered> registrations;
+    private ActorRef<DeviceManager.DevicesRegistered> bulkRegistrations;
+    private long nextDevice;
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        system = BenchmarkSystems.start(DeviceManager.create(), "registration", dispatcher);
+        registrations = BenchmarkSystems.spawnCounter(system, "registrations", pending);
+        bulkRegistrations = BenchmarkSystems.spawnCounter(system, "bulk-registrations", pending);
+        nextDevice = 0;
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        BenchmarkSystems.stop(system);
+    }
+
+    @Benchmark
+    public void trackDevice() throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(DEVICES);
+        pending.set(latch);
+        for (int i = 0; i < DEVICES; i++) {
+            long device = nextDevice++;
+            system.tell(new DeviceManager.RequestTrackDevice(
+                    "group" + (device % groups), "device" + device, registrations));
+        }
+        BenchmarkSystems.await(latch);
+    }
+
+    /** The same devices registered with one {@link DeviceManager.RequestTrackDevices} per group. */
+    @Benchmark
+    public void trackDevices() throws InterruptedException {
+        List<List<String>> deviceIds = new ArrayList<>(groups);
+        for (int g = 0; g < groups; g++) {
+            deviceIds.add(new ArrayList<>(DEVICES / groups + 1));
+        }
+        for (int i = 0; i < DEVICES; i++) {
+            long device = nextDevice++;
+            deviceIds.get((int) (device % groups)).add("device" + device);
+        }
+        CountDownLatch latch = new CountDownLatch(groups);
+        pending.set(latch);
+        for (int g = 0; g < groups; g++) {
+            system.tell(new DeviceManager.RequestTrackDevices(g, "group" + g, deviceIds.get(g), bulkRegistrations));
+        }
+        BenchmarkSystems.await(latch);
+    }
+}
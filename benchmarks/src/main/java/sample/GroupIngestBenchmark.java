@@ -0,0 +1,120 @@
+package sample;
+
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.ActorSystem;
+import akka.actor.typed.javadsl.AskPattern;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Readings per second into a group of {@code devices} devices, sent either one
+ * {@link Device.RecordTemperature} at a time or as a single {@link DeviceManager.RecordTemperatureBatch}.
+ * Both variants only complete once every device has processed its readings.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@OperationsPerInvocation(GroupIngestBenchmark.READINGS)
+@Warmup(iterations = 5, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class GroupIngestBenchmark {
+
+    static final int READINGS = 10_000;
+
+    private static final Duration TIMEOUT = Duration.ofSeconds(30);
+
+    @Param({"fork-join", "thread-pool", "affinity"})
+    public String dispatcher;
+
+    @Param({"100"})
+    public int devices;
+
+    private final AtomicReference<CountDownLatch> pending = new AtomicReference<>();
+    private ActorSystem<DeviceManager.Command> system;
+    private ActorRef<Device.TemperatureRecorded> acks;
+    private ActorRef<Device.RespondTemperature> reads;
+    private ActorRef<DeviceManager.TemperatureBatchRecorded> batchAcks;
+    private ActorRef<Device.Command>[] deviceRefs;
+    private String[] deviceIds;
+    private double[] values;
+    private long[] timestamps;
+
+    @Setup(Level.Trial)
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public void setup() {
+        system = BenchmarkSystems.start(DeviceManager.create(), "group-ingest", dispatcher);
+        acks = BenchmarkSystems.spawnCounter(system, "acks", pending);
+        reads = BenchmarkSystems.spawnCounter(system, "reads", pending);
+        batchAcks = BenchmarkSystems.spawnCounter(system, "batch-acks", pending);
+
+        deviceRefs = new ActorRef[devices];
+        for (int i = 0; i < devices; i++) {
+            String deviceId = "device" + i;
+            deviceRefs[i] = AskPattern.<DeviceManager.Command, DeviceManager.DeviceRegistered>ask(
+                    system,
+                    replyTo -> new DeviceManager.RequestTrackDevice("bench", deviceId, replyTo),
+                    TIMEOUT,
+                    system.scheduler()).toCompletableFuture().join().device;
+        }
+
+        deviceIds = new String[READINGS];
+        values = new double[READINGS];
+        timestamps = new long[READINGS];
+        for (int i = 0; i < READINGS; i++) {
+            deviceIds[i] = "device" + (i % devices);
+            values[i] = i;
+            timestamps[i] = i;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkSystems.stop(system);
+    }
+
+    @Benchmark
+    public void recordTemperature() throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(READINGS);
+        pending.set(latch);
+        for (int i = 0; i < READINGS; i++) {
+            deviceRefs[i % devices].tell(new Device.RecordTemperature(i, values[i], acks));
+        }
+        BenchmarkSystems.await(latch);
+    }
+
+    @Benchmark
+    public void recordTemperatureBatch() throws InterruptedException {
+        CountDownLatch acked = new CountDownLatch(1);
+        pending.set(acked);
+        system.tell(new DeviceManager.RecordTemperatureBatch(
+                0L, "bench", deviceIds, values, timestamps, batchAcks));
+        BenchmarkSystems.await(acked);
+
+        // the batch is acknowledged once handed to the devices, so read every device to wait for the
+        // readings to actually be applied
+        CountDownLatch applied = new CountDownLatch(devices);
+        pending.set(applied);
+        for (ActorRef<Device.Command> device : deviceRefs) {
+            device.tell(new Device.ReadTemperature(0L, reads));
+        }
+        BenchmarkSystems.await(applied);
+    }
+}
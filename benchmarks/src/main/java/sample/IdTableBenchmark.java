@@ -0,0 +1,77 @@
+package sample;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finding the slot of a device in the registries of a group of {@code devices} devices: the {@link IdTable}
+ * they are kept in, and the {@code HashMap<String, Integer>} they were kept in before. The ids are fresh strings
+ * like the ones of deserialized messages, so their hash codes are cached but {@code equals} compares the chars.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgs = {"-Xmx4g"})
+public class IdTableBenchmark {
+
+    @Param({"hash-map", "id-table"})
+    public String registry;
+
+    @Param({"1000", "1000000"})
+    public int devices;
+
+    private Map<String, Integer> map;
+    private IdTable table;
+    private String[] lookups;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        if (registry.equals("hash-map")) {
+            map = new HashMap<>();
+        } else {
+            table = new IdTable(16);
+        }
+        for (int i = 0; i < devices; i++) {
+            String deviceId = "device-" + i;
+            if (map != null) {
+                map.put(deviceId, i);
+            } else {
+                table.add(deviceId);
+            }
+        }
+        lookups = new String[devices];
+        for (int i = 0; i < devices; i++) {
+            // shuffled, so that a large registry does not stay in the cache
+            lookups[i] = new String("device-" + (int) ((i * 0x9E3779B97F4A7C15L >>> 1) % devices));
+            lookups[i].hashCode();
+        }
+    }
+
+    @Benchmark
+    public int slotOf() {
+        String deviceId = lookups[next];
+        next = next + 1 == devices ? 0 : next + 1;
+        if (map != null) {
+            Integer slot = map.get(deviceId);
+            return slot == null ? -1 : slot;
+        }
+        return table.numberOf(deviceId);
+    }
+}
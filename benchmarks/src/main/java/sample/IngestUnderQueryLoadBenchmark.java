@@ -0,0 +1,135 @@
+package sample;
+
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.ActorSystem;
+import akka.actor.typed.Behavior;
+import akka.actor.typed.Props;
+import akka.actor.typed.javadsl.AskPattern;
+import akka.actor.typed.javadsl.Behaviors;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Latency of a single acknowledged reading into a device of a group that is queried with
+ * {@link DeviceManager.RequestAllTemperatures} all the time, {@code queries} at once. Look at the p99 of the
+ * sample distribution. With {@code dispatchers} "shared" every actor runs on the default dispatcher. With
+ * "dedicated" the actors run on the iot.dispatchers of reference.conf. "affinity" does the same but puts the
+ * devices on the affinity dispatcher.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class IngestUnderQueryLoadBenchmark {
+
+    @Param({"shared", "dedicated", "affinity"})
+    public String dispatchers;
+
+    @Param({"1000"})
+    public int groupSize;
+
+    @Param({"0", "8"})
+    public int queries;
+
+    private final AtomicReference<CountDownLatch> pending = new AtomicReference<>();
+    private ActorSystem<DeviceGroup.Command> system;
+    private ActorRef<Device.Command> device;
+    private ActorRef<Device.TemperatureRecorded> acks;
+    private long nextRequestId;
+
+    static Config config(String dispatchers) {
+        String overrides;
+        switch (dispatchers) {
+            case "shared":
+                overrides = "iot.dispatchers {\n"
+                        + "  device = akka.actor.default-dispatcher\n"
+                        + "  group = akka.actor.default-dispatcher\n"
+                        + "  query = akka.actor.default-dispatcher\n"
+                        + "  manager = akka.actor.default-dispatcher\n"
+                        + "}\n";
+                break;
+            case "dedicated":
+                overrides = "";
+                break;
+            case "affinity":
+                overrides = "iot.dispatchers.device = iot.affinity-dispatcher\n";
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown dispatchers " + dispatchers);
+        }
+        // every query has to ask the devices
+        return ConfigFactory.parseString(overrides + "iot.device.query.coalesce-window = off\n")
+                .withFallback(ConfigFactory.load());
+    }
+
+    @Setup(Level.Trial)
+    public void setup() {
+        system = ActorSystem.create(DeviceGroup.create("bench"), "query-load", config(dispatchers));
+        List<String> deviceIds = new ArrayList<>(groupSize);
+        for (int i = 0; i < groupSize; i++) {
+            deviceIds.add("device" + i);
+        }
+        device = AskPattern.<DeviceGroup.Command, DeviceManager.DevicesRegistered>ask(
+                system,
+                replyTo -> new DeviceManager.RequestTrackDevices(0L, "bench", deviceIds, replyTo),
+                Duration.ofSeconds(10),
+                system.scheduler())
+                .toCompletableFuture()
+                .join()
+                .devices.get("device0");
+        acks = BenchmarkSystems.spawnCounter(system, "acks", pending);
+        if (queries > 0) {
+            system.systemActorOf(queryLoad(system, queries), "queries", Props.empty());
+        }
+    }
+
+    /** Keeps {@code inFlight} queries of the group running, starting the next as soon as one is answered. */
+    private static Behavior<DeviceManager.RespondAllTemperatures> queryLoad(
+            ActorRef<DeviceGroup.Command> group, int inFlight) {
+        return Behaviors.setup(context -> {
+            for (int i = 0; i < inFlight; i++) {
+                group.tell(new DeviceManager.RequestAllTemperatures(i, "bench", context.getSelf()));
+            }
+            return Behaviors.receiveMessage(response -> {
+                group.tell(new DeviceManager.RequestAllTemperatures(response.requestId, "bench", context.getSelf()));
+                return Behaviors.same();
+            });
+        });
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkSystems.stop(system);
+    }
+
+    @Benchmark
+    public void recordTemperature() throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(1);
+        pending.set(latch);
+        long requestId = nextRequestId++;
+        device.tell(new Device.RecordTemperature(requestId, requestId, acks));
+        BenchmarkSystems.await(latch);
+    }
+}
@@ -0,0 +1,108 @@
+package sample;
+
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.ActorSystem;
+import akka.actor.typed.javadsl.AskPattern;
+import com.typesafe.config.ConfigFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * What {@code iot.metrics.enabled} costs: readings per second into devices started by their group, which with
+ * it on count every message and time the handling and the mailbox wait of some of them, and group queries per
+ * second, which count their fan-out either way. The budget is that {@code metrics=on} stays within 5% of {@code metrics=off}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@OperationsPerInvocation(MetricsOverheadBenchmark.READINGS)
+@Warmup(iterations = 5, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class MetricsOverheadBenchmark {
+
+    static final int READINGS = 10_000;
+
+    private static final Duration TIMEOUT = Duration.ofSeconds(30);
+
+    @Param({"off", "on"})
+    public String metrics;
+
+    @Param({"100"})
+    public int devices;
+
+    private final AtomicReference<CountDownLatch> pending = new AtomicReference<>();
+    private ActorSystem<DeviceManager.Command> system;
+    private ActorRef<Device.TemperatureRecorded> acks;
+    private ActorRef<DeviceManager.RespondAllTemperatures> answers;
+    private ActorRef<Device.Command>[] deviceRefs;
+
+    @Setup(Level.Trial)
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public void setup() {
+        system =
+                ActorSystem.create(
+                        DeviceManager.create(),
+                        "metrics-overhead",
+                        ConfigFactory.parseString(
+                                "iot.metrics.enabled = " + metrics + "\n"
+                                        + "iot.device.query.coalesce-window = off\n")
+                                .withFallback(ConfigFactory.load()));
+        acks = BenchmarkSystems.spawnCounter(system, "acks", pending);
+        answers = BenchmarkSystems.spawnCounter(system, "answers", pending);
+
+        deviceRefs = new ActorRef[devices];
+        for (int i = 0; i < devices; i++) {
+            String deviceId = "device" + i;
+            deviceRefs[i] = AskPattern.<DeviceManager.Command, DeviceManager.DeviceRegistered>ask(
+                    system,
+                    replyTo -> new DeviceManager.RequestTrackDevice("bench", deviceId, replyTo),
+                    TIMEOUT,
+                    system.scheduler()).toCompletableFuture().join().device;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkSystems.stop(system);
+    }
+
+    @Benchmark
+    public void recordTemperature() throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(READINGS);
+        pending.set(latch);
+        for (int i = 0; i < READINGS; i++) {
+            deviceRefs[i % devices].tell(new Device.RecordTemperature(i, i, acks));
+        }
+        BenchmarkSystems.await(latch);
+    }
+
+    /** Group queries per second, one after the other, each asking every device. */
+    @Benchmark
+    @OperationsPerInvocation(100)
+    public void requestAllTemperatures() throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            CountDownLatch latch = new CountDownLatch(1);
+            pending.set(latch);
+            system.tell(new DeviceManager.RequestAllTemperatures(i, "bench", answers));
+            BenchmarkSystems.await(latch);
+        }
+    }
+}
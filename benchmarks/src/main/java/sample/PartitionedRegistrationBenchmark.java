@@ -0,0 +1,106 @@
+package sample;
+
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.ActorSystem;
+import akka.actor.typed.javadsl.AskPattern;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Rate at which a {@link DeviceManager#createPartitioned partitioned manager} registers new devices, with as many
+ * clients as cores sending {@link DeviceManager.RequestTrackDevice} at once. With {@code route} "manager" the
+ * clients go through the manager, with "partitions" they send to the owning partition themselves. Compare
+ * {@code partitions=1} with the number of cores to see how registration scales.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@OperationsPerInvocation(PartitionedRegistrationBenchmark.DEVICES)
+@Warmup(iterations = 5, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@Threads(Threads.MAX)
+public class PartitionedRegistrationBenchmark {
+
+    static final int DEVICES = 1_000;
+
+    @Param({"1", "2", "4", "8"})
+    public int partitions;
+
+    @Param({"manager", "partitions"})
+    public String route;
+
+    @Param({"1000"})
+    public int groups;
+
+    private ActorSystem<DeviceManager.Command> system;
+    private DeviceManager.Partitions owners;
+    private final AtomicLong nextDevice = new AtomicLong();
+
+    @State(Scope.Thread)
+    public static class Client {
+        private static final AtomicLong clients = new AtomicLong();
+
+        final AtomicReference<CountDownLatch> pending = new AtomicReference<>();
+        ActorRef<DeviceManager.DeviceRegistered> registrations;
+
+        // taking the benchmark makes JMH start its system first
+        @Setup(Level.Iteration)
+        public void setup(PartitionedRegistrationBenchmark benchmark) {
+            registrations = BenchmarkSystems.spawnCounter(
+                    benchmark.system, "registrations-" + clients.incrementAndGet(), pending);
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        system = BenchmarkSystems.start(DeviceManager.createPartitioned(partitions), "registration", "fork-join");
+        owners = AskPattern.<DeviceManager.Command, DeviceManager.Partitions>ask(
+                system, DeviceManager.RequestPartitions::new, Duration.ofSeconds(3), system.scheduler())
+                .toCompletableFuture()
+                .join();
+        nextDevice.set(0);
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        BenchmarkSystems.stop(system);
+    }
+
+    @Benchmark
+    public void trackDevice(Client client) throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(DEVICES);
+        client.pending.set(latch);
+        for (int i = 0; i < DEVICES; i++) {
+            long device = nextDevice.getAndIncrement();
+            String groupId = "group" + (device % groups);
+            DeviceManager.RequestTrackDevice track =
+                    new DeviceManager.RequestTrackDevice(groupId, "device" + device, client.registrations);
+            if (route.equals("partitions")) {
+                owners.partitionFor(groupId).tell(track);
+            } else {
+                system.tell(track);
+            }
+        }
+        BenchmarkSystems.await(latch);
+    }
+}
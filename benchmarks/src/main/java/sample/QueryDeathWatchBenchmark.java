@@ -0,0 +1,100 @@
+package sample;
+
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.ActorSystem;
+import akka.actor.typed.Props;
+import akka.actor.typed.javadsl.AskPattern;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A single {@link DeviceGroupQuery} over {@code groupSize} devices, with {@code deathWatch=per-query} watching
+ * (and on stop unwatching) every device it asks, and with {@code deathWatch=group} relying on its group to tell
+ * it about devices that stop, which is what {@link DeviceGroup} does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class QueryDeathWatchBenchmark {
+
+    private static final Duration TIMEOUT = Duration.ofSeconds(30);
+
+    @Param({"1000", "10000"})
+    public int groupSize;
+
+    @Param({"per-query", "group"})
+    public String deathWatch;
+
+    private ActorSystem<DeviceGroup.Command> system;
+    private final Map<String, ActorRef<Device.Command>> devices = new HashMap<>();
+    private final AtomicReference<CountDownLatch> pending = new AtomicReference<>();
+    private ActorRef<DeviceManager.RespondAllTemperatures> requester;
+    private long queries;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        system = BenchmarkSystems.start(DeviceGroup.create("bench"), "death-watch", "fork-join");
+        for (int i = 0; i < groupSize; i++) {
+            String deviceId = "device" + i;
+            DeviceManager.DeviceRegistered registered =
+                    AskPattern.<DeviceGroup.Command, DeviceManager.DeviceRegistered>ask(
+                            system,
+                            replyTo -> new DeviceManager.RequestTrackDevice("bench", deviceId, replyTo),
+                            TIMEOUT,
+                            system.scheduler()).toCompletableFuture().join();
+            devices.put(deviceId, registered.device);
+        }
+        requester = BenchmarkSystems.spawnCounter(system, "requester", pending);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkSystems.stop(system);
+    }
+
+    @Benchmark
+    public void query() throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(1);
+        pending.set(latch);
+        String name = "query-" + queries++;
+        if (deathWatch.equals("per-query")) {
+            system.systemActorOf(DeviceGroupQuery.create(devices, 0L, requester, TIMEOUT), name, Props.empty());
+        } else {
+            system.systemActorOf(
+                    DeviceGroupQuery.create(
+                            devices,
+                            Collections.emptyMap(),
+                            0L,
+                            requester,
+                            TIMEOUT,
+                            Duration.ZERO,
+                            Collections.emptyMap(),
+                            null),
+                    name,
+                    Props.empty());
+        }
+        BenchmarkSystems.await(latch);
+    }
+}
@@ -0,0 +1,88 @@
+package sample;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * The storage engines behind {@link Device.ReadAggregate} without any actors around them: appending one
+ * reading, and aggregating the last {@code HISTORY} readings of one of {@code devices} devices sharing the store.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ReadingStoreBenchmark {
+
+    static final int HISTORY = 128;
+
+    @Param({StorageSettings.MEMORY, StorageSettings.MAPPED_LOG})
+    public String engine;
+
+    @Param({"1", "100"})
+    public int devices;
+
+    private Path directory;
+    private MappedReadingLog log;
+    private ReadingStore[] stores;
+    private long timestamp;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        stores = new ReadingStore[devices];
+        if (engine.equals(StorageSettings.MAPPED_LOG)) {
+            directory = Files.createTempDirectory("readings");
+            log = MappedReadingLog.open(directory, 64 * 1024 * 1024, 8);
+            for (int i = 0; i < devices; i++) {
+                stores[i] = log.forDevice(log.indexOf("device" + i));
+            }
+        } else {
+            for (int i = 0; i < devices; i++) {
+                stores[i] = new TemperatureHistory(HISTORY);
+            }
+        }
+        for (int i = 0; i < HISTORY * devices; i++) {
+            stores[i % devices].append(timestamp++, i);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        if (log != null) {
+            log.close();
+            try (Stream<Path> files = Files.walk(directory)) {
+                files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    @Benchmark
+    public void append() {
+        stores[(int) (timestamp % devices)].append(timestamp++, 21.5);
+    }
+
+    @Benchmark
+    public Device.RespondAggregate aggregate() {
+        // the window covering the last HISTORY readings of the device
+        return stores[0].aggregate(1L, "device0", timestamp - (long) HISTORY * devices, timestamp);
+    }
+}
@@ -0,0 +1,351 @@
+package sample;
+
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.Behavior;
+import akka.actor.typed.PostStop;
+import akka.actor.typed.javadsl.AbstractBehavior;
+import akka.actor.typed.javadsl.ActorContext;
+import akka.actor.typed.javadsl.Behaviors;
+import akka.actor.typed.javadsl.Receive;
+import akka.actor.typed.javadsl.TimerScheduler;
+
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A {@link DeviceGroup} for groups with {@code mode = compact}: instead of an actor per device it keeps the
+ * state of all its devices in a {@link CompactDeviceTable} and handles the device protocol itself.
+ * {@link DeviceManager.RequestAllTemperatures} is answered with a scan of the table, without a query actor.
+ * Registrations are answered without device refs, the devices are reached through the group with
+ * {@link DeviceManager.DeviceEnvelope}, which {@link DeviceManager.DeviceRegistered#tell} does.
+ */
+class CompactDeviceGroup extends AbstractBehavior<DeviceGroup.Command> {
+
+    private static enum AckTick implements DeviceGroup.Command {
+        INSTANCE
+    }
+
+    static Behavior<DeviceGroup.Command> create(String groupId, DeviceSettings deviceSettings) {
+        return IotMetrics.instrument(
+                IotProps.GROUP,
+                Behaviors.setup(
+                        context -> Behaviors.withTimers(
+                                timers -> new CompactDeviceGroup(context, timers, groupId, deviceSettings))));
+    }
+
+    private final TimerScheduler<DeviceGroup.Command> timers;
+    private final String groupId;
+    private final DeviceSettings deviceSettings;
+    private final CompactDeviceTable devices = new CompactDeviceTable(1024);
+    private final DeviceListing listing;
+    private final GroupTemperatureSubscribers temperatureSubscribers;
+    private final Map<String, Set<ActorRef<Device.TemperatureRecorded>>> ackSubscribers = new HashMap<>();
+    // only set when the group stores its readings in a mapped log, there is no in-memory history
+    private final MappedReadingLog readingLog;
+    private final IotMetrics metrics;
+    private final IotMetrics.GroupGauges gauges;
+
+    private CompactDeviceGroup(
+            ActorContext<DeviceGroup.Command> context,
+            TimerScheduler<DeviceGroup.Command> timers,
+            String groupId,
+            DeviceSettings deviceSettings) {
+        super(context);
+        if (deviceSettings.persistence.enabled) {
+            throw new IllegalArgumentException("Group " + groupId + " can't be both compact and persistent");
+        }
+        this.timers = timers;
+        this.groupId = groupId;
+        this.deviceSettings = deviceSettings;
+        this.listing = new DeviceListing(deviceSettings.deviceListChanges, this::deviceIds);
+        this.temperatureSubscribers = new GroupTemperatureSubscribers(groupId, context);
+        if (deviceSettings.storage.isMappedLog()) {
+            StorageSettings storage = deviceSettings.storage;
+            readingLog =
+                    MappedReadingLog.open(
+                            Paths.get(storage.directory, groupId), storage.segmentSize, storage.maxSegments);
+        } else {
+            readingLog = null;
+        }
+        this.metrics = IotMetrics.get(context.getSystem());
+        this.gauges = metrics.group(groupId);
+        context.getLog().info("Compact DeviceGroup {} started", groupId);
+    }
+
+    @Override
+    public Receive<DeviceGroup.Command> createReceive() {
+        return newReceiveBuilder()
+                .onMessage(DeviceManager.RequestTrackDevice.class, this::onTrackDevice)
+                .onMessage(
+                        DeviceManager.RequestTrackDevices.class,
+                        r -> r.groupId.equals(groupId),
+                        this::onTrackDevices)
+                .onMessage(DeviceManager.RequestDeviceList.class, r -> r.groupId.equals(groupId), this::onDeviceList)
+                .onMessage(
+                        DeviceManager.RequestDeviceChanges.class,
+                        r -> r.groupId.equals(groupId),
+                        this::onDeviceChanges)
+                .onMessage(
+                        DeviceManager.RecordTemperatureBatch.class,
+                        r -> r.groupId.equals(groupId),
+                        this::onRecordTemperatureBatch)
+                .onMessage(DeviceManager.DeviceEnvelope.class, r -> r.groupId.equals(groupId), this::onDeviceEnvelope)
+                .onMessage(
+                        DeviceManager.RequestGroupMetrics.class,
+                        r -> r.groupId.equals(groupId),
+                        this::onGroupMetrics)
+                .onMessage(
+                        DeviceManager.RequestAllTemperatures.class,
+                        r -> r.groupId.equals(groupId),
+                        this::onAllTemperatures)
+                .onMessage(
+                        DeviceManager.RequestAllTemperaturesStream.class,
+                        r -> r.groupId.equals(groupId),
+                        this::onAllTemperaturesStream)
+                .onMessage(
+                        DeviceManager.SubscribeGroupTemperatures.class,
+                        r -> r.groupId.equals(groupId),
+                        this::onSubscribeTemperatures)
+                .onMessage(
+                        DeviceManager.UnsubscribeGroupTemperatures.class,
+                        r -> r.groupId.equals(groupId),
+                        r -> {
+                            temperatureSubscribers.unsubscribe(r.replyTo);
+                            return this;
+                        })
+                .onMessage(GroupTemperatureSubscribers.Flush.class, f -> {
+                    temperatureSubscribers.onFlush(f);
+                    return this;
+                })
+                .onMessage(AckTick.class, m -> onAckTick())
+                .onSignal(PostStop.class, signal -> onPostStop())
+                .build();
+    }
+
+    private CompactDeviceGroup onTrackDevice(DeviceManager.RequestTrackDevice trackMsg) {
+        if (groupId.equals(trackMsg.groupId)) {
+            if (devices.slotOf(trackMsg.deviceId) < 0) {
+                getContext().getLog().info("Adding device {}", trackMsg.deviceId);
+                devices.add(trackMsg.deviceId, readingLog != null ? readingLog.indexOf(trackMsg.deviceId) : -1);
+                listing.joined(trackMsg.deviceId);
+                gauges.update(devices.size(), 0);
+            }
+            trackMsg.replyTo.tell(
+                    new DeviceManager.DeviceRegistered(groupId, trackMsg.deviceId, getContext().getSelf().narrow()));
+        } else {
+            getContext().getLog().warn("Ignoring TrackDevice request for {}. This actor is responsible for {}.",
+                    trackMsg.groupId, groupId);
+        }
+        return this;
+    }
+
+    private CompactDeviceGroup onTrackDevices(DeviceManager.RequestTrackDevices trackMsg) {
+        Map<String, ActorRef<Device.Command>> registered = new HashMap<>(trackMsg.deviceIds.size() * 4 / 3 + 1);
+        int added = 0;
+        for (String deviceId : trackMsg.deviceIds) {
+            if (devices.slotOf(deviceId) < 0) {
+                devices.add(deviceId, readingLog != null ? readingLog.indexOf(deviceId) : -1);
+                listing.joined(deviceId);
+                added++;
+            }
+            registered.put(deviceId, null);
+        }
+        gauges.update(devices.size(), 0);
+        getContext().getLog().info("Added {} devices", added);
+        trackMsg.replyTo.tell(new DeviceManager.DevicesRegistered(
+                trackMsg.requestId, registered, groupId, getContext().getSelf().narrow()));
+        return this;
+    }
+
+    private CompactDeviceGroup onDeviceList(DeviceManager.RequestDeviceList r) {
+        r.replyTo.tell(listing.list(r));
+        return this;
+    }
+
+    private CompactDeviceGroup onDeviceChanges(DeviceManager.RequestDeviceChanges r) {
+        r.replyTo.tell(listing.changes(r));
+        return this;
+    }
+
+    private String[] deviceIds() {
+        String[] deviceIds = new String[devices.size()];
+        int i = 0;
+        for (int slot = 0; slot < devices.highWater(); slot++) {
+            if (devices.deviceId(slot) != null) {
+                deviceIds[i++] = devices.deviceId(slot);
+            }
+        }
+        return deviceIds;
+    }
+
+    private CompactDeviceGroup onRecordTemperatureBatch(DeviceManager.RecordTemperatureBatch batch) {
+        Set<String> unknown = new HashSet<>();
+        int recorded = 0;
+        for (int i = 0; i < batch.deviceIds.length; i++) {
+            int slot = devices.slotOf(batch.deviceIds[i]);
+            if (slot < 0) {
+                unknown.add(batch.deviceIds[i]);
+            } else {
+                append(slot, batch.timestamps[i], batch.values[i]);
+                recorded++;
+            }
+        }
+        batch.replyTo.tell(new DeviceManager.TemperatureBatchRecorded(batch.requestId, recorded, unknown));
+        return this;
+    }
+
+    private CompactDeviceGroup onDeviceEnvelope(DeviceManager.DeviceEnvelope envelope) {
+        int slot = devices.slotOf(envelope.deviceId);
+        if (slot < 0) {
+            getContext().getLog().warn("Dropping message for unknown device {}", envelope.deviceId);
+            return this;
+        }
+        Device.Command message = envelope.message;
+        if (message instanceof Device.RecordTemperature) {
+            Device.RecordTemperature r = (Device.RecordTemperature) message;
+            record(slot, r.requestId, r.value);
+            r.replyTo.tell(new Device.TemperatureRecorded(r.requestId));
+        } else if (message instanceof Device.RecordTemperatureNoAck) {
+            Device.RecordTemperatureNoAck r = (Device.RecordTemperatureNoAck) message;
+            record(slot, r.requestId, r.value);
+        } else if (message instanceof Device.RecordTemperatures) {
+            Device.RecordTemperatures r = (Device.RecordTemperatures) message;
+            for (int position : r.positions) {
+                append(slot, r.timestamps[position], r.values[position]);
+            }
+        } else if (message instanceof Device.ReadTemperature) {
+            Device.ReadTemperature r = (Device.ReadTemperature) message;
+            double value = devices.value(slot);
+            r.replyTo.tell(
+                    Double.isNaN(value)
+                            ? new Device.RespondTemperature(r.requestId, envelope.deviceId)
+                            : new Device.RespondTemperature(r.requestId, envelope.deviceId, value));
+        } else if (message instanceof Device.ReadAggregate) {
+            Device.ReadAggregate r = (Device.ReadAggregate) message;
+            r.replyTo.tell(
+                    readingLog != null
+                            ? readingLog.aggregate(r.requestId, envelope.deviceId, devices.logIndex(slot), r.from, r.to)
+                            : TemperatureHistory.aggregate(r.requestId, envelope.deviceId, new double[0], 0));
+        } else if (message instanceof Device.SubscribeAckWatermark) {
+            if (ackSubscribers.isEmpty()) {
+                timers.startTimerWithFixedDelay(AckTick.INSTANCE, deviceSettings.ackInterval);
+            }
+            ackSubscribers
+                    .computeIfAbsent(envelope.deviceId, id -> new HashSet<>())
+                    .add(((Device.SubscribeAckWatermark) message).replyTo);
+        } else if (message instanceof Device.UnsubscribeAckWatermark) {
+            unsubscribe(envelope.deviceId, ((Device.UnsubscribeAckWatermark) message).replyTo);
+        } else if (message instanceof Device.Passivate) {
+            // like stopping a device actor, the device leaves the group
+            devices.remove(envelope.deviceId);
+            listing.left(envelope.deviceId);
+            temperatureSubscribers.left(envelope.deviceId);
+            gauges.update(devices.size(), 0);
+            if (ackSubscribers.remove(envelope.deviceId) != null && ackSubscribers.isEmpty()) {
+                timers.cancel(AckTick.INSTANCE);
+            }
+        } else {
+            getContext().getLog().warn("Ignoring {} for device {}", message.getClass().getSimpleName(), envelope.deviceId);
+        }
+        return this;
+    }
+
+    private void record(int slot, long requestId, double value) {
+        if (readingLog != null) {
+            readingLog.append(devices.logIndex(slot), System.currentTimeMillis(), value);
+        }
+        devices.record(slot, requestId, value);
+        temperatureSubscribers.recorded(devices.deviceId(slot), value);
+    }
+
+    private void append(int slot, long timestamp, double value) {
+        if (readingLog != null) {
+            readingLog.append(devices.logIndex(slot), timestamp, value);
+        }
+        devices.recordValue(slot, value);
+        temperatureSubscribers.recorded(devices.deviceId(slot), value);
+    }
+
+    private void unsubscribe(String deviceId, ActorRef<Device.TemperatureRecorded> subscriber) {
+        Set<ActorRef<Device.TemperatureRecorded>> subscribers = ackSubscribers.get(deviceId);
+        if (subscribers != null && subscribers.remove(subscriber) && subscribers.isEmpty()) {
+            ackSubscribers.remove(deviceId);
+            if (ackSubscribers.isEmpty()) {
+                timers.cancel(AckTick.INSTANCE);
+            }
+        }
+    }
+
+    private CompactDeviceGroup onSubscribeTemperatures(DeviceManager.SubscribeGroupTemperatures s) {
+        temperatureSubscribers.subscribe(s);
+        for (int slot = 0; slot < devices.highWater(); slot++) {
+            String deviceId = devices.deviceId(slot);
+            if (deviceId != null && !Double.isNaN(devices.value(slot))) {
+                temperatureSubscribers.recorded(s.replyTo, deviceId, devices.value(slot));
+            }
+        }
+        return this;
+    }
+
+    private CompactDeviceGroup onAckTick() {
+        for (Map.Entry<String, Set<ActorRef<Device.TemperatureRecorded>>> entry : ackSubscribers.entrySet()) {
+            int slot = devices.slotOf(entry.getKey());
+            long lastRecorded = devices.lastRecordedRequestId(slot);
+            if (lastRecorded != devices.lastAckedRequestId(slot)) {
+                Device.TemperatureRecorded watermark = new Device.TemperatureRecorded(lastRecorded);
+                for (ActorRef<Device.TemperatureRecorded> subscriber : entry.getValue()) {
+                    subscriber.tell(watermark);
+                }
+                devices.acked(slot, lastRecorded);
+            }
+        }
+        return this;
+    }
+
+    private CompactDeviceGroup onAllTemperatures(DeviceManager.RequestAllTemperatures r) {
+        r.replyTo.tell(new DeviceManager.RespondAllTemperatures(r.requestId, scan()));
+        return this;
+    }
+
+    // all readings are at hand, the query only does the chunking and the flow control
+    private CompactDeviceGroup onAllTemperaturesStream(DeviceManager.RequestAllTemperaturesStream r) {
+        getContext().spawnAnonymous(
+                StreamingGroupQuery.create(Collections.emptyMap(), scan(), r, deviceSettings.query.timeout),
+                IotProps.of(getContext().getSystem(), IotProps.QUERY));
+        return this;
+    }
+
+    private Map<String, DeviceManager.TemperatureReading> scan() {
+        Map<String, DeviceManager.TemperatureReading> temperatures = new HashMap<>();
+        for (int slot = 0; slot < devices.highWater(); slot++) {
+            String deviceId = devices.deviceId(slot);
+            if (deviceId != null) {
+                double value = devices.value(slot);
+                temperatures.put(
+                        deviceId,
+                        Double.isNaN(value)
+                                ? DeviceManager.TemperatureNotAvailable.INSTANCE
+                                : new DeviceManager.Temperature(value));
+            }
+        }
+        return temperatures;
+    }
+
+    private CompactDeviceGroup onGroupMetrics(DeviceManager.RequestGroupMetrics r) {
+        r.replyTo.tell(new DeviceManager.GroupMetrics(r.requestId, devices.size(), 0, 0L, 0L));
+        return this;
+    }
+
+    private CompactDeviceGroup onPostStop() {
+        if (readingLog != null) {
+            readingLog.close();
+        }
+        metrics.groupStopped(groupId, gauges);
+        getContext().getLog().info("Compact DeviceGroup {} stopped", groupId);
+        return this;
+    }
+}
@@ -0,0 +1,99 @@
+package sample;
+
+import java.util.Arrays;
+
+/**
+ * The state of all devices of a {@link CompactDeviceGroup} as parallel primitive arrays indexed by a device
+ * slot: the last reading (NaN when there is none), the highest recorded and acknowledged requestIds, and the
+ * device's index in the group's {@link MappedReadingLog}. The slots are the numbers an {@link IdTable} gives the
+ * device ids, so slots of removed devices are reused.
+ */
+final class CompactDeviceTable {
+
+    private final IdTable slots;
+    private double[] values;
+    private long[] lastRecordedRequestIds;
+    private long[] lastAckedRequestIds;
+    private int[] logIndexes;
+
+    CompactDeviceTable(int initialCapacity) {
+        int capacity = Math.max(1, initialCapacity);
+        slots = new IdTable(capacity);
+        values = new double[capacity];
+        lastRecordedRequestIds = new long[capacity];
+        lastAckedRequestIds = new long[capacity];
+        logIndexes = new int[capacity];
+    }
+
+    /** The slot of {@code deviceId}, -1 when it is not in the table. */
+    int slotOf(String deviceId) {
+        return slots.numberOf(deviceId);
+    }
+
+    int add(String deviceId, int logIndex) {
+        int slot = slots.add(deviceId);
+        if (slot == values.length) {
+            grow();
+        }
+        values[slot] = Double.NaN;
+        lastRecordedRequestIds[slot] = -1L;
+        lastAckedRequestIds[slot] = -1L;
+        logIndexes[slot] = logIndex;
+        return slot;
+    }
+
+    void remove(String deviceId) {
+        slots.remove(deviceId);
+    }
+
+    void record(int slot, long requestId, double value) {
+        values[slot] = value;
+        // the watermark is the highest requestId, readings sent without ack can arrive out of order
+        lastRecordedRequestIds[slot] = Math.max(lastRecordedRequestIds[slot], requestId);
+    }
+
+    void recordValue(int slot, double value) {
+        values[slot] = value;
+    }
+
+    int size() {
+        return slots.size();
+    }
+
+    /** Slots up to this may hold a device, check {@link #deviceId(int)} for null when scanning. */
+    int highWater() {
+        return slots.highWater();
+    }
+
+    String deviceId(int slot) {
+        return slots.id(slot);
+    }
+
+    double value(int slot) {
+        return values[slot];
+    }
+
+    long lastRecordedRequestId(int slot) {
+        return lastRecordedRequestIds[slot];
+    }
+
+    long lastAckedRequestId(int slot) {
+        return lastAckedRequestIds[slot];
+    }
+
+    void acked(int slot, long requestId) {
+        lastAckedRequestIds[slot] = requestId;
+    }
+
+    int logIndex(int slot) {
+        return logIndexes[slot];
+    }
+
+    private void grow() {
+        int capacity = values.length * 2;
+        values = Arrays.copyOf(values, capacity);
+        lastRecordedRequestIds = Arrays.copyOf(lastRecordedRequestIds, capacity);
+        lastAckedRequestIds = Arrays.copyOf(lastAckedRequestIds, capacity);
+        logIndexes = Arrays.copyOf(logIndexes, capacity);
+    }
+}
@@ -7,8 +7,12 @@ import akka.actor.typed.javadsl.AbstractBehavior;
 import akka.actor.typed.javadsl.ActorContext;
 import akka.actor.typed.javadsl.Behaviors;
 import akka.actor.typed.javadsl.Receive;
+import akka.actor.typed.javadsl.TimerScheduler;
+import akka.dispatch.ControlMessage;
 
-import java.util.Optional;
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.Set;
 
 public class Device extends AbstractBehavior<Device.Command> {
 
@@ -26,6 +30,75 @@ public class Device extends AbstractBehavior<Device.Command> {
         }
     }
 
+    /** Records a reading without replying; the reading is only covered by the periodic ack watermark. */
+    public static final class RecordTemperatureNoAck implements Command {
+        final long requestId;
+        final double value;
+
+        public RecordTemperatureNoAck(long requestId, double value) {
+            this.requestId = requestId;
+            this.value = value;
+        }
+    }
+
+    /**
+     * Every {@code ack-interval} in which the device recorded something, {@code replyTo} is sent a
+     * {@link TemperatureRecorded} with the highest requestId recorded so far.
+     */
+    public static final class SubscribeAckWatermark implements Command {
+        final ActorRef<TemperatureRecorded> replyTo;
+
+        public SubscribeAckWatermark(ActorRef<TemperatureRecorded> replyTo) {
+            this.replyTo = replyTo;
+        }
+    }
+
+    public static final class UnsubscribeAckWatermark implements Command {
+        final ActorRef<TemperatureRecorded> replyTo;
+
+        public UnsubscribeAckWatermark(ActorRef<TemperatureRecorded> replyTo) {
+            this.replyTo = replyTo;
+        }
+    }
+
+    /**
+     * {@code replyTo} is sent the reading of the device when it subscribes, if it has one, and then the latest
+     * reading whenever it has moved at least {@code minDelta} away from the one it was sent last, at most once per
+     * {@code minInterval}. Subscribing again replaces the subscription. Not available for compact devices.
+     */
+    public static final class SubscribeTemperature implements Command {
+        final double minDelta;
+        final Duration minInterval;
+        final ActorRef<TemperatureChanged> replyTo;
+
+        public SubscribeTemperature(double minDelta, Duration minInterval, ActorRef<TemperatureChanged> replyTo) {
+            if (!(minDelta >= 0.0) || minInterval.isNegative()) {
+                throw new IllegalArgumentException("minDelta and minInterval must not be negative");
+            }
+            this.minDelta = minDelta;
+            this.minInterval = minInterval;
+            this.replyTo = replyTo;
+        }
+    }
+
+    public static final class UnsubscribeTemperature implements Command {
+        final ActorRef<TemperatureChanged> replyTo;
+
+        public UnsubscribeTemperature(ActorRef<TemperatureChanged> replyTo) {
+            this.replyTo = replyTo;
+        }
+    }
+
+    public static final class TemperatureChanged {
+        final String deviceId;
+        final double value;
+
+        public TemperatureChanged(String deviceId, double value) {
+            this.deviceId = deviceId;
+            this.value = value;
+        }
+    }
+
     public static final class TemperatureRecorded {
         final long requestId;
 
@@ -34,7 +107,8 @@ public class Device extends AbstractBehavior<Device.Command> {
         }
     }
 
-    public static final class ReadTemperature implements Command {
+    /** Served ahead of queued readings by {@link IotMailbox}. */
+    public static final class ReadTemperature implements Command, ControlMessage {
         final long requestId;
         final ActorRef<RespondTemperature> replyTo;
 
@@ -47,60 +121,365 @@ public class Device extends AbstractBehavior<Device.Command> {
     public static final class RespondTemperature {
         final long requestId;
         final String deviceId;
-        final Optional<Double> value;
+        final boolean hasValue;
+        final double value;
 
-        public RespondTemperature(long requestId, String deviceId, Optional<Double> value) {
+        /** A reply for a device that has a reading. */
+        public RespondTemperature(long requestId, String deviceId, double value) {
             this.requestId = requestId;
             this.deviceId = deviceId;
+            this.hasValue = true;
+            this.value = value;
+        }
+
+        /** A reply for a device that has not recorded anything yet. */
+        public RespondTemperature(long requestId, String deviceId) {
+            this.requestId = requestId;
+            this.deviceId = deviceId;
+            this.hasValue = false;
+            this.value = Double.NaN;
+        }
+    }
+
+    /** Aggregates the readings taken between {@code from} and {@code to} (epoch millis, both inclusive). */
+    public static final class ReadAggregate implements Command {
+        final long requestId;
+        final long from;
+        final long to;
+        final ActorRef<RespondAggregate> replyTo;
+
+        public ReadAggregate(long requestId, long from, long to, ActorRef<RespondAggregate> replyTo) {
+            this.requestId = requestId;
+            this.from = from;
+            this.to = to;
+            this.replyTo = replyTo;
+        }
+    }
+
+    /** Statistics over the readings still in the device history; all NaN when {@code count} is 0. */
+    public static final class RespondAggregate {
+        final long requestId;
+        final String deviceId;
+        final int count;
+        final double min;
+        final double max;
+        final double mean;
+        final double p95;
+
+        public RespondAggregate(
+                long requestId, String deviceId, int count, double min, double max, double mean, double p95) {
+            this.requestId = requestId;
+            this.deviceId = deviceId;
+            this.count = count;
+            this.min = min;
+            this.max = max;
+            this.mean = mean;
+            this.p95 = p95;
+        }
+    }
+
+    static final class RecordTemperatures implements Command {
+        final double[] values;
+        final long[] timestamps;
+        final int[] positions;
+
+        /** The readings at {@code positions} of the shared {@code values} and {@code timestamps} arrays, in order. */
+        RecordTemperatures(double[] values, long[] timestamps, int[] positions) {
+            this.values = values;
+            this.timestamps = timestamps;
+            this.positions = positions;
+        }
+    }
+
+    /**
+     * Stops the device. A device started by its group first reports its last reading back to the group with
+     * {@link DeviceGroup.DevicePassivated}. Served ahead of queued readings by {@link IotMailbox}.
+     */
+    static enum Passivate implements Command, ControlMessage {
+        INSTANCE
+    }
+
+    /** The last reading of a device that was passivated, sent to it when it is started again. */
+    static final class RestoreReading implements Command {
+        final double value;
+
+        RestoreReading(double value) {
             this.value = value;
         }
     }
 
-    static enum Passivate implements Command {
+    // also used by PersistentDevice
+    static enum IdleTimeout implements Command {
+        INSTANCE
+    }
+
+    private static enum AckTick implements Command {
+        INSTANCE
+    }
+
+    private static enum PushReading implements Command {
         INSTANCE
     }
 
     public static Behavior<Command> create(String groupId, String deviceId) {
-        return Behaviors.setup(context -> new Device(context, groupId, deviceId));
+        return Behaviors.setup(
+                context -> create(groupId, deviceId,
+                        DeviceSettings.forGroup(context.getSystem().settings().config(), groupId)));
+    }
+
+    public static Behavior<Command> create(String groupId, String deviceId, DeviceSettings settings) {
+        return IotMetrics.instrument(IotProps.DEVICE, uninstrumented(groupId, deviceId, settings));
+    }
+
+    /** The device alone, without the counting and timing of {@link IotMetrics#instrument}. */
+    static Behavior<Command> uninstrumented(String groupId, String deviceId, DeviceSettings settings) {
+        return Behaviors.setup(
+                context -> Behaviors.withTimers(
+                        timers -> new Device(
+                                context, timers, groupId, deviceId, settings,
+                                new TemperatureHistory(settings.historyCapacity), null)));
+    }
+
+    /**
+     * A device started by {@code group}: it keeps its readings in {@code readings} and asks the group to
+     * passivate it once it has been idle for {@code passivate-after}.
+     */
+    static Behavior<Command> create(
+            String groupId,
+            String deviceId,
+            DeviceSettings settings,
+            ReadingStore readings,
+            ActorRef<DeviceGroup.Command> group) {
+        return IotMetrics.instrument(
+                IotProps.DEVICE,
+                Behaviors.setup(
+                        context -> Behaviors.withTimers(
+                                timers -> new Device(context, timers, groupId, deviceId, settings, readings, group))));
     }
 
+    private final TimerScheduler<Command> timers;
     private final String groupId;
     private final String deviceId;
+    private final DeviceSettings settings;
+    // null when the device was not started by a group
+    private final ActorRef<DeviceGroup.Command> group;
+    private final DeviceEvents events;
+
+    // primitive so that recording a reading does not allocate
+    private boolean hasTemperatureReading;
+    private double lastTemperatureReading;
+    private final ReadingStore history;
+
+    // 0 when the group does not cache readings, see query-max-staleness
+    private final long pushIntervalNanos;
+    private long lastPushNanos;
+    private boolean pushScheduled;
 
-    private Optional<Double> lastTemperatureReading = Optional.empty();
+    private final Set<ActorRef<TemperatureRecorded>> ackSubscribers = new HashSet<>();
+    private long lastRecordedRequestId = -1L;
+    private final TemperatureSubscribers temperatureSubscribers;
+    private long lastAckedRequestId = -1L;
 
-    private Device(ActorContext<Command> context, String groupId, String deviceId) {
+    private Device(
+            ActorContext<Command> context,
+            TimerScheduler<Command> timers,
+            String groupId,
+            String deviceId,
+            DeviceSettings settings,
+            ReadingStore history,
+            ActorRef<DeviceGroup.Command> group) {
         super(context);
+        this.timers = timers;
         this.groupId = groupId;
         this.deviceId = deviceId;
+        this.settings = settings;
+        this.history = history;
+        this.group = group;
+        this.pushIntervalNanos = group != null ? settings.queryMaxStaleness.toNanos() / 2 : 0L;
+        this.lastPushNanos = System.nanoTime() - pushIntervalNanos;
+        if (group != null && !settings.passivateAfter.isZero()) {
+            context.setReceiveTimeout(settings.passivateAfter, IdleTimeout.INSTANCE);
+        }
 
-        context.getLog().info("Device actor {}-{} started", groupId, deviceId);
+        this.temperatureSubscribers = new TemperatureSubscribers(deviceId, context, timers);
+        this.events = new DeviceEvents(groupId, deviceId, settings);
+        events.lifecycle("started");
     }
 
     @Override
     public Receive<Command> createReceive() {
         return newReceiveBuilder()
                 .onMessage(RecordTemperature.class, this::onRecordTemperature)
+                .onMessage(RecordTemperatureNoAck.class, this::onRecordTemperatureNoAck)
+                .onMessage(RecordTemperatures.class, this::onRecordTemperatures)
                 .onMessage(ReadTemperature.class, this::onReadTemperature)
-                .onMessage(Passivate.class, m -> Behaviors.stopped())
+                .onMessage(ReadAggregate.class, this::onReadAggregate)
+                .onMessage(SubscribeAckWatermark.class, this::onSubscribeAckWatermark)
+                .onMessage(UnsubscribeAckWatermark.class, this::onUnsubscribeAckWatermark)
+                .onMessage(SubscribeTemperature.class, this::onSubscribeTemperature)
+                .onMessage(UnsubscribeTemperature.class, this::onUnsubscribeTemperature)
+                .onMessage(TemperatureSubscribers.Tick.class, this::onTemperatureTick)
+                .onMessage(AckTick.class, m -> onAckTick())
+                .onMessage(PushReading.class, m -> onPushReading())
+                .onMessage(RestoreReading.class, this::onRestoreReading)
+                .onMessage(IdleTimeout.class, m -> onIdleTimeout())
+                .onMessage(Passivate.class, m -> onPassivate())
                 .onSignal(PostStop.class, signal -> onPostStop())
                 .build();
     }
 
     private Behavior<Command> onRecordTemperature(RecordTemperature r) {
-        getContext().getLog().info("Recorded temperature reading {} with {}", r.value, r.requestId);
-        lastTemperatureReading = Optional.of(r.value);
+        record(r.requestId, r.value);
         r.replyTo.tell(new TemperatureRecorded(r.requestId));
         return this;
     }
 
+    private Behavior<Command> onRecordTemperatureNoAck(RecordTemperatureNoAck r) {
+        record(r.requestId, r.value);
+        return this;
+    }
+
+    private Behavior<Command> onRecordTemperatures(RecordTemperatures r) {
+        for (int position : r.positions) {
+            history.append(r.timestamps[position], r.values[position]);
+        }
+        hasTemperatureReading = true;
+        lastTemperatureReading = r.values[r.positions[r.positions.length - 1]];
+        events.readings(-1L, r.positions.length, lastTemperatureReading);
+        temperatureSubscribers.recorded(lastTemperatureReading);
+        pushReading();
+        return this;
+    }
+
+    // readings are only logged as sampled ingest events, a log call per reading would box its arguments
+    private void record(long requestId, double value) {
+        history.append(System.currentTimeMillis(), value);
+        hasTemperatureReading = true;
+        lastTemperatureReading = value;
+        // the watermark is the highest requestId, readings sent without ack can arrive out of order
+        lastRecordedRequestId = Math.max(lastRecordedRequestId, requestId);
+        events.readings(requestId, 1, value);
+        temperatureSubscribers.recorded(value);
+        pushReading();
+    }
+
+    /**
+     * Tells the group the latest reading, at most once per push interval: a reading recorded sooner after
+     * the last push is sent by a timer at the end of the interval, together with any recorded after it.
+     */
+    private void pushReading() {
+        if (pushIntervalNanos == 0L || pushScheduled) {
+            return;
+        }
+        long sinceLastPush = System.nanoTime() - lastPushNanos;
+        if (sinceLastPush >= pushIntervalNanos) {
+            onPushReading();
+        } else {
+            timers.startSingleTimer(PushReading.INSTANCE, Duration.ofNanos(pushIntervalNanos - sinceLastPush));
+            pushScheduled = true;
+        }
+    }
+
+    private Behavior<Command> onPushReading() {
+        pushScheduled = false;
+        lastPushNanos = System.nanoTime();
+        group.tell(new DeviceGroup.ReadingUpdated(deviceId, lastTemperatureReading));
+        return this;
+    }
+
     private Behavior<Command> onReadTemperature(ReadTemperature r) {
-        r.replyTo.tell(new RespondTemperature(r.requestId, deviceId, lastTemperatureReading));
+        if (hasTemperatureReading) {
+            r.replyTo.tell(new RespondTemperature(r.requestId, deviceId, lastTemperatureReading));
+        } else {
+            r.replyTo.tell(new RespondTemperature(r.requestId, deviceId));
+        }
+        return this;
+    }
+
+    private Behavior<Command> onReadAggregate(ReadAggregate r) {
+        r.replyTo.tell(history.aggregate(r.requestId, deviceId, r.from, r.to));
         return this;
     }
 
+    private Behavior<Command> onSubscribeAckWatermark(SubscribeAckWatermark s) {
+        if (!ackSubscribers.add(s.replyTo)) {
+            return this;
+        }
+        // a subscriber that stops is unsubscribed, so that it does not keep the device from passivating
+        getContext().watchWith(s.replyTo, new UnsubscribeAckWatermark(s.replyTo));
+        if (ackSubscribers.size() == 1) {
+            timers.startTimerWithFixedDelay(AckTick.INSTANCE, settings.ackInterval);
+        }
+        return this;
+    }
+
+    private Behavior<Command> onUnsubscribeAckWatermark(UnsubscribeAckWatermark s) {
+        if (!ackSubscribers.remove(s.replyTo)) {
+            return this;
+        }
+        getContext().unwatch(s.replyTo);
+        if (ackSubscribers.isEmpty()) {
+            timers.cancel(AckTick.INSTANCE);
+        }
+        return this;
+    }
+
+    private Behavior<Command> onSubscribeTemperature(SubscribeTemperature s) {
+        temperatureSubscribers.subscribe(s, hasTemperatureReading, lastTemperatureReading);
+        return this;
+    }
+
+    private Behavior<Command> onUnsubscribeTemperature(UnsubscribeTemperature s) {
+        temperatureSubscribers.unsubscribe(s.replyTo);
+        return this;
+    }
+
+    private Behavior<Command> onTemperatureTick(TemperatureSubscribers.Tick tick) {
+        temperatureSubscribers.onTick(tick);
+        return this;
+    }
+
+    private Behavior<Command> onAckTick() {
+        if (lastRecordedRequestId != lastAckedRequestId) {
+            TemperatureRecorded watermark = new TemperatureRecorded(lastRecordedRequestId);
+            for (ActorRef<TemperatureRecorded> subscriber : ackSubscribers) {
+                subscriber.tell(watermark);
+            }
+            lastAckedRequestId = lastRecordedRequestId;
+        }
+        return this;
+    }
+
+    private Behavior<Command> onRestoreReading(RestoreReading r) {
+        // anything recorded since the device was started again is newer
+        if (!hasTemperatureReading) {
+            hasTemperatureReading = true;
+            lastTemperatureReading = r.value;
+            temperatureSubscribers.recorded(r.value);
+        }
+        return this;
+    }
+
+    private Behavior<Command> onIdleTimeout() {
+        // passivating would lose the subscriptions, the group only knows about its own
+        if (!ackSubscribers.isEmpty() || temperatureSubscribers.hasSubscribersBesides(group)) {
+            return this;
+        }
+        events.lifecycle("idle");
+        group.tell(new DeviceGroup.DeviceIdle(deviceId, getContext().getSelf()));
+        return this;
+    }
+
+    private Behavior<Command> onPassivate() {
+        if (group != null) {
+            group.tell(new DeviceGroup.DevicePassivated(deviceId, hasTemperatureReading, lastTemperatureReading));
+        }
+        events.lifecycle("passivated");
+        return Behaviors.stopped();
+    }
+
     private Behavior<Command> onPostStop() {
-        getContext().getLog().info("Device actor {}-{} stopped", groupId, deviceId);
+        events.lifecycle("stopped");
         return Behaviors.stopped();
     }
 }
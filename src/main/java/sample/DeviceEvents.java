@@ -0,0 +1,55 @@
+package sample;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The events of one device, as {@code key=value} lines: its lifecycle on {@code sample.events.lifecycle} at INFO
+ * and its readings on {@code sample.events.ingest} at DEBUG, at most one per {@code ingest-event-interval} with
+ * the number of readings skipped since the previous one. They go straight to SLF4J rather than through the
+ * actor's log, so there is no {@code akkaSource} MDC to fill in, and a reading costs a level check while
+ * ingest events are off. The levels are read on every event, so changing them at runtime takes effect at once.
+ */
+final class DeviceEvents {
+
+    static final Logger LIFECYCLE = LoggerFactory.getLogger("sample.events.lifecycle");
+    static final Logger INGEST = LoggerFactory.getLogger("sample.events.ingest");
+
+    private final String groupId;
+    private final String deviceId;
+    private final long intervalNanos;
+    private long lastIngestNanos;
+    private long skipped;
+
+    DeviceEvents(String groupId, String deviceId, DeviceSettings settings) {
+        this.groupId = groupId;
+        this.deviceId = deviceId;
+        this.intervalNanos = settings.ingestEventInterval.toNanos();
+        this.lastIngestNanos = System.nanoTime() - intervalNanos;
+    }
+
+    void lifecycle(String event) {
+        if (LIFECYCLE.isInfoEnabled()) {
+            LIFECYCLE.info("event={} group={} device={}", event, groupId, deviceId);
+        }
+    }
+
+    /** {@code count} readings recorded, {@code value} the last of them. */
+    void readings(long requestId, int count, double value) {
+        if (INGEST.isDebugEnabled()) {
+            readings(requestId, count, value, System.nanoTime());
+        }
+    }
+
+    void readings(long requestId, int count, double value, long nowNanos) {
+        if (nowNanos - lastIngestNanos < intervalNanos) {
+            skipped += count;
+            return;
+        }
+        lastIngestNanos = nowNanos;
+        INGEST.debug(
+                "event=reading group={} device={} requestId={} value={} count={} skipped={}",
+                groupId, deviceId, requestId, value, count, skipped);
+        skipped = 0L;
+    }
+}
@@ -3,14 +3,21 @@ package sample;
 import akka.actor.typed.ActorRef;
 import akka.actor.typed.Behavior;
 import akka.actor.typed.PostStop;
+import akka.actor.typed.Props;
 import akka.actor.typed.javadsl.AbstractBehavior;
 import akka.actor.typed.javadsl.ActorContext;
 import akka.actor.typed.javadsl.Behaviors;
 import akka.actor.typed.javadsl.Receive;
 
+import java.nio.file.Paths;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 public class DeviceGroup extends AbstractBehavior<DeviceGroup.Command> {
 
@@ -28,43 +35,449 @@ public class DeviceGroup extends AbstractBehavior<DeviceGroup.Command> {
         }
     }
 
+    static final class MembershipRecovered implements Command {
+        final Set<String> deviceIds;
+
+        MembershipRecovered(Set<String> deviceIds) {
+            this.deviceIds = deviceIds;
+        }
+    }
+
+    /** Sent by the membership once the new devices of the bulk registration {@code registrationId} are in the journal. */
+    static final class MembersRegistered implements Command {
+        final long registrationId;
+
+        MembersRegistered(long registrationId) {
+            this.registrationId = registrationId;
+        }
+    }
+
+    /** Sent by a device that has been idle for {@code passivate-after}. */
+    static final class DeviceIdle implements Command {
+        final String deviceId;
+        final ActorRef<Device.Command> device;
+
+        DeviceIdle(String deviceId, ActorRef<Device.Command> device) {
+            this.deviceId = deviceId;
+            this.device = device;
+        }
+    }
+
+    /** The last reading of a device, sent by the device right before it stops on {@link Device.Passivate}. */
+    static final class DevicePassivated implements Command {
+        final String deviceId;
+        final boolean hasValue;
+        final double value;
+
+        DevicePassivated(String deviceId, boolean hasValue, double value) {
+            this.deviceId = deviceId;
+            this.hasValue = hasValue;
+            this.value = value;
+        }
+    }
+
+    /** The latest reading of a device, NaN for none, pushed when the group caches readings. */
+    static final class ReadingUpdated implements Command {
+        final String deviceId;
+        final double value;
+
+        ReadingUpdated(String deviceId, double value) {
+            this.deviceId = deviceId;
+            this.value = value;
+        }
+    }
+
+    /**
+     * Sent by a {@link DeviceGroupQuery} when it is done: {@code latencyCount} reply latencies in nanoseconds
+     * and the readings (NaN for none) of the {@code replyCount} devices that answered.
+     */
+    static final class QueryReplies implements Command {
+        final long[] latencies;
+        final int latencyCount;
+        final String[] deviceIds;
+        final double[] values;
+        final int replyCount;
+
+        QueryReplies(long[] latencies, int latencyCount, String[] deviceIds, double[] values, int replyCount) {
+            this.latencies = latencies;
+            this.latencyCount = latencyCount;
+            this.deviceIds = deviceIds;
+            this.values = values;
+            this.replyCount = replyCount;
+        }
+    }
+
+    private static final class QueryStopped implements Command {
+        final ActorRef<DeviceGroupQuery.DeviceTerminated> query;
+
+        QueryStopped(ActorRef<DeviceGroupQuery.DeviceTerminated> query) {
+            this.query = query;
+        }
+    }
+
+    /** A reading a device tells the group about because the group has temperature subscribers. */
+    private static final class DeviceTemperatureChanged implements Command {
+        final Device.TemperatureChanged changed;
+
+        DeviceTemperatureChanged(Device.TemperatureChanged changed) {
+            this.changed = changed;
+        }
+    }
+
+    /** The answer of a query the group started for coalesced requests, its requestId is the query's id. */
+    private static final class CoalescedResponse implements Command {
+        final DeviceManager.RespondAllTemperatures response;
+
+        CoalescedResponse(DeviceManager.RespondAllTemperatures response) {
+            this.response = response;
+        }
+    }
+
+    /** The requests answered by one query. */
+    private static final class CoalescedQuery {
+        final long startNanos;
+        final Duration timeout;
+        final List<DeviceManager.RequestAllTemperatures> requests = new ArrayList<>();
+
+        CoalescedQuery(long startNanos, Duration timeout) {
+            this.startNanos = startNanos;
+            this.timeout = timeout;
+        }
+    }
+
+    /**
+     * A device told to passivate. It is done once the device has both reported its last reading and
+     * terminated, in whatever order those arrive; messages for it are held back until then.
+     */
+    private static final class Passivation {
+        boolean reported;
+        boolean terminated;
+        final List<Device.Command> buffered = new ArrayList<>();
+        final List<ActorRef<DeviceManager.DeviceRegistered>> registrations = new ArrayList<>();
+        final List<BulkRegistration> bulkRegistrations = new ArrayList<>();
+    }
+
+    /**
+     * A {@link DeviceManager.RequestTrackDevices} waiting for devices that are passivating and, in a persistent
+     * group, for the journal write of its new devices; answered once {@code pending} is down to zero.
+     */
+    private static final class BulkRegistration {
+        final DeviceManager.RequestTrackDevices request;
+        final Map<String, ActorRef<Device.Command>> devices;
+        int pending;
+
+        BulkRegistration(DeviceManager.RequestTrackDevices request) {
+            this.request = request;
+            this.devices = new HashMap<>(request.deviceIds.size() * 4 / 3 + 1);
+        }
+
+        void deviceRegistered(String deviceId, ActorRef<Device.Command> device) {
+            devices.put(deviceId, device);
+            pending--;
+            replyWhenDone();
+        }
+
+        void replyWhenDone() {
+            if (pending == 0) {
+                request.replyTo.tell(new DeviceManager.DevicesRegistered(request.requestId, devices));
+            }
+        }
+    }
+
+    /** A group of device actors, or a {@link CompactDeviceGroup} when the group's {@code mode} is compact. */
     public static Behavior<Command> create(String groupId) {
-        return Behaviors.setup(context -> new DeviceGroup(context, groupId));
+        return Behaviors.setup(
+                context -> create(groupId, DeviceSettings.forGroup(context.getSystem().settings().config(), groupId)));
+    }
+
+    public static Behavior<Command> create(String groupId, DeviceSettings deviceSettings) {
+        if (deviceSettings.compact) {
+            return CompactDeviceGroup.create(groupId, deviceSettings);
+        }
+        return IotMetrics.instrument(
+                IotProps.GROUP, Behaviors.setup(context -> new DeviceGroup(context, groupId, deviceSettings)));
     }
 
     private final String groupId;
-    private final Map<String, ActorRef<Device.Command>> deviceIdToActor = new HashMap<>();
+    private final DeviceSettings deviceSettings;
+    private final RefTable<Device.Command> deviceIdToActor = new RefTable<>(16);
+    private final Map<String, Passivation> passivating = new HashMap<>();
+    private final ReadingTable passivated = new ReadingTable();
+    private final DeviceListing listing;
+    private final GroupTemperatureSubscribers temperatureSubscribers;
+    // what the devices are subscribed with while there are temperature subscribers, null when there are none
+    private Device.SubscribeTemperature deviceSubscription;
+    // the latest readings the devices sent for the subscribers, what a new subscriber starts from
+    private ReadingTable pushedTemperatures = new ReadingTable();
+    private ActorRef<Device.TemperatureChanged> temperatureAdapter;
+    private long passivations;
+    private long rehydrations;
+
+    // the readings pushed by the devices, only used when query-max-staleness is set
+    private final ReadingTable cachedReadings = new ReadingTable();
+    // devices that may have a reading the cache does not know yet, i.e. persistent ones still recovering
+    private final Set<String> unreported = new HashSet<>();
+    private Map<String, DeviceManager.TemperatureReading> snapshot;
+    private long snapshotNanos;
+    private boolean cacheChanged;
+    // the reply latencies seen by queries, only kept when the query timeout is adaptive or queries hedge
+    private final LatencyWindow latencies;
+    private Duration queryTimeout;
+    // Duration.ZERO until there are enough latencies, or when queries don't hedge
+    private Duration hedgeAfter = Duration.ZERO;
+    // the readings queries got from the live devices, what a hedging query answers slow devices from
+    private final ReadingTable lastReadings = new ReadingTable();
+    // the queries asking devices right now, they are told about devices that stop instead of watching them all
+    private final Set<ActorRef<DeviceGroupQuery.DeviceTerminated>> runningQueries = new HashSet<>();
+    // running queries by id, only used when query.coalesce-window is set
+    private final Map<Long, CoalescedQuery> coalescedQueries = new HashMap<>();
+    private long lastQueryId = -1L;
+    private ActorRef<DeviceManager.RespondAllTemperatures> coalescedResponseAdapter;
+    private final Props deviceProps;
+    private final Props queryProps;
+    // only set when the group is persistent
+    private final ActorRef<DeviceGroupMembership.Command> membership;
+    // bulk registrations waiting for the membership journal, by id
+    private final Map<Long, BulkRegistration> unjournaledRegistrations = new HashMap<>();
+    private long lastRegistrationId = -1L;
+    // only set when the group stores its readings in a mapped log
+    private final MappedReadingLog readingLog;
+    private final IotMetrics metrics;
+    private final IotMetrics.GroupGauges gauges;
 
-    private DeviceGroup(ActorContext<Command> context, String groupId) {
+    private DeviceGroup(ActorContext<Command> context, String groupId, DeviceSettings deviceSettings) {
         super(context);
         this.groupId = groupId;
+        this.deviceSettings = deviceSettings;
+        this.latencies =
+                deviceSettings.query.measuresLatency() ? new LatencyWindow(deviceSettings.query.latencyWindow) : null;
+        this.queryTimeout = deviceSettings.query.timeout;
+        this.listing = new DeviceListing(deviceSettings.deviceListChanges, this::deviceIds);
+        this.temperatureSubscribers = new GroupTemperatureSubscribers(groupId, context);
+        this.deviceProps = IotProps.of(context.getSystem(), IotProps.DEVICE);
+        this.queryProps = IotProps.of(context.getSystem(), IotProps.QUERY);
+        if (deviceSettings.persistence.enabled) {
+            membership =
+                    context.spawn(
+                            DeviceGroupMembership.create(groupId, context.getSelf(), deviceSettings),
+                            "membership",
+                            IotProps.of(context.getSystem(), IotProps.GROUP));
+        } else {
+            membership = null;
+        }
+        if (deviceSettings.storage.isMappedLog() && !deviceSettings.persistence.enabled) {
+            StorageSettings storage = deviceSettings.storage;
+            readingLog =
+                    MappedReadingLog.open(
+                            Paths.get(storage.directory, groupId), storage.segmentSize, storage.maxSegments);
+        } else {
+            readingLog = null;
+        }
+        this.metrics = IotMetrics.get(context.getSystem());
+        this.gauges = metrics.group(groupId);
         context.getLog().info("DeviceGroup {} started", groupId);
     }
 
     private DeviceGroup onAllTemperatures(DeviceManager.RequestAllTemperatures r) {
-        Map<String, ActorRef<Device.Command>> deviceIdToActorCopy = new HashMap<>(this.deviceIdToActor);
+        Map<String, DeviceManager.TemperatureReading> cached = cachedSnapshot();
+        if (cached != null) {
+            r.replyTo.tell(new DeviceManager.RespondAllTemperatures(r.requestId, cached));
+            return this;
+        }
+
+        Duration timeout = r.timeout != null ? r.timeout : queryTimeout;
+        if (deviceSettings.query.coalesceWindow.isZero()) {
+            startQuery(r.requestId, r.replyTo, timeout);
+            return this;
+        }
 
-        getContext()
-                .spawnAnonymous(
-                        DeviceGroupQuery.create(
-                                deviceIdToActorCopy, r.requestId, r.replyTo, Duration.ofSeconds(3)));
+        CoalescedQuery last = coalescedQueries.get(lastQueryId);
+        if (last != null
+                && last.timeout.equals(timeout)
+                && System.nanoTime() - last.startNanos < deviceSettings.query.coalesceWindow.toNanos()) {
+            last.requests.add(r);
+            return this;
+        }
+        if (coalescedResponseAdapter == null) {
+            coalescedResponseAdapter =
+                    getContext().messageAdapter(DeviceManager.RespondAllTemperatures.class, CoalescedResponse::new);
+        }
+        CoalescedQuery query = new CoalescedQuery(System.nanoTime(), timeout);
+        query.requests.add(r);
+        coalescedQueries.put(++lastQueryId, query);
+        startQuery(lastQueryId, coalescedResponseAdapter, timeout);
+        return this;
+    }
+
+    private void startQuery(
+            long requestId, ActorRef<DeviceManager.RespondAllTemperatures> replyTo, Duration timeout) {
+        Map<String, DeviceManager.TemperatureReading> knownReadings = new HashMap<>();
+        Map<String, ActorRef<Device.Command>> devicesToAsk = devicesToAsk(knownReadings);
+        if (devicesToAsk.isEmpty()) {
+            replyTo.tell(new DeviceManager.RespondAllTemperatures(requestId, knownReadings));
+            return;
+        }
+        Map<String, Double> fallback = new HashMap<>();
+        if (!hedgeAfter.isZero()) {
+            for (int slot = 0; slot < lastReadings.highWater(); slot++) {
+                String deviceId = lastReadings.deviceId(slot);
+                if (deviceId != null) {
+                    fallback.put(deviceId, lastReadings.valueAt(slot));
+                }
+            }
+        }
+        ActorRef<DeviceGroupQuery.Command> query =
+                getContext()
+                        .spawnAnonymous(
+                                DeviceGroupQuery.create(
+                                        devicesToAsk,
+                                        knownReadings,
+                                        requestId,
+                                        replyTo,
+                                        timeout,
+                                        hedgeAfter,
+                                        fallback,
+                                        latencies != null ? getContext().getSelf() : null),
+                                queryProps);
+        watchQuery(query.narrow());
+    }
+
+    /** One watch per query, where the query would otherwise watch every device it asks. */
+    private void watchQuery(ActorRef<DeviceGroupQuery.DeviceTerminated> query) {
+        runningQueries.add(query);
+        getContext().watchWith(query, new QueryStopped(query));
+    }
+
+    private DeviceGroup onCoalescedResponse(CoalescedResponse r) {
+        CoalescedQuery query = coalescedQueries.remove(r.response.requestId);
+        // shared by all requests of the query
+        Map<String, DeviceManager.TemperatureReading> temperatures =
+                Collections.unmodifiableMap(r.response.temperatures);
+        for (DeviceManager.RequestAllTemperatures request : query.requests) {
+            request.replyTo.tell(new DeviceManager.RespondAllTemperatures(request.requestId, temperatures));
+        }
+        return this;
+    }
+
+    private DeviceGroup onQueryReplies(QueryReplies replies) {
+        for (int i = 0; i < replies.latencyCount; i++) {
+            latencies.add(replies.latencies[i]);
+        }
+        if (deviceSettings.query.hedge) {
+            for (int i = 0; i < replies.replyCount; i++) {
+                // a device that has left the group or is passivating since the query asked it is not kept
+                if (deviceIdToActor.contains(replies.deviceIds[i]) && !passivating.containsKey(replies.deviceIds[i])) {
+                    lastReadings.put(replies.deviceIds[i], true, replies.values[i]);
+                }
+            }
+        }
+        QuerySettings settings = deviceSettings.query;
+        if (latencies.size() >= settings.minSamples) {
+            if (settings.adaptiveTimeout) {
+                long timeout = Math.max(settings.minTimeout.toNanos(), 2 * latencies.percentile(0.999));
+                queryTimeout = Duration.ofNanos(Math.min(settings.timeout.toNanos(), timeout));
+            }
+            if (settings.hedge) {
+                hedgeAfter = Duration.ofNanos(Math.max(1L, latencies.percentile(0.99)));
+            }
+        }
+        return this;
+    }
 
+    private DeviceGroup onAllTemperaturesStream(DeviceManager.RequestAllTemperaturesStream r) {
+        Map<String, DeviceManager.TemperatureReading> knownReadings = cachedSnapshot();
+        Map<String, ActorRef<Device.Command>> devicesToAsk;
+        if (knownReadings != null) {
+            devicesToAsk = Collections.emptyMap();
+        } else {
+            knownReadings = new HashMap<>();
+            devicesToAsk = devicesToAsk(knownReadings);
+        }
+        ActorRef<StreamingGroupQuery.Command> query =
+                getContext().spawnAnonymous(
+                        StreamingGroupQuery.create(devicesToAsk, knownReadings, r, queryTimeout), queryProps);
+        if (!devicesToAsk.isEmpty()) {
+            watchQuery(query.narrow());
+        }
         return this;
     }
 
+    /** The snapshot of the cached readings, rebuilt if it is too old, or null when the cache can't be used. */
+    private Map<String, DeviceManager.TemperatureReading> cachedSnapshot() {
+        if (deviceSettings.queryMaxStaleness.isZero() || !unreported.isEmpty()) {
+            return null;
+        }
+        long now = System.nanoTime();
+        if (snapshot == null
+                || (cacheChanged && now - snapshotNanos >= deviceSettings.queryMaxStaleness.toNanos() / 2)) {
+            Map<String, DeviceManager.TemperatureReading> readings = new HashMap<>();
+            for (int slot = 0; slot < cachedReadings.highWater(); slot++) {
+                String deviceId = cachedReadings.deviceId(slot);
+                if (deviceId != null) {
+                    readings.put(deviceId, reading(cachedReadings.valueAt(slot)));
+                }
+            }
+            snapshot = Collections.unmodifiableMap(readings);
+            snapshotNanos = now;
+            cacheChanged = false;
+        }
+        return snapshot;
+    }
+
+    /** The devices a query has to ask, putting the readings of the others into {@code knownReadings}. */
+    private Map<String, ActorRef<Device.Command>> devicesToAsk(
+            Map<String, DeviceManager.TemperatureReading> knownReadings) {
+        Map<String, ActorRef<Device.Command>> deviceIdToActorCopy =
+                new HashMap<>(deviceIdToActor.size() * 4 / 3 + 1);
+        for (int number = 0; number < deviceIdToActor.highWater(); number++) {
+            String deviceId = deviceIdToActor.id(number);
+            if (deviceId != null) {
+                deviceIdToActorCopy.put(deviceId, deviceIdToActor.ref(number));
+            }
+        }
+        // passivated devices are answered from their last reading instead of being started again
+        for (int slot = 0; slot < passivated.highWater(); slot++) {
+            String deviceId = passivated.deviceId(slot);
+            if (deviceId != null) {
+                knownReadings.put(deviceId, reading(passivated.valueAt(slot)));
+            }
+        }
+        for (Map.Entry<String, Passivation> entry : passivating.entrySet()) {
+            deviceIdToActorCopy.remove(entry.getKey());
+            if (!entry.getValue().reported) {
+                knownReadings.put(entry.getKey(), DeviceManager.DeviceNotAvailable.INSTANCE);
+            }
+        }
+        return deviceIdToActorCopy;
+    }
+
+    private static DeviceManager.TemperatureReading reading(double value) {
+        return Double.isNaN(value)
+                ? DeviceManager.TemperatureNotAvailable.INSTANCE
+                : new DeviceManager.Temperature(value);
+    }
+
     private DeviceGroup onTrackDevice(DeviceManager.RequestTrackDevice trackMsg) {
         if (this.groupId.equals(trackMsg.groupId)) {
             ActorRef<Device.Command> deviceActor = deviceIdToActor.get(trackMsg.deviceId);
-            if (deviceActor != null) {
+            Passivation passivation = passivating.get(trackMsg.deviceId);
+            if (passivation != null) {
+                passivation.registrations.add(trackMsg.replyTo);
+            } else if (deviceActor != null) {
                 trackMsg.replyTo.tell(new DeviceManager.DeviceRegistered(deviceActor));
+            } else if (passivated.contains(trackMsg.deviceId)) {
+                trackMsg.replyTo.tell(new DeviceManager.DeviceRegistered(rehydrate(trackMsg.deviceId)));
             } else {
                 getContext().getLog().info("Creating device actor for {}", trackMsg.deviceId);
-                deviceActor =
-                        getContext()
-                                .spawn(Device.create(groupId, trackMsg.deviceId), "device-" + trackMsg.deviceId);
-                getContext().watchWith(deviceActor, new DeviceTerminated(deviceActor, groupId, trackMsg.deviceId));
-                deviceIdToActor.put(trackMsg.deviceId, deviceActor);
-                trackMsg.replyTo.tell(new DeviceManager.DeviceRegistered(deviceActor));
+                deviceActor = spawnDevice(trackMsg.deviceId);
+                listing.joined(trackMsg.deviceId);
+                if (membership != null) {
+                    // only registered once the membership has it, so that the device comes back after a restart
+                    membership.tell(
+                            new DeviceGroupMembership.Register(trackMsg.deviceId, deviceActor, trackMsg.replyTo));
+                } else {
+                    trackMsg.replyTo.tell(new DeviceManager.DeviceRegistered(deviceActor));
+                }
             }
         } else {
             getContext().getLog().warn("Ignoring TrackDevice request for {}. This actor is responsible for {}.",
@@ -73,14 +486,358 @@ public class DeviceGroup extends AbstractBehavior<DeviceGroup.Command> {
         return this;
     }
 
+    private DeviceGroup onTrackDevices(DeviceManager.RequestTrackDevices trackMsg) {
+        BulkRegistration registration = new BulkRegistration(trackMsg);
+        List<String> added = new ArrayList<>();
+        for (String deviceId : trackMsg.deviceIds) {
+            ActorRef<Device.Command> deviceActor = deviceIdToActor.get(deviceId);
+            Passivation passivation = passivating.get(deviceId);
+            if (passivation != null) {
+                // an id listed twice is waited for once
+                if (!passivation.bulkRegistrations.contains(registration)) {
+                    passivation.bulkRegistrations.add(registration);
+                    registration.pending++;
+                }
+            } else if (deviceActor != null) {
+                registration.devices.put(deviceId, deviceActor);
+            } else if (passivated.contains(deviceId)) {
+                registration.devices.put(deviceId, rehydrate(deviceId));
+            } else {
+                registration.devices.put(deviceId, spawnDevice(deviceId));
+                listing.joined(deviceId);
+                added.add(deviceId);
+            }
+        }
+        if (!added.isEmpty()) {
+            getContext().getLog().info("Created {} device actors", added.size());
+            if (membership != null) {
+                // only registered once the membership has them, so that the devices come back after a restart
+                unjournaledRegistrations.put(++lastRegistrationId, registration);
+                registration.pending++;
+                membership.tell(new DeviceGroupMembership.RegisterAll(lastRegistrationId, added));
+            }
+        }
+        registration.replyWhenDone();
+        return this;
+    }
+
+    private DeviceGroup onMembersRegistered(MembersRegistered registered) {
+        BulkRegistration registration = unjournaledRegistrations.remove(registered.registrationId);
+        registration.pending--;
+        registration.replyWhenDone();
+        return this;
+    }
+
+    private DeviceGroup onMembershipRecovered(MembershipRecovered recovered) {
+        getContext().getLog().info("DeviceGroup {} recovered {} devices", groupId, recovered.deviceIds.size());
+        for (String deviceId : recovered.deviceIds) {
+            if (!deviceIdToActor.contains(deviceId) && !passivated.contains(deviceId)) {
+                spawnDevice(deviceId);
+                listing.joined(deviceId);
+            }
+        }
+        return this;
+    }
+
+    private ActorRef<Device.Command> spawnDevice(String deviceId) {
+        Behavior<Device.Command> device;
+        if (deviceSettings.persistence.enabled) {
+            device = PersistentDevice.create(groupId, deviceId, deviceSettings, getContext().getSelf());
+        } else {
+            ReadingStore readings =
+                    readingLog != null
+                            ? readingLog.forDevice(readingLog.indexOf(deviceId))
+                            : new TemperatureHistory(deviceSettings.historyCapacity);
+            device = Device.create(groupId, deviceId, deviceSettings, readings, getContext().getSelf());
+        }
+        ActorRef<Device.Command> deviceActor = getContext().spawn(device, "device-" + deviceId, deviceProps);
+        getContext().watchWith(deviceActor, new DeviceTerminated(deviceActor, groupId, deviceId));
+        deviceIdToActor.put(deviceId, deviceActor);
+        if (deviceSubscription != null) {
+            deviceActor.tell(deviceSubscription);
+        }
+        if (!deviceSettings.queryMaxStaleness.isZero()) {
+            if (deviceSettings.persistence.enabled) {
+                unreported.add(deviceId);
+            } else if (!cachedReadings.contains(deviceId)) {
+                cachedReadings.put(deviceId, false, Double.NaN);
+                cacheChanged = true;
+            }
+        }
+        updateGauges();
+        return deviceActor;
+    }
+
+    private void updateGauges() {
+        gauges.update(deviceIdToActor.size() - passivating.size(), passivated.size());
+    }
+
+    /** Starts a passivated device again, with the reading it had when it was passivated. */
+    private ActorRef<Device.Command> rehydrate(String deviceId) {
+        double lastReading = passivated.remove(deviceId);
+        ActorRef<Device.Command> deviceActor = spawnDevice(deviceId);
+        // a persistent device recovers its reading from the journal
+        if (!Double.isNaN(lastReading) && !deviceSettings.persistence.enabled) {
+            deviceActor.tell(new Device.RestoreReading(lastReading));
+        }
+        rehydrations++;
+        return deviceActor;
+    }
+
+    private boolean isTracked(String deviceId) {
+        return deviceIdToActor.contains(deviceId) || passivated.contains(deviceId);
+    }
+
+    /** Sends {@code message} to the device, starting it again if it was passivated. False for an unknown device. */
+    private boolean deliver(String deviceId, Device.Command message) {
+        Passivation passivation = passivating.get(deviceId);
+        if (passivation != null) {
+            passivation.buffered.add(message);
+            return true;
+        }
+        ActorRef<Device.Command> deviceActor = deviceIdToActor.get(deviceId);
+        if (deviceActor != null) {
+            deviceActor.tell(message);
+            return true;
+        }
+        if (passivated.contains(deviceId)) {
+            rehydrate(deviceId).tell(message);
+            return true;
+        }
+        return false;
+    }
+
+    private DeviceGroup onDeviceEnvelope(DeviceManager.DeviceEnvelope envelope) {
+        if (!deliver(envelope.deviceId, envelope.message)) {
+            getContext().getLog().warn("Dropping message for unknown device {}", envelope.deviceId);
+        }
+        return this;
+    }
+
+    private DeviceGroup onReadingUpdated(ReadingUpdated update) {
+        // a late update from a device that has left the group is dropped
+        if (deviceIdToActor.contains(update.deviceId)) {
+            cachedReadings.put(update.deviceId, !Double.isNaN(update.value), update.value);
+            unreported.remove(update.deviceId);
+            cacheChanged = true;
+        }
+        return this;
+    }
+
+    private DeviceGroup onDeviceIdle(DeviceIdle idle) {
+        // ignore a device that has been passivated or replaced since it sent this
+        if (idle.device.equals(deviceIdToActor.get(idle.deviceId)) && !passivating.containsKey(idle.deviceId)) {
+            passivating.put(idle.deviceId, new Passivation());
+            idle.device.tell(Device.Passivate.INSTANCE);
+            updateGauges();
+        }
+        return this;
+    }
+
+    private DeviceGroup onDevicePassivated(DevicePassivated p) {
+        Passivation passivation = passivating.get(p.deviceId);
+        // a device stopped with Passivate by anyone else than its group leaves the group for good
+        if (passivation != null) {
+            passivated.put(p.deviceId, p.hasValue, p.value);
+            if (!deviceSettings.queryMaxStaleness.isZero()) {
+                cachedReadings.put(p.deviceId, p.hasValue, p.value);
+                unreported.remove(p.deviceId);
+                cacheChanged = true;
+            }
+            passivation.reported = true;
+            completePassivation(p.deviceId, passivation);
+        }
+        return this;
+    }
+
+    private void completePassivation(String deviceId, Passivation passivation) {
+        if (!passivation.reported || !passivation.terminated) {
+            return;
+        }
+        passivating.remove(deviceId);
+        deviceIdToActor.remove(deviceId);
+        lastReadings.remove(deviceId);
+        passivations++;
+        updateGauges();
+        if (!passivation.buffered.isEmpty()
+                || !passivation.registrations.isEmpty()
+                || !passivation.bulkRegistrations.isEmpty()) {
+            ActorRef<Device.Command> deviceActor = rehydrate(deviceId);
+            for (ActorRef<DeviceManager.DeviceRegistered> replyTo : passivation.registrations) {
+                replyTo.tell(new DeviceManager.DeviceRegistered(deviceActor));
+            }
+            for (BulkRegistration registration : passivation.bulkRegistrations) {
+                registration.deviceRegistered(deviceId, deviceActor);
+            }
+            for (Device.Command message : passivation.buffered) {
+                deviceActor.tell(message);
+            }
+        }
+    }
+
+    private DeviceGroup onGroupMetrics(DeviceManager.RequestGroupMetrics r) {
+        r.replyTo.tell(new DeviceManager.GroupMetrics(
+                r.requestId,
+                deviceIdToActor.size() - passivating.size(),
+                passivated.size(),
+                passivations,
+                rehydrations));
+        return this;
+    }
+
+    private DeviceGroup onRecordTemperatureBatch(DeviceManager.RecordTemperatureBatch batch) {
+        // count the readings per device first so every device gets exactly one message
+        Map<String, int[]> counts = new HashMap<>();
+        Set<String> unknown = new HashSet<>();
+        int recorded = 0;
+        for (String deviceId : batch.deviceIds) {
+            if (isTracked(deviceId)) {
+                counts.computeIfAbsent(deviceId, id -> new int[1])[0]++;
+                recorded++;
+            } else {
+                unknown.add(deviceId);
+            }
+        }
+        Map<String, int[]> positionsByDevice = new HashMap<>();
+        for (Map.Entry<String, int[]> entry : counts.entrySet()) {
+            positionsByDevice.put(entry.getKey(), new int[entry.getValue()[0]]);
+        }
+        // filled back to front so that each device sees its readings in batch order
+        for (int i = batch.deviceIds.length - 1; i >= 0; i--) {
+            int[] count = counts.get(batch.deviceIds[i]);
+            if (count != null) {
+                positionsByDevice.get(batch.deviceIds[i])[--count[0]] = i;
+            }
+        }
+        for (Map.Entry<String, int[]> entry : positionsByDevice.entrySet()) {
+            deliver(entry.getKey(), new Device.RecordTemperatures(batch.values, batch.timestamps, entry.getValue()));
+        }
+        batch.replyTo.tell(new DeviceManager.TemperatureBatchRecorded(batch.requestId, recorded, unknown));
+        return this;
+    }
+
     private DeviceGroup onDeviceList(DeviceManager.RequestDeviceList r) {
-        r.replyTo.tell(new DeviceManager.ReplyDeviceList(r.requestId, deviceIdToActor.keySet()));
+        r.replyTo.tell(listing.list(r));
+        return this;
+    }
+
+    private DeviceGroup onDeviceChanges(DeviceManager.RequestDeviceChanges r) {
+        r.replyTo.tell(listing.changes(r));
+        return this;
+    }
+
+    /** The running, passivating and passivated devices. */
+    private String[] deviceIds() {
+        String[] deviceIds = new String[deviceIdToActor.size() + passivated.size()];
+        int i = 0;
+        for (int number = 0; number < deviceIdToActor.highWater(); number++) {
+            if (deviceIdToActor.id(number) != null) {
+                deviceIds[i++] = deviceIdToActor.id(number);
+            }
+        }
+        for (int slot = 0; slot < passivated.highWater(); slot++) {
+            if (passivated.deviceId(slot) != null) {
+                deviceIds[i++] = passivated.deviceId(slot);
+            }
+        }
+        return deviceIds;
+    }
+
+    private DeviceGroup onSubscribeTemperatures(DeviceManager.SubscribeGroupTemperatures s) {
+        temperatureSubscribers.subscribe(s);
+        // the subscriber starts from the readings the group has, the devices are not asked again for it
+        seedSubscriber(s.replyTo, passivated);
+        seedSubscriber(s.replyTo, pushedTemperatures);
+        subscribeDevices();
+        return this;
+    }
+
+    private void seedSubscriber(ActorRef<DeviceManager.GroupTemperaturesChanged> subscriber, ReadingTable readings) {
+        for (int slot = 0; slot < readings.highWater(); slot++) {
+            String deviceId = readings.deviceId(slot);
+            if (deviceId != null && !Double.isNaN(readings.valueAt(slot))) {
+                temperatureSubscribers.recorded(subscriber, deviceId, readings.valueAt(slot));
+            }
+        }
+    }
+
+    private DeviceGroup onUnsubscribeTemperatures(DeviceManager.UnsubscribeGroupTemperatures s) {
+        temperatureSubscribers.unsubscribe(s.replyTo);
+        subscribeDevices();
+        return this;
+    }
+
+    /**
+     * Subscribes the devices with what the subscribers of the group need, or unsubscribes them, but only when that
+     * changed: every subscription makes each device send its reading again.
+     */
+    private void subscribeDevices() {
+        Device.Command command;
+        if (temperatureSubscribers.isEmpty()) {
+            if (deviceSubscription == null) {
+                return;
+            }
+            deviceSubscription = null;
+            pushedTemperatures = new ReadingTable();
+            command = new Device.UnsubscribeTemperature(temperatureAdapter);
+        } else {
+            double minDelta = temperatureSubscribers.minDelta();
+            Duration minInterval = temperatureSubscribers.minInterval();
+            if (deviceSubscription != null
+                    && deviceSubscription.minDelta == minDelta
+                    && deviceSubscription.minInterval.equals(minInterval)) {
+                return;
+            }
+            if (temperatureAdapter == null) {
+                temperatureAdapter =
+                        getContext().messageAdapter(Device.TemperatureChanged.class, DeviceTemperatureChanged::new);
+            }
+            deviceSubscription = new Device.SubscribeTemperature(minDelta, minInterval, temperatureAdapter);
+            command = deviceSubscription;
+        }
+        for (int number = 0; number < deviceIdToActor.highWater(); number++) {
+            if (deviceIdToActor.id(number) != null) {
+                deviceIdToActor.ref(number).tell(command);
+            }
+        }
+    }
+
+    private DeviceGroup onDeviceTemperatureChanged(DeviceTemperatureChanged m) {
+        // a late reading from a device that has left the group is dropped
+        if (deviceIdToActor.contains(m.changed.deviceId)) {
+            pushedTemperatures.put(m.changed.deviceId, true, m.changed.value);
+            temperatureSubscribers.recorded(m.changed.deviceId, m.changed.value);
+        }
         return this;
     }
 
     private DeviceGroup onTerminated(DeviceTerminated t) {
+        if (!runningQueries.isEmpty()) {
+            DeviceGroupQuery.DeviceTerminated terminated = new DeviceGroupQuery.DeviceTerminated(t.deviceId);
+            for (ActorRef<DeviceGroupQuery.DeviceTerminated> query : runningQueries) {
+                query.tell(terminated);
+            }
+        }
+        Passivation passivation = passivating.get(t.deviceId);
+        if (passivation != null) {
+            passivation.terminated = true;
+            completePassivation(t.deviceId, passivation);
+            return this;
+        }
         getContext().getLog().info("Device actor for {} has been terminated", t.deviceId);
         deviceIdToActor.remove(t.deviceId);
+        listing.left(t.deviceId);
+        temperatureSubscribers.left(t.deviceId);
+        pushedTemperatures.remove(t.deviceId);
+        lastReadings.remove(t.deviceId);
+        updateGauges();
+        if (cachedReadings.contains(t.deviceId) || unreported.remove(t.deviceId)) {
+            cachedReadings.remove(t.deviceId);
+            cacheChanged = true;
+        }
+        if (membership != null) {
+            membership.tell(new DeviceGroupMembership.Unregister(t.deviceId));
+        }
         return this;
     }
 
@@ -88,17 +845,67 @@ public class DeviceGroup extends AbstractBehavior<DeviceGroup.Command> {
     public Receive<Command> createReceive() {
         return newReceiveBuilder()
                 .onMessage(DeviceManager.RequestTrackDevice.class, this::onTrackDevice)
+                .onMessage(
+                        DeviceManager.RequestTrackDevices.class,
+                        r -> r.groupId.equals(groupId),
+                        this::onTrackDevices)
                 .onMessage(DeviceManager.RequestDeviceList.class, r -> r.groupId.equals(groupId), this::onDeviceList)
+                .onMessage(
+                        DeviceManager.RequestDeviceChanges.class,
+                        r -> r.groupId.equals(groupId),
+                        this::onDeviceChanges)
+                .onMessage(
+                        DeviceManager.RecordTemperatureBatch.class,
+                        r -> r.groupId.equals(groupId),
+                        this::onRecordTemperatureBatch)
+                .onMessage(DeviceManager.DeviceEnvelope.class, r -> r.groupId.equals(groupId), this::onDeviceEnvelope)
+                .onMessage(
+                        DeviceManager.RequestGroupMetrics.class,
+                        r -> r.groupId.equals(groupId),
+                        this::onGroupMetrics)
+                .onMessage(
+                        DeviceManager.SubscribeGroupTemperatures.class,
+                        r -> r.groupId.equals(groupId),
+                        this::onSubscribeTemperatures)
+                .onMessage(
+                        DeviceManager.UnsubscribeGroupTemperatures.class,
+                        r -> r.groupId.equals(groupId),
+                        this::onUnsubscribeTemperatures)
+                .onMessage(DeviceTemperatureChanged.class, this::onDeviceTemperatureChanged)
+                .onMessage(GroupTemperatureSubscribers.Flush.class, f -> {
+                    temperatureSubscribers.onFlush(f);
+                    return this;
+                })
+                .onMessage(ReadingUpdated.class, this::onReadingUpdated)
+                .onMessage(DeviceIdle.class, this::onDeviceIdle)
+                .onMessage(DevicePassivated.class, this::onDevicePassivated)
+                .onMessage(QueryReplies.class, this::onQueryReplies)
+                .onMessage(CoalescedResponse.class, this::onCoalescedResponse)
+                .onMessage(QueryStopped.class, q -> {
+                    runningQueries.remove(q.query);
+                    return this;
+                })
                 .onMessage(DeviceTerminated.class, this::onTerminated)
+                .onMessage(MembershipRecovered.class, this::onMembershipRecovered)
+                .onMessage(MembersRegistered.class, this::onMembersRegistered)
                 .onMessage(
                         DeviceManager.RequestAllTemperatures.class,
                         r -> r.groupId.equals(groupId),
                         this::onAllTemperatures)
+                .onMessage(
+                        DeviceManager.RequestAllTemperaturesStream.class,
+                        r -> r.groupId.equals(groupId),
+                        this::onAllTemperaturesStream)
                 .onSignal(PostStop.class, signal -> onPostStop())
                 .build();
     }
 
     private DeviceGroup onPostStop() {
+        // the devices are stopped before their group, nothing appends to the log anymore
+        if (readingLog != null) {
+            readingLog.close();
+        }
+        metrics.groupStopped(groupId, gauges);
         getContext().getLog().info("DeviceGroup {} stopped", groupId);
         return this;
     }
@@ -0,0 +1,203 @@
+package sample;
+
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.Behavior;
+import akka.actor.typed.javadsl.Behaviors;
+import akka.persistence.typed.PersistenceId;
+import akka.persistence.typed.RecoveryCompleted;
+import akka.persistence.typed.SnapshotAdapter;
+import akka.persistence.typed.javadsl.CommandHandler;
+import akka.persistence.typed.javadsl.Effect;
+import akka.persistence.typed.javadsl.EventHandler;
+import akka.persistence.typed.javadsl.EventSourcedBehavior;
+import akka.persistence.typed.javadsl.RetentionCriteria;
+import akka.persistence.typed.javadsl.SignalHandler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The journal of which devices a persistent {@link DeviceGroup} tracks. Once recovered it tells the group the
+ * recovered device ids, so that the group can start their (persistent) device actors again.
+ */
+class DeviceGroupMembership
+        extends EventSourcedBehavior<DeviceGroupMembership.Command, DeviceGroupMembership.Event, Set<String>> {
+
+    interface Command {}
+
+    /** Adds a device, {@code replyTo} is told about {@code device} once that is in the journal. */
+    static final class Register implements Command {
+        final String deviceId;
+        final ActorRef<Device.Command> device;
+        final ActorRef<DeviceManager.DeviceRegistered> replyTo;
+
+        Register(String deviceId, ActorRef<Device.Command> device, ActorRef<DeviceManager.DeviceRegistered> replyTo) {
+            this.deviceId = deviceId;
+            this.device = device;
+            this.replyTo = replyTo;
+        }
+    }
+
+    /** Adds devices in one journal write, then tells the group {@link DeviceGroup.MembersRegistered}. */
+    static final class RegisterAll implements Command {
+        final long registrationId;
+        final List<String> deviceIds;
+
+        RegisterAll(long registrationId, List<String> deviceIds) {
+            this.registrationId = registrationId;
+            this.deviceIds = deviceIds;
+        }
+    }
+
+    static final class Unregister implements Command {
+        final String deviceId;
+
+        Unregister(String deviceId) {
+            this.deviceId = deviceId;
+        }
+    }
+
+    interface Event {}
+
+    static final class DeviceAdded implements Event {
+        final String deviceId;
+
+        DeviceAdded(String deviceId) {
+            this.deviceId = deviceId;
+        }
+    }
+
+    static final class DeviceRemoved implements Event {
+        final String deviceId;
+
+        DeviceRemoved(String deviceId) {
+            this.deviceId = deviceId;
+        }
+    }
+
+    /** What a snapshot stores, a copy of the member set taken when the snapshot is requested. */
+    static final class Members {
+        final String[] deviceIds;
+
+        Members(String[] deviceIds) {
+            this.deviceIds = deviceIds;
+        }
+    }
+
+    static Behavior<Command> create(String groupId, ActorRef<DeviceGroup.Command> group, DeviceSettings settings) {
+        return Behaviors.setup(context -> new DeviceGroupMembership(groupId, group, settings));
+    }
+
+    private final ActorRef<DeviceGroup.Command> group;
+    private final DeviceSettings settings;
+
+    private DeviceGroupMembership(String groupId, ActorRef<DeviceGroup.Command> group, DeviceSettings settings) {
+        super(PersistenceId.of("DeviceGroup", groupId));
+        this.group = group;
+        this.settings = settings;
+    }
+
+    // the set is mutated in place, which is safe since snapshots get a copy through snapshotAdapter
+    @Override
+    public Set<String> emptyState() {
+        return new HashSet<>();
+    }
+
+    @Override
+    public String journalPluginId() {
+        return settings.persistence.journalPluginId;
+    }
+
+    @Override
+    public String snapshotPluginId() {
+        return settings.persistence.snapshotPluginId;
+    }
+
+    @Override
+    public RetentionCriteria retentionCriteria() {
+        return RetentionCriteria.snapshotEvery(settings.persistence.snapshotEvery, 2);
+    }
+
+    @Override
+    public SnapshotAdapter<Set<String>> snapshotAdapter() {
+        return new SnapshotAdapter<Set<String>>() {
+            @Override
+            public Object toJournal(Set<String> state) {
+                return new Members(state.toArray(new String[0]));
+            }
+
+            @Override
+            public Set<String> fromJournal(Object from) {
+                return new HashSet<>(Arrays.asList(((Members) from).deviceIds));
+            }
+        };
+    }
+
+    @Override
+    public CommandHandler<Command, Event, Set<String>> commandHandler() {
+        return newCommandHandlerBuilder()
+                .forAnyState()
+                .onCommand(Register.class, this::onRegister)
+                .onCommand(RegisterAll.class, this::onRegisterAll)
+                .onCommand(Unregister.class, this::onUnregister)
+                .build();
+    }
+
+    private Effect<Event, Set<String>> onRegister(Set<String> state, Register r) {
+        if (state.contains(r.deviceId)) {
+            r.replyTo.tell(new DeviceManager.DeviceRegistered(r.device));
+            return Effect().none();
+        }
+        return Effect()
+                .persist(new DeviceAdded(r.deviceId))
+                .thenRun(() -> r.replyTo.tell(new DeviceManager.DeviceRegistered(r.device)));
+    }
+
+    private Effect<Event, Set<String>> onRegisterAll(Set<String> state, RegisterAll r) {
+        List<Event> added = new ArrayList<>();
+        for (String deviceId : r.deviceIds) {
+            if (!state.contains(deviceId)) {
+                added.add(new DeviceAdded(deviceId));
+            }
+        }
+        DeviceGroup.MembersRegistered registered = new DeviceGroup.MembersRegistered(r.registrationId);
+        if (added.isEmpty()) {
+            group.tell(registered);
+            return Effect().none();
+        }
+        return Effect().persist(added).thenRun(() -> group.tell(registered));
+    }
+
+    private Effect<Event, Set<String>> onUnregister(Set<String> state, Unregister r) {
+        if (state.contains(r.deviceId)) {
+            return Effect().persist(new DeviceRemoved(r.deviceId));
+        }
+        return Effect().none();
+    }
+
+    @Override
+    public EventHandler<Set<String>, Event> eventHandler() {
+        return newEventHandlerBuilder()
+                .forAnyState()
+                .onEvent(DeviceAdded.class, (state, e) -> {
+                    state.add(e.deviceId);
+                    return state;
+                })
+                .onEvent(DeviceRemoved.class, (state, e) -> {
+                    state.remove(e.deviceId);
+                    return state;
+                })
+                .build();
+    }
+
+    @Override
+    public SignalHandler<Set<String>> signalHandler() {
+        return newSignalHandlerBuilder()
+                .onSignal(RecoveryCompleted.instance(), state ->
+                        group.tell(new DeviceGroup.MembershipRecovered(new HashSet<>(state))))
+                .build();
+    }
+}
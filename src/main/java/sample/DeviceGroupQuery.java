@@ -5,8 +5,10 @@ import akka.actor.typed.Behavior;
 import akka.actor.typed.javadsl.*;
 
 import java.time.Duration;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
 
@@ -18,6 +20,10 @@ public class DeviceGroupQuery extends AbstractBehavior<DeviceGroupQuery.Command>
         INSTANCE
     }
 
+    private static enum HedgeTimeout implements Command {
+        INSTANCE
+    }
+
     static class WrappedRespondTemperature implements Command {
         final Device.RespondTemperature response;
 
@@ -26,10 +32,14 @@ public class DeviceGroupQuery extends AbstractBehavior<DeviceGroupQuery.Command>
         }
     }
 
-    private static class DeviceTerminated implements Command {
+    /**
+     * A device the query may be waiting for has stopped. Sent by the query's own death watch when it is not
+     * started by a group, otherwise by the group, which watches its devices anyway.
+     */
+    static final class DeviceTerminated implements Command, StreamingGroupQuery.Command {
         final String deviceId;
 
-        private DeviceTerminated(String deviceId) {
+        DeviceTerminated(String deviceId) {
             this.deviceId = deviceId;
         }
     }
@@ -39,37 +49,127 @@ public class DeviceGroupQuery extends AbstractBehavior<DeviceGroupQuery.Command>
             long requestId,
             ActorRef<DeviceManager.RespondAllTemperatures> requester,
             Duration timeout) {
-        return Behaviors.setup(
-                context ->
-                        Behaviors.withTimers(
-                                timers ->
-                                        new DeviceGroupQuery(
-                                                deviceIdToActor, requestId, requester, timeout, context, timers)));
+        return create(deviceIdToActor, Collections.emptyMap(), requestId, requester, timeout);
+    }
+
+    /** A query that only asks {@code deviceIdToActor} and answers with {@code knownReadings} for the other devices. */
+    static Behavior<Command> create(
+            Map<String, ActorRef<Device.Command>> deviceIdToActor,
+            Map<String, DeviceManager.TemperatureReading> knownReadings,
+            long requestId,
+            ActorRef<DeviceManager.RespondAllTemperatures> requester,
+            Duration timeout) {
+        return create(
+                deviceIdToActor, knownReadings, requestId, requester, timeout, Duration.ZERO, Collections.emptyMap(),
+                null, true);
+    }
+
+    /**
+     * A query that also answers devices that have not replied after {@code hedgeAfter} ({@code Duration.ZERO}
+     * for never) from {@code lastReadings}, as {@link DeviceManager.StaleTemperature}, and tells {@code group}
+     * (unless null) how long the devices took and what they answered once it is done. The devices are not
+     * watched, whoever starts the query has to send it {@link DeviceTerminated} for those that stop.
+     */
+    static Behavior<Command> create(
+            Map<String, ActorRef<Device.Command>> deviceIdToActor,
+            Map<String, DeviceManager.TemperatureReading> knownReadings,
+            long requestId,
+            ActorRef<DeviceManager.RespondAllTemperatures> requester,
+            Duration timeout,
+            Duration hedgeAfter,
+            Map<String, Double> lastReadings,
+            ActorRef<DeviceGroup.Command> group) {
+        return create(
+                deviceIdToActor, knownReadings, requestId, requester, timeout, hedgeAfter, lastReadings, group, false);
+    }
+
+    private static Behavior<Command> create(
+            Map<String, ActorRef<Device.Command>> deviceIdToActor,
+            Map<String, DeviceManager.TemperatureReading> knownReadings,
+            long requestId,
+            ActorRef<DeviceManager.RespondAllTemperatures> requester,
+            Duration timeout,
+            Duration hedgeAfter,
+            Map<String, Double> lastReadings,
+            ActorRef<DeviceGroup.Command> group,
+            boolean watchDevices) {
+        return IotMetrics.instrument(
+                IotProps.QUERY,
+                Behaviors.setup(
+                        context ->
+                                Behaviors.withTimers(
+                                        timers ->
+                                                new DeviceGroupQuery(
+                                                        deviceIdToActor,
+                                                        knownReadings,
+                                                        requestId,
+                                                        requester,
+                                                        timeout,
+                                                        hedgeAfter,
+                                                        lastReadings,
+                                                        group,
+                                                        watchDevices,
+                                                        context,
+                                                        timers))));
     }
 
     private final long requestId;
     private final ActorRef<DeviceManager.RespondAllTemperatures> requester;
-    private Map<String, DeviceManager.TemperatureReading> repliesSoFar = new HashMap<>();
+    private Map<String, DeviceManager.TemperatureReading> repliesSoFar;
     private final Set<String> stillWaiting;
+    // answered from lastReadings, a reply that still comes in before the query is done replaces that
+    private final Set<String> hedged = new HashSet<>();
+    private final Map<String, Double> lastReadings;
+
+    private final ActorRef<DeviceGroup.Command> group;
+    private final long startNanos = System.nanoTime();
+    private final long timeoutNanos;
+    // what is reported to the group, only filled when there is one
+    private final long[] latencies;
+    private int latencyCount;
+    private final String[] repliedIds;
+    private final double[] repliedValues;
+    private int repliedCount;
+    private final IotMetrics metrics;
 
     private DeviceGroupQuery(
             Map<String, ActorRef<Device.Command>> deviceIdToActor,
+            Map<String, DeviceManager.TemperatureReading> knownReadings,
             long requestId,
             ActorRef<DeviceManager.RespondAllTemperatures> requester,
             Duration timeout,
+            Duration hedgeAfter,
+            Map<String, Double> lastReadings,
+            ActorRef<DeviceGroup.Command> group,
+            boolean watchDevices,
             ActorContext<Command> context,
             TimerScheduler<Command> timers) {
         super(context);
         this.requestId = requestId;
         this.requester = requester;
+        this.repliesSoFar = new HashMap<>(knownReadings);
+        this.lastReadings = lastReadings;
+        this.group = group;
+        this.timeoutNanos = timeout.toNanos();
+        int samples = group != null ? deviceIdToActor.size() : 0;
+        this.latencies = new long[samples];
+        this.repliedIds = new String[samples];
+        this.repliedValues = new double[samples];
+        this.metrics = IotMetrics.get(context.getSystem());
+        metrics.queryStarted(deviceIdToActor.size());
 
         timers.startSingleTimer(CollectionTimeout.INSTANCE, timeout);
+        if (!hedgeAfter.isZero() && hedgeAfter.compareTo(timeout) < 0 && !lastReadings.isEmpty()) {
+            timers.startSingleTimer(HedgeTimeout.INSTANCE, hedgeAfter);
+        }
 
         ActorRef<Device.RespondTemperature> respondTemperatureAdapter =
                 context.messageAdapter(Device.RespondTemperature.class, WrappedRespondTemperature::new);
 
         for (Map.Entry<String, ActorRef<Device.Command>> entry : deviceIdToActor.entrySet()) {
-            context.watchWith(entry.getValue(), new DeviceTerminated(entry.getKey()));
+            if (watchDevices) {
+                context.watchWith(entry.getValue(), new DeviceTerminated(entry.getKey()));
+            }
             entry.getValue().tell(new Device.ReadTemperature(0L, respondTemperatureAdapter));
         }
         stillWaiting = new HashSet<>(deviceIdToActor.keySet());
@@ -80,24 +180,43 @@ public class DeviceGroupQuery extends AbstractBehavior<DeviceGroupQuery.Command>
         return newReceiveBuilder()
                 .onMessage(WrappedRespondTemperature.class, this::onRespondTemperature)
                 .onMessage(DeviceTerminated.class, this::onDeviceTerminated)
+                .onMessage(HedgeTimeout.class, this::onHedgeTimeout)
                 .onMessage(CollectionTimeout.class, this::onCollectionTimeout)
                 .build();
     }
 
     private Behavior<Command> onRespondTemperature(WrappedRespondTemperature r) {
         DeviceManager.TemperatureReading reading =
-                r.response
-                        .value
-                        .map(v -> (DeviceManager.TemperatureReading) new DeviceManager.Temperature(v))
-                        .orElse(DeviceManager.TemperatureNotAvailable.INSTANCE);
+                r.response.hasValue
+                        ? new DeviceManager.Temperature(r.response.value)
+                        : DeviceManager.TemperatureNotAvailable.INSTANCE;
 
         String deviceId = r.response.deviceId;
-        repliesSoFar.put(deviceId, reading);
-        stillWaiting.remove(deviceId);
+        if (stillWaiting.remove(deviceId) || hedged.remove(deviceId)) {
+            repliesSoFar.put(deviceId, reading);
+            if (group != null) {
+                recordLatency(System.nanoTime() - startNanos);
+                repliedIds[repliedCount] = deviceId;
+                repliedValues[repliedCount++] = r.response.hasValue ? r.response.value : Double.NaN;
+            }
+        }
 
         return respondWhenAllCollected();
     }
 
+    private Behavior<Command> onHedgeTimeout(HedgeTimeout timeout) {
+        for (Iterator<String> it = stillWaiting.iterator(); it.hasNext(); ) {
+            String deviceId = it.next();
+            Double lastReading = lastReadings.get(deviceId);
+            if (lastReading != null && !lastReading.isNaN()) {
+                repliesSoFar.put(deviceId, new DeviceManager.StaleTemperature(lastReading));
+                hedged.add(deviceId);
+                it.remove();
+            }
+        }
+        return respondWhenAllCollected();
+    }
+
     private Behavior<Command> onDeviceTerminated(DeviceTerminated terminated) {
         if (stillWaiting.contains(terminated.deviceId)) {
             repliesSoFar.put(terminated.deviceId, DeviceManager.DeviceNotAvailable.INSTANCE);
@@ -107,16 +226,36 @@ public class DeviceGroupQuery extends AbstractBehavior<DeviceGroupQuery.Command>
     }
 
     private Behavior<Command> onCollectionTimeout(CollectionTimeout timeout) {
+        if (!stillWaiting.isEmpty()) {
+            metrics.queryTimedOut();
+        }
         for (String deviceId : stillWaiting) {
             repliesSoFar.put(deviceId, DeviceManager.DeviceTimedOut.INSTANCE);
+            // all that is known is that they took at least that long
+            recordLatency(timeoutNanos);
         }
         stillWaiting.clear();
         return respondWhenAllCollected();
     }
 
+    private void recordLatency(long nanos) {
+        if (latencyCount < latencies.length) {
+            latencies[latencyCount++] = nanos;
+        }
+    }
+
     private Behavior<Command> respondWhenAllCollected() {
         if (stillWaiting.isEmpty()) {
             requester.tell(new DeviceManager.RespondAllTemperatures(requestId, repliesSoFar));
+            if (group != null) {
+                long elapsed = System.nanoTime() - startNanos;
+                for (int i = 0; i < hedged.size(); i++) {
+                    recordLatency(elapsed);
+                }
+                group.tell(
+                        new DeviceGroup.QueryReplies(
+                                latencies, latencyCount, repliedIds, repliedValues, repliedCount));
+            }
             return Behaviors.stopped();
         } else {
             return this;
@@ -0,0 +1,136 @@
+package sample;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Supplier;
+
+/**
+ * The membership of a group as its clients list it. Every device joining or leaving the group bumps the version,
+ * and the last {@code device-list-changes} changes are kept in a ring for {@link DeviceManager.RequestDeviceChanges}.
+ * {@link DeviceManager.RequestDeviceList} is answered from a sorted array of the ids, taken on the first request
+ * after a change and shared by the replies until the next one, so a page is a view of it and not a copy.
+ */
+final class DeviceListing {
+
+    private final Supplier<String[]> members;
+    private final String[] changedIds;
+    private final boolean[] joined;
+    // versions start at a random number, a version of an earlier run of the group is not taken for one of this run
+    private final long firstVersion;
+    private long version;
+    private String[] snapshot;
+    private long snapshotVersion;
+
+    /** {@code members} are the ids of the devices of the group, in any order. */
+    DeviceListing(int changesKept, Supplier<String[]> members) {
+        this.members = members;
+        this.changedIds = new String[changesKept];
+        this.joined = new boolean[changesKept];
+        this.firstVersion = ThreadLocalRandom.current().nextLong(Long.MAX_VALUE / 2);
+        this.version = firstVersion;
+    }
+
+    void joined(String deviceId) {
+        changed(deviceId, true);
+    }
+
+    void left(String deviceId) {
+        changed(deviceId, false);
+    }
+
+    private void changed(String deviceId, boolean join) {
+        version++;
+        if (changedIds.length > 0) {
+            int i = (int) (version % changedIds.length);
+            changedIds[i] = deviceId;
+            joined[i] = join;
+        }
+    }
+
+    DeviceManager.ReplyDeviceList list(DeviceManager.RequestDeviceList r) {
+        if (snapshot == null || snapshotVersion != version) {
+            snapshot = members.get();
+            Arrays.sort(snapshot);
+            snapshotVersion = version;
+        }
+        int from = 0;
+        if (r.after != null) {
+            int position = Arrays.binarySearch(snapshot, r.after);
+            from = position >= 0 ? position + 1 : -position - 1;
+        }
+        int to = (int) Math.min(snapshot.length, (long) from + r.limit);
+        String next = to < snapshot.length ? snapshot[to - 1] : null;
+        return new DeviceManager.ReplyDeviceList(r.requestId, new SortedIds(snapshot, from, to), version, next);
+    }
+
+    DeviceManager.ReplyDeviceChanges changes(DeviceManager.RequestDeviceChanges r) {
+        if (r.sinceVersion < firstVersion || r.sinceVersion > version || version - r.sinceVersion > changedIds.length) {
+            return new DeviceManager.ReplyDeviceChanges(
+                    r.requestId, version, Collections.emptySet(), Collections.emptySet(), false);
+        }
+        // the last change of a device wins, one that joined and left again since is reported as left
+        Map<String, Boolean> changes = new HashMap<>();
+        for (long v = r.sinceVersion + 1; v <= version; v++) {
+            int i = (int) (v % changedIds.length);
+            changes.put(changedIds[i], joined[i]);
+        }
+        Set<String> added = new HashSet<>();
+        Set<String> removed = new HashSet<>();
+        for (Map.Entry<String, Boolean> change : changes.entrySet()) {
+            (change.getValue() ? added : removed).add(change.getKey());
+        }
+        return new DeviceManager.ReplyDeviceChanges(r.requestId, version, added, removed, true);
+    }
+
+    /** The ids {@code from} up to {@code to} of a sorted array that is never modified. */
+    private static final class SortedIds extends AbstractSet<String> {
+
+        private final String[] ids;
+        private final int from;
+        private final int to;
+
+        SortedIds(String[] ids, int from, int to) {
+            this.ids = ids;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return o instanceof String && Arrays.binarySearch(ids, from, to, o) >= 0;
+        }
+
+        @Override
+        public Iterator<String> iterator() {
+            return new Iterator<String>() {
+                private int next = from;
+
+                @Override
+                public boolean hasNext() {
+                    return next < to;
+                }
+
+                @Override
+                public String next() {
+                    if (next == to) {
+                        throw new NoSuchElementException();
+                    }
+                    return ids[next++];
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return to - from;
+        }
+    }
+}
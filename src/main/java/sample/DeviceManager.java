@@ -3,13 +3,19 @@ package sample;
 import akka.actor.typed.ActorRef;
 import akka.actor.typed.Behavior;
 import akka.actor.typed.PostStop;
+import akka.actor.typed.Props;
 import akka.actor.typed.javadsl.AbstractBehavior;
 import akka.actor.typed.javadsl.ActorContext;
 import akka.actor.typed.javadsl.Behaviors;
 import akka.actor.typed.javadsl.Receive;
+import com.typesafe.config.Config;
 
+import java.time.Duration;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -29,33 +35,376 @@ public class DeviceManager extends AbstractBehavior<DeviceManager.Command> {
         }
     }
 
+    /**
+     * A registered device. A device of a compact group has no actor of its own and so no {@code device} ref, it is
+     * reached through its group: {@link #tell} works for both.
+     */
     public static final class DeviceRegistered {
+        /** Null for a device of a compact group. */
         public final ActorRef<Device.Command> device;
+        // only set for a device of a compact group
+        final String groupId;
+        final String deviceId;
+        final ActorRef<DeviceEnvelope> group;
 
         public DeviceRegistered(ActorRef<Device.Command> device) {
+            this(device, null, null, null);
+        }
+
+        DeviceRegistered(String groupId, String deviceId, ActorRef<DeviceEnvelope> group) {
+            this(null, groupId, deviceId, group);
+        }
+
+        DeviceRegistered(
+                ActorRef<Device.Command> device, String groupId, String deviceId, ActorRef<DeviceEnvelope> group) {
             this.device = device;
+            this.groupId = groupId;
+            this.deviceId = deviceId;
+            this.group = group;
+        }
+
+        /** Sends {@code message} to the device, through its group when it has no actor. */
+        public void tell(Device.Command message) {
+            if (device != null) {
+                device.tell(message);
+            } else {
+                group.tell(new DeviceEnvelope(groupId, deviceId, message));
+            }
+        }
+    }
+
+    /**
+     * Tracks all of {@code deviceIds} in one go, starting the ones the group does not have yet, and answers with a
+     * single {@link DevicesRegistered}. Registering thousands of devices this way costs one message and one
+     * reply instead of one each.
+     */
+    public static final class RequestTrackDevices implements DeviceManager.Command, DeviceGroup.Command {
+        final long requestId;
+        final String groupId;
+        final List<String> deviceIds;
+        final ActorRef<DevicesRegistered> replyTo;
+
+        public RequestTrackDevices(
+                long requestId, String groupId, List<String> deviceIds, ActorRef<DevicesRegistered> replyTo) {
+            this.requestId = requestId;
+            this.groupId = groupId;
+            this.deviceIds = deviceIds;
+            this.replyTo = replyTo;
         }
     }
 
+    /** The registered devices, which like a {@link DeviceRegistered} are best reached with {@link #tell}. */
+    public static final class DevicesRegistered {
+        final long requestId;
+        /** The device of every requested id, null for the devices of a compact group. */
+        public final Map<String, ActorRef<Device.Command>> devices;
+        // only set for a compact group
+        final String groupId;
+        final ActorRef<DeviceEnvelope> group;
+
+        public DevicesRegistered(long requestId, Map<String, ActorRef<Device.Command>> devices) {
+            this(requestId, devices, null, null);
+        }
+
+        DevicesRegistered(
+                long requestId,
+                Map<String, ActorRef<Device.Command>> devices,
+                String groupId,
+                ActorRef<DeviceEnvelope> group) {
+            this.requestId = requestId;
+            this.devices = devices;
+            this.groupId = groupId;
+            this.group = group;
+        }
+
+        /** Sends {@code message} to one of the devices, through its group when it has no actor. */
+        public void tell(String deviceId, Device.Command message) {
+            ActorRef<Device.Command> device = devices.get(deviceId);
+            if (device != null) {
+                device.tell(message);
+            } else if (group != null && devices.containsKey(deviceId)) {
+                group.tell(new DeviceEnvelope(groupId, deviceId, message));
+            } else {
+                throw new IllegalArgumentException("Device " + deviceId + " was not registered");
+            }
+        }
+    }
+
+    /**
+     * The ids of the devices of a group, sorted, as pages of at most {@code limit} ids after {@code after}. The
+     * full list when {@code after} is null and there is no limit.
+     */
     public static final class RequestDeviceList implements DeviceManager.Command, DeviceGroup.Command {
         final long requestId;
         final String groupId;
+        // null for the first page
+        final String after;
+        final int limit;
         final ActorRef<ReplyDeviceList> replyTo;
 
         public RequestDeviceList(long requestId, String groupId, ActorRef<ReplyDeviceList> replyTo) {
+            this(requestId, groupId, null, Integer.MAX_VALUE, replyTo);
+        }
+
+        /** The page after the id {@code after}, the {@link ReplyDeviceList#next} of the page before. */
+        public RequestDeviceList(
+                long requestId, String groupId, String after, int limit, ActorRef<ReplyDeviceList> replyTo) {
+            if (limit <= 0) {
+                throw new IllegalArgumentException("limit must be positive");
+            }
             this.requestId = requestId;
             this.groupId = groupId;
+            this.after = after;
+            this.limit = limit;
             this.replyTo = replyTo;
         }
     }
 
+    /**
+     * A page of device ids, from an immutable snapshot of the group at {@code version}. The replies share the
+     * snapshot until the group changes. {@code next} is what to ask the next page after, null on the last page.
+     */
     public static final class ReplyDeviceList {
         final long requestId;
         final Set<String> ids;
+        final long version;
+        final String next;
 
-        public ReplyDeviceList(long requestId, Set<String> ids) {
+        public ReplyDeviceList(long requestId, Set<String> ids, long version, String next) {
             this.requestId = requestId;
             this.ids = ids;
+            this.version = version;
+            this.next = next;
+        }
+    }
+
+    /**
+     * The devices that joined and left a group since {@code sinceVersion}, the {@link ReplyDeviceList#version} or
+     * {@link ReplyDeviceChanges#version} a client saw last.
+     */
+    public static final class RequestDeviceChanges implements DeviceManager.Command, DeviceGroup.Command {
+        final long requestId;
+        final String groupId;
+        final long sinceVersion;
+        final ActorRef<ReplyDeviceChanges> replyTo;
+
+        public RequestDeviceChanges(
+                long requestId, String groupId, long sinceVersion, ActorRef<ReplyDeviceChanges> replyTo) {
+            this.requestId = requestId;
+            this.groupId = groupId;
+            this.sinceVersion = sinceVersion;
+            this.replyTo = replyTo;
+        }
+    }
+
+    /**
+     * The ids to add and to remove to get from the list at the version asked for to the list at {@code version}.
+     * Not {@code complete} when the group does not have the changes since that version anymore, because there
+     * were more than {@code iot.device.device-list-changes} of them or the group was started again since; the
+     * client then has to list the devices again.
+     */
+    public static final class ReplyDeviceChanges {
+        final long requestId;
+        final long version;
+        final Set<String> added;
+        final Set<String> removed;
+        final boolean complete;
+
+        public ReplyDeviceChanges(
+                long requestId, long version, Set<String> added, Set<String> removed, boolean complete) {
+            this.requestId = requestId;
+            this.version = version;
+            this.added = added;
+            this.removed = removed;
+            this.complete = complete;
+        }
+    }
+
+    /**
+     * {@code replyTo} is sent the readings of the devices of a group as they change, instead of polling
+     * {@link RequestAllTemperatures}: first the readings the devices have, then the latest reading of every device
+     * whose reading has moved at least {@code minDelta} away from the one the subscriber was sent last. The
+     * changes are collected per subscriber and sent together, at most once per {@code minInterval}, so a slow
+     * subscriber gets the latest readings instead of a backlog. Subscribing again replaces the subscription.
+     */
+    public static final class SubscribeGroupTemperatures implements DeviceManager.Command, DeviceGroup.Command {
+        final String groupId;
+        final double minDelta;
+        final Duration minInterval;
+        final ActorRef<GroupTemperaturesChanged> replyTo;
+
+        public SubscribeGroupTemperatures(
+                String groupId, double minDelta, Duration minInterval, ActorRef<GroupTemperaturesChanged> replyTo) {
+            if (!(minDelta >= 0.0) || minInterval.isNegative()) {
+                throw new IllegalArgumentException("minDelta and minInterval must not be negative");
+            }
+            this.groupId = groupId;
+            this.minDelta = minDelta;
+            this.minInterval = minInterval;
+            this.replyTo = replyTo;
+        }
+    }
+
+    public static final class UnsubscribeGroupTemperatures implements DeviceManager.Command, DeviceGroup.Command {
+        final String groupId;
+        final ActorRef<GroupTemperaturesChanged> replyTo;
+
+        public UnsubscribeGroupTemperatures(String groupId, ActorRef<GroupTemperaturesChanged> replyTo) {
+            this.groupId = groupId;
+            this.replyTo = replyTo;
+        }
+    }
+
+    /** The latest readings of the devices whose readings changed, by device id. */
+    public static final class GroupTemperaturesChanged {
+        final String groupId;
+        final Map<String, Double> temperatures;
+
+        public GroupTemperaturesChanged(String groupId, Map<String, Double> temperatures) {
+            this.groupId = groupId;
+            this.temperatures = temperatures;
+        }
+    }
+
+    public static final class RecordTemperatureBatch implements DeviceManager.Command, DeviceGroup.Command {
+        final long requestId;
+        final String groupId;
+        final String[] deviceIds;
+        final double[] values;
+        final long[] timestamps;
+        final ActorRef<TemperatureBatchRecorded> replyTo;
+
+        /**
+         * Reading {@code i} of the batch is {@code values[i]}, taken at {@code timestamps[i]} (epoch millis) by
+         * {@code deviceIds[i]}. The arrays are shared with the receiving actors and must not be modified after
+         * sending.
+         */
+        public RecordTemperatureBatch(
+                long requestId,
+                String groupId,
+                String[] deviceIds,
+                double[] values,
+                long[] timestamps,
+                ActorRef<TemperatureBatchRecorded> replyTo) {
+            if (deviceIds.length != values.length || deviceIds.length != timestamps.length) {
+                throw new IllegalArgumentException("deviceIds, values and timestamps must have the same length");
+            }
+            this.requestId = requestId;
+            this.groupId = groupId;
+            this.deviceIds = deviceIds;
+            this.values = values;
+            this.timestamps = timestamps;
+            this.replyTo = replyTo;
+        }
+    }
+
+    public static final class TemperatureBatchRecorded {
+        final long requestId;
+        final int recorded;
+        final Set<String> unknownDeviceIds;
+
+        public TemperatureBatchRecorded(long requestId, int recorded, Set<String> unknownDeviceIds) {
+            this.requestId = requestId;
+            this.recorded = recorded;
+            this.unknownDeviceIds = unknownDeviceIds;
+        }
+    }
+
+    /**
+     * {@code message} for a device of {@code groupId}, delivered by its group. Unlike a ref from
+     * {@link DeviceRegistered} this reaches the device even after it was passivated, starting it again.
+     */
+    public static final class DeviceEnvelope implements DeviceManager.Command, DeviceGroup.Command {
+        final String groupId;
+        final String deviceId;
+        final Device.Command message;
+
+        public DeviceEnvelope(String groupId, String deviceId, Device.Command message) {
+            this.groupId = groupId;
+            this.deviceId = deviceId;
+            this.message = message;
+        }
+    }
+
+    public static final class RequestGroupMetrics implements DeviceManager.Command, DeviceGroup.Command {
+        final long requestId;
+        final String groupId;
+        final ActorRef<GroupMetrics> replyTo;
+
+        public RequestGroupMetrics(long requestId, String groupId, ActorRef<GroupMetrics> replyTo) {
+            this.requestId = requestId;
+            this.groupId = groupId;
+            this.replyTo = replyTo;
+        }
+    }
+
+    /**
+     * How many devices of a group have a running actor and how many are passivated, and how many
+     * passivations and restarts of passivated devices the group has done since it started.
+     */
+    public static final class GroupMetrics {
+        final long requestId;
+        final int liveDevices;
+        final int passivatedDevices;
+        final long passivations;
+        final long rehydrations;
+
+        public GroupMetrics(
+                long requestId, int liveDevices, int passivatedDevices, long passivations, long rehydrations) {
+            this.requestId = requestId;
+            this.liveDevices = liveDevices;
+            this.passivatedDevices = passivatedDevices;
+            this.passivations = passivations;
+            this.rehydrations = rehydrations;
+        }
+    }
+
+    /**
+     * Asks for the group actor of {@code groupId}, started if it does not run yet, so that its messages can be
+     * sent to it directly instead of through the manager. The ref stays valid for as long as the group runs.
+     */
+    public static final class RequestGroup implements DeviceManager.Command {
+        final String groupId;
+        final ActorRef<GroupRef> replyTo;
+
+        public RequestGroup(String groupId, ActorRef<GroupRef> replyTo) {
+            this.groupId = groupId;
+            this.replyTo = replyTo;
+        }
+    }
+
+    public static final class GroupRef {
+        public final String groupId;
+        public final ActorRef<DeviceGroup.Command> group;
+
+        public GroupRef(String groupId, ActorRef<DeviceGroup.Command> group) {
+            this.groupId = groupId;
+            this.group = group;
+        }
+    }
+
+    /** Asks a manager for the managers that own the groups, see {@link #createPartitioned}. */
+    public static final class RequestPartitions implements DeviceManager.Command {
+        final ActorRef<Partitions> replyTo;
+
+        public RequestPartitions(ActorRef<Partitions> replyTo) {
+            this.replyTo = replyTo;
+        }
+    }
+
+    /**
+     * The managers that own the groups, a group being owned by the one at {@link #partitionOf} its id. Messages
+     * for a group sent to its owner skip the manager that routes to all of them.
+     */
+    public static final class Partitions {
+        public final List<ActorRef<Command>> partitions;
+
+        public Partitions(List<ActorRef<Command>> partitions) {
+            this.partitions = partitions;
+        }
+
+        public ActorRef<Command> partitionFor(String groupId) {
+            return partitions.get(partitionOf(groupId, partitions.size()));
         }
     }
 
@@ -67,16 +416,34 @@ public class DeviceManager extends AbstractBehavior<DeviceManager.Command> {
         }
     }
 
+    /** The persistent groups the manager had started before, from {@link DeviceManagerGroups}. */
+    static final class GroupsRecovered implements DeviceManager.Command {
+        final Set<String> groupIds;
+
+        GroupsRecovered(Set<String> groupIds) {
+            this.groupIds = groupIds;
+        }
+    }
+
     public static final class RequestAllTemperatures implements DeviceGroupQuery.Command, DeviceGroup.Command, Command {
 
         final long requestId;
         final String groupId;
+        // null for the group's default, see iot.device.query
+        final Duration timeout;
         final ActorRef<RespondAllTemperatures> replyTo;
 
         public RequestAllTemperatures(
                 long requestId, String groupId, ActorRef<RespondAllTemperatures> replyTo) {
+            this(requestId, groupId, null, replyTo);
+        }
+
+        /** Devices that have not answered within {@code timeout} are reported as {@link DeviceTimedOut}. */
+        public RequestAllTemperatures(
+                long requestId, String groupId, Duration timeout, ActorRef<RespondAllTemperatures> replyTo) {
             this.requestId = requestId;
             this.groupId = groupId;
+            this.timeout = timeout;
             this.replyTo = replyTo;
         }
     }
@@ -91,6 +458,111 @@ public class DeviceManager extends AbstractBehavior<DeviceManager.Command> {
         }
     }
 
+    /**
+     * Like {@link RequestAllTemperatures}, but the readings come in {@link TemperatureChunk}s of at most
+     * {@code chunkSize} as the devices answer. The next chunk is only sent once the previous one is acked,
+     * and devices are only asked as far ahead as two chunks, so a slow consumer slows down the query instead
+     * of the readings piling up.
+     */
+    public static final class RequestAllTemperaturesStream implements DeviceManager.Command, DeviceGroup.Command {
+        final long requestId;
+        final String groupId;
+        final int chunkSize;
+        final ActorRef<TemperatureChunk> replyTo;
+
+        public RequestAllTemperaturesStream(
+                long requestId, String groupId, int chunkSize, ActorRef<TemperatureChunk> replyTo) {
+            if (chunkSize < 1) {
+                throw new IllegalArgumentException("chunkSize must be positive");
+            }
+            this.requestId = requestId;
+            this.groupId = groupId;
+            this.chunkSize = chunkSize;
+            this.replyTo = replyTo;
+        }
+    }
+
+    /**
+     * Chunk {@code seqNr} (from 0) of the readings of a group, {@code readings[i]} being the reading of
+     * {@code deviceIds[i]}. Unless it is the {@code last} chunk, it must be acked to {@code ackTo} for the
+     * next one to come; a chunk not acked within the query timeout ends the stream.
+     */
+    public static final class TemperatureChunk {
+        final long requestId;
+        final long seqNr;
+        final String[] deviceIds;
+        final TemperatureReading[] readings;
+        final boolean last;
+        final ActorRef<TemperatureChunkAck> ackTo;
+
+        public TemperatureChunk(
+                long requestId,
+                long seqNr,
+                String[] deviceIds,
+                TemperatureReading[] readings,
+                boolean last,
+                ActorRef<TemperatureChunkAck> ackTo) {
+            this.requestId = requestId;
+            this.seqNr = seqNr;
+            this.deviceIds = deviceIds;
+            this.readings = readings;
+            this.last = last;
+            this.ackTo = ackTo;
+        }
+    }
+
+    public static final class TemperatureChunkAck implements StreamingGroupQuery.Command {
+        final long seqNr;
+
+        public TemperatureChunkAck(long seqNr) {
+            this.seqNr = seqNr;
+        }
+    }
+
+    /**
+     * The temperatures of the devices of {@code groupIds}, or of every group when it is empty, queried in
+     * parallel. Whatever has arrived after {@code timeout} is the answer.
+     */
+    public static final class RequestGroupsTemperatures implements Command {
+        final long requestId;
+        final Set<String> groupIds;
+        final Duration timeout;
+        final ActorRef<RespondGroupsTemperatures> replyTo;
+
+        public RequestGroupsTemperatures(
+                long requestId,
+                Set<String> groupIds,
+                Duration timeout,
+                ActorRef<RespondGroupsTemperatures> replyTo) {
+            this.requestId = requestId;
+            this.groupIds = groupIds;
+            this.timeout = timeout;
+            this.replyTo = replyTo;
+        }
+    }
+
+    /**
+     * The readings per group of the groups that answered in time. Groups that did not are in
+     * {@code timedOutGroupIds}, requested groups that do not exist (or stopped) in {@code unknownGroupIds}.
+     */
+    public static final class RespondGroupsTemperatures {
+        final long requestId;
+        final Map<String, Map<String, TemperatureReading>> temperatures;
+        final Set<String> timedOutGroupIds;
+        final Set<String> unknownGroupIds;
+
+        public RespondGroupsTemperatures(
+                long requestId,
+                Map<String, Map<String, TemperatureReading>> temperatures,
+                Set<String> timedOutGroupIds,
+                Set<String> unknownGroupIds) {
+            this.requestId = requestId;
+            this.temperatures = temperatures;
+            this.timedOutGroupIds = timedOutGroupIds;
+            this.unknownGroupIds = unknownGroupIds;
+        }
+    }
+
     public interface TemperatureReading {}
 
     public static final class Temperature implements TemperatureReading {
@@ -122,6 +594,36 @@ public class DeviceManager extends AbstractBehavior<DeviceManager.Command> {
         }
     }
 
+    /** The last reading a query got from a device that did not answer in time, see {@code iot.device.query.hedge}. */
+    public static final class StaleTemperature implements TemperatureReading {
+        public final double value;
+
+        public StaleTemperature(double value) {
+            this.value = value;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            StaleTemperature that = (StaleTemperature) o;
+
+            return Double.compare(that.value, value) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            long temp = Double.doubleToLongBits(value);
+            return (int) (temp ^ (temp >>> 32));
+        }
+
+        @Override
+        public String toString() {
+            return "StaleTemperature{" + "value=" + value + '}';
+        }
+    }
+
     public enum TemperatureNotAvailable implements TemperatureReading {
         INSTANCE
     }
@@ -134,40 +636,298 @@ public class DeviceManager extends AbstractBehavior<DeviceManager.Command> {
         INSTANCE
     }
 
+    // what arrives while the manager recovers its persistent groups, beyond that messages are dropped
+    private static final int RECOVERY_STASH_CAPACITY = 10000;
+
     public static Behavior<Command> create() {
-        return Behaviors.setup(DeviceManager::new);
+        return create(0, 1);
+    }
+
+    /**
+     * Partition {@code partition} of {@code partitions}, which starts again only the persistent groups it owns.
+     * When persistence is enabled for any group, the manager journals the ids of its persistent groups and starts
+     * them again when it is started again, so that a restarted system answers for them before they are asked
+     * to track a device. Messages that arrive before those groups are started are handled after.
+     */
+    static Behavior<Command> create(int partition, int partitions) {
+        return IotMetrics.instrument(IotProps.MANAGER, Behaviors.setup(context -> {
+            Config config = context.getSystem().settings().config();
+            if (!anyPersistentGroup(config)) {
+                return new DeviceManager(context, partition, partitions, null);
+            }
+            ActorRef<DeviceManagerGroups.Command> journal =
+                    context.spawn(
+                            DeviceManagerGroups.create(
+                                    context.getSelf().path().toStringWithoutAddress(),
+                                    context.getSelf(),
+                                    PersistenceSettings.create(config.getConfig("iot.device.persistence"))),
+                            "groups",
+                            IotProps.of(context.getSystem(), IotProps.MANAGER));
+            return Behaviors.withStash(
+                    RECOVERY_STASH_CAPACITY,
+                    stash -> Behaviors.receive(Command.class)
+                            .onMessage(GroupsRecovered.class, recovered -> {
+                                DeviceManager manager = new DeviceManager(context, partition, partitions, journal);
+                                manager.startRecovered(recovered.groupIds);
+                                return stash.unstashAll(manager);
+                            })
+                            .onAnyMessage(message -> {
+                                if (stash.isFull()) {
+                                    context.getLog().warn(
+                                            "Dropping {} while recovering the groups", message.getClass().getName());
+                                } else {
+                                    stash.stash(message);
+                                }
+                                return Behaviors.same();
+                            })
+                            .build());
+        }));
     }
 
-    private final Map<String, ActorRef<DeviceGroup.Command>> groupIdToActor = new HashMap<>();
+    private static boolean anyPersistentGroup(Config config) {
+        if (config.getBoolean("iot.device.persistence.enabled")) {
+            return true;
+        }
+        for (String groupId : config.getObject("iot.groups").keySet()) {
+            if (DeviceSettings.forGroup(config, groupId).persistence.enabled) {
+                return true;
+            }
+        }
+        return false;
+    }
 
-    private DeviceManager(ActorContext<Command> context) {
+    /**
+     * A manager that routes to {@code iot.manager.partitions} managers, each owning the groups whose id hashes
+     * to it, so that registrations and the start of new groups are not all handled by one actor.
+     */
+    public static Behavior<Command> createPartitioned() {
+        return Behaviors.setup(context -> {
+            int partitions = context.getSystem().settings().config().getInt("iot.manager.partitions");
+            return PartitionedDeviceManager.create(
+                    partitions > 0 ? partitions : Runtime.getRuntime().availableProcessors());
+        });
+    }
+
+    public static Behavior<Command> createPartitioned(int partitions) {
+        return PartitionedDeviceManager.create(partitions);
+    }
+
+    /**
+     * The partition out of {@code partitions} that owns {@code groupId}. It only depends on the id, the same
+     * on every node and across restarts, so clients can route by it themselves.
+     */
+    public static int partitionOf(String groupId, int partitions) {
+        return Math.floorMod(groupId.hashCode(), partitions);
+    }
+
+    /** The group {@code message} is for, every message that goes to a group has one. */
+    static String groupIdOf(DeviceGroup.Command message) {
+        if (message instanceof RequestTrackDevice) {
+            return ((RequestTrackDevice) message).groupId;
+        } else if (message instanceof RequestTrackDevices) {
+            return ((RequestTrackDevices) message).groupId;
+        } else if (message instanceof RequestDeviceList) {
+            return ((RequestDeviceList) message).groupId;
+        } else if (message instanceof RequestDeviceChanges) {
+            return ((RequestDeviceChanges) message).groupId;
+        } else if (message instanceof SubscribeGroupTemperatures) {
+            return ((SubscribeGroupTemperatures) message).groupId;
+        } else if (message instanceof UnsubscribeGroupTemperatures) {
+            return ((UnsubscribeGroupTemperatures) message).groupId;
+        } else if (message instanceof RecordTemperatureBatch) {
+            return ((RecordTemperatureBatch) message).groupId;
+        } else if (message instanceof DeviceEnvelope) {
+            return ((DeviceEnvelope) message).groupId;
+        } else if (message instanceof RequestGroupMetrics) {
+            return ((RequestGroupMetrics) message).groupId;
+        } else if (message instanceof RequestAllTemperatures) {
+            return ((RequestAllTemperatures) message).groupId;
+        } else if (message instanceof RequestAllTemperaturesStream) {
+            return ((RequestAllTemperaturesStream) message).groupId;
+        }
+        throw new IllegalArgumentException("Can't route " + message.getClass() + " to a group");
+    }
+
+    private final RefTable<DeviceGroup.Command> groupIdToActor = new RefTable<>(16);
+    private final Props groupProps;
+    private final int partition;
+    private final int partitions;
+    // only set when any group is persistent
+    private final ActorRef<DeviceManagerGroups.Command> groupJournal;
+
+    private DeviceManager(
+            ActorContext<Command> context,
+            int partition,
+            int partitions,
+            ActorRef<DeviceManagerGroups.Command> groupJournal) {
         super(context);
+        this.groupProps = IotProps.of(context.getSystem(), IotProps.GROUP);
+        this.partition = partition;
+        this.partitions = partitions;
+        this.groupJournal = groupJournal;
         context.getLog().info("DeviceManager started");
     }
 
+    private void startRecovered(Set<String> groupIds) {
+        for (String groupId : groupIds) {
+            // after iot.manager.partitions changed, the new owner starts the group on the first message for it
+            if (partitionOf(groupId, partitions) == partition) {
+                group(groupId);
+            }
+        }
+    }
+
     private DeviceManager onTrackDevice(RequestTrackDevice trackMsg) {
-        String groupId = trackMsg.groupId;
+        group(trackMsg.groupId).tell(trackMsg);
+        return this;
+    }
+
+    private DeviceManager onTrackDevices(RequestTrackDevices trackMsg) {
+        group(trackMsg.groupId).tell(trackMsg);
+        return this;
+    }
+
+    private DeviceManager onRequestGroup(RequestGroup request) {
+        request.replyTo.tell(new GroupRef(request.groupId, group(request.groupId)));
+        return this;
+    }
+
+    private DeviceManager onRequestPartitions(RequestPartitions request) {
+        request.replyTo.tell(new Partitions(Collections.singletonList(getContext().getSelf())));
+        return this;
+    }
+
+    private ActorRef<DeviceGroup.Command> group(String groupId) {
         ActorRef<DeviceGroup.Command> ref = groupIdToActor.get(groupId);
+        if (ref == null) {
+            getContext().getLog().info("Creating device group actor for {}", groupId);
+            Behavior<DeviceGroup.Command> behavior = DeviceGroup.create(groupId);
+            if (groupJournal != null) {
+                DeviceSettings settings = DeviceSettings.forGroup(getContext().getSystem().settings().config(), groupId);
+                if (settings.persistence.enabled) {
+                    groupJournal.tell(new DeviceManagerGroups.Register(groupId));
+                }
+                behavior = DeviceGroup.create(groupId, settings);
+            }
+            ref = getContext().spawn(behavior, "group-" + groupId, groupProps);
+            getContext().watchWith(ref, new DeviceGroupTerminated(groupId));
+            groupIdToActor.put(groupId, ref);
+        }
+        return ref;
+    }
+
+    private DeviceManager onRequestDeviceList(RequestDeviceList request) {
+        ActorRef<DeviceGroup.Command> ref = groupIdToActor.get(request.groupId);
         if (ref != null) {
-            ref.tell(trackMsg);
+            ref.tell(request);
         } else {
-            getContext().getLog().info("Creating device group actor for {}, groupId");
-            ActorRef<DeviceGroup.Command> groupActor =
-                    getContext().spawn(DeviceGroup.create(groupId), "group-" + groupId);
-            getContext().watchWith(groupActor, new DeviceGroupTerminated(groupId));
-            groupActor.tell(trackMsg);
-            groupIdToActor.put(groupId, groupActor);
+            request.replyTo.tell(new ReplyDeviceList(request.requestId, Collections.emptySet(), 0L, null));
         }
         return this;
     }
 
-    private DeviceManager onRequestDeviceList(RequestDeviceList request) {
+    // a subscription can be made before the devices are registered
+    private DeviceManager onSubscribeGroupTemperatures(SubscribeGroupTemperatures request) {
+        group(request.groupId).tell(request);
+        return this;
+    }
+
+    private DeviceManager onUnsubscribeGroupTemperatures(UnsubscribeGroupTemperatures request) {
         ActorRef<DeviceGroup.Command> ref = groupIdToActor.get(request.groupId);
         if (ref != null) {
             ref.tell(request);
+        }
+        return this;
+    }
+
+    private DeviceManager onRequestDeviceChanges(RequestDeviceChanges request) {
+        ActorRef<DeviceGroup.Command> ref = groupIdToActor.get(request.groupId);
+        if (ref != null) {
+            ref.tell(request);
+        } else {
+            request.replyTo.tell(new ReplyDeviceChanges(
+                    request.requestId, 0L, Collections.emptySet(), Collections.emptySet(), false));
+        }
+        return this;
+    }
+
+    private DeviceManager onRecordTemperatureBatch(RecordTemperatureBatch batch) {
+        ActorRef<DeviceGroup.Command> ref = groupIdToActor.get(batch.groupId);
+        if (ref != null) {
+            ref.tell(batch);
+        } else {
+            Set<String> unknown = new HashSet<>(Arrays.asList(batch.deviceIds));
+            batch.replyTo.tell(new TemperatureBatchRecorded(batch.requestId, 0, unknown));
+        }
+        return this;
+    }
+
+    private DeviceManager onDeviceEnvelope(DeviceEnvelope envelope) {
+        ActorRef<DeviceGroup.Command> ref = groupIdToActor.get(envelope.groupId);
+        if (ref != null) {
+            ref.tell(envelope);
+        } else {
+            getContext().getLog().warn("Dropping message for device {} of unknown group {}",
+                    envelope.deviceId, envelope.groupId);
+        }
+        return this;
+    }
+
+    private DeviceManager onRequestGroupMetrics(RequestGroupMetrics request) {
+        ActorRef<DeviceGroup.Command> ref = groupIdToActor.get(request.groupId);
+        if (ref != null) {
+            ref.tell(request);
+        } else {
+            request.replyTo.tell(new GroupMetrics(request.requestId, 0, 0, 0L, 0L));
+        }
+        return this;
+    }
+
+    private DeviceManager onRequestAllTemperatures(RequestAllTemperatures request) {
+        ActorRef<DeviceGroup.Command> ref = groupIdToActor.get(request.groupId);
+        if (ref != null) {
+            ref.tell(request);
+        } else {
+            request.replyTo.tell(new RespondAllTemperatures(request.requestId, Collections.emptyMap()));
+        }
+        return this;
+    }
+
+    private DeviceManager onRequestAllTemperaturesStream(RequestAllTemperaturesStream request) {
+        ActorRef<DeviceGroup.Command> ref = groupIdToActor.get(request.groupId);
+        if (ref != null) {
+            ref.tell(request);
+        } else {
+            request.replyTo.tell(new TemperatureChunk(
+                    request.requestId, 0L, new String[0], new TemperatureReading[0], true,
+                    getContext().getSystem().deadLetters()));
+        }
+        return this;
+    }
+
+    private DeviceManager onRequestGroupsTemperatures(RequestGroupsTemperatures request) {
+        Map<String, ActorRef<DeviceGroup.Command>> groups = new HashMap<>();
+        Set<String> unknown = new HashSet<>();
+        if (request.groupIds.isEmpty()) {
+            for (int number = 0; number < groupIdToActor.highWater(); number++) {
+                String groupId = groupIdToActor.id(number);
+                if (groupId != null) {
+                    groups.put(groupId, groupIdToActor.ref(number));
+                }
+            }
         } else {
-            request.replyTo.tell(new ReplyDeviceList(request.requestId, Collections.emptySet()));
+            for (String groupId : request.groupIds) {
+                ActorRef<DeviceGroup.Command> ref = groupIdToActor.get(groupId);
+                if (ref != null) {
+                    groups.put(groupId, ref);
+                } else {
+                    unknown.add(groupId);
+                }
+            }
         }
+        getContext().spawnAnonymous(
+                MultiGroupQuery.create(groups, unknown, request),
+                IotProps.of(getContext().getSystem(), IotProps.QUERY));
         return this;
     }
 
@@ -181,7 +941,19 @@ public class DeviceManager extends AbstractBehavior<DeviceManager.Command> {
     public Receive<Command> createReceive() {
         return newReceiveBuilder()
                 .onMessage(RequestTrackDevice.class, this::onTrackDevice)
+                .onMessage(RequestTrackDevices.class, this::onTrackDevices)
+                .onMessage(RequestGroup.class, this::onRequestGroup)
+                .onMessage(RequestPartitions.class, this::onRequestPartitions)
                 .onMessage(RequestDeviceList.class, this::onRequestDeviceList)
+                .onMessage(RequestDeviceChanges.class, this::onRequestDeviceChanges)
+                .onMessage(SubscribeGroupTemperatures.class, this::onSubscribeGroupTemperatures)
+                .onMessage(UnsubscribeGroupTemperatures.class, this::onUnsubscribeGroupTemperatures)
+                .onMessage(RecordTemperatureBatch.class, this::onRecordTemperatureBatch)
+                .onMessage(DeviceEnvelope.class, this::onDeviceEnvelope)
+                .onMessage(RequestGroupMetrics.class, this::onRequestGroupMetrics)
+                .onMessage(RequestAllTemperatures.class, this::onRequestAllTemperatures)
+                .onMessage(RequestAllTemperaturesStream.class, this::onRequestAllTemperaturesStream)
+                .onMessage(RequestGroupsTemperatures.class, this::onRequestGroupsTemperatures)
                 .onMessage(DeviceGroupTerminated.class, this::onTerminated)
                 .onSignal(PostStop.class, signal -> onPostStop())
                 .build();
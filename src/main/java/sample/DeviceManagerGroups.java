@@ -0,0 +1,140 @@
+package sample;
+
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.Behavior;
+import akka.actor.typed.javadsl.Behaviors;
+import akka.persistence.typed.PersistenceId;
+import akka.persistence.typed.RecoveryCompleted;
+import akka.persistence.typed.SnapshotAdapter;
+import akka.persistence.typed.javadsl.CommandHandler;
+import akka.persistence.typed.javadsl.Effect;
+import akka.persistence.typed.javadsl.EventHandler;
+import akka.persistence.typed.javadsl.EventSourcedBehavior;
+import akka.persistence.typed.javadsl.RetentionCriteria;
+import akka.persistence.typed.javadsl.SignalHandler;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The journal of which persistent groups a {@link DeviceManager} has started. Once recovered it tells the manager
+ * the recovered group ids, so that the manager can start the groups again, which then start their devices.
+ */
+class DeviceManagerGroups
+        extends EventSourcedBehavior<DeviceManagerGroups.Command, DeviceManagerGroups.Event, Set<String>> {
+
+    interface Command {}
+
+    static final class Register implements Command {
+        final String groupId;
+
+        Register(String groupId) {
+            this.groupId = groupId;
+        }
+    }
+
+    interface Event {}
+
+    static final class GroupAdded implements Event {
+        final String groupId;
+
+        GroupAdded(String groupId) {
+            this.groupId = groupId;
+        }
+    }
+
+    /** What a snapshot stores, a copy of the group set taken when the snapshot is requested. */
+    static final class Groups {
+        final String[] groupIds;
+
+        Groups(String[] groupIds) {
+            this.groupIds = groupIds;
+        }
+    }
+
+    static Behavior<Command> create(
+            String managerId, ActorRef<DeviceManager.Command> manager, PersistenceSettings settings) {
+        return Behaviors.setup(context -> new DeviceManagerGroups(managerId, manager, settings));
+    }
+
+    private final ActorRef<DeviceManager.Command> manager;
+    private final PersistenceSettings settings;
+
+    private DeviceManagerGroups(
+            String managerId, ActorRef<DeviceManager.Command> manager, PersistenceSettings settings) {
+        super(PersistenceId.of("DeviceManager", managerId));
+        this.manager = manager;
+        this.settings = settings;
+    }
+
+    // the set is mutated in place, which is safe since snapshots get a copy through snapshotAdapter
+    @Override
+    public Set<String> emptyState() {
+        return new HashSet<>();
+    }
+
+    @Override
+    public String journalPluginId() {
+        return settings.journalPluginId;
+    }
+
+    @Override
+    public String snapshotPluginId() {
+        return settings.snapshotPluginId;
+    }
+
+    @Override
+    public RetentionCriteria retentionCriteria() {
+        return RetentionCriteria.snapshotEvery(settings.snapshotEvery, 2);
+    }
+
+    @Override
+    public SnapshotAdapter<Set<String>> snapshotAdapter() {
+        return new SnapshotAdapter<Set<String>>() {
+            @Override
+            public Object toJournal(Set<String> state) {
+                return new Groups(state.toArray(new String[0]));
+            }
+
+            @Override
+            public Set<String> fromJournal(Object from) {
+                return new HashSet<>(Arrays.asList(((Groups) from).groupIds));
+            }
+        };
+    }
+
+    @Override
+    public CommandHandler<Command, Event, Set<String>> commandHandler() {
+        return newCommandHandlerBuilder()
+                .forAnyState()
+                .onCommand(Register.class, this::onRegister)
+                .build();
+    }
+
+    private Effect<Event, Set<String>> onRegister(Set<String> state, Register r) {
+        if (state.contains(r.groupId)) {
+            return Effect().none();
+        }
+        return Effect().persist(new GroupAdded(r.groupId));
+    }
+
+    @Override
+    public EventHandler<Set<String>, Event> eventHandler() {
+        return newEventHandlerBuilder()
+                .forAnyState()
+                .onEvent(GroupAdded.class, (state, e) -> {
+                    state.add(e.groupId);
+                    return state;
+                })
+                .build();
+    }
+
+    @Override
+    public SignalHandler<Set<String>> signalHandler() {
+        return newSignalHandlerBuilder()
+                .onSignal(RecoveryCompleted.instance(), state ->
+                        manager.tell(new DeviceManager.GroupsRecovered(new HashSet<>(state))))
+                .build();
+    }
+}
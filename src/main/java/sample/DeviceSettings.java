@@ -0,0 +1,152 @@
+package sample;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigUtil;
+
+import java.time.Duration;
+
+public final class DeviceSettings {
+
+    /** The settings of the devices in {@code groupId}: {@code iot.groups."<groupId>"} falling back to {@code iot.device}. */
+    public static DeviceSettings forGroup(Config config, String groupId) {
+        Config defaults = config.getConfig("iot.device");
+        String groupPath = "iot.groups." + ConfigUtil.quoteString(groupId);
+        if (config.hasPath(groupPath)) {
+            return create(config.getConfig(groupPath).withFallback(defaults));
+        }
+        return create(defaults);
+    }
+
+    public static DeviceSettings create(Config config) {
+        return new DeviceSettings(
+                config.getDuration("ack-interval"),
+                config.getInt("history-capacity"),
+                durationOrOff(config, "passivate-after"),
+                compact(config.getString("mode")),
+                durationOrOff(config, "query-max-staleness"),
+                QuerySettings.create(config.getConfig("query")),
+                PersistenceSettings.create(config.getConfig("persistence")),
+                StorageSettings.create(config.getConfig("storage")),
+                durationOrOff(config, "ingest-event-interval"),
+                config.getInt("device-list-changes"));
+    }
+
+    final Duration ackInterval;
+    final int historyCapacity;
+    // Duration.ZERO when devices are never passivated
+    final Duration passivateAfter;
+    final boolean compact;
+    // Duration.ZERO when RequestAllTemperatures always asks every device
+    final Duration queryMaxStaleness;
+    final QuerySettings query;
+    final PersistenceSettings persistence;
+    final StorageSettings storage;
+    // Duration.ZERO when every reading may be an ingest event, see DeviceEvents
+    final Duration ingestEventInterval;
+    // how many membership changes a group keeps for RequestDeviceChanges, see DeviceListing
+    final int deviceListChanges;
+
+    private DeviceSettings(
+            Duration ackInterval,
+            int historyCapacity,
+            Duration passivateAfter,
+            boolean compact,
+            Duration queryMaxStaleness,
+            QuerySettings query,
+            PersistenceSettings persistence,
+            StorageSettings storage,
+            Duration ingestEventInterval,
+            int deviceListChanges) {
+        this.ackInterval = ackInterval;
+        this.historyCapacity = historyCapacity;
+        this.passivateAfter = passivateAfter;
+        this.compact = compact;
+        this.queryMaxStaleness = queryMaxStaleness;
+        this.query = query;
+        this.persistence = persistence;
+        this.storage = storage;
+        this.ingestEventInterval = ingestEventInterval;
+        this.deviceListChanges = deviceListChanges;
+    }
+
+    public DeviceSettings withAckInterval(Duration ackInterval) {
+        return new DeviceSettings(
+                ackInterval, historyCapacity, passivateAfter, compact, queryMaxStaleness, query, persistence,
+                storage, ingestEventInterval, deviceListChanges);
+    }
+
+    public DeviceSettings withHistoryCapacity(int historyCapacity) {
+        return new DeviceSettings(
+                ackInterval, historyCapacity, passivateAfter, compact, queryMaxStaleness, query, persistence,
+                storage, ingestEventInterval, deviceListChanges);
+    }
+
+    /** {@code Duration.ZERO} turns passivation off. */
+    public DeviceSettings withPassivateAfter(Duration passivateAfter) {
+        return new DeviceSettings(
+                ackInterval, historyCapacity, passivateAfter, compact, queryMaxStaleness, query, persistence,
+                storage, ingestEventInterval, deviceListChanges);
+    }
+
+    public DeviceSettings withCompact(boolean compact) {
+        return new DeviceSettings(
+                ackInterval, historyCapacity, passivateAfter, compact, queryMaxStaleness, query, persistence,
+                storage, ingestEventInterval, deviceListChanges);
+    }
+
+    /** {@code Duration.ZERO} turns the reading cache off. */
+    public DeviceSettings withQueryMaxStaleness(Duration queryMaxStaleness) {
+        return new DeviceSettings(
+                ackInterval, historyCapacity, passivateAfter, compact, queryMaxStaleness, query, persistence,
+                storage, ingestEventInterval, deviceListChanges);
+    }
+
+    public DeviceSettings withQuery(QuerySettings query) {
+        return new DeviceSettings(
+                ackInterval, historyCapacity, passivateAfter, compact, queryMaxStaleness, query, persistence,
+                storage, ingestEventInterval, deviceListChanges);
+    }
+
+    public DeviceSettings withPersistence(PersistenceSettings persistence) {
+        return new DeviceSettings(
+                ackInterval, historyCapacity, passivateAfter, compact, queryMaxStaleness, query, persistence,
+                storage, ingestEventInterval, deviceListChanges);
+    }
+
+    public DeviceSettings withStorage(StorageSettings storage) {
+        return new DeviceSettings(
+                ackInterval, historyCapacity, passivateAfter, compact, queryMaxStaleness, query, persistence,
+                storage, ingestEventInterval, deviceListChanges);
+    }
+
+    /** {@code Duration.ZERO} makes every reading an ingest event while they are turned on. */
+    public DeviceSettings withIngestEventInterval(Duration ingestEventInterval) {
+        return new DeviceSettings(
+                ackInterval, historyCapacity, passivateAfter, compact, queryMaxStaleness, query, persistence,
+                storage, ingestEventInterval, deviceListChanges);
+    }
+
+    public DeviceSettings withDeviceListChanges(int deviceListChanges) {
+        return new DeviceSettings(
+                ackInterval, historyCapacity, passivateAfter, compact, queryMaxStaleness, query, persistence,
+                storage, ingestEventInterval, deviceListChanges);
+    }
+
+    private static boolean compact(String mode) {
+        switch (mode) {
+            case "actors":
+                return false;
+            case "compact":
+                return true;
+            default:
+                throw new IllegalArgumentException("Unknown device mode " + mode);
+        }
+    }
+
+    static Duration durationOrOff(Config config, String path) {
+        if (config.getString(path).equals("off")) {
+            return Duration.ZERO;
+        }
+        return config.getDuration(path);
+    }
+}
@@ -0,0 +1,61 @@
+package sample;
+
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.ActorSystem;
+import akka.actor.typed.Behavior;
+import akka.cluster.sharding.typed.ClusterShardingSettings;
+import akka.cluster.sharding.typed.HashCodeNoEnvelopeMessageExtractor;
+import akka.cluster.sharding.typed.javadsl.ClusterSharding;
+import akka.cluster.sharding.typed.javadsl.Entity;
+import akka.cluster.sharding.typed.javadsl.EntityTypeKey;
+import com.typesafe.config.Config;
+
+import java.time.Duration;
+
+/**
+ * Runs the device groups of a cluster as Cluster Sharding entities, the group id being the entity id, so that
+ * the groups, and with them their devices, are spread over the nodes and moved when nodes join or leave.
+ * Group messages need no envelope, the shard region routes them by the group id they carry. See
+ * {@code iot.sharding}.
+ */
+public final class DeviceSharding {
+
+    public static final EntityTypeKey<DeviceGroup.Command> GROUP_TYPE_KEY =
+            EntityTypeKey.create(DeviceGroup.Command.class, "DeviceGroup");
+
+    private DeviceSharding() {}
+
+    /** Starts the shard region of the groups on this node and returns it. */
+    public static ActorRef<DeviceGroup.Command> init(ActorSystem<?> system) {
+        Config config = system.settings().config().getConfig("iot.sharding");
+        // groups are not idle when their devices are busy, devices are messaged directly, so only the
+        // devices are passivated (passivate-after), never the groups
+        ClusterShardingSettings settings =
+                ClusterShardingSettings.create(system)
+                        .withRememberEntities(config.getBoolean("remember-entities"))
+                        .withPassivateIdleEntityAfter(Duration.ZERO);
+        return ClusterSharding.get(system)
+                .init(
+                        Entity.of(GROUP_TYPE_KEY, context -> DeviceGroup.create(context.getEntityId()))
+                                .withMessageExtractor(new GroupIdExtractor(config.getInt("number-of-shards")))
+                                .withSettings(settings)
+                                .withEntityProps(IotProps.of(system, IotProps.GROUP)));
+    }
+
+    /** A {@link DeviceManager} for the groups of {@link #init}, {@code region} being what it returned. */
+    public static Behavior<DeviceManager.Command> manager(ActorRef<DeviceGroup.Command> region) {
+        return ShardedDeviceManager.create(region);
+    }
+
+    private static final class GroupIdExtractor extends HashCodeNoEnvelopeMessageExtractor<DeviceGroup.Command> {
+
+        GroupIdExtractor(int numberOfShards) {
+            super(numberOfShards);
+        }
+
+        @Override
+        public String entityId(DeviceGroup.Command message) {
+            return DeviceManager.groupIdOf(message);
+        }
+    }
+}
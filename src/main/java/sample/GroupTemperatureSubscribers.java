@@ -0,0 +1,157 @@
+package sample;
+
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.javadsl.ActorContext;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The {@link DeviceManager.SubscribeGroupTemperatures} subscribers of a group, used by {@link DeviceGroup} and
+ * {@link CompactDeviceGroup}. Each subscriber has the readings it was sent last in a {@link ReadingTable} and the
+ * changes it has not been sent yet, the latest one per device. The changes are sent together once the
+ * subscriber's interval since the last ones is over, so however many readings the devices record in between, a
+ * subscriber has at most one {@link DeviceManager.GroupTemperaturesChanged} per interval coming. A subscriber that
+ * stops without unsubscribing is unsubscribed then, the group watches it.
+ */
+final class GroupTemperatureSubscribers {
+
+    /** Ends the interval of one subscriber. */
+    static final class Flush implements DeviceGroup.Command {
+        final ActorRef<DeviceManager.GroupTemperaturesChanged> subscriber;
+
+        Flush(ActorRef<DeviceManager.GroupTemperaturesChanged> subscriber) {
+            this.subscriber = subscriber;
+        }
+    }
+
+    private static final class Subscription {
+        final Flush flush;
+        final double minDelta;
+        final long intervalNanos;
+        final ReadingTable sent = new ReadingTable();
+        Map<String, Double> pending = new HashMap<>();
+        long flushedNanos;
+        boolean scheduled;
+
+        Subscription(DeviceManager.SubscribeGroupTemperatures s) {
+            this.flush = new Flush(s.replyTo);
+            this.minDelta = s.minDelta;
+            this.intervalNanos = s.minInterval.toNanos();
+            this.flushedNanos = System.nanoTime() - intervalNanos;
+        }
+    }
+
+    private final String groupId;
+    private final ActorContext<DeviceGroup.Command> context;
+    private final Map<ActorRef<DeviceManager.GroupTemperaturesChanged>, Subscription> subscriptions = new HashMap<>();
+
+    GroupTemperatureSubscribers(String groupId, ActorContext<DeviceGroup.Command> context) {
+        this.groupId = groupId;
+        this.context = context;
+    }
+
+    /** Replaces an earlier subscription of the same subscriber, which starts over with the current readings. */
+    void subscribe(DeviceManager.SubscribeGroupTemperatures s) {
+        if (subscriptions.put(s.replyTo, new Subscription(s)) == null) {
+            context.watchWith(s.replyTo, new DeviceManager.UnsubscribeGroupTemperatures(groupId, s.replyTo));
+        }
+    }
+
+    void unsubscribe(ActorRef<DeviceManager.GroupTemperaturesChanged> subscriber) {
+        if (subscriptions.remove(subscriber) != null) {
+            context.unwatch(subscriber);
+        }
+    }
+
+    boolean isEmpty() {
+        return subscriptions.isEmpty();
+    }
+
+    /** The smallest {@code minDelta} of the subscribers, what the group needs to hear about from its devices. */
+    double minDelta() {
+        double minDelta = Double.MAX_VALUE;
+        for (Subscription subscription : subscriptions.values()) {
+            minDelta = Math.min(minDelta, subscription.minDelta);
+        }
+        return minDelta;
+    }
+
+    /** The shortest {@code minInterval} of the subscribers, how often the group needs to hear from a device. */
+    Duration minInterval() {
+        long intervalNanos = Long.MAX_VALUE;
+        for (Subscription subscription : subscriptions.values()) {
+            intervalNanos = Math.min(intervalNanos, subscription.intervalNanos);
+        }
+        return Duration.ofNanos(intervalNanos);
+    }
+
+    void recorded(String deviceId, double value) {
+        if (subscriptions.isEmpty()) {
+            return;
+        }
+        long now = System.nanoTime();
+        for (Subscription subscription : subscriptions.values()) {
+            recorded(subscription, deviceId, value, now);
+        }
+    }
+
+    /** A reading only {@code subscriber} has to hear about, the ones a group has at hand when it subscribes. */
+    void recorded(ActorRef<DeviceManager.GroupTemperaturesChanged> subscriber, String deviceId, double value) {
+        Subscription subscription = subscriptions.get(subscriber);
+        if (subscription != null) {
+            recorded(subscription, deviceId, value, System.nanoTime());
+        }
+    }
+
+    private void recorded(Subscription subscription, String deviceId, double value, long now) {
+        double sent = subscription.sent.value(deviceId);
+        if (!Double.isNaN(sent) && (value == sent || Math.abs(value - sent) < subscription.minDelta)) {
+            // back to about what the subscriber has, an earlier change it was not sent yet is obsolete
+            subscription.pending.remove(deviceId);
+            return;
+        }
+        subscription.pending.put(deviceId, value);
+        if (subscription.scheduled) {
+            return;
+        }
+        long sinceFlushed = now - subscription.flushedNanos;
+        if (sinceFlushed >= subscription.intervalNanos) {
+            flush(subscription, now);
+        } else {
+            context.scheduleOnce(
+                    Duration.ofNanos(subscription.intervalNanos - sinceFlushed), context.getSelf(), subscription.flush);
+            subscription.scheduled = true;
+        }
+    }
+
+    /** Forgets a device that left the group. */
+    void left(String deviceId) {
+        for (Subscription subscription : subscriptions.values()) {
+            subscription.sent.remove(deviceId);
+            subscription.pending.remove(deviceId);
+        }
+    }
+
+    void onFlush(Flush flush) {
+        Subscription subscription = subscriptions.get(flush.subscriber);
+        // the flush of a subscription that was replaced or ended since is ignored
+        if (subscription != null && subscription.flush == flush) {
+            subscription.scheduled = false;
+            flush(subscription, System.nanoTime());
+        }
+    }
+
+    private void flush(Subscription subscription, long now) {
+        if (subscription.pending.isEmpty()) {
+            return;
+        }
+        for (Map.Entry<String, Double> change : subscription.pending.entrySet()) {
+            subscription.sent.put(change.getKey(), true, change.getValue());
+        }
+        subscription.flush.subscriber.tell(new DeviceManager.GroupTemperaturesChanged(groupId, subscription.pending));
+        subscription.pending = new HashMap<>();
+        subscription.flushedNanos = now;
+    }
+}
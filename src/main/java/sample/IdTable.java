@@ -0,0 +1,140 @@
+package sample;
+
+import java.util.Arrays;
+
+/**
+ * Interns device and group ids as compact numbers, the index the tables built on it keep their state at. The
+ * ids are found with linear probing in an open-addressing table of a {@code String[]} and an {@code int[]}, so
+ * an id costs its string and about 16 bytes, where a {@code HashMap<String, Integer>} costs a node and a boxed
+ * number besides. Numbers of removed ids are reused before new ones are handed out.
+ */
+final class IdTable {
+
+    // grown when more than 3/4 of the table is used
+    private String[] keys;
+    private int[] numbers;
+    private int mask;
+    // the id of each number, null for a free number
+    private String[] ids;
+    // the numbers below this have been used at least once
+    private int highWater;
+    private int[] freeNumbers = new int[16];
+    private int freeCount;
+    private int size;
+
+    IdTable(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(2, expectedSize) * 4 / 3 + 1) << 1;
+        keys = new String[capacity];
+        numbers = new int[capacity];
+        mask = capacity - 1;
+        ids = new String[Math.max(1, expectedSize)];
+    }
+
+    /** The number of {@code id}, -1 when it is not in the table. */
+    int numberOf(String id) {
+        for (int i = index(id); ; i = (i + 1) & mask) {
+            String key = keys[i];
+            if (key == null) {
+                return -1;
+            }
+            if (key.equals(id)) {
+                return numbers[i];
+            }
+        }
+    }
+
+    /** The number of {@code id}, given a number first if it is not in the table. */
+    int add(String id) {
+        int i = index(id);
+        for (String key = keys[i]; key != null; key = keys[i]) {
+            if (key.equals(id)) {
+                return numbers[i];
+            }
+            i = (i + 1) & mask;
+        }
+        int number;
+        if (freeCount > 0) {
+            number = freeNumbers[--freeCount];
+        } else {
+            if (highWater == ids.length) {
+                ids = Arrays.copyOf(ids, highWater * 2);
+            }
+            number = highWater++;
+        }
+        keys[i] = id;
+        numbers[i] = number;
+        ids[number] = id;
+        if (++size > keys.length / 4 * 3) {
+            rehash(keys.length * 2);
+        }
+        return number;
+    }
+
+    /** Forgets {@code id}, returning the number it had, -1 when it was not in the table. */
+    int remove(String id) {
+        int i = index(id);
+        for (String key = keys[i]; ; key = keys[i]) {
+            if (key == null) {
+                return -1;
+            }
+            if (key.equals(id)) {
+                break;
+            }
+            i = (i + 1) & mask;
+        }
+        int number = numbers[i];
+        ids[number] = null;
+        if (freeCount == freeNumbers.length) {
+            freeNumbers = Arrays.copyOf(freeNumbers, freeCount * 2);
+        }
+        freeNumbers[freeCount++] = number;
+        size--;
+        // shift the entries after it back instead of leaving a tombstone, so lookups never probe past removed ids
+        for (int j = (i + 1) & mask; keys[j] != null; j = (j + 1) & mask) {
+            if (((j - index(keys[j])) & mask) >= ((j - i) & mask)) {
+                keys[i] = keys[j];
+                numbers[i] = numbers[j];
+                i = j;
+            }
+        }
+        keys[i] = null;
+        return number;
+    }
+
+    /** The id with {@code number}, null when the number is free. */
+    String id(int number) {
+        return ids[number];
+    }
+
+    int size() {
+        return size;
+    }
+
+    /** Numbers up to this may be in use, check {@link #id(int)} for null when scanning. */
+    int highWater() {
+        return highWater;
+    }
+
+    private int index(String id) {
+        int h = id.hashCode() * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    private void rehash(int capacity) {
+        String[] oldKeys = keys;
+        int[] oldNumbers = numbers;
+        keys = new String[capacity];
+        numbers = new int[capacity];
+        mask = capacity - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != null) {
+                int j = index(oldKeys[i]);
+                while (keys[j] != null) {
+                    j = (j + 1) & mask;
+                }
+                keys[j] = oldKeys[i];
+                numbers[j] = oldNumbers[i];
+            }
+        }
+    }
+}
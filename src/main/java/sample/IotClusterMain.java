@@ -0,0 +1,21 @@
+package sample;
+
+import akka.actor.typed.ActorSystem;
+import akka.actor.typed.javadsl.Behaviors;
+import com.typesafe.config.ConfigFactory;
+
+/** Starts a cluster node that hosts its share of the device groups and a device manager routing to all of them. */
+public class IotClusterMain {
+    public static void main(String[] args) {
+        ActorSystem.create(
+                Behaviors.<Void>setup(context -> {
+                    context.spawn(
+                            DeviceSharding.manager(DeviceSharding.init(context.getSystem())),
+                            "device-manager",
+                            IotProps.of(context.getSystem(), IotProps.MANAGER));
+                    return IotSupervisor.create();
+                }),
+                "iot-system",
+                ConfigFactory.load("cluster"));
+    }
+}
@@ -0,0 +1,206 @@
+package sample;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.DeadLetter;
+import akka.actor.typed.javadsl.Adapter;
+import akka.dispatch.ControlMessage;
+import akka.dispatch.Envelope;
+import akka.dispatch.MailboxType;
+import akka.dispatch.MessageQueue;
+import akka.dispatch.ProducesMessageQueue;
+import com.typesafe.config.Config;
+import scala.Option;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The bounded mailbox of the devices and the groups, see {@code iot.device-mailbox} and {@code iot.group-mailbox}.
+ * Only {@link Device.RecordTemperatureNoAck} readings, also in a {@link DeviceManager.DeviceEnvelope}, and the
+ * {@link DeviceGroup.ReadingUpdated} copies of readings are ever shed, their sender does not wait for them: once
+ * {@code capacity} messages are queued a new reading is sent to dead letters, or with {@code overflow} "coalesce"
+ * kept aside in place of the reading kept aside before it, and queued ahead of the next other message or handed to
+ * the device once the queue is empty, so that nothing later overtakes it. Everything else is queued however full
+ * the mailbox is, so a {@link Device.Passivate}, a read or an acknowledged reading is never lost. With
+ * {@code priority} on, messages that are a {@link ControlMessage} ({@link Device.ReadTemperature},
+ * {@link Device.Passivate}) are served before everything else. With a {@code capacity} of 0 nothing is shed and
+ * the mailbox only measures. The counts are in {@link MailboxMetrics}, as is how many messages are queued and,
+ * with {@code iot.metrics.enabled}, how long they waited.
+ */
+public class IotMailbox implements MailboxType, ProducesMessageQueue<IotMailbox.Queue> {
+
+    private final int capacity;
+    private final boolean priority;
+    private final boolean coalesce;
+    private final String metricsName;
+    private final int timeEvery;
+
+    public IotMailbox(ActorSystem.Settings settings, Config config) {
+        this.capacity = config.getInt("capacity");
+        this.priority = config.getBoolean("priority");
+        String overflow = config.getString("overflow");
+        switch (overflow) {
+            case "drop":
+                coalesce = false;
+                break;
+            case "coalesce":
+                coalesce = true;
+                break;
+            default:
+                throw new IllegalArgumentException("overflow must be drop or coalesce, was " + overflow);
+        }
+        this.metricsName = config.getString("metrics-name");
+        Config metrics = settings.config().getConfig("iot.metrics");
+        this.timeEvery = metrics.getBoolean("enabled") ? Math.max(1, metrics.getInt("time-every")) : 0;
+    }
+
+    @Override
+    public MessageQueue create(Option<ActorRef> owner, Option<ActorSystem> system) {
+        if (!system.isDefined()) {
+            return new Queue(capacity, priority, coalesce, timeEvery, new MailboxMetrics.Counters(), null);
+        }
+        MailboxMetrics.Counters counters = MailboxMetrics.get(Adapter.toTyped(system.get())).counters(metricsName);
+        return new Queue(capacity, priority, coalesce, timeEvery, counters, system.get().deadLetters());
+    }
+
+    static final class Queue implements MessageQueue {
+        // claims the timed slot while its enqueue time is written
+        private static final Envelope CLAIMED = new Envelope(null, null);
+
+        private final int capacity;
+        private final boolean priority;
+        private final boolean coalesce;
+        // 0 does not time the messages, otherwise about one in this many is timed
+        private final int timeEvery;
+        private final MailboxMetrics.Counters counters;
+        private final ActorRef deadLetters;
+        private final ConcurrentLinkedQueue<Envelope> control = new ConcurrentLinkedQueue<>();
+        private final ConcurrentLinkedQueue<Envelope> messages = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger size = new AtomicInteger();
+        // the newest reading that did not fit, newer than all the readings in messages
+        private final AtomicReference<Envelope> coalesced = new AtomicReference<>();
+        // one message at a time is timed, so that nothing has to be wrapped to carry its enqueue time
+        private final AtomicReference<Envelope> timed = new AtomicReference<>();
+        private volatile long timedNanos;
+
+        /** {@code deadLetters} is where shed readings go, null only counts them. */
+        Queue(
+                int capacity,
+                boolean priority,
+                boolean coalesce,
+                int timeEvery,
+                MailboxMetrics.Counters counters,
+                ActorRef deadLetters) {
+            this.capacity = capacity;
+            this.priority = priority;
+            this.coalesce = coalesce;
+            this.timeEvery = timeEvery;
+            this.counters = counters;
+            this.deadLetters = deadLetters;
+        }
+
+        @Override
+        public void enqueue(ActorRef receiver, Envelope handle) {
+            Object message = handle.message();
+            boolean sheddable = sheddable(message);
+            if (sheddable
+                    && capacity > 0
+                    && (coalesced.get() != null || size.get() >= capacity)) {
+                overflow(receiver, handle);
+                return;
+            }
+            if (timeEvery > 0
+                    && ThreadLocalRandom.current().nextInt(timeEvery) == 0
+                    && timed.compareAndSet(null, CLAIMED)) {
+                timedNanos = System.nanoTime();
+                timed.set(handle);
+            }
+            size.incrementAndGet();
+            counters.depth.increment();
+            if (priority && message instanceof ControlMessage) {
+                control.add(handle);
+            } else {
+                // a reading kept aside is older than this message, e.g. an acked reading, so it goes first
+                if (!sheddable) {
+                    Envelope older = coalesced.getAndSet(null);
+                    if (older != null) {
+                        size.incrementAndGet();
+                        messages.add(older);
+                    }
+                }
+                messages.add(handle);
+            }
+        }
+
+        private static boolean sheddable(Object message) {
+            if (message instanceof DeviceManager.DeviceEnvelope) {
+                message = ((DeviceManager.DeviceEnvelope) message).message;
+            }
+            return message instanceof Device.RecordTemperatureNoAck || message instanceof DeviceGroup.ReadingUpdated;
+        }
+
+        /**
+         * A reading that does not fit. Once one was kept aside the later ones replace it rather than being queued,
+         * so that the device never records an older reading after a newer one.
+         */
+        private void overflow(ActorRef receiver, Envelope handle) {
+            if (!coalesce) {
+                counters.dropped.increment();
+                if (deadLetters != null) {
+                    deadLetters.tell(new DeadLetter(handle.message(), handle.sender(), receiver), handle.sender());
+                }
+                return;
+            }
+            if (coalesced.getAndSet(handle) != null) {
+                counters.coalesced.increment();
+            } else {
+                counters.depth.increment();
+            }
+        }
+
+        @Override
+        public Envelope dequeue() {
+            Envelope next = control.poll();
+            if (next == null) {
+                next = messages.poll();
+            }
+            if (next != null) {
+                size.decrementAndGet();
+            } else {
+                next = coalesced.getAndSet(null);
+                if (next == null) {
+                    return null;
+                }
+            }
+            counters.depth.decrement();
+            if (timeEvery > 0) {
+                if (timed.get() == next) {
+                    counters.waiting.record(System.nanoTime() - timedNanos);
+                    timed.set(null);
+                }
+            }
+            return next;
+        }
+
+        @Override
+        public int numberOfMessages() {
+            return size.get() + (coalesced.get() != null ? 1 : 0);
+        }
+
+        @Override
+        public boolean hasMessages() {
+            return !control.isEmpty() || !messages.isEmpty() || coalesced.get() != null;
+        }
+
+        @Override
+        public void cleanUp(ActorRef owner, MessageQueue deadLetters) {
+            Envelope envelope;
+            while ((envelope = dequeue()) != null) {
+                deadLetters.enqueue(owner, envelope);
+            }
+        }
+    }
+}
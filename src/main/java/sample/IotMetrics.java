@@ -0,0 +1,327 @@
+package sample;
+
+import akka.actor.typed.ActorSystem;
+import akka.actor.typed.Behavior;
+import akka.actor.typed.BehaviorInterceptor;
+import akka.actor.typed.Extension;
+import akka.actor.typed.ExtensionId;
+import akka.actor.typed.TypedActorContext;
+import akka.actor.typed.javadsl.Behaviors;
+import com.sun.net.httpserver.HttpServer;
+import com.typesafe.config.Config;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * What the actors of a system are doing, see {@code iot.metrics}: how many messages of each type the actors of
+ * each kind in {@link IotProps} handled and how long handling them took, measured by the behaviors that
+ * {@link #instrument} wraps whatever their mailbox, what {@link MailboxMetrics} knows about the
+ * {@link IotMailbox}es, so how long messages waited and how many are queued, how many devices every group has
+ * running and passivated, and how many devices the group queries ask and how many of the queries time out.
+ * Counters only ever grow, rates are left to whoever reads them.
+ * {@link #collect} takes a snapshot, which is also served as Prometheus text and through JMX.
+ */
+public final class IotMetrics implements Extension {
+
+    private static final ExtensionId<IotMetrics> ID =
+            new ExtensionId<IotMetrics>() {
+                @Override
+                public IotMetrics createExtension(ActorSystem<?> system) {
+                    return new IotMetrics(system);
+                }
+            };
+
+    public static IotMetrics get(ActorSystem<?> system) {
+        return system.registerExtension(ID);
+    }
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    /** How many devices a group has, set by the group whenever that changes. */
+    static final class GroupGauges {
+        volatile int live;
+        volatile int passivated;
+
+        void update(int live, int passivated) {
+            this.live = live;
+            this.passivated = passivated;
+        }
+    }
+
+    /** The messages of one type that the actors of one kind handled. */
+    static final class Handled {
+        final LongAdder count = new LongAdder();
+        // in nanoseconds, about one in time-every of them
+        final LatencyHistogram nanos = new LatencyHistogram();
+    }
+
+    /** Counts every message and times about one in {@code timeEvery} of them in the behavior it wraps. */
+    private static final class Handling<T> extends BehaviorInterceptor<T, T> {
+        private final ConcurrentHashMap<Class<?>, Handled> handled;
+        private final int timeEvery;
+
+        @SuppressWarnings("unchecked")
+        Handling(ConcurrentHashMap<Class<?>, Handled> handled, int timeEvery) {
+            // also the messages of the behavior's own protocol, e.g. the journal replies of a persistent device
+            super((Class<T>) (Class<?>) Object.class);
+            this.handled = handled;
+            this.timeEvery = timeEvery;
+        }
+
+        @Override
+        public Behavior<T> aroundReceive(TypedActorContext<T> context, T message, ReceiveTarget<T> target) {
+            Class<?> type = message.getClass();
+            Handled h = handled.get(type);
+            if (h == null) {
+                h = handled.computeIfAbsent(type, t -> new Handled());
+            }
+            h.count.increment();
+            if (ThreadLocalRandom.current().nextInt(timeEvery) != 0) {
+                return target.apply(context, message);
+            }
+            long start = System.nanoTime();
+            try {
+                return target.apply(context, message);
+            } finally {
+                h.nanos.record(System.nanoTime() - start);
+            }
+        }
+    }
+
+    /** A metric and its samples, named and typed like a Prometheus metric family. */
+    public static final class Family {
+        public final String name;
+        public final String type;
+        public final String help;
+        public final List<Sample> samples = new ArrayList<>();
+
+        Family(String name, String type, String help) {
+            this.name = name;
+            this.type = type;
+            this.help = help;
+        }
+
+        Family add(String name, double value, String... labels) {
+            Map<String, String> map = new LinkedHashMap<>();
+            for (int i = 0; i < labels.length; i += 2) {
+                map.put(labels[i], labels[i + 1]);
+            }
+            samples.add(new Sample(name, map, value));
+            return this;
+        }
+
+        Family add(double value, String... labels) {
+            return add(name, value, labels);
+        }
+    }
+
+    public static final class Sample {
+        public final String name;
+        public final Map<String, String> labels;
+        public final double value;
+
+        Sample(String name, Map<String, String> labels, double value) {
+            this.name = name;
+            this.labels = Collections.unmodifiableMap(labels);
+            this.value = value;
+        }
+
+        /** The name with its labels, as in the Prometheus text format. */
+        public String key() {
+            if (labels.isEmpty()) {
+                return name;
+            }
+            StringBuilder sb = new StringBuilder(name).append('{');
+            for (Map.Entry<String, String> label : labels.entrySet()) {
+                if (sb.charAt(sb.length() - 1) != '{') {
+                    sb.append(',');
+                }
+                sb.append(label.getKey()).append("=\"");
+                String value = label.getValue();
+                for (int i = 0; i < value.length(); i++) {
+                    char c = value.charAt(i);
+                    if (c == '\\' || c == '"') {
+                        sb.append('\\').append(c);
+                    } else if (c == '\n') {
+                        sb.append("\\n");
+                    } else {
+                        sb.append(c);
+                    }
+                }
+                sb.append('"');
+            }
+            return sb.append('}').toString();
+        }
+    }
+
+    private final boolean enabled;
+    private final int timeEvery;
+    private final MailboxMetrics mailboxes;
+    private final ConcurrentHashMap<String, ConcurrentHashMap<Class<?>, Handled>> handled =
+            new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, GroupGauges> groups = new ConcurrentHashMap<>();
+    private final LatencyHistogram fanOut = new LatencyHistogram();
+    private final LongAdder queries = new LongAdder();
+    private final LongAdder timedOutQueries = new LongAdder();
+
+    private IotMetrics(ActorSystem<?> system) {
+        Config config = system.settings().config().getConfig("iot.metrics");
+        this.enabled = config.getBoolean("enabled");
+        this.timeEvery = Math.max(1, config.getInt("time-every"));
+        this.mailboxes = MailboxMetrics.get(system);
+        if (config.getBoolean("jmx")) {
+            IotMetricsMBean.register(system, this);
+        }
+        if (config.getBoolean("prometheus.enabled")) {
+            HttpServer server =
+                    PrometheusEndpoint.start(
+                            config.getString("prometheus.host"), config.getInt("prometheus.port"), this);
+            system.log().info("Serving metrics on http://{}/metrics", server.getAddress());
+            system.getWhenTerminated().thenRun(() -> server.stop(0));
+        }
+    }
+
+    public boolean enabled() {
+        return enabled;
+    }
+
+    /**
+     * {@code behavior} with the messages it handles counted and timed under {@code kind}, one of those of
+     * {@link IotProps}, when {@code iot.metrics.enabled} is on.
+     */
+    static <T> Behavior<T> instrument(String kind, Behavior<T> behavior) {
+        return Behaviors.setup(context -> {
+            IotMetrics metrics = get(context.getSystem());
+            if (!metrics.enabled) {
+                return behavior;
+            }
+            ConcurrentHashMap<Class<?>, Handled> handled =
+                    metrics.handled.computeIfAbsent(kind, k -> new ConcurrentHashMap<>());
+            return Behaviors.intercept(() -> new Handling<>(handled, metrics.timeEvery), behavior);
+        });
+    }
+
+    /** How many messages of {@code type} the actors of {@code kind} have handled. */
+    public long messages(String kind, Class<?> type) {
+        Map<Class<?>, Handled> byType = handled.get(kind);
+        Handled h = byType != null ? byType.get(type) : null;
+        return h != null ? h.count.sum() : 0L;
+    }
+
+    GroupGauges group(String groupId) {
+        GroupGauges gauges = new GroupGauges();
+        groups.put(groupId, gauges);
+        return gauges;
+    }
+
+    /** Forgets the gauges of a stopped group, unless the group has been started again since. */
+    void groupStopped(String groupId, GroupGauges gauges) {
+        groups.remove(groupId, gauges);
+    }
+
+    void queryStarted(int devices) {
+        queries.increment();
+        fanOut.record(devices);
+    }
+
+    void queryTimedOut() {
+        timedOutQueries.increment();
+    }
+
+    public long queries() {
+        return queries.sum();
+    }
+
+    public long timedOutQueries() {
+        return timedOutQueries.sum();
+    }
+
+    public List<Family> collect() {
+        List<Family> families = new ArrayList<>();
+
+        Family messages =
+                new Family("iot_messages_total", "counter", "Messages handled, per kind of actor and type.");
+        Family handling =
+                new Family("iot_message_handling_seconds", "summary", "Time to handle a message, per kind and type.");
+        for (Map.Entry<String, ConcurrentHashMap<Class<?>, Handled>> kind : handled.entrySet()) {
+            for (Map.Entry<Class<?>, Handled> type : kind.getValue().entrySet()) {
+                String[] labels = {"actor", kind.getKey(), "type", type.getKey().getName()};
+                messages.add(type.getValue().count.sum(), labels);
+                summary(handling, type.getValue().nanos, 1e-9, labels);
+            }
+        }
+        Family depth = new Family("iot_mailbox_depth", "gauge", "Messages queued, per mailbox.");
+        Family waiting =
+                new Family("iot_mailbox_wait_seconds", "summary", "Time from enqueue to handling, per mailbox.");
+        Family dropped = new Family("iot_mailbox_dropped_total", "counter", "Messages dropped by full mailboxes.");
+        Family coalesced =
+                new Family("iot_mailbox_coalesced_total", "counter", "Readings replaced by a newer one when full.");
+        for (String mailbox : mailboxes.mailboxes()) {
+            depth.add(mailboxes.depth(mailbox), "mailbox", mailbox);
+            LatencyHistogram wait = mailboxes.waiting(mailbox);
+            if (enabled && wait != null) {
+                summary(waiting, wait, 1e-9, "mailbox", mailbox);
+            }
+            dropped.add(mailboxes.dropped(mailbox), "mailbox", mailbox);
+            coalesced.add(mailboxes.coalesced(mailbox), "mailbox", mailbox);
+        }
+        families.add(messages);
+        families.add(handling);
+        families.add(depth);
+        families.add(waiting);
+        families.add(dropped);
+        families.add(coalesced);
+
+        Family devices = new Family("iot_group_devices", "gauge", "Devices of a group, running or passivated.");
+        for (Map.Entry<String, GroupGauges> group : groups.entrySet()) {
+            devices.add(group.getValue().live, "group", group.getKey(), "state", "live");
+            devices.add(group.getValue().passivated, "group", group.getKey(), "state", "passivated");
+        }
+        families.add(devices);
+
+        long started = queries.sum();
+        long timedOut = timedOutQueries.sum();
+        families.add(summary(new Family("iot_query_fanout", "summary", "Devices asked by a group query."), fanOut, 1.0));
+        families.add(new Family("iot_queries_total", "counter", "Group queries started.").add(started));
+        families.add(
+                new Family("iot_queries_timed_out_total", "counter", "Group queries with a device that timed out.")
+                        .add(timedOut));
+        families.add(
+                new Family("iot_query_timeout_ratio", "gauge", "Timed out group queries per started one.")
+                        .add(started > 0 ? (double) timedOut / started : 0.0));
+        return families;
+    }
+
+    private static Family summary(Family family, LatencyHistogram histogram, double scale, String... labels) {
+        for (double quantile : QUANTILES) {
+            String[] withQuantile = new String[labels.length + 2];
+            System.arraycopy(labels, 0, withQuantile, 0, labels.length);
+            withQuantile[labels.length] = "quantile";
+            withQuantile[labels.length + 1] = Double.toString(quantile);
+            family.add(histogram.valueAt(quantile) * scale, withQuantile);
+        }
+        family.add(family.name + "_sum", histogram.sum() * scale, labels);
+        family.add(family.name + "_count", histogram.count(), labels);
+        return family;
+    }
+
+    /** {@link #collect()} in the Prometheus text exposition format. */
+    public String prometheusText() {
+        StringBuilder sb = new StringBuilder();
+        for (Family family : collect()) {
+            sb.append("# HELP ").append(family.name).append(' ').append(family.help).append('\n');
+            sb.append("# TYPE ").append(family.name).append(' ').append(family.type).append('\n');
+            for (Sample sample : family.samples) {
+                sb.append(sample.key()).append(' ').append(sample.value).append('\n');
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,111 @@
+package sample;
+
+import akka.actor.typed.ActorSystem;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link IotMetrics} as an MBean named {@code sample:type=IotMetrics,system=<name of the system>}, with one
+ * read-only attribute per sample, named like the sample in the Prometheus text. The attributes are those of a
+ * fresh {@link IotMetrics#collect} every time they are listed or read.
+ */
+final class IotMetricsMBean implements DynamicMBean {
+
+    static void register(ActorSystem<?> system, IotMetrics metrics) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName name = new ObjectName("sample:type=IotMetrics,system=" + system.name());
+            server.registerMBean(new IotMetricsMBean(metrics), name);
+            system.getWhenTerminated().thenRun(() -> {
+                try {
+                    server.unregisterMBean(name);
+                } catch (JMException e) {
+                    // gone already
+                }
+            });
+        } catch (InstanceAlreadyExistsException e) {
+            system.log().warn(
+                    "Not registering the IotMetrics MBean of {}, another system of that name has it", system.name());
+        } catch (JMException e) {
+            throw new IllegalStateException("Could not register the IotMetrics MBean", e);
+        }
+    }
+
+    private final IotMetrics metrics;
+
+    private IotMetricsMBean(IotMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    private List<IotMetrics.Sample> samples() {
+        List<IotMetrics.Sample> samples = new ArrayList<>();
+        for (IotMetrics.Family family : metrics.collect()) {
+            samples.addAll(family.samples);
+        }
+        return samples;
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        for (IotMetrics.Sample sample : samples()) {
+            if (sample.key().equals(attribute)) {
+                return sample.value;
+            }
+        }
+        throw new AttributeNotFoundException(attribute);
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        AttributeList list = new AttributeList();
+        List<IotMetrics.Sample> samples = samples();
+        for (String attribute : attributes) {
+            for (IotMetrics.Sample sample : samples) {
+                if (sample.key().equals(attribute)) {
+                    list.add(new Attribute(attribute, sample.value));
+                    break;
+                }
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) {
+        throw new UnsupportedOperationException(actionName);
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        List<IotMetrics.Sample> samples = samples();
+        MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[samples.size()];
+        for (int i = 0; i < attributes.length; i++) {
+            attributes[i] =
+                    new MBeanAttributeInfo(
+                            samples.get(i).key(), "double", samples.get(i).name, true, false, false);
+        }
+        return new MBeanInfo(getClass().getName(), "IoT actor metrics", attributes, null, null, null);
+    }
+}
@@ -0,0 +1,32 @@
+package sample;
+
+import akka.actor.typed.ActorSystem;
+import akka.actor.typed.DispatcherSelector;
+import akka.actor.typed.MailboxSelector;
+import akka.actor.typed.Props;
+import com.typesafe.config.Config;
+
+/**
+ * The dispatcher and mailbox the actors of the sample are spawned with, one of each per kind of actor so that,
+ * say, a burst of queries does not hold up the devices recording readings. They are the config paths of
+ * the definitions under {@code iot.dispatchers} and {@code iot.mailboxes}.
+ */
+final class IotProps {
+
+    static final String DEVICE = "device";
+    static final String GROUP = "group";
+    static final String QUERY = "query";
+    static final String MANAGER = "manager";
+
+    private IotProps() {}
+
+    static Props of(ActorSystem<?> system, String kind) {
+        Config config = system.settings().config();
+        String dispatcher = config.getString("iot.dispatchers." + kind);
+        String mailbox = config.hasPath("iot.mailboxes." + kind) ? config.getString("iot.mailboxes." + kind) : "";
+        if (mailbox.isEmpty()) {
+            return DispatcherSelector.fromConfig(dispatcher);
+        }
+        return MailboxSelector.fromConfig(mailbox).withDispatcherFromConfig(dispatcher);
+    }
+}
@@ -15,6 +15,13 @@ public class IotSupervisor extends AbstractBehavior<Void> {
 
     public IotSupervisor(ActorContext<Void> context) {
         super(context);
+        // starts the metrics endpoints before the first group does
+        IotMetrics.get(context.getSystem());
+        // partitioned by group id, see iot.manager.partitions
+        context.spawn(
+                DeviceManager.createPartitioned(),
+                "device-manager",
+                IotProps.of(context.getSystem(), IotProps.MANAGER));
         context.getLog().info("IoT Applications started");
     }
 
@@ -0,0 +1,48 @@
+package sample;
+
+import java.util.Arrays;
+
+/**
+ * The last {@code capacity} reply latencies of the devices of a group, in nanoseconds, in a ring. Percentiles
+ * are computed from a sorted copy, which {@link DeviceGroup} only does once per finished query.
+ */
+final class LatencyWindow {
+
+    private final long[] samples;
+    private long[] sorted;
+    private int count;
+    private int next;
+
+    LatencyWindow(int capacity) {
+        this.samples = new long[capacity];
+    }
+
+    void add(long latencyNanos) {
+        if (samples.length == 0) {
+            return;
+        }
+        samples[next] = latencyNanos;
+        next = (next + 1) % samples.length;
+        if (count < samples.length) {
+            count++;
+        }
+        sorted = null;
+    }
+
+    int size() {
+        return count;
+    }
+
+    /** The latency below which {@code percentile} (0 to 1) of the samples are, 0 without samples. */
+    long percentile(double percentile) {
+        if (count == 0) {
+            return 0L;
+        }
+        if (sorted == null) {
+            sorted = Arrays.copyOf(samples, count);
+            Arrays.sort(sorted);
+        }
+        int index = (int) Math.ceil(percentile * count) - 1;
+        return sorted[Math.max(0, Math.min(count - 1, index))];
+    }
+}
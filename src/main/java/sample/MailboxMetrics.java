@@ -0,0 +1,74 @@
+package sample;
+
+import akka.actor.typed.ActorSystem;
+import akka.actor.typed.Extension;
+import akka.actor.typed.ExtensionId;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * How many messages the {@link IotMailbox}es of a system have shed, per {@code metrics-name} of the mailbox
+ * definition: dropped because the mailbox was full, and readings replaced by a newer one of the same device.
+ * Also how many messages they hold and, with {@code iot.metrics.enabled}, how long the messages they handed to
+ * their actors waited. What the actors did with them is in {@link IotMetrics}.
+ */
+public final class MailboxMetrics implements Extension {
+
+    private static final ExtensionId<MailboxMetrics> ID =
+            new ExtensionId<MailboxMetrics>() {
+                @Override
+                public MailboxMetrics createExtension(ActorSystem<?> system) {
+                    return new MailboxMetrics();
+                }
+            };
+
+    public static MailboxMetrics get(ActorSystem<?> system) {
+        return system.registerExtension(ID);
+    }
+
+    static final class Counters {
+        final LongAdder dropped = new LongAdder();
+        final LongAdder coalesced = new LongAdder();
+        // summed over every mailbox with the name
+        final LongAdder depth = new LongAdder();
+        // from enqueue to dequeue, in nanoseconds
+        final LatencyHistogram waiting = new LatencyHistogram();
+    }
+
+    private final ConcurrentHashMap<String, Counters> counters = new ConcurrentHashMap<>();
+
+    private MailboxMetrics() {}
+
+    Counters counters(String mailbox) {
+        return counters.computeIfAbsent(mailbox, m -> new Counters());
+    }
+
+    /** The names of the mailboxes that have been created so far. */
+    public Set<String> mailboxes() {
+        return Collections.unmodifiableSet(counters.keySet());
+    }
+
+    public long dropped(String mailbox) {
+        Counters c = counters.get(mailbox);
+        return c != null ? c.dropped.sum() : 0L;
+    }
+
+    public long coalesced(String mailbox) {
+        Counters c = counters.get(mailbox);
+        return c != null ? c.coalesced.sum() : 0L;
+    }
+
+    /** How many messages are queued in all the mailboxes with the name together. */
+    public long depth(String mailbox) {
+        Counters c = counters.get(mailbox);
+        return c != null ? c.depth.sum() : 0L;
+    }
+
+    LatencyHistogram waiting(String mailbox) {
+        Counters c = counters.get(mailbox);
+        return c != null ? c.waiting : null;
+    }
+}
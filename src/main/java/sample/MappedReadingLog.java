@@ -0,0 +1,322 @@
+package sample;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The readings of all devices of a group, appended as fixed-width binary records to memory-mapped segment files.
+ *
+ * <p>A record is the device index (int), the timestamp (long) and the value (double). Every segment starts with
+ * the number of records it holds, so the log can be reopened after a restart; the device ids behind the indexes
+ * are kept, one per line, in a {@code devices} file next to the segments. When a segment is full a new one is
+ * started, and once there are more than {@code maxSegments} full segments they are compacted into a single one
+ * that only keeps the latest reading of every device. Aggregates read the mapped segments in place, skipping
+ * segments whose time range does not overlap the requested window.
+ *
+ * <p>Compaction writes the compacted segment to a temporary file, renames it to a {@code .compacted} segment with
+ * the next sequence number and only then deletes the segments it replaces. A crash leaves either the old segments
+ * and a temporary file, which is deleted on open, or a compacted segment and some of the old ones, which are older
+ * than it and deleted on open as well.
+ *
+ * <p>Devices of the group append from their own actors, so all access is synchronized on the log.
+ */
+final class MappedReadingLog implements AutoCloseable {
+
+    static final int RECORD_SIZE = 4 + 8 + 8;
+    private static final int HEADER_SIZE = 8;
+    private static final String DEVICES_FILE = "devices";
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String COMPACTED_SUFFIX = ".compacted";
+    private static final String COMPACTING_FILE = "compacting" + SEGMENT_SUFFIX;
+    // compaction numbers records by segment in the top bits and by record in the low 24 bits
+    static final int MAX_SEGMENTS = 128;
+    private static final int MAX_SEGMENT_RECORDS = 1 << 24;
+
+    static MappedReadingLog open(Path directory, int segmentSize, int maxSegments) {
+        try {
+            Files.createDirectories(directory);
+            return new MappedReadingLog(directory, segmentSize, maxSegments);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not open reading log in " + directory, e);
+        }
+    }
+
+    private final Path directory;
+    private final int segmentSize;
+    private final int maxSegments;
+    // oldest first, the last one is the one appended to
+    private final List<Segment> segments = new ArrayList<>();
+    private final Map<String, Integer> deviceIndexes = new HashMap<>();
+    private double[] scratch = new double[64];
+
+    private MappedReadingLog(Path directory, int segmentSize, int maxSegments) throws IOException {
+        if (segmentSize < HEADER_SIZE + RECORD_SIZE) {
+            throw new IllegalArgumentException("segment-size must hold at least one record");
+        }
+        if ((segmentSize - HEADER_SIZE) / RECORD_SIZE > MAX_SEGMENT_RECORDS) {
+            throw new IllegalArgumentException(
+                    "segment-size must hold at most " + MAX_SEGMENT_RECORDS + " records, was " + segmentSize);
+        }
+        if (maxSegments < 1 || maxSegments > MAX_SEGMENTS) {
+            throw new IllegalArgumentException(
+                    "max-segments must be between 1 and " + MAX_SEGMENTS + ", was " + maxSegments);
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSegments = maxSegments;
+
+        Path devices = directory.resolve(DEVICES_FILE);
+        if (Files.exists(devices)) {
+            for (String deviceId : Files.readAllLines(devices, StandardCharsets.UTF_8)) {
+                deviceIndexes.put(deviceId, deviceIndexes.size());
+            }
+        }
+        // left over by a compaction that did not finish, the segments it was compacting are all still there
+        Files.deleteIfExists(directory.resolve(COMPACTING_FILE));
+        TreeMap<Long, Path> files = new TreeMap<>();
+        long compactedSequence = -1L;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*")) {
+            for (Path file : stream) {
+                String name = file.getFileName().toString();
+                boolean compacted = name.endsWith(COMPACTED_SUFFIX);
+                int suffixLength = compacted ? COMPACTED_SUFFIX.length() : SEGMENT_SUFFIX.length();
+                long sequence = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - suffixLength));
+                files.put(sequence, file);
+                if (compacted) {
+                    compactedSequence = Math.max(compactedSequence, sequence);
+                }
+            }
+        }
+        for (Map.Entry<Long, Path> file : files.entrySet()) {
+            if (file.getKey() < compactedSequence) {
+                // already in the compacted segment, the compaction stopped before deleting it
+                Files.delete(file.getValue());
+            } else {
+                segments.add(Segment.open(file.getValue(), file.getKey()));
+            }
+        }
+        if (segments.isEmpty()) {
+            segments.add(Segment.create(segmentPath(0), 0, segmentSize));
+        }
+    }
+
+    /** The index of {@code deviceId} in this log, assigning the next free one to a device seen for the first time. */
+    synchronized int indexOf(String deviceId) {
+        Integer index = deviceIndexes.get(deviceId);
+        if (index != null) {
+            return index;
+        }
+        try {
+            Files.write(
+                    directory.resolve(DEVICES_FILE),
+                    (deviceId + "\n").getBytes(StandardCharsets.UTF_8),
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        deviceIndexes.put(deviceId, deviceIndexes.size());
+        return deviceIndexes.size() - 1;
+    }
+
+    ReadingStore forDevice(int deviceIndex) {
+        return new ReadingStore() {
+            @Override
+            public void append(long timestamp, double value) {
+                MappedReadingLog.this.append(deviceIndex, timestamp, value);
+            }
+
+            @Override
+            public Device.RespondAggregate aggregate(long requestId, String deviceId, long from, long to) {
+                return MappedReadingLog.this.aggregate(requestId, deviceId, deviceIndex, from, to);
+            }
+        };
+    }
+
+    synchronized void append(int deviceIndex, long timestamp, double value) {
+        Segment active = segments.get(segments.size() - 1);
+        if (active.isFull()) {
+            active = roll();
+        }
+        active.append(deviceIndex, timestamp, value);
+    }
+
+    synchronized Device.RespondAggregate aggregate(
+            long requestId, String deviceId, int deviceIndex, long from, long to) {
+        int count = 0;
+        for (Segment segment : segments) {
+            if (segment.count == 0 || segment.maxTimestamp < from || segment.minTimestamp > to) {
+                continue;
+            }
+            MappedByteBuffer buffer = segment.buffer;
+            for (int i = 0, position = HEADER_SIZE; i < segment.count; i++, position += RECORD_SIZE) {
+                long timestamp = buffer.getLong(position + 4);
+                if (buffer.getInt(position) == deviceIndex && timestamp >= from && timestamp <= to) {
+                    if (count == scratch.length) {
+                        scratch = Arrays.copyOf(scratch, count * 2);
+                    }
+                    scratch[count++] = buffer.getDouble(position + 12);
+                }
+            }
+        }
+        return TemperatureHistory.aggregate(requestId, deviceId, scratch, count);
+    }
+
+    synchronized int segmentCount() {
+        return segments.size();
+    }
+
+    @Override
+    public synchronized void close() {
+        for (Segment segment : segments) {
+            segment.close();
+        }
+        segments.clear();
+    }
+
+    private Segment roll() {
+        long sequence = segments.get(segments.size() - 1).sequence + 1;
+        // all segments are full here
+        if (segments.size() > maxSegments) {
+            compact(sequence++);
+        }
+        Segment next = Segment.create(segmentPath(sequence), sequence, segmentSize);
+        segments.add(next);
+        return next;
+    }
+
+    /** Replaces all segments, which are full, by one holding only the latest reading of each device. */
+    private void compact(long sequence) {
+        List<Segment> full = new ArrayList<>(segments);
+        Map<Integer, Integer> latestRecord = new HashMap<>();
+        for (int s = 0; s < full.size(); s++) {
+            Segment segment = full.get(s);
+            for (int i = 0; i < segment.count; i++) {
+                // the segment number in the high bits, the record number in the low ones
+                latestRecord.put(segment.buffer.getInt(HEADER_SIZE + i * RECORD_SIZE), s << 24 | i);
+            }
+        }
+
+        Path temporary = directory.resolve(COMPACTING_FILE);
+        Segment compacted = Segment.create(temporary, sequence, HEADER_SIZE + latestRecord.size() * RECORD_SIZE);
+        for (int record : latestRecord.values()) {
+            Segment segment = full.get(record >>> 24);
+            int position = HEADER_SIZE + (record & 0xFFFFFF) * RECORD_SIZE;
+            compacted.append(
+                    segment.buffer.getInt(position),
+                    segment.buffer.getLong(position + 4),
+                    segment.buffer.getDouble(position + 12));
+        }
+        compacted.buffer.force();
+        compacted.close();
+
+        // from here on the compacted segment replaces the old ones, also when they are not all deleted yet
+        Path path = segmentPath(sequence, COMPACTED_SUFFIX);
+        try {
+            Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE);
+            for (Segment segment : full) {
+                segment.close();
+                Files.delete(segment.path);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        segments.clear();
+        segments.add(Segment.open(path, sequence));
+    }
+
+    private Path segmentPath(long sequence) {
+        return segmentPath(sequence, SEGMENT_SUFFIX);
+    }
+
+    private Path segmentPath(long sequence, String suffix) {
+        return directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, sequence, suffix));
+    }
+
+    private static final class Segment {
+        final Path path;
+        final long sequence;
+        final FileChannel channel;
+        final MappedByteBuffer buffer;
+        int count;
+        long minTimestamp = Long.MAX_VALUE;
+        long maxTimestamp = Long.MIN_VALUE;
+
+        private Segment(Path path, long sequence, FileChannel channel, MappedByteBuffer buffer) {
+            this.path = path;
+            this.sequence = sequence;
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+
+        static Segment create(Path path, long sequence, int size) {
+            try {
+                FileChannel channel =
+                        FileChannel.open(
+                                path,
+                                StandardOpenOption.CREATE_NEW,
+                                StandardOpenOption.READ,
+                                StandardOpenOption.WRITE);
+                return new Segment(path, sequence, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not create segment " + path, e);
+            }
+        }
+
+        static Segment open(Path path, long sequence) {
+            try {
+                FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                Segment segment =
+                        new Segment(path, sequence, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size()));
+                segment.count = (int) segment.buffer.getLong(0);
+                for (int i = 0; i < segment.count; i++) {
+                    long timestamp = segment.buffer.getLong(HEADER_SIZE + i * RECORD_SIZE + 4);
+                    segment.minTimestamp = Math.min(segment.minTimestamp, timestamp);
+                    segment.maxTimestamp = Math.max(segment.maxTimestamp, timestamp);
+                }
+                return segment;
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not open segment " + path, e);
+            }
+        }
+
+        boolean isFull() {
+            return HEADER_SIZE + (count + 1) * RECORD_SIZE > buffer.capacity();
+        }
+
+        void append(int deviceIndex, long timestamp, double value) {
+            int position = HEADER_SIZE + count * RECORD_SIZE;
+            buffer.putInt(position, deviceIndex);
+            buffer.putLong(position + 4, timestamp);
+            buffer.putDouble(position + 12, value);
+            count++;
+            // written after the record, so that a reopened segment never counts a half written one
+            buffer.putLong(0, count);
+            minTimestamp = Math.min(minTimestamp, timestamp);
+            maxTimestamp = Math.max(maxTimestamp, timestamp);
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package sample;
+
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.Behavior;
+import akka.actor.typed.javadsl.AbstractBehavior;
+import akka.actor.typed.javadsl.ActorContext;
+import akka.actor.typed.javadsl.Behaviors;
+import akka.actor.typed.javadsl.Receive;
+import akka.actor.typed.javadsl.TimerScheduler;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Answers a {@link DeviceManager.RequestGroupsTemperatures}: asks all groups at once and collects their
+ * answers as they arrive, until every group has answered or the deadline of the request has passed. The groups
+ * are given the timeout of the request less some slack, so that a group whose devices do not all answer still
+ * gets its partial answer, with those devices as {@link DeviceManager.DeviceTimedOut}, back before the deadline.
+ */
+public class MultiGroupQuery extends AbstractBehavior<MultiGroupQuery.Command> {
+
+    public interface Command {}
+
+    // what the groups' answers get to reach the query, a tenth of the timeout but no more than this
+    private static final Duration MAX_SLACK = Duration.ofMillis(100);
+
+    private static enum CollectionTimeout implements Command {
+        INSTANCE
+    }
+
+    private static final class WrappedRespondAllTemperatures implements Command {
+        final DeviceManager.RespondAllTemperatures response;
+
+        WrappedRespondAllTemperatures(DeviceManager.RespondAllTemperatures response) {
+            this.response = response;
+        }
+    }
+
+    private static final class GroupTerminated implements Command {
+        final ActorRef<DeviceGroup.Command> group;
+
+        GroupTerminated(ActorRef<DeviceGroup.Command> group) {
+            this.group = group;
+        }
+    }
+
+    static Behavior<Command> create(
+            Map<String, ActorRef<DeviceGroup.Command>> groupIdToActor,
+            Set<String> unknownGroupIds,
+            DeviceManager.RequestGroupsTemperatures request) {
+        return IotMetrics.instrument(
+                IotProps.QUERY,
+                Behaviors.setup(
+                        context -> Behaviors.withTimers(
+                                timers -> new MultiGroupQuery(
+                                        groupIdToActor, unknownGroupIds, request, context, timers))));
+    }
+
+    private final DeviceManager.RequestGroupsTemperatures request;
+    // the requestId sent to a group is its position in here, which is how its answer is recognized
+    private final String[] groupIds;
+    private final Map<String, Map<String, DeviceManager.TemperatureReading>> repliesSoFar = new HashMap<>();
+    private final Set<String> stillWaiting;
+    private final Set<String> unknownGroupIds;
+    private final Map<String, ActorRef<DeviceGroup.Command>> groupIdToActor;
+
+    private MultiGroupQuery(
+            Map<String, ActorRef<DeviceGroup.Command>> groupIdToActor,
+            Set<String> unknownGroupIds,
+            DeviceManager.RequestGroupsTemperatures request,
+            ActorContext<Command> context,
+            TimerScheduler<Command> timers) {
+        super(context);
+        this.request = request;
+        this.unknownGroupIds = new HashSet<>(unknownGroupIds);
+        this.groupIds = groupIdToActor.keySet().toArray(new String[0]);
+        this.stillWaiting = new HashSet<>(groupIdToActor.keySet());
+        this.groupIdToActor = groupIdToActor;
+
+        timers.startSingleTimer(CollectionTimeout.INSTANCE, request.timeout);
+        // the same for every request with this timeout, so that the groups can still coalesce their queries
+        Duration groupTimeout = request.timeout.minus(slack(request.timeout));
+
+        Set<ActorRef<DeviceGroup.Command>> watched = new HashSet<>();
+        ActorRef<DeviceManager.RespondAllTemperatures> respondAdapter =
+                context.messageAdapter(DeviceManager.RespondAllTemperatures.class, WrappedRespondAllTemperatures::new);
+        for (int i = 0; i < groupIds.length; i++) {
+            ActorRef<DeviceGroup.Command> group = groupIdToActor.get(groupIds[i]);
+            // groups of a sharded manager all share the ref of the shard region
+            if (watched.add(group)) {
+                context.watchWith(group, new GroupTerminated(group));
+            }
+            group.tell(new DeviceManager.RequestAllTemperatures(i, groupIds[i], groupTimeout, respondAdapter));
+        }
+        if (stillWaiting.isEmpty()) {
+            context.getSelf().tell(CollectionTimeout.INSTANCE);
+        }
+    }
+
+    static Duration slack(Duration timeout) {
+        Duration tenth = timeout.dividedBy(10);
+        return tenth.compareTo(MAX_SLACK) < 0 ? tenth : MAX_SLACK;
+    }
+
+    @Override
+    public Receive<Command> createReceive() {
+        return newReceiveBuilder()
+                .onMessage(WrappedRespondAllTemperatures.class, this::onRespondAllTemperatures)
+                .onMessage(GroupTerminated.class, this::onGroupTerminated)
+                .onMessage(CollectionTimeout.class, this::onCollectionTimeout)
+                .build();
+    }
+
+    private Behavior<Command> onRespondAllTemperatures(WrappedRespondAllTemperatures r) {
+        String groupId = groupIds[(int) r.response.requestId];
+        if (stillWaiting.remove(groupId)) {
+            repliesSoFar.put(groupId, r.response.temperatures);
+        }
+        return respondWhenAllCollected();
+    }
+
+    private Behavior<Command> onGroupTerminated(GroupTerminated terminated) {
+        for (Iterator<String> it = stillWaiting.iterator(); it.hasNext(); ) {
+            String groupId = it.next();
+            if (groupIdToActor.get(groupId).equals(terminated.group)) {
+                it.remove();
+                unknownGroupIds.add(groupId);
+            }
+        }
+        return respondWhenAllCollected();
+    }
+
+    private Behavior<Command> onCollectionTimeout(CollectionTimeout timeout) {
+        return respond();
+    }
+
+    private Behavior<Command> respondWhenAllCollected() {
+        if (stillWaiting.isEmpty()) {
+            return respond();
+        } else {
+            return this;
+        }
+    }
+
+    private Behavior<Command> respond() {
+        request.replyTo.tell(
+                new DeviceManager.RespondGroupsTemperatures(
+                        request.requestId, repliesSoFar, new HashSet<>(stillWaiting), unknownGroupIds));
+        return Behaviors.stopped();
+    }
+}
@@ -0,0 +1,129 @@
+package sample;
+
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.Behavior;
+import akka.actor.typed.Props;
+import akka.actor.typed.javadsl.AbstractBehavior;
+import akka.actor.typed.javadsl.ActorContext;
+import akka.actor.typed.javadsl.Behaviors;
+import akka.actor.typed.javadsl.Receive;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The {@link DeviceManager} protocol on top of several managers, each owning the groups whose id
+ * {@link DeviceManager#partitionOf hashes} to it. It keeps no state of its own, a message for a group is passed
+ * to the owner of the group, so starting groups and tracking their devices is spread over the partitions.
+ * Clients that want to skip this actor too ask for the {@link DeviceManager.Partitions} and route themselves.
+ */
+class PartitionedDeviceManager extends AbstractBehavior<DeviceManager.Command> {
+
+    static Behavior<DeviceManager.Command> create(int partitions) {
+        if (partitions < 1) {
+            throw new IllegalArgumentException("partitions must be at least 1, was " + partitions);
+        }
+        return IotMetrics.instrument(
+                IotProps.MANAGER, Behaviors.setup(context -> new PartitionedDeviceManager(context, partitions)));
+    }
+
+    private final List<ActorRef<DeviceManager.Command>> partitions;
+
+    private PartitionedDeviceManager(ActorContext<DeviceManager.Command> context, int partitions) {
+        super(context);
+        List<ActorRef<DeviceManager.Command>> refs = new ArrayList<>(partitions);
+        Props props = IotProps.of(context.getSystem(), IotProps.MANAGER);
+        for (int i = 0; i < partitions; i++) {
+            refs.add(context.spawn(DeviceManager.create(i, partitions), "partition-" + i, props));
+        }
+        this.partitions = Collections.unmodifiableList(refs);
+    }
+
+    private ActorRef<DeviceManager.Command> partitionFor(String groupId) {
+        return partitions.get(DeviceManager.partitionOf(groupId, partitions.size()));
+    }
+
+    private PartitionedDeviceManager onGroupCommand(DeviceGroup.Command command) {
+        partitionFor(DeviceManager.groupIdOf(command)).tell((DeviceManager.Command) command);
+        return this;
+    }
+
+    private PartitionedDeviceManager onRequestGroup(DeviceManager.RequestGroup request) {
+        partitionFor(request.groupId).tell(request);
+        return this;
+    }
+
+    private PartitionedDeviceManager onRequestPartitions(DeviceManager.RequestPartitions request) {
+        request.replyTo.tell(new DeviceManager.Partitions(partitions));
+        return this;
+    }
+
+    private PartitionedDeviceManager onRequestGroupsTemperatures(DeviceManager.RequestGroupsTemperatures request) {
+        Map<ActorRef<DeviceManager.Command>, Set<String>> groupIdsByPartition = new HashMap<>();
+        if (request.groupIds.isEmpty()) {
+            for (ActorRef<DeviceManager.Command> partition : partitions) {
+                groupIdsByPartition.put(partition, Collections.emptySet());
+            }
+        } else {
+            for (String groupId : request.groupIds) {
+                groupIdsByPartition.computeIfAbsent(partitionFor(groupId), p -> new HashSet<>()).add(groupId);
+            }
+        }
+        ActorRef<DeviceManager.RespondGroupsTemperatures> merger =
+                getContext().spawnAnonymous(
+                        merge(request, groupIdsByPartition.size()),
+                        IotProps.of(getContext().getSystem(), IotProps.QUERY));
+        groupIdsByPartition.forEach((partition, groupIds) ->
+                partition.tell(new DeviceManager.RequestGroupsTemperatures(
+                        request.requestId, groupIds, request.timeout, merger)));
+        return this;
+    }
+
+    /**
+     * Merges the answers of {@code expected} partitions into the answer to {@code request}. Every partition
+     * answers within the timeout of the request, so there is no timeout of its own.
+     */
+    private static Behavior<DeviceManager.RespondGroupsTemperatures> merge(
+            DeviceManager.RequestGroupsTemperatures request, int expected) {
+        Map<String, Map<String, DeviceManager.TemperatureReading>> temperatures = new HashMap<>();
+        Set<String> timedOutGroupIds = new HashSet<>();
+        Set<String> unknownGroupIds = new HashSet<>();
+        int[] received = new int[1];
+        return Behaviors.receiveMessage(response -> {
+            temperatures.putAll(response.temperatures);
+            timedOutGroupIds.addAll(response.timedOutGroupIds);
+            unknownGroupIds.addAll(response.unknownGroupIds);
+            if (++received[0] < expected) {
+                return Behaviors.same();
+            }
+            request.replyTo.tell(new DeviceManager.RespondGroupsTemperatures(
+                    request.requestId, temperatures, timedOutGroupIds, unknownGroupIds));
+            return Behaviors.stopped();
+        });
+    }
+
+    @Override
+    public Receive<DeviceManager.Command> createReceive() {
+        return newReceiveBuilder()
+                .onMessage(DeviceManager.RequestTrackDevice.class, this::onGroupCommand)
+                .onMessage(DeviceManager.RequestTrackDevices.class, this::onGroupCommand)
+                .onMessage(DeviceManager.RequestDeviceList.class, this::onGroupCommand)
+                .onMessage(DeviceManager.RequestDeviceChanges.class, this::onGroupCommand)
+                .onMessage(DeviceManager.SubscribeGroupTemperatures.class, this::onGroupCommand)
+                .onMessage(DeviceManager.UnsubscribeGroupTemperatures.class, this::onGroupCommand)
+                .onMessage(DeviceManager.RecordTemperatureBatch.class, this::onGroupCommand)
+                .onMessage(DeviceManager.DeviceEnvelope.class, this::onGroupCommand)
+                .onMessage(DeviceManager.RequestGroupMetrics.class, this::onGroupCommand)
+                .onMessage(DeviceManager.RequestAllTemperatures.class, this::onGroupCommand)
+                .onMessage(DeviceManager.RequestAllTemperaturesStream.class, this::onGroupCommand)
+                .onMessage(DeviceManager.RequestGroup.class, this::onRequestGroup)
+                .onMessage(DeviceManager.RequestPartitions.class, this::onRequestPartitions)
+                .onMessage(DeviceManager.RequestGroupsTemperatures.class, this::onRequestGroupsTemperatures)
+                .build();
+    }
+}
@@ -0,0 +1,138 @@
+package sample;
+
+import akka.serialization.SerializerWithStringManifest;
+
+import java.io.NotSerializableException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Binary format of the journal events and snapshots of {@link PersistentDevice}, {@link DeviceGroupMembership} and
+ * {@link DeviceManagerGroups}.
+ */
+public class PersistenceSerializer extends SerializerWithStringManifest {
+
+    private static final String READINGS_RECORDED = "R";
+    private static final String DEVICE_STATE = "S";
+    private static final String DEVICE_ADDED = "A";
+    private static final String DEVICE_REMOVED = "D";
+    private static final String MEMBERS = "M";
+    private static final String GROUP_ADDED = "G";
+    private static final String GROUPS = "GS";
+
+    @Override
+    public int identifier() {
+        return 7201;
+    }
+
+    @Override
+    public String manifest(Object o) {
+        if (o instanceof PersistentDevice.ReadingsRecorded) {
+            return READINGS_RECORDED;
+        } else if (o instanceof PersistentDevice.State) {
+            return DEVICE_STATE;
+        } else if (o instanceof DeviceGroupMembership.DeviceAdded) {
+            return DEVICE_ADDED;
+        } else if (o instanceof DeviceGroupMembership.DeviceRemoved) {
+            return DEVICE_REMOVED;
+        } else if (o instanceof DeviceGroupMembership.Members) {
+            return MEMBERS;
+        } else if (o instanceof DeviceManagerGroups.GroupAdded) {
+            return GROUP_ADDED;
+        } else if (o instanceof DeviceManagerGroups.Groups) {
+            return GROUPS;
+        }
+        throw new IllegalArgumentException("Can't serialize object of type " + o.getClass());
+    }
+
+    @Override
+    public byte[] toBinary(Object o) {
+        if (o instanceof PersistentDevice.ReadingsRecorded) {
+            PersistentDevice.ReadingsRecorded r = (PersistentDevice.ReadingsRecorded) o;
+            ByteBuffer buffer = ByteBuffer.allocate(8 + 4 + r.values.length * 16);
+            buffer.putLong(r.lastRequestId);
+            buffer.putInt(r.values.length);
+            for (int i = 0; i < r.values.length; i++) {
+                buffer.putLong(r.timestamps[i]);
+                buffer.putDouble(r.values[i]);
+            }
+            return buffer.array();
+        } else if (o instanceof PersistentDevice.State) {
+            PersistentDevice.State s = (PersistentDevice.State) o;
+            ByteBuffer buffer = ByteBuffer.allocate(1 + 8 + 8);
+            buffer.put(s.hasValue ? (byte) 1 : (byte) 0);
+            buffer.putDouble(s.value);
+            buffer.putLong(s.lastRequestId);
+            return buffer.array();
+        } else if (o instanceof DeviceGroupMembership.DeviceAdded) {
+            return ((DeviceGroupMembership.DeviceAdded) o).deviceId.getBytes(StandardCharsets.UTF_8);
+        } else if (o instanceof DeviceGroupMembership.DeviceRemoved) {
+            return ((DeviceGroupMembership.DeviceRemoved) o).deviceId.getBytes(StandardCharsets.UTF_8);
+        } else if (o instanceof DeviceGroupMembership.Members) {
+            return ids(((DeviceGroupMembership.Members) o).deviceIds);
+        } else if (o instanceof DeviceManagerGroups.GroupAdded) {
+            return ((DeviceManagerGroups.GroupAdded) o).groupId.getBytes(StandardCharsets.UTF_8);
+        } else if (o instanceof DeviceManagerGroups.Groups) {
+            return ids(((DeviceManagerGroups.Groups) o).groupIds);
+        }
+        throw new IllegalArgumentException("Can't serialize object of type " + o.getClass());
+    }
+
+    @Override
+    public Object fromBinary(byte[] bytes, String manifest) throws NotSerializableException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        switch (manifest) {
+            case READINGS_RECORDED: {
+                long lastRequestId = buffer.getLong();
+                int count = buffer.getInt();
+                long[] timestamps = new long[count];
+                double[] values = new double[count];
+                for (int i = 0; i < count; i++) {
+                    timestamps[i] = buffer.getLong();
+                    values[i] = buffer.getDouble();
+                }
+                return new PersistentDevice.ReadingsRecorded(lastRequestId, timestamps, values);
+            }
+            case DEVICE_STATE:
+                return new PersistentDevice.State(buffer.get() == 1, buffer.getDouble(), buffer.getLong());
+            case DEVICE_ADDED:
+                return new DeviceGroupMembership.DeviceAdded(new String(bytes, StandardCharsets.UTF_8));
+            case DEVICE_REMOVED:
+                return new DeviceGroupMembership.DeviceRemoved(new String(bytes, StandardCharsets.UTF_8));
+            case MEMBERS:
+                return new DeviceGroupMembership.Members(ids(buffer));
+            case GROUP_ADDED:
+                return new DeviceManagerGroups.GroupAdded(new String(bytes, StandardCharsets.UTF_8));
+            case GROUPS:
+                return new DeviceManagerGroups.Groups(ids(buffer));
+            default:
+                throw new NotSerializableException("Unknown manifest " + manifest);
+        }
+    }
+
+    private static byte[] ids(String[] ids) {
+        byte[][] encoded = new byte[ids.length][];
+        int size = 4;
+        for (int i = 0; i < ids.length; i++) {
+            encoded[i] = ids[i].getBytes(StandardCharsets.UTF_8);
+            size += 4 + encoded[i].length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(encoded.length);
+        for (byte[] id : encoded) {
+            buffer.putInt(id.length);
+            buffer.put(id);
+        }
+        return buffer.array();
+    }
+
+    private static String[] ids(ByteBuffer buffer) {
+        String[] ids = new String[buffer.getInt()];
+        for (int i = 0; i < ids.length; i++) {
+            byte[] id = new byte[buffer.getInt()];
+            buffer.get(id);
+            ids[i] = new String(id, StandardCharsets.UTF_8);
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,46 @@
+package sample;
+
+import com.typesafe.config.Config;
+
+import java.time.Duration;
+
+/** How the devices of a group and the group membership are persisted, see {@code iot.device.persistence}. */
+public final class PersistenceSettings {
+
+    public static PersistenceSettings create(Config config) {
+        return new PersistenceSettings(
+                config.getBoolean("enabled"),
+                config.getString("journal-plugin"),
+                config.getString("snapshot-plugin"),
+                config.getInt("snapshot-every"),
+                config.getInt("write-batch-size"),
+                config.getDuration("write-batch-interval"));
+    }
+
+    final boolean enabled;
+    final String journalPluginId;
+    final String snapshotPluginId;
+    final int snapshotEvery;
+    final int writeBatchSize;
+    final Duration writeBatchInterval;
+
+    private PersistenceSettings(
+            boolean enabled,
+            String journalPluginId,
+            String snapshotPluginId,
+            int snapshotEvery,
+            int writeBatchSize,
+            Duration writeBatchInterval) {
+        this.enabled = enabled;
+        this.journalPluginId = journalPluginId;
+        this.snapshotPluginId = snapshotPluginId;
+        this.snapshotEvery = snapshotEvery;
+        this.writeBatchSize = writeBatchSize;
+        this.writeBatchInterval = writeBatchInterval;
+    }
+
+    public PersistenceSettings withEnabled(boolean enabled) {
+        return new PersistenceSettings(
+                enabled, journalPluginId, snapshotPluginId, snapshotEvery, writeBatchSize, writeBatchInterval);
+    }
+}
@@ -0,0 +1,357 @@
+package sample;
+
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.Behavior;
+import akka.actor.typed.PostStop;
+import akka.actor.typed.javadsl.ActorContext;
+import akka.actor.typed.javadsl.Behaviors;
+import akka.actor.typed.javadsl.TimerScheduler;
+import akka.persistence.typed.PersistenceId;
+import akka.persistence.typed.RecoveryCompleted;
+import akka.persistence.typed.javadsl.CommandHandler;
+import akka.persistence.typed.javadsl.Effect;
+import akka.persistence.typed.javadsl.EffectBuilder;
+import akka.persistence.typed.javadsl.EventHandler;
+import akka.persistence.typed.javadsl.EventSourcedBehavior;
+import akka.persistence.typed.javadsl.RetentionCriteria;
+import akka.persistence.typed.javadsl.SignalHandler;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * A {@link Device} whose readings survive restarts. It speaks the same protocol, but a reading only counts as
+ * recorded once it is in the journal: {@link Device.TemperatureRecorded} replies and the ack watermark are
+ * sent after the write. {@link Device.RecordTemperatureNoAck} readings are buffered and written together, up
+ * to {@code write-batch-size} readings or {@code write-batch-interval} after the first one, whichever comes
+ * first. A snapshot every {@code snapshot-every} writes bounds how much has to be replayed on recovery.
+ */
+public class PersistentDevice
+        extends EventSourcedBehavior<Device.Command, PersistentDevice.Event, PersistentDevice.State> {
+
+    interface Event {}
+
+    /** Readings written in one go; {@code lastRequestId} is the highest requestId recorded once they are. */
+    static final class ReadingsRecorded implements Event {
+        final long lastRequestId;
+        final long[] timestamps;
+        final double[] values;
+
+        ReadingsRecorded(long lastRequestId, long[] timestamps, double[] values) {
+            this.lastRequestId = lastRequestId;
+            this.timestamps = timestamps;
+            this.values = values;
+        }
+    }
+
+    static final class State {
+        final boolean hasValue;
+        final double value;
+        final long lastRequestId;
+
+        State(boolean hasValue, double value, long lastRequestId) {
+            this.hasValue = hasValue;
+            this.value = value;
+            this.lastRequestId = lastRequestId;
+        }
+    }
+
+    private static enum WritePending implements Device.Command {
+        INSTANCE
+    }
+
+    private static enum AckTick implements Device.Command {
+        INSTANCE
+    }
+
+    public static Behavior<Device.Command> create(String groupId, String deviceId, DeviceSettings settings) {
+        return create(groupId, deviceId, settings, null);
+    }
+
+    /** A device started by {@code group}, passivated by it like a {@link Device}. */
+    static Behavior<Device.Command> create(
+            String groupId, String deviceId, DeviceSettings settings, ActorRef<DeviceGroup.Command> group) {
+        return IotMetrics.instrument(
+                IotProps.DEVICE,
+                Behaviors.setup(
+                        context -> Behaviors.withTimers(
+                                timers -> new PersistentDevice(context, timers, groupId, deviceId, settings, group))));
+    }
+
+    static PersistenceId persistenceId(String groupId, String deviceId) {
+        return PersistenceId.of("Device", groupId + "/" + deviceId);
+    }
+
+    private final ActorContext<Device.Command> context;
+    private final TimerScheduler<Device.Command> timers;
+    private final String groupId;
+    private final String deviceId;
+    private final DeviceSettings settings;
+    // null when the device was not started by a group
+    private final ActorRef<DeviceGroup.Command> group;
+    private final DeviceEvents events;
+
+    // rebuilt from the events replayed since the last snapshot, it is not part of the snapshot itself
+    private final TemperatureHistory history;
+
+    private long[] pendingTimestamps;
+    private double[] pendingValues;
+    private int pendingCount;
+    private long pendingRequestId;
+
+    private final Set<ActorRef<Device.TemperatureRecorded>> ackSubscribers = new HashSet<>();
+    private long lastAckedRequestId = -1L;
+    // only told about readings once they are in the journal
+    private final TemperatureSubscribers temperatureSubscribers;
+
+    private PersistentDevice(
+            ActorContext<Device.Command> context,
+            TimerScheduler<Device.Command> timers,
+            String groupId,
+            String deviceId,
+            DeviceSettings settings,
+            ActorRef<DeviceGroup.Command> group) {
+        super(persistenceId(groupId, deviceId));
+        this.context = context;
+        this.timers = timers;
+        this.groupId = groupId;
+        this.deviceId = deviceId;
+        this.settings = settings;
+        this.group = group;
+        this.history = new TemperatureHistory(settings.historyCapacity);
+        this.pendingTimestamps = new long[Math.max(1, settings.persistence.writeBatchSize)];
+        this.pendingValues = new double[Math.max(1, settings.persistence.writeBatchSize)];
+        if (group != null && !settings.passivateAfter.isZero()) {
+            context.setReceiveTimeout(settings.passivateAfter, Device.IdleTimeout.INSTANCE);
+        }
+        this.temperatureSubscribers = new TemperatureSubscribers(deviceId, context, timers);
+        this.events = new DeviceEvents(groupId, deviceId, settings);
+        events.lifecycle("started");
+    }
+
+    @Override
+    public State emptyState() {
+        return new State(false, Double.NaN, -1L);
+    }
+
+    @Override
+    public String journalPluginId() {
+        return settings.persistence.journalPluginId;
+    }
+
+    @Override
+    public String snapshotPluginId() {
+        return settings.persistence.snapshotPluginId;
+    }
+
+    @Override
+    public RetentionCriteria retentionCriteria() {
+        return RetentionCriteria.snapshotEvery(settings.persistence.snapshotEvery, 2);
+    }
+
+    @Override
+    public CommandHandler<Device.Command, Event, State> commandHandler() {
+        return newCommandHandlerBuilder()
+                .forAnyState()
+                .onCommand(Device.RecordTemperature.class, this::onRecordTemperature)
+                .onCommand(Device.RecordTemperatureNoAck.class, this::onRecordTemperatureNoAck)
+                .onCommand(Device.RecordTemperatures.class, this::onRecordTemperatures)
+                .onCommand(WritePending.class, (state, w) -> writePending(state))
+                .onCommand(Device.ReadTemperature.class, this::onReadTemperature)
+                .onCommand(Device.ReadAggregate.class, this::onReadAggregate)
+                .onCommand(Device.SubscribeAckWatermark.class, this::onSubscribeAckWatermark)
+                .onCommand(Device.UnsubscribeAckWatermark.class, this::onUnsubscribeAckWatermark)
+                .onCommand(Device.SubscribeTemperature.class, this::onSubscribeTemperature)
+                .onCommand(Device.UnsubscribeTemperature.class, this::onUnsubscribeTemperature)
+                .onCommand(TemperatureSubscribers.Tick.class, this::onTemperatureTick)
+                .onCommand(AckTick.class, this::onAckTick)
+                .onCommand(Device.IdleTimeout.class, this::onIdleTimeout)
+                .onCommand(Device.Passivate.class, this::onPassivate)
+                .build();
+    }
+
+    @Override
+    public EventHandler<State, Event> eventHandler() {
+        return newEventHandlerBuilder()
+                .forAnyState()
+                .onEvent(ReadingsRecorded.class, this::onReadingsRecorded)
+                .build();
+    }
+
+    @Override
+    public SignalHandler<State> signalHandler() {
+        return newSignalHandlerBuilder()
+                .onSignal(RecoveryCompleted.instance(), state -> {
+                    events.lifecycle("recovered");
+                    pushReading(state);
+                })
+                .onSignal(PostStop.instance(), state -> events.lifecycle("stopped"))
+                .build();
+    }
+
+    private Effect<Event, State> onRecordTemperature(State state, Device.RecordTemperature r) {
+        buffer(state, System.currentTimeMillis(), r.value);
+        pendingRequestId = Math.max(pendingRequestId, r.requestId);
+        return writePending(state).thenRun(() -> r.replyTo.tell(new Device.TemperatureRecorded(r.requestId)));
+    }
+
+    private Effect<Event, State> onRecordTemperatureNoAck(State state, Device.RecordTemperatureNoAck r) {
+        if (pendingCount == 0) {
+            timers.startSingleTimer(WritePending.INSTANCE, settings.persistence.writeBatchInterval);
+        }
+        buffer(state, System.currentTimeMillis(), r.value);
+        // the watermark is the highest requestId, readings sent without ack can arrive out of order
+        pendingRequestId = Math.max(pendingRequestId, r.requestId);
+        if (pendingCount >= settings.persistence.writeBatchSize) {
+            return writePending(state);
+        }
+        return Effect().none();
+    }
+
+    private Effect<Event, State> onRecordTemperatures(State state, Device.RecordTemperatures r) {
+        for (int position : r.positions) {
+            buffer(state, r.timestamps[position], r.values[position]);
+        }
+        return writePending(state);
+    }
+
+    private Effect<Event, State> onReadTemperature(State state, Device.ReadTemperature r) {
+        if (pendingCount > 0) {
+            r.replyTo.tell(new Device.RespondTemperature(r.requestId, deviceId, pendingValues[pendingCount - 1]));
+        } else if (state.hasValue) {
+            r.replyTo.tell(new Device.RespondTemperature(r.requestId, deviceId, state.value));
+        } else {
+            r.replyTo.tell(new Device.RespondTemperature(r.requestId, deviceId));
+        }
+        return Effect().none();
+    }
+
+    private Effect<Event, State> onReadAggregate(State state, Device.ReadAggregate r) {
+        r.replyTo.tell(history.aggregate(r.requestId, deviceId, r.from, r.to));
+        return Effect().none();
+    }
+
+    private Effect<Event, State> onSubscribeAckWatermark(State state, Device.SubscribeAckWatermark s) {
+        if (!ackSubscribers.add(s.replyTo)) {
+            return Effect().none();
+        }
+        // a subscriber that stops is unsubscribed, so that it does not keep the device from passivating
+        context.watchWith(s.replyTo, new Device.UnsubscribeAckWatermark(s.replyTo));
+        if (ackSubscribers.size() == 1) {
+            timers.startTimerWithFixedDelay(AckTick.INSTANCE, settings.ackInterval);
+        }
+        return Effect().none();
+    }
+
+    private Effect<Event, State> onUnsubscribeAckWatermark(State state, Device.UnsubscribeAckWatermark s) {
+        if (!ackSubscribers.remove(s.replyTo)) {
+            return Effect().none();
+        }
+        context.unwatch(s.replyTo);
+        if (ackSubscribers.isEmpty()) {
+            timers.cancel(AckTick.INSTANCE);
+        }
+        return Effect().none();
+    }
+
+    private Effect<Event, State> onSubscribeTemperature(State state, Device.SubscribeTemperature s) {
+        temperatureSubscribers.subscribe(s, state.hasValue, state.value);
+        return Effect().none();
+    }
+
+    private Effect<Event, State> onUnsubscribeTemperature(State state, Device.UnsubscribeTemperature s) {
+        temperatureSubscribers.unsubscribe(s.replyTo);
+        return Effect().none();
+    }
+
+    private Effect<Event, State> onTemperatureTick(State state, TemperatureSubscribers.Tick tick) {
+        temperatureSubscribers.onTick(tick);
+        return Effect().none();
+    }
+
+    private Effect<Event, State> onAckTick(State state, AckTick tick) {
+        // only what is in the journal is acknowledged, buffered readings wait for their write
+        if (state.lastRequestId != lastAckedRequestId) {
+            Device.TemperatureRecorded watermark = new Device.TemperatureRecorded(state.lastRequestId);
+            for (ActorRef<Device.TemperatureRecorded> subscriber : ackSubscribers) {
+                subscriber.tell(watermark);
+            }
+            lastAckedRequestId = state.lastRequestId;
+        }
+        return Effect().none();
+    }
+
+    private Effect<Event, State> onIdleTimeout(State state, Device.IdleTimeout timeout) {
+        // passivating would lose the subscriptions, the group only knows about its own
+        if (!ackSubscribers.isEmpty() || temperatureSubscribers.hasSubscribersBesides(group)) {
+            return Effect().none();
+        }
+        events.lifecycle("idle");
+        group.tell(new DeviceGroup.DeviceIdle(deviceId, context.getSelf()));
+        return Effect().none();
+    }
+
+    private Effect<Event, State> onPassivate(State state, Device.Passivate passivate) {
+        if (pendingCount > 0) {
+            return writePending(state).thenRun(this::reportPassivated).thenStop();
+        }
+        reportPassivated(state);
+        return Effect().stop();
+    }
+
+    private void reportPassivated(State state) {
+        if (group != null) {
+            group.tell(new DeviceGroup.DevicePassivated(deviceId, state.hasValue, state.value));
+        }
+        events.lifecycle("passivated");
+    }
+
+    private State onReadingsRecorded(State state, ReadingsRecorded event) {
+        for (int i = 0; i < event.values.length; i++) {
+            history.append(event.timestamps[i], event.values[i]);
+        }
+        return new State(true, event.values[event.values.length - 1], event.lastRequestId);
+    }
+
+    private void buffer(State state, long timestamp, double value) {
+        if (pendingCount == 0) {
+            pendingRequestId = state.lastRequestId;
+        }
+        if (pendingCount == pendingValues.length) {
+            pendingTimestamps = Arrays.copyOf(pendingTimestamps, pendingCount * 2);
+            pendingValues = Arrays.copyOf(pendingValues, pendingCount * 2);
+        }
+        pendingTimestamps[pendingCount] = timestamp;
+        pendingValues[pendingCount] = value;
+        pendingCount++;
+    }
+
+    private EffectBuilder<Event, State> writePending(State state) {
+        if (pendingCount == 0) {
+            return Effect().none();
+        }
+        timers.cancel(WritePending.INSTANCE);
+        ReadingsRecorded event =
+                new ReadingsRecorded(
+                        pendingRequestId,
+                        Arrays.copyOf(pendingTimestamps, pendingCount),
+                        Arrays.copyOf(pendingValues, pendingCount));
+        events.readings(pendingRequestId, pendingCount, pendingValues[pendingCount - 1]);
+        pendingCount = 0;
+        return Effect().persist(event).thenRun(written -> {
+            temperatureSubscribers.recorded(written.value);
+            pushReading(written);
+        });
+    }
+
+    /**
+     * Tells a group that caches readings (see query-max-staleness) the reading in the journal. Writes are
+     * already batched, so this is not rate limited like in {@link Device}.
+     */
+    private void pushReading(State state) {
+        if (group != null && !settings.queryMaxStaleness.isZero()) {
+            group.tell(new DeviceGroup.ReadingUpdated(deviceId, state.hasValue ? state.value : Double.NaN));
+        }
+    }
+}
@@ -0,0 +1,678 @@
+package sample;
+
+import akka.actor.ExtendedActorSystem;
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.ActorRefResolver;
+import akka.actor.typed.javadsl.Adapter;
+import akka.serialization.SerializerWithStringManifest;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Binary format of the messages that go between the nodes of a cluster running {@link DeviceSharding}: the
+ * {@link DeviceManager} protocol the groups are addressed with, the {@link Device} protocol, and their replies.
+ */
+public class ProtocolSerializer extends SerializerWithStringManifest {
+
+    private static final String TRACK_DEVICE = "TD";
+    private static final String DEVICE_REGISTERED = "DR";
+    private static final String TRACK_DEVICES = "TDS";
+    private static final String DEVICES_REGISTERED = "DRS";
+    private static final String REQUEST_DEVICE_LIST = "RDL";
+    private static final String REPLY_DEVICE_LIST = "DL";
+    private static final String REQUEST_DEVICE_CHANGES = "RDC";
+    private static final String REPLY_DEVICE_CHANGES = "DC";
+    private static final String RECORD_TEMPERATURE_BATCH = "RTB";
+    private static final String TEMPERATURE_BATCH_RECORDED = "TBR";
+    private static final String DEVICE_ENVELOPE = "DE";
+    private static final String REQUEST_GROUP_METRICS = "RGM";
+    private static final String GROUP_METRICS = "GM";
+    private static final String REQUEST_ALL_TEMPERATURES = "RAT";
+    private static final String RESPOND_ALL_TEMPERATURES = "AT";
+    private static final String REQUEST_ALL_TEMPERATURES_STREAM = "RATS";
+    private static final String TEMPERATURE_CHUNK = "TC";
+    private static final String TEMPERATURE_CHUNK_ACK = "TCA";
+    private static final String REQUEST_GROUPS_TEMPERATURES = "RGT";
+    private static final String RESPOND_GROUPS_TEMPERATURES = "GT";
+    private static final String SUBSCRIBE_GROUP_TEMPERATURES = "SGT";
+    private static final String UNSUBSCRIBE_GROUP_TEMPERATURES = "UGT";
+    private static final String GROUP_TEMPERATURES_CHANGED = "GTC";
+    private static final String RECORD_TEMPERATURE = "RT";
+    private static final String RECORD_TEMPERATURE_NO_ACK = "RTN";
+    private static final String RECORD_TEMPERATURES = "RTS";
+    private static final String TEMPERATURE_RECORDED = "TR";
+    private static final String SUBSCRIBE_ACK_WATERMARK = "SAW";
+    private static final String UNSUBSCRIBE_ACK_WATERMARK = "UAW";
+    private static final String SUBSCRIBE_TEMPERATURE = "ST";
+    private static final String UNSUBSCRIBE_TEMPERATURE = "UT";
+    private static final String TEMPERATURE_CHANGED = "TCH";
+    private static final String READ_TEMPERATURE = "RDT";
+    private static final String RESPOND_TEMPERATURE = "T";
+    private static final String READ_AGGREGATE = "RA";
+    private static final String RESPOND_AGGREGATE = "A";
+    private static final String PASSIVATE = "P";
+
+    // the tags of the TemperatureReading implementations
+    private static final byte TEMPERATURE = 0;
+    private static final byte STALE_TEMPERATURE = 1;
+    private static final byte TEMPERATURE_NOT_AVAILABLE = 2;
+    private static final byte DEVICE_NOT_AVAILABLE = 3;
+    private static final byte DEVICE_TIMED_OUT = 4;
+
+    private final ActorRefResolver resolver;
+
+    public ProtocolSerializer(ExtendedActorSystem system) {
+        this.resolver = ActorRefResolver.get(Adapter.toTyped(system));
+    }
+
+    @Override
+    public int identifier() {
+        return 7202;
+    }
+
+    @Override
+    public String manifest(Object o) {
+        if (o instanceof DeviceManager.RequestTrackDevice) {
+            return TRACK_DEVICE;
+        } else if (o instanceof DeviceManager.DeviceRegistered) {
+            return DEVICE_REGISTERED;
+        } else if (o instanceof DeviceManager.RequestTrackDevices) {
+            return TRACK_DEVICES;
+        } else if (o instanceof DeviceManager.DevicesRegistered) {
+            return DEVICES_REGISTERED;
+        } else if (o instanceof DeviceManager.RequestDeviceList) {
+            return REQUEST_DEVICE_LIST;
+        } else if (o instanceof DeviceManager.ReplyDeviceList) {
+            return REPLY_DEVICE_LIST;
+        } else if (o instanceof DeviceManager.RequestDeviceChanges) {
+            return REQUEST_DEVICE_CHANGES;
+        } else if (o instanceof DeviceManager.ReplyDeviceChanges) {
+            return REPLY_DEVICE_CHANGES;
+        } else if (o instanceof DeviceManager.RecordTemperatureBatch) {
+            return RECORD_TEMPERATURE_BATCH;
+        } else if (o instanceof DeviceManager.TemperatureBatchRecorded) {
+            return TEMPERATURE_BATCH_RECORDED;
+        } else if (o instanceof DeviceManager.DeviceEnvelope) {
+            return DEVICE_ENVELOPE;
+        } else if (o instanceof DeviceManager.RequestGroupMetrics) {
+            return REQUEST_GROUP_METRICS;
+        } else if (o instanceof DeviceManager.GroupMetrics) {
+            return GROUP_METRICS;
+        } else if (o instanceof DeviceManager.RequestAllTemperatures) {
+            return REQUEST_ALL_TEMPERATURES;
+        } else if (o instanceof DeviceManager.RespondAllTemperatures) {
+            return RESPOND_ALL_TEMPERATURES;
+        } else if (o instanceof DeviceManager.RequestAllTemperaturesStream) {
+            return REQUEST_ALL_TEMPERATURES_STREAM;
+        } else if (o instanceof DeviceManager.TemperatureChunk) {
+            return TEMPERATURE_CHUNK;
+        } else if (o instanceof DeviceManager.TemperatureChunkAck) {
+            return TEMPERATURE_CHUNK_ACK;
+        } else if (o instanceof DeviceManager.RequestGroupsTemperatures) {
+            return REQUEST_GROUPS_TEMPERATURES;
+        } else if (o instanceof DeviceManager.RespondGroupsTemperatures) {
+            return RESPOND_GROUPS_TEMPERATURES;
+        } else if (o instanceof DeviceManager.SubscribeGroupTemperatures) {
+            return SUBSCRIBE_GROUP_TEMPERATURES;
+        } else if (o instanceof DeviceManager.UnsubscribeGroupTemperatures) {
+            return UNSUBSCRIBE_GROUP_TEMPERATURES;
+        } else if (o instanceof DeviceManager.GroupTemperaturesChanged) {
+            return GROUP_TEMPERATURES_CHANGED;
+        } else if (o instanceof Device.RecordTemperature) {
+            return RECORD_TEMPERATURE;
+        } else if (o instanceof Device.RecordTemperatureNoAck) {
+            return RECORD_TEMPERATURE_NO_ACK;
+        } else if (o instanceof Device.RecordTemperatures) {
+            return RECORD_TEMPERATURES;
+        } else if (o instanceof Device.TemperatureRecorded) {
+            return TEMPERATURE_RECORDED;
+        } else if (o instanceof Device.SubscribeAckWatermark) {
+            return SUBSCRIBE_ACK_WATERMARK;
+        } else if (o instanceof Device.UnsubscribeAckWatermark) {
+            return UNSUBSCRIBE_ACK_WATERMARK;
+        } else if (o instanceof Device.SubscribeTemperature) {
+            return SUBSCRIBE_TEMPERATURE;
+        } else if (o instanceof Device.UnsubscribeTemperature) {
+            return UNSUBSCRIBE_TEMPERATURE;
+        } else if (o instanceof Device.TemperatureChanged) {
+            return TEMPERATURE_CHANGED;
+        } else if (o instanceof Device.ReadTemperature) {
+            return READ_TEMPERATURE;
+        } else if (o instanceof Device.RespondTemperature) {
+            return RESPOND_TEMPERATURE;
+        } else if (o instanceof Device.ReadAggregate) {
+            return READ_AGGREGATE;
+        } else if (o instanceof Device.RespondAggregate) {
+            return RESPOND_AGGREGATE;
+        } else if (o instanceof Device.Passivate) {
+            return PASSIVATE;
+        }
+        throw new IllegalArgumentException("Can't serialize object of type " + o.getClass());
+    }
+
+    @Override
+    public byte[] toBinary(Object o) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            write(o, out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private void write(Object o, DataOutputStream out) throws IOException {
+        if (o instanceof DeviceManager.RequestTrackDevice) {
+            DeviceManager.RequestTrackDevice m = (DeviceManager.RequestTrackDevice) o;
+            out.writeUTF(m.groupId);
+            out.writeUTF(m.deviceId);
+            writeRef(m.replyTo, out);
+        } else if (o instanceof DeviceManager.DeviceRegistered) {
+            DeviceManager.DeviceRegistered m = (DeviceManager.DeviceRegistered) o;
+            writeRef(m.device, out);
+            writeRef(m.group, out);
+            writeOptionalString(m.groupId, out);
+            writeOptionalString(m.deviceId, out);
+        } else if (o instanceof DeviceManager.RequestTrackDevices) {
+            DeviceManager.RequestTrackDevices m = (DeviceManager.RequestTrackDevices) o;
+            out.writeLong(m.requestId);
+            out.writeUTF(m.groupId);
+            out.writeInt(m.deviceIds.size());
+            for (String deviceId : m.deviceIds) {
+                out.writeUTF(deviceId);
+            }
+            writeRef(m.replyTo, out);
+        } else if (o instanceof DeviceManager.DevicesRegistered) {
+            DeviceManager.DevicesRegistered m = (DeviceManager.DevicesRegistered) o;
+            out.writeLong(m.requestId);
+            out.writeInt(m.devices.size());
+            for (Map.Entry<String, ActorRef<Device.Command>> entry : m.devices.entrySet()) {
+                out.writeUTF(entry.getKey());
+                writeRef(entry.getValue(), out);
+            }
+            writeRef(m.group, out);
+            writeOptionalString(m.groupId, out);
+        } else if (o instanceof DeviceManager.RequestDeviceList) {
+            DeviceManager.RequestDeviceList m = (DeviceManager.RequestDeviceList) o;
+            out.writeLong(m.requestId);
+            out.writeUTF(m.groupId);
+            writeOptionalString(m.after, out);
+            out.writeInt(m.limit);
+            writeRef(m.replyTo, out);
+        } else if (o instanceof DeviceManager.ReplyDeviceList) {
+            DeviceManager.ReplyDeviceList m = (DeviceManager.ReplyDeviceList) o;
+            out.writeLong(m.requestId);
+            writeStrings(m.ids, out);
+            out.writeLong(m.version);
+            writeOptionalString(m.next, out);
+        } else if (o instanceof DeviceManager.RequestDeviceChanges) {
+            DeviceManager.RequestDeviceChanges m = (DeviceManager.RequestDeviceChanges) o;
+            out.writeLong(m.requestId);
+            out.writeUTF(m.groupId);
+            out.writeLong(m.sinceVersion);
+            writeRef(m.replyTo, out);
+        } else if (o instanceof DeviceManager.ReplyDeviceChanges) {
+            DeviceManager.ReplyDeviceChanges m = (DeviceManager.ReplyDeviceChanges) o;
+            out.writeLong(m.requestId);
+            out.writeLong(m.version);
+            writeStrings(m.added, out);
+            writeStrings(m.removed, out);
+            out.writeBoolean(m.complete);
+        } else if (o instanceof DeviceManager.RecordTemperatureBatch) {
+            DeviceManager.RecordTemperatureBatch m = (DeviceManager.RecordTemperatureBatch) o;
+            out.writeLong(m.requestId);
+            out.writeUTF(m.groupId);
+            out.writeInt(m.deviceIds.length);
+            for (int i = 0; i < m.deviceIds.length; i++) {
+                out.writeUTF(m.deviceIds[i]);
+                out.writeDouble(m.values[i]);
+                out.writeLong(m.timestamps[i]);
+            }
+            writeRef(m.replyTo, out);
+        } else if (o instanceof DeviceManager.TemperatureBatchRecorded) {
+            DeviceManager.TemperatureBatchRecorded m = (DeviceManager.TemperatureBatchRecorded) o;
+            out.writeLong(m.requestId);
+            out.writeInt(m.recorded);
+            writeStrings(m.unknownDeviceIds, out);
+        } else if (o instanceof DeviceManager.DeviceEnvelope) {
+            DeviceManager.DeviceEnvelope m = (DeviceManager.DeviceEnvelope) o;
+            out.writeUTF(m.groupId);
+            out.writeUTF(m.deviceId);
+            out.writeUTF(manifest(m.message));
+            write(m.message, out);
+        } else if (o instanceof DeviceManager.RequestGroupMetrics) {
+            DeviceManager.RequestGroupMetrics m = (DeviceManager.RequestGroupMetrics) o;
+            out.writeLong(m.requestId);
+            out.writeUTF(m.groupId);
+            writeRef(m.replyTo, out);
+        } else if (o instanceof DeviceManager.GroupMetrics) {
+            DeviceManager.GroupMetrics m = (DeviceManager.GroupMetrics) o;
+            out.writeLong(m.requestId);
+            out.writeInt(m.liveDevices);
+            out.writeInt(m.passivatedDevices);
+            out.writeLong(m.passivations);
+            out.writeLong(m.rehydrations);
+        } else if (o instanceof DeviceManager.RequestAllTemperatures) {
+            DeviceManager.RequestAllTemperatures m = (DeviceManager.RequestAllTemperatures) o;
+            out.writeLong(m.requestId);
+            out.writeUTF(m.groupId);
+            // -1 for the group's default
+            out.writeLong(m.timeout != null ? m.timeout.toNanos() : -1L);
+            writeRef(m.replyTo, out);
+        } else if (o instanceof DeviceManager.RespondAllTemperatures) {
+            DeviceManager.RespondAllTemperatures m = (DeviceManager.RespondAllTemperatures) o;
+            out.writeLong(m.requestId);
+            writeReadings(m.temperatures, out);
+        } else if (o instanceof DeviceManager.RequestAllTemperaturesStream) {
+            DeviceManager.RequestAllTemperaturesStream m = (DeviceManager.RequestAllTemperaturesStream) o;
+            out.writeLong(m.requestId);
+            out.writeUTF(m.groupId);
+            out.writeInt(m.chunkSize);
+            writeRef(m.replyTo, out);
+        } else if (o instanceof DeviceManager.TemperatureChunk) {
+            DeviceManager.TemperatureChunk m = (DeviceManager.TemperatureChunk) o;
+            out.writeLong(m.requestId);
+            out.writeLong(m.seqNr);
+            out.writeInt(m.deviceIds.length);
+            for (int i = 0; i < m.deviceIds.length; i++) {
+                out.writeUTF(m.deviceIds[i]);
+                writeReading(m.readings[i], out);
+            }
+            out.writeBoolean(m.last);
+            writeRef(m.ackTo, out);
+        } else if (o instanceof DeviceManager.TemperatureChunkAck) {
+            out.writeLong(((DeviceManager.TemperatureChunkAck) o).seqNr);
+        } else if (o instanceof DeviceManager.RequestGroupsTemperatures) {
+            DeviceManager.RequestGroupsTemperatures m = (DeviceManager.RequestGroupsTemperatures) o;
+            out.writeLong(m.requestId);
+            writeStrings(m.groupIds, out);
+            out.writeLong(m.timeout.toNanos());
+            writeRef(m.replyTo, out);
+        } else if (o instanceof DeviceManager.RespondGroupsTemperatures) {
+            DeviceManager.RespondGroupsTemperatures m = (DeviceManager.RespondGroupsTemperatures) o;
+            out.writeLong(m.requestId);
+            out.writeInt(m.temperatures.size());
+            for (Map.Entry<String, Map<String, DeviceManager.TemperatureReading>> entry : m.temperatures.entrySet()) {
+                out.writeUTF(entry.getKey());
+                writeReadings(entry.getValue(), out);
+            }
+            writeStrings(m.timedOutGroupIds, out);
+            writeStrings(m.unknownGroupIds, out);
+        } else if (o instanceof DeviceManager.SubscribeGroupTemperatures) {
+            DeviceManager.SubscribeGroupTemperatures m = (DeviceManager.SubscribeGroupTemperatures) o;
+            out.writeUTF(m.groupId);
+            out.writeDouble(m.minDelta);
+            out.writeLong(m.minInterval.toNanos());
+            writeRef(m.replyTo, out);
+        } else if (o instanceof DeviceManager.UnsubscribeGroupTemperatures) {
+            DeviceManager.UnsubscribeGroupTemperatures m = (DeviceManager.UnsubscribeGroupTemperatures) o;
+            out.writeUTF(m.groupId);
+            writeRef(m.replyTo, out);
+        } else if (o instanceof DeviceManager.GroupTemperaturesChanged) {
+            DeviceManager.GroupTemperaturesChanged m = (DeviceManager.GroupTemperaturesChanged) o;
+            out.writeUTF(m.groupId);
+            out.writeInt(m.temperatures.size());
+            for (Map.Entry<String, Double> entry : m.temperatures.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeDouble(entry.getValue());
+            }
+        } else if (o instanceof Device.RecordTemperature) {
+            Device.RecordTemperature m = (Device.RecordTemperature) o;
+            out.writeLong(m.requestId);
+            out.writeDouble(m.value);
+            writeRef(m.replyTo, out);
+        } else if (o instanceof Device.RecordTemperatureNoAck) {
+            Device.RecordTemperatureNoAck m = (Device.RecordTemperatureNoAck) o;
+            out.writeLong(m.requestId);
+            out.writeDouble(m.value);
+        } else if (o instanceof Device.RecordTemperatures) {
+            // only the readings at the positions, the shared arrays stay behind
+            Device.RecordTemperatures m = (Device.RecordTemperatures) o;
+            out.writeInt(m.positions.length);
+            for (int position : m.positions) {
+                out.writeDouble(m.values[position]);
+                out.writeLong(m.timestamps[position]);
+            }
+        } else if (o instanceof Device.TemperatureRecorded) {
+            out.writeLong(((Device.TemperatureRecorded) o).requestId);
+        } else if (o instanceof Device.SubscribeAckWatermark) {
+            writeRef(((Device.SubscribeAckWatermark) o).replyTo, out);
+        } else if (o instanceof Device.UnsubscribeAckWatermark) {
+            writeRef(((Device.UnsubscribeAckWatermark) o).replyTo, out);
+        } else if (o instanceof Device.SubscribeTemperature) {
+            Device.SubscribeTemperature m = (Device.SubscribeTemperature) o;
+            out.writeDouble(m.minDelta);
+            out.writeLong(m.minInterval.toNanos());
+            writeRef(m.replyTo, out);
+        } else if (o instanceof Device.UnsubscribeTemperature) {
+            writeRef(((Device.UnsubscribeTemperature) o).replyTo, out);
+        } else if (o instanceof Device.TemperatureChanged) {
+            Device.TemperatureChanged m = (Device.TemperatureChanged) o;
+            out.writeUTF(m.deviceId);
+            out.writeDouble(m.value);
+        } else if (o instanceof Device.ReadTemperature) {
+            Device.ReadTemperature m = (Device.ReadTemperature) o;
+            out.writeLong(m.requestId);
+            writeRef(m.replyTo, out);
+        } else if (o instanceof Device.RespondTemperature) {
+            Device.RespondTemperature m = (Device.RespondTemperature) o;
+            out.writeLong(m.requestId);
+            out.writeUTF(m.deviceId);
+            out.writeBoolean(m.hasValue);
+            out.writeDouble(m.value);
+        } else if (o instanceof Device.ReadAggregate) {
+            Device.ReadAggregate m = (Device.ReadAggregate) o;
+            out.writeLong(m.requestId);
+            out.writeLong(m.from);
+            out.writeLong(m.to);
+            writeRef(m.replyTo, out);
+        } else if (o instanceof Device.RespondAggregate) {
+            Device.RespondAggregate m = (Device.RespondAggregate) o;
+            out.writeLong(m.requestId);
+            out.writeUTF(m.deviceId);
+            out.writeInt(m.count);
+            out.writeDouble(m.min);
+            out.writeDouble(m.max);
+            out.writeDouble(m.mean);
+            out.writeDouble(m.p95);
+        } else if (!(o instanceof Device.Passivate)) {
+            throw new IllegalArgumentException("Can't serialize object of type " + o.getClass());
+        }
+    }
+
+    @Override
+    public Object fromBinary(byte[] bytes, String manifest) throws NotSerializableException {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+            return read(in, manifest);
+        } catch (NotSerializableException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private Object read(DataInputStream in, String manifest) throws IOException {
+        switch (manifest) {
+            case TRACK_DEVICE:
+                return new DeviceManager.RequestTrackDevice(in.readUTF(), in.readUTF(), readRef(in));
+            case DEVICE_REGISTERED: {
+                ActorRef<Device.Command> device = readRef(in);
+                ActorRef<DeviceManager.DeviceEnvelope> group = readRef(in);
+                String groupId = readOptionalString(in);
+                return new DeviceManager.DeviceRegistered(device, groupId, readOptionalString(in), group);
+            }
+            case TRACK_DEVICES: {
+                long requestId = in.readLong();
+                String groupId = in.readUTF();
+                int count = in.readInt();
+                List<String> deviceIds = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    deviceIds.add(in.readUTF());
+                }
+                return new DeviceManager.RequestTrackDevices(requestId, groupId, deviceIds, readRef(in));
+            }
+            case DEVICES_REGISTERED: {
+                long requestId = in.readLong();
+                int count = in.readInt();
+                Map<String, ActorRef<Device.Command>> devices = new HashMap<>();
+                for (int i = 0; i < count; i++) {
+                    devices.put(in.readUTF(), readRef(in));
+                }
+                ActorRef<DeviceManager.DeviceEnvelope> group = readRef(in);
+                return new DeviceManager.DevicesRegistered(requestId, devices, readOptionalString(in), group);
+            }
+            case REQUEST_DEVICE_LIST:
+                return new DeviceManager.RequestDeviceList(
+                        in.readLong(), in.readUTF(), readOptionalString(in), in.readInt(), readRef(in));
+            case REPLY_DEVICE_LIST:
+                return new DeviceManager.ReplyDeviceList(
+                        in.readLong(), readStrings(in), in.readLong(), readOptionalString(in));
+            case REQUEST_DEVICE_CHANGES:
+                return new DeviceManager.RequestDeviceChanges(in.readLong(), in.readUTF(), in.readLong(), readRef(in));
+            case REPLY_DEVICE_CHANGES:
+                return new DeviceManager.ReplyDeviceChanges(
+                        in.readLong(), in.readLong(), readStrings(in), readStrings(in), in.readBoolean());
+            case RECORD_TEMPERATURE_BATCH: {
+                long requestId = in.readLong();
+                String groupId = in.readUTF();
+                int count = in.readInt();
+                String[] deviceIds = new String[count];
+                double[] values = new double[count];
+                long[] timestamps = new long[count];
+                for (int i = 0; i < count; i++) {
+                    deviceIds[i] = in.readUTF();
+                    values[i] = in.readDouble();
+                    timestamps[i] = in.readLong();
+                }
+                return new DeviceManager.RecordTemperatureBatch(
+                        requestId, groupId, deviceIds, values, timestamps, readRef(in));
+            }
+            case TEMPERATURE_BATCH_RECORDED:
+                return new DeviceManager.TemperatureBatchRecorded(in.readLong(), in.readInt(), readStrings(in));
+            case DEVICE_ENVELOPE: {
+                String groupId = in.readUTF();
+                String deviceId = in.readUTF();
+                Device.Command message = (Device.Command) read(in, in.readUTF());
+                return new DeviceManager.DeviceEnvelope(groupId, deviceId, message);
+            }
+            case REQUEST_GROUP_METRICS:
+                return new DeviceManager.RequestGroupMetrics(in.readLong(), in.readUTF(), readRef(in));
+            case GROUP_METRICS:
+                return new DeviceManager.GroupMetrics(
+                        in.readLong(), in.readInt(), in.readInt(), in.readLong(), in.readLong());
+            case REQUEST_ALL_TEMPERATURES: {
+                long requestId = in.readLong();
+                String groupId = in.readUTF();
+                long timeoutNanos = in.readLong();
+                return new DeviceManager.RequestAllTemperatures(
+                        requestId, groupId, timeoutNanos >= 0 ? Duration.ofNanos(timeoutNanos) : null, readRef(in));
+            }
+            case RESPOND_ALL_TEMPERATURES:
+                return new DeviceManager.RespondAllTemperatures(in.readLong(), readReadings(in));
+            case REQUEST_ALL_TEMPERATURES_STREAM:
+                return new DeviceManager.RequestAllTemperaturesStream(
+                        in.readLong(), in.readUTF(), in.readInt(), readRef(in));
+            case TEMPERATURE_CHUNK: {
+                long requestId = in.readLong();
+                long seqNr = in.readLong();
+                int count = in.readInt();
+                String[] deviceIds = new String[count];
+                DeviceManager.TemperatureReading[] readings = new DeviceManager.TemperatureReading[count];
+                for (int i = 0; i < count; i++) {
+                    deviceIds[i] = in.readUTF();
+                    readings[i] = readReading(in);
+                }
+                return new DeviceManager.TemperatureChunk(
+                        requestId, seqNr, deviceIds, readings, in.readBoolean(), readRef(in));
+            }
+            case TEMPERATURE_CHUNK_ACK:
+                return new DeviceManager.TemperatureChunkAck(in.readLong());
+            case REQUEST_GROUPS_TEMPERATURES:
+                return new DeviceManager.RequestGroupsTemperatures(
+                        in.readLong(), readStrings(in), Duration.ofNanos(in.readLong()), readRef(in));
+            case RESPOND_GROUPS_TEMPERATURES: {
+                long requestId = in.readLong();
+                int groups = in.readInt();
+                Map<String, Map<String, DeviceManager.TemperatureReading>> temperatures = new HashMap<>();
+                for (int i = 0; i < groups; i++) {
+                    temperatures.put(in.readUTF(), readReadings(in));
+                }
+                return new DeviceManager.RespondGroupsTemperatures(
+                        requestId, temperatures, readStrings(in), readStrings(in));
+            }
+            case SUBSCRIBE_GROUP_TEMPERATURES:
+                return new DeviceManager.SubscribeGroupTemperatures(
+                        in.readUTF(), in.readDouble(), Duration.ofNanos(in.readLong()), readRef(in));
+            case UNSUBSCRIBE_GROUP_TEMPERATURES:
+                return new DeviceManager.UnsubscribeGroupTemperatures(in.readUTF(), readRef(in));
+            case GROUP_TEMPERATURES_CHANGED: {
+                String groupId = in.readUTF();
+                int count = in.readInt();
+                Map<String, Double> temperatures = new HashMap<>();
+                for (int i = 0; i < count; i++) {
+                    temperatures.put(in.readUTF(), in.readDouble());
+                }
+                return new DeviceManager.GroupTemperaturesChanged(groupId, temperatures);
+            }
+            case RECORD_TEMPERATURE:
+                return new Device.RecordTemperature(in.readLong(), in.readDouble(), readRef(in));
+            case RECORD_TEMPERATURE_NO_ACK:
+                return new Device.RecordTemperatureNoAck(in.readLong(), in.readDouble());
+            case RECORD_TEMPERATURES: {
+                int count = in.readInt();
+                double[] values = new double[count];
+                long[] timestamps = new long[count];
+                int[] positions = new int[count];
+                for (int i = 0; i < count; i++) {
+                    values[i] = in.readDouble();
+                    timestamps[i] = in.readLong();
+                    positions[i] = i;
+                }
+                return new Device.RecordTemperatures(values, timestamps, positions);
+            }
+            case TEMPERATURE_RECORDED:
+                return new Device.TemperatureRecorded(in.readLong());
+            case SUBSCRIBE_ACK_WATERMARK:
+                return new Device.SubscribeAckWatermark(readRef(in));
+            case UNSUBSCRIBE_ACK_WATERMARK:
+                return new Device.UnsubscribeAckWatermark(readRef(in));
+            case SUBSCRIBE_TEMPERATURE:
+                return new Device.SubscribeTemperature(in.readDouble(), Duration.ofNanos(in.readLong()), readRef(in));
+            case UNSUBSCRIBE_TEMPERATURE:
+                return new Device.UnsubscribeTemperature(readRef(in));
+            case TEMPERATURE_CHANGED:
+                return new Device.TemperatureChanged(in.readUTF(), in.readDouble());
+            case READ_TEMPERATURE:
+                return new Device.ReadTemperature(in.readLong(), readRef(in));
+            case RESPOND_TEMPERATURE: {
+                long requestId = in.readLong();
+                String deviceId = in.readUTF();
+                boolean hasValue = in.readBoolean();
+                double value = in.readDouble();
+                return hasValue
+                        ? new Device.RespondTemperature(requestId, deviceId, value)
+                        : new Device.RespondTemperature(requestId, deviceId);
+            }
+            case READ_AGGREGATE:
+                return new Device.ReadAggregate(in.readLong(), in.readLong(), in.readLong(), readRef(in));
+            case RESPOND_AGGREGATE:
+                return new Device.RespondAggregate(
+                        in.readLong(),
+                        in.readUTF(),
+                        in.readInt(),
+                        in.readDouble(),
+                        in.readDouble(),
+                        in.readDouble(),
+                        in.readDouble());
+            case PASSIVATE:
+                return Device.Passivate.INSTANCE;
+            default:
+                throw new NotSerializableException("Unknown manifest " + manifest);
+        }
+    }
+
+    // refs are nullable, so that a message without one still round-trips
+    private void writeRef(ActorRef<?> ref, DataOutputStream out) throws IOException {
+        out.writeUTF(ref != null ? resolver.toSerializationFormat(ref) : "");
+    }
+
+    private <T> ActorRef<T> readRef(DataInputStream in) throws IOException {
+        String ref = in.readUTF();
+        return ref.isEmpty() ? null : resolver.resolveActorRef(ref);
+    }
+
+    private static void writeOptionalString(String string, DataOutputStream out) throws IOException {
+        out.writeBoolean(string != null);
+        if (string != null) {
+            out.writeUTF(string);
+        }
+    }
+
+    private static String readOptionalString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeStrings(Set<String> strings, DataOutputStream out) throws IOException {
+        out.writeInt(strings.size());
+        for (String string : strings) {
+            out.writeUTF(string);
+        }
+    }
+
+    private static Set<String> readStrings(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        Set<String> strings = new HashSet<>();
+        for (int i = 0; i < count; i++) {
+            strings.add(in.readUTF());
+        }
+        return strings;
+    }
+
+    private static void writeReadings(Map<String, DeviceManager.TemperatureReading> readings, DataOutputStream out)
+            throws IOException {
+        out.writeInt(readings.size());
+        for (Map.Entry<String, DeviceManager.TemperatureReading> entry : readings.entrySet()) {
+            out.writeUTF(entry.getKey());
+            writeReading(entry.getValue(), out);
+        }
+    }
+
+    private static Map<String, DeviceManager.TemperatureReading> readReadings(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        Map<String, DeviceManager.TemperatureReading> readings = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            readings.put(in.readUTF(), readReading(in));
+        }
+        return readings;
+    }
+
+    private static void writeReading(DeviceManager.TemperatureReading reading, DataOutputStream out)
+            throws IOException {
+        if (reading instanceof DeviceManager.Temperature) {
+            out.writeByte(TEMPERATURE);
+            out.writeDouble(((DeviceManager.Temperature) reading).value);
+        } else if (reading instanceof DeviceManager.StaleTemperature) {
+            out.writeByte(STALE_TEMPERATURE);
+            out.writeDouble(((DeviceManager.StaleTemperature) reading).value);
+        } else if (reading == DeviceManager.TemperatureNotAvailable.INSTANCE) {
+            out.writeByte(TEMPERATURE_NOT_AVAILABLE);
+        } else if (reading == DeviceManager.DeviceNotAvailable.INSTANCE) {
+            out.writeByte(DEVICE_NOT_AVAILABLE);
+        } else if (reading == DeviceManager.DeviceTimedOut.INSTANCE) {
+            out.writeByte(DEVICE_TIMED_OUT);
+        } else {
+            throw new IllegalArgumentException("Can't serialize reading of type " + reading.getClass());
+        }
+    }
+
+    private static DeviceManager.TemperatureReading readReading(DataInputStream in) throws IOException {
+        byte tag = in.readByte();
+        switch (tag) {
+            case TEMPERATURE:
+                return new DeviceManager.Temperature(in.readDouble());
+            case STALE_TEMPERATURE:
+                return new DeviceManager.StaleTemperature(in.readDouble());
+            case TEMPERATURE_NOT_AVAILABLE:
+                return DeviceManager.TemperatureNotAvailable.INSTANCE;
+            case DEVICE_NOT_AVAILABLE:
+                return DeviceManager.DeviceNotAvailable.INSTANCE;
+            case DEVICE_TIMED_OUT:
+                return DeviceManager.DeviceTimedOut.INSTANCE;
+            default:
+                throw new IllegalArgumentException("Unknown reading " + tag);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package sample;
+
+import com.typesafe.config.Config;
+
+import java.time.Duration;
+
+/** How long a group's queries wait for its devices, see {@code iot.device.query}. */
+public final class QuerySettings {
+
+    public static QuerySettings create(Config config) {
+        return new QuerySettings(
+                config.getDuration("timeout"),
+                config.getBoolean("adaptive-timeout"),
+                config.getDuration("min-timeout"),
+                config.getInt("latency-window"),
+                config.getInt("min-samples"),
+                config.getBoolean("hedge"),
+                DeviceSettings.durationOrOff(config, "coalesce-window"));
+    }
+
+    final Duration timeout;
+    final boolean adaptiveTimeout;
+    final Duration minTimeout;
+    final int latencyWindow;
+    final int minSamples;
+    final boolean hedge;
+    // Duration.ZERO when every request gets a query of its own
+    final Duration coalesceWindow;
+
+    private QuerySettings(
+            Duration timeout,
+            boolean adaptiveTimeout,
+            Duration minTimeout,
+            int latencyWindow,
+            int minSamples,
+            boolean hedge,
+            Duration coalesceWindow) {
+        this.timeout = timeout;
+        this.adaptiveTimeout = adaptiveTimeout;
+        this.minTimeout = minTimeout;
+        this.latencyWindow = latencyWindow;
+        this.minSamples = minSamples;
+        this.hedge = hedge;
+        this.coalesceWindow = coalesceWindow;
+    }
+
+    /** Whether the group has to measure how long its devices take to answer. */
+    boolean measuresLatency() {
+        return adaptiveTimeout || hedge;
+    }
+
+    public QuerySettings withTimeout(Duration timeout) {
+        return new QuerySettings(
+                timeout, adaptiveTimeout, minTimeout, latencyWindow, minSamples, hedge, coalesceWindow);
+    }
+
+    public QuerySettings withAdaptiveTimeout(boolean adaptiveTimeout) {
+        return new QuerySettings(
+                timeout, adaptiveTimeout, minTimeout, latencyWindow, minSamples, hedge, coalesceWindow);
+    }
+
+    public QuerySettings withMinTimeout(Duration minTimeout) {
+        return new QuerySettings(
+                timeout, adaptiveTimeout, minTimeout, latencyWindow, minSamples, hedge, coalesceWindow);
+    }
+
+    public QuerySettings withLatencyWindow(int latencyWindow) {
+        return new QuerySettings(
+                timeout, adaptiveTimeout, minTimeout, latencyWindow, minSamples, hedge, coalesceWindow);
+    }
+
+    public QuerySettings withMinSamples(int minSamples) {
+        return new QuerySettings(
+                timeout, adaptiveTimeout, minTimeout, latencyWindow, minSamples, hedge, coalesceWindow);
+    }
+
+    public QuerySettings withHedge(boolean hedge) {
+        return new QuerySettings(
+                timeout, adaptiveTimeout, minTimeout, latencyWindow, minSamples, hedge, coalesceWindow);
+    }
+
+    /** {@code Duration.ZERO} turns coalescing off. */
+    public QuerySettings withCoalesceWindow(Duration coalesceWindow) {
+        return new QuerySettings(
+                timeout, adaptiveTimeout, minTimeout, latencyWindow, minSamples, hedge, coalesceWindow);
+    }
+}
@@ -0,0 +1,10 @@
+package sample;
+
+/** Where a {@link Device} keeps the readings it records, see {@code iot.device.storage}. */
+interface ReadingStore {
+
+    void append(long timestamp, double value);
+
+    /** Aggregates the readings taken between {@code from} and {@code to}, both inclusive. */
+    Device.RespondAggregate aggregate(long requestId, String deviceId, long from, long to);
+}
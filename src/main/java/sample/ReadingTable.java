@@ -0,0 +1,55 @@
+package sample;
+
+import java.util.Arrays;
+
+/**
+ * The last readings of a set of devices: a slot per device in one {@code double[]}, NaN for a device that had
+ * no reading, with the slots given out by an {@link IdTable}. Used by {@link DeviceGroup} for its passivated
+ * devices and for the readings it answers {@link DeviceManager.RequestAllTemperatures} from.
+ */
+final class ReadingTable {
+
+    private final IdTable slots = new IdTable(16);
+    private double[] values = new double[16];
+
+    void put(String deviceId, boolean hasValue, double value) {
+        int slot = slots.add(deviceId);
+        if (slot == values.length) {
+            values = Arrays.copyOf(values, slot * 2);
+        }
+        values[slot] = hasValue ? value : Double.NaN;
+    }
+
+    boolean contains(String deviceId) {
+        return slots.numberOf(deviceId) >= 0;
+    }
+
+    /** The last reading of {@code deviceId}, NaN when it had none or is not in the table. */
+    double value(String deviceId) {
+        int slot = slots.numberOf(deviceId);
+        return slot < 0 ? Double.NaN : values[slot];
+    }
+
+    /** Forgets {@code deviceId}, returning its last reading, NaN when it had none or was not in the table. */
+    double remove(String deviceId) {
+        int slot = slots.remove(deviceId);
+        return slot < 0 ? Double.NaN : values[slot];
+    }
+
+    int size() {
+        return slots.size();
+    }
+
+    /** Slots up to this may hold a device, check {@link #deviceId(int)} for null when scanning. */
+    int highWater() {
+        return slots.highWater();
+    }
+
+    String deviceId(int slot) {
+        return slots.id(slot);
+    }
+
+    double valueAt(int slot) {
+        return values[slot];
+    }
+}
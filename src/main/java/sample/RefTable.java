@@ -0,0 +1,63 @@
+package sample;
+
+import akka.actor.typed.ActorRef;
+
+import java.util.Arrays;
+
+/**
+ * Actor refs by id, what {@link DeviceGroup} keeps its device actors in and {@link DeviceManager} its group
+ * actors: the refs in an array indexed by the numbers an {@link IdTable} gives the ids.
+ */
+final class RefTable<T> {
+
+    private final IdTable ids;
+    private ActorRef<T>[] refs;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    RefTable(int expectedSize) {
+        ids = new IdTable(expectedSize);
+        refs = new ActorRef[Math.max(1, expectedSize)];
+    }
+
+    /** The ref of {@code id}, null when it is not in the table. */
+    ActorRef<T> get(String id) {
+        int number = ids.numberOf(id);
+        return number < 0 ? null : refs[number];
+    }
+
+    boolean contains(String id) {
+        return ids.numberOf(id) >= 0;
+    }
+
+    void put(String id, ActorRef<T> ref) {
+        int number = ids.add(id);
+        if (number == refs.length) {
+            refs = Arrays.copyOf(refs, number * 2);
+        }
+        refs[number] = ref;
+    }
+
+    void remove(String id) {
+        int number = ids.remove(id);
+        if (number >= 0) {
+            refs[number] = null;
+        }
+    }
+
+    int size() {
+        return ids.size();
+    }
+
+    /** Numbers up to this may hold a ref, check {@link #id(int)} for null when scanning. */
+    int highWater() {
+        return ids.highWater();
+    }
+
+    String id(int number) {
+        return ids.id(number);
+    }
+
+    ActorRef<T> ref(int number) {
+        return refs[number];
+    }
+}
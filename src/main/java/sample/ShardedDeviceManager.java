@@ -0,0 +1,81 @@
+package sample;
+
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.Behavior;
+import akka.actor.typed.javadsl.AbstractBehavior;
+import akka.actor.typed.javadsl.ActorContext;
+import akka.actor.typed.javadsl.Behaviors;
+import akka.actor.typed.javadsl.Receive;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The {@link DeviceManager} protocol on top of {@link DeviceSharding}: everything for a group goes to the shard
+ * region, which starts the group on whatever node its shard lives. Any number of these can run, on any node.
+ *
+ * <p>Unlike {@link DeviceManager} it does not know which groups exist: a group that was never tracked answers
+ * like an empty one, and {@link DeviceManager.RequestGroupsTemperatures} needs the group ids.
+ */
+class ShardedDeviceManager extends AbstractBehavior<DeviceManager.Command> {
+
+    static Behavior<DeviceManager.Command> create(ActorRef<DeviceGroup.Command> region) {
+        return IotMetrics.instrument(
+                IotProps.MANAGER, Behaviors.setup(context -> new ShardedDeviceManager(context, region)));
+    }
+
+    private final ActorRef<DeviceGroup.Command> region;
+
+    private ShardedDeviceManager(ActorContext<DeviceManager.Command> context, ActorRef<DeviceGroup.Command> region) {
+        super(context);
+        this.region = region;
+    }
+
+    private ShardedDeviceManager onGroupCommand(DeviceGroup.Command command) {
+        region.tell(command);
+        return this;
+    }
+
+    private ShardedDeviceManager onRequestGroup(DeviceManager.RequestGroup request) {
+        // the region delivers to the group wherever it runs, and starts it
+        request.replyTo.tell(new DeviceManager.GroupRef(request.groupId, region));
+        return this;
+    }
+
+    private ShardedDeviceManager onRequestPartitions(DeviceManager.RequestPartitions request) {
+        request.replyTo.tell(new DeviceManager.Partitions(Collections.singletonList(getContext().getSelf())));
+        return this;
+    }
+
+    private ShardedDeviceManager onRequestGroupsTemperatures(DeviceManager.RequestGroupsTemperatures request) {
+        Map<String, ActorRef<DeviceGroup.Command>> groups = new HashMap<>();
+        for (String groupId : request.groupIds) {
+            groups.put(groupId, region);
+        }
+        getContext().spawnAnonymous(
+                MultiGroupQuery.create(groups, Collections.emptySet(), request),
+                IotProps.of(getContext().getSystem(), IotProps.QUERY));
+        return this;
+    }
+
+    @Override
+    public Receive<DeviceManager.Command> createReceive() {
+        return newReceiveBuilder()
+                .onMessage(DeviceManager.RequestTrackDevice.class, this::onGroupCommand)
+                .onMessage(DeviceManager.RequestTrackDevices.class, this::onGroupCommand)
+                .onMessage(DeviceManager.RequestDeviceList.class, this::onGroupCommand)
+                .onMessage(DeviceManager.RequestDeviceChanges.class, this::onGroupCommand)
+                .onMessage(DeviceManager.SubscribeGroupTemperatures.class, this::onGroupCommand)
+                .onMessage(DeviceManager.UnsubscribeGroupTemperatures.class, this::onGroupCommand)
+                .onMessage(DeviceManager.RecordTemperatureBatch.class, this::onGroupCommand)
+                .onMessage(DeviceManager.DeviceEnvelope.class, this::onGroupCommand)
+                .onMessage(DeviceManager.RequestGroupMetrics.class, this::onGroupCommand)
+                .onMessage(DeviceManager.RequestAllTemperatures.class, this::onGroupCommand)
+                .onMessage(DeviceManager.RequestAllTemperaturesStream.class, this::onGroupCommand)
+                .onMessage(DeviceManager.RequestGroup.class, this::onRequestGroup)
+                .onMessage(DeviceManager.RequestPartitions.class, this::onRequestPartitions)
+                .onMessage(DeviceManager.RequestGroupsTemperatures.class, this::onRequestGroupsTemperatures)
+                .build();
+    }
+}
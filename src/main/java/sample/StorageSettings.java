@@ -0,0 +1,54 @@
+package sample;
+
+import com.typesafe.config.Config;
+
+/** Where the devices of a group keep the readings behind {@link Device.ReadAggregate}, see {@code iot.device.storage}. */
+public final class StorageSettings {
+
+    public static final String MEMORY = "memory";
+    public static final String MAPPED_LOG = "mapped-log";
+
+    public static StorageSettings create(Config config) {
+        String engine = config.getString("engine");
+        if (!engine.equals(MEMORY) && !engine.equals(MAPPED_LOG)) {
+            throw new IllegalArgumentException("Unknown storage engine " + engine);
+        }
+        return new StorageSettings(
+                engine,
+                config.getString("directory"),
+                (int) config.getBytes("segment-size").longValue(),
+                config.getInt("max-segments"));
+    }
+
+    final String engine;
+    final String directory;
+    final int segmentSize;
+    final int maxSegments;
+
+    private StorageSettings(String engine, String directory, int segmentSize, int maxSegments) {
+        this.engine = engine;
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSegments = maxSegments;
+    }
+
+    boolean isMappedLog() {
+        return engine.equals(MAPPED_LOG);
+    }
+
+    public StorageSettings withEngine(String engine) {
+        return new StorageSettings(engine, directory, segmentSize, maxSegments);
+    }
+
+    public StorageSettings withDirectory(String directory) {
+        return new StorageSettings(engine, directory, segmentSize, maxSegments);
+    }
+
+    public StorageSettings withSegmentSize(int segmentSize) {
+        return new StorageSettings(engine, directory, segmentSize, maxSegments);
+    }
+
+    public StorageSettings withMaxSegments(int maxSegments) {
+        return new StorageSettings(engine, directory, segmentSize, maxSegments);
+    }
+}
@@ -0,0 +1,222 @@
+package sample;
+
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.Behavior;
+import akka.actor.typed.javadsl.AbstractBehavior;
+import akka.actor.typed.javadsl.ActorContext;
+import akka.actor.typed.javadsl.Behaviors;
+import akka.actor.typed.javadsl.Receive;
+import akka.actor.typed.javadsl.TimerScheduler;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Answers a {@link DeviceManager.RequestAllTemperaturesStream}. Devices are asked a chunk at a time, no more
+ * than two chunks ahead of what the consumer has acked, and their readings are sent in
+ * {@link DeviceManager.TemperatureChunk}s as soon as a chunk is full. A device that does not answer within
+ * {@code timeout} of being asked is reported as {@link DeviceManager.DeviceTimedOut}. The devices are not watched,
+ * the group tells the query about devices that stop with a {@link DeviceGroupQuery.DeviceTerminated}.
+ */
+public class StreamingGroupQuery extends AbstractBehavior<StreamingGroupQuery.Command> {
+
+    public interface Command {}
+
+    private static final class WrappedRespondTemperature implements Command {
+        final Device.RespondTemperature response;
+
+        WrappedRespondTemperature(Device.RespondTemperature response) {
+            this.response = response;
+        }
+    }
+
+    /** The devices asked in one go from {@code from} (inclusive) to {@code to} (exclusive) did not all answer. */
+    private static final class AskTimeout implements Command {
+        final int from;
+        final int to;
+
+        AskTimeout(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+    }
+
+    private static enum AckTimeout implements Command {
+        INSTANCE
+    }
+
+    /**
+     * {@code deviceIdToActor} are asked, the devices in {@code knownReadings} are not (e.g. passivated devices,
+     * or all of them for a group that has every reading at hand).
+     */
+    static Behavior<Command> create(
+            Map<String, ActorRef<Device.Command>> deviceIdToActor,
+            Map<String, DeviceManager.TemperatureReading> knownReadings,
+            DeviceManager.RequestAllTemperaturesStream request,
+            Duration timeout) {
+        return IotMetrics.instrument(
+                IotProps.QUERY,
+                Behaviors.setup(
+                        context -> Behaviors.withTimers(
+                                timers -> new StreamingGroupQuery(
+                                        deviceIdToActor, knownReadings, request, timeout, context, timers))));
+    }
+
+    private final TimerScheduler<Command> timers;
+    private final DeviceManager.RequestAllTemperaturesStream request;
+    private final Duration timeout;
+    private final ActorRef<Device.RespondTemperature> respondAdapter;
+
+    // the devices to ask, and the known readings after them
+    private final String[] deviceIds;
+    private final ActorRef<Device.Command>[] devices;
+    private final DeviceManager.TemperatureReading[] known;
+    private int next;
+
+    // asked devices that have not answered yet, by position in deviceIds
+    private final Map<String, Integer> inFlight = new HashMap<>();
+
+    private String[] bufferedIds;
+    private DeviceManager.TemperatureReading[] bufferedReadings;
+    private int buffered;
+
+    private long seqNr;
+    private boolean awaitingAck;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private StreamingGroupQuery(
+            Map<String, ActorRef<Device.Command>> deviceIdToActor,
+            Map<String, DeviceManager.TemperatureReading> knownReadings,
+            DeviceManager.RequestAllTemperaturesStream request,
+            Duration timeout,
+            ActorContext<Command> context,
+            TimerScheduler<Command> timers) {
+        super(context);
+        this.timers = timers;
+        this.request = request;
+        this.timeout = timeout;
+        this.respondAdapter = context.messageAdapter(Device.RespondTemperature.class, WrappedRespondTemperature::new);
+
+        int total = deviceIdToActor.size() + knownReadings.size();
+        deviceIds = new String[total];
+        devices = new ActorRef[deviceIdToActor.size()];
+        known = new DeviceManager.TemperatureReading[knownReadings.size()];
+        int i = 0;
+        for (Map.Entry<String, ActorRef<Device.Command>> entry : deviceIdToActor.entrySet()) {
+            deviceIds[i] = entry.getKey();
+            devices[i++] = entry.getValue();
+        }
+        for (Map.Entry<String, DeviceManager.TemperatureReading> entry : knownReadings.entrySet()) {
+            deviceIds[i] = entry.getKey();
+            known[i++ - devices.length] = entry.getValue();
+        }
+        bufferedIds = new String[2 * request.chunkSize];
+        bufferedReadings = new DeviceManager.TemperatureReading[2 * request.chunkSize];
+
+        askAhead();
+        emitWhenReady();
+    }
+
+    @Override
+    public Receive<Command> createReceive() {
+        return newReceiveBuilder()
+                .onMessage(WrappedRespondTemperature.class, this::onRespondTemperature)
+                .onMessage(DeviceGroupQuery.DeviceTerminated.class, this::onDeviceTerminated)
+                .onMessage(AskTimeout.class, this::onAskTimeout)
+                .onMessage(DeviceManager.TemperatureChunkAck.class, this::onAck)
+                .onMessage(AckTimeout.class, m -> Behaviors.stopped())
+                .build();
+    }
+
+    private Behavior<Command> onRespondTemperature(WrappedRespondTemperature r) {
+        if (inFlight.remove(r.response.deviceId) != null) {
+            buffer(r.response.deviceId,
+                    r.response.hasValue
+                            ? new DeviceManager.Temperature(r.response.value)
+                            : DeviceManager.TemperatureNotAvailable.INSTANCE);
+        }
+        return emitWhenReady();
+    }
+
+    private Behavior<Command> onDeviceTerminated(DeviceGroupQuery.DeviceTerminated terminated) {
+        if (inFlight.remove(terminated.deviceId) != null) {
+            buffer(terminated.deviceId, DeviceManager.DeviceNotAvailable.INSTANCE);
+        }
+        return emitWhenReady();
+    }
+
+    private Behavior<Command> onAskTimeout(AskTimeout t) {
+        for (int i = t.from; i < t.to; i++) {
+            if (inFlight.remove(deviceIds[i]) != null) {
+                buffer(deviceIds[i], DeviceManager.DeviceTimedOut.INSTANCE);
+            }
+        }
+        return emitWhenReady();
+    }
+
+    private Behavior<Command> onAck(DeviceManager.TemperatureChunkAck ack) {
+        if (!awaitingAck || ack.seqNr != seqNr - 1) {
+            return this;
+        }
+        awaitingAck = false;
+        timers.cancel(AckTimeout.INSTANCE);
+        askAhead();
+        return emitWhenReady();
+    }
+
+    /** Asks (or takes the known readings of) the next devices, as long as that stays within two chunks. */
+    private void askAhead() {
+        int chunkSize = request.chunkSize;
+        while (next < deviceIds.length && buffered + inFlight.size() + chunkSize <= 2 * chunkSize) {
+            int from = next;
+            int to = Math.min(deviceIds.length, from + chunkSize);
+            for (int i = from; i < to; i++) {
+                if (i < devices.length) {
+                    inFlight.put(deviceIds[i], i);
+                    devices[i].tell(new Device.ReadTemperature(request.requestId, respondAdapter));
+                } else {
+                    buffer(deviceIds[i], known[i - devices.length]);
+                }
+            }
+            if (to > from && from < devices.length) {
+                timers.startSingleTimer(new AskTimeout(from, Math.min(to, devices.length)), timeout);
+            }
+            next = to;
+        }
+    }
+
+    private void buffer(String deviceId, DeviceManager.TemperatureReading reading) {
+        bufferedIds[buffered] = deviceId;
+        bufferedReadings[buffered++] = reading;
+    }
+
+    private Behavior<Command> emitWhenReady() {
+        if (awaitingAck) {
+            return this;
+        }
+        boolean complete = next == deviceIds.length && inFlight.isEmpty();
+        if (buffered < request.chunkSize && !complete) {
+            return this;
+        }
+        int size = Math.min(buffered, request.chunkSize);
+        String[] chunkIds = new String[size];
+        DeviceManager.TemperatureReading[] chunkReadings = new DeviceManager.TemperatureReading[size];
+        System.arraycopy(bufferedIds, 0, chunkIds, 0, size);
+        System.arraycopy(bufferedReadings, 0, chunkReadings, 0, size);
+        System.arraycopy(bufferedIds, size, bufferedIds, 0, buffered - size);
+        System.arraycopy(bufferedReadings, size, bufferedReadings, 0, buffered - size);
+        buffered -= size;
+        boolean last = complete && buffered == 0;
+
+        request.replyTo.tell(
+                new DeviceManager.TemperatureChunk(
+                        request.requestId, seqNr++, chunkIds, chunkReadings, last, getContext().getSelf().narrow()));
+        if (last) {
+            return Behaviors.stopped();
+        }
+        awaitingAck = true;
+        timers.startSingleTimer(AckTimeout.INSTANCE, timeout);
+        return this;
+    }
+}
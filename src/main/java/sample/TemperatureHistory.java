@@ -0,0 +1,143 @@
+package sample;
+
+import java.util.Arrays;
+
+/**
+ * The last {@code capacity} readings of a device in a ring of primitive arrays. The arrays start empty and double
+ * as readings arrive until they hold {@code capacity}, so a device that records rarely costs little. Count, min,
+ * max and mean are computed in one pass over the ring without copying it. The p95 needs the window's values in
+ * an array it can reorder, so only those are copied, to a scratch array that grows like the ring and is reused.
+ */
+final class TemperatureHistory implements ReadingStore {
+
+    private static final long[] NO_TIMESTAMPS = new long[0];
+    private static final double[] NO_VALUES = new double[0];
+    private static final int INITIAL_CAPACITY = 8;
+
+    private final int capacity;
+    private long[] timestamps = NO_TIMESTAMPS;
+    private double[] values = NO_VALUES;
+    private double[] scratch = NO_VALUES;
+    private int next;
+    private int size;
+
+    TemperatureHistory(int capacity) {
+        this.capacity = capacity;
+    }
+
+    @Override
+    public void append(long timestamp, double value) {
+        if (size == values.length) {
+            if (values.length == capacity) {
+                if (capacity == 0) {
+                    return;
+                }
+            } else {
+                // not wrapped yet, so the readings are in order from slot 0 and next is 0 again
+                int grown = (int) Math.min(capacity, Math.max(INITIAL_CAPACITY, 2L * values.length));
+                timestamps = Arrays.copyOf(timestamps, grown);
+                values = Arrays.copyOf(values, grown);
+                next = size;
+            }
+        }
+        timestamps[next] = timestamp;
+        values[next] = value;
+        next = next + 1 == values.length ? 0 : next + 1;
+        if (size < values.length) {
+            size++;
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    @Override
+    public Device.RespondAggregate aggregate(long requestId, String deviceId, long from, long to) {
+        int count = 0;
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        double sum = 0.0;
+        int start = next - size < 0 ? next - size + values.length : next - size;
+        for (int i = 0, slot = start; i < size; i++, slot = slot + 1 == values.length ? 0 : slot + 1) {
+            long timestamp = timestamps[slot];
+            if (timestamp >= from && timestamp <= to) {
+                double value = values[slot];
+                count++;
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+                sum += value;
+            }
+        }
+        if (count == 0) {
+            return aggregate(requestId, deviceId, NO_VALUES, 0);
+        }
+        if (scratch.length < count) {
+            scratch = new double[values.length];
+        }
+        int copied = 0;
+        for (int i = 0, slot = start; i < size; i++, slot = slot + 1 == values.length ? 0 : slot + 1) {
+            long timestamp = timestamps[slot];
+            if (timestamp >= from && timestamp <= to) {
+                scratch[copied++] = values[slot];
+            }
+        }
+        return new Device.RespondAggregate(
+                requestId, deviceId, count, min, max, sum / count, p95(scratch, count));
+    }
+
+    /** Aggregates the first {@code count} of {@code values}, which get reordered. */
+    static Device.RespondAggregate aggregate(long requestId, String deviceId, double[] values, int count) {
+        if (count == 0) {
+            return new Device.RespondAggregate(requestId, deviceId, 0, Double.NaN, Double.NaN, Double.NaN, Double.NaN);
+        }
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        double sum = 0.0;
+        for (int i = 0; i < count; i++) {
+            min = Math.min(min, values[i]);
+            max = Math.max(max, values[i]);
+            sum += values[i];
+        }
+        return new Device.RespondAggregate(requestId, deviceId, count, min, max, sum / count, p95(values, count));
+    }
+
+    /** The nearest-rank 95th percentile of the first {@code count} of {@code values}, which get reordered. */
+    private static double p95(double[] values, int count) {
+        return select(values, count, (int) Math.ceil(0.95 * count) - 1);
+    }
+
+    /** Quickselect of the {@code k}-th smallest of the first {@code length} elements, reordering them. */
+    private static double select(double[] a, int length, int k) {
+        int left = 0;
+        int right = length - 1;
+        while (left < right) {
+            double pivot = a[(left + right) >>> 1];
+            int i = left;
+            int j = right;
+            while (i <= j) {
+                while (a[i] < pivot) {
+                    i++;
+                }
+                while (a[j] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    double tmp = a[i];
+                    a[i] = a[j];
+                    a[j] = tmp;
+                    i++;
+                    j--;
+                }
+            }
+            if (k <= j) {
+                right = j;
+            } else if (k >= i) {
+                left = i;
+            } else {
+                break;
+            }
+        }
+        return a[k];
+    }
+}
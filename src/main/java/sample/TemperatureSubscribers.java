@@ -0,0 +1,149 @@
+package sample;
+
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.javadsl.ActorContext;
+import akka.actor.typed.javadsl.TimerScheduler;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The {@link Device.SubscribeTemperature} subscribers of one device, used by {@link Device} and
+ * {@link PersistentDevice}. A subscriber is sent a reading once it is at least its {@code minDelta} away from the
+ * reading it was sent last, and at most once per its {@code minInterval}: a reading recorded sooner is held back
+ * until the interval is over, and only the latest reading is sent then. So a slow subscriber has at most one
+ * update per interval coming, however fast the device records. A subscriber that stops without unsubscribing
+ * is unsubscribed then, the device watches it.
+ */
+final class TemperatureSubscribers {
+
+    /** Ends the interval of one subscriber, also the key of its timer. */
+    static final class Tick implements Device.Command {
+        final ActorRef<Device.TemperatureChanged> subscriber;
+
+        Tick(ActorRef<Device.TemperatureChanged> subscriber) {
+            this.subscriber = subscriber;
+        }
+    }
+
+    private static final class Subscription {
+        final Tick tick;
+        double minDelta;
+        long intervalNanos;
+        // NaN until the subscriber was sent a reading
+        double sent = Double.NaN;
+        long sentNanos;
+        double latest = Double.NaN;
+        boolean scheduled;
+
+        Subscription(ActorRef<Device.TemperatureChanged> subscriber) {
+            this.tick = new Tick(subscriber);
+        }
+    }
+
+    private final String deviceId;
+    private final ActorContext<Device.Command> context;
+    private final TimerScheduler<Device.Command> timers;
+    private final Map<ActorRef<Device.TemperatureChanged>, Subscription> subscriptions = new HashMap<>();
+
+    TemperatureSubscribers(
+            String deviceId, ActorContext<Device.Command> context, TimerScheduler<Device.Command> timers) {
+        this.deviceId = deviceId;
+        this.context = context;
+        this.timers = timers;
+    }
+
+    /** Subscribing again replaces the subscription, and starts it over with the current reading. */
+    void subscribe(Device.SubscribeTemperature s, boolean hasValue, double value) {
+        Subscription subscription = subscriptions.get(s.replyTo);
+        if (subscription == null) {
+            subscription = new Subscription(s.replyTo);
+            subscriptions.put(s.replyTo, subscription);
+            context.watchWith(s.replyTo, new Device.UnsubscribeTemperature(s.replyTo));
+        } else if (subscription.scheduled) {
+            timers.cancel(subscription.tick);
+            subscription.scheduled = false;
+        }
+        subscription.minDelta = s.minDelta;
+        subscription.intervalNanos = s.minInterval.toNanos();
+        subscription.sent = Double.NaN;
+        subscription.sentNanos = System.nanoTime() - subscription.intervalNanos;
+        if (hasValue) {
+            recorded(subscription, value, System.nanoTime());
+        }
+    }
+
+    void unsubscribe(ActorRef<Device.TemperatureChanged> subscriber) {
+        Subscription subscription = subscriptions.remove(subscriber);
+        if (subscription == null) {
+            return;
+        }
+        context.unwatch(subscriber);
+        if (subscription.scheduled) {
+            timers.cancel(subscription.tick);
+        }
+    }
+
+    /**
+     * Whether anyone but {@code group} is subscribed. The group subscribes through a message adapter, a child of
+     * the group, and subscribes a device it starts again itself, so only the other subscribers keep a device from
+     * being passivated.
+     */
+    boolean hasSubscribersBesides(ActorRef<?> group) {
+        for (ActorRef<Device.TemperatureChanged> subscriber : subscriptions.keySet()) {
+            if (group == null || !subscriber.path().parent().equals(group.path())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    void recorded(double value) {
+        if (subscriptions.isEmpty()) {
+            return;
+        }
+        long now = System.nanoTime();
+        for (Subscription subscription : subscriptions.values()) {
+            recorded(subscription, value, now);
+        }
+    }
+
+    private void recorded(Subscription subscription, double value, long now) {
+        subscription.latest = value;
+        if (subscription.scheduled || !changed(subscription)) {
+            return;
+        }
+        long sinceSent = now - subscription.sentNanos;
+        if (sinceSent >= subscription.intervalNanos) {
+            send(subscription, now);
+        } else {
+            timers.startSingleTimer(
+                    subscription.tick, subscription.tick, Duration.ofNanos(subscription.intervalNanos - sinceSent));
+            subscription.scheduled = true;
+        }
+    }
+
+    void onTick(Tick tick) {
+        Subscription subscription = subscriptions.get(tick.subscriber);
+        // a tick of a subscription that was replaced since is ignored
+        if (subscription != null && subscription.tick == tick && subscription.scheduled) {
+            subscription.scheduled = false;
+            if (changed(subscription)) {
+                send(subscription, System.nanoTime());
+            }
+        }
+    }
+
+    private static boolean changed(Subscription subscription) {
+        return Double.isNaN(subscription.sent)
+                || (subscription.latest != subscription.sent
+                        && Math.abs(subscription.latest - subscription.sent) >= subscription.minDelta);
+    }
+
+    private void send(Subscription subscription, long now) {
+        subscription.sent = subscription.latest;
+        subscription.sentNanos = now;
+        subscription.tick.subscriber.tell(new Device.TemperatureChanged(deviceId, subscription.latest));
+    }
+}
@@ -0,0 +1,45 @@
+package sample;
+
+import akka.dispatch.DispatcherPrerequisites;
+import akka.dispatch.ExecutorServiceConfigurator;
+import akka.dispatch.ExecutorServiceFactory;
+import com.typesafe.config.Config;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * An {@code executor} for dispatchers that runs every actor turn on a virtual thread of its own, see
+ * {@code iot.virtual-thread-dispatcher}. Virtual threads need Java 21, on older runtimes the dispatcher fails
+ * when it is first used. They only pay off for actors that block, e.g. on a journal or a file.
+ */
+public class VirtualThreadExecutorConfigurator extends ExecutorServiceConfigurator {
+
+    public VirtualThreadExecutorConfigurator(Config config, DispatcherPrerequisites prerequisites) {
+        super(config, prerequisites);
+    }
+
+    @Override
+    public ExecutorServiceFactory createExecutorServiceFactory(String id, ThreadFactory threadFactory) {
+        // looked up reflectively, the sample is compiled for Java 8
+        Method factory;
+        try {
+            factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException(
+                    "Dispatcher " + id + " needs virtual threads, which this Java runtime does not have", e);
+        }
+        return new ExecutorServiceFactory() {
+            @Override
+            public ExecutorService createExecutorService() {
+                try {
+                    return (ExecutorService) factory.invoke(null);
+                } catch (ReflectiveOperationException e) {
+                    throw new IllegalStateException("Can't create the virtual thread executor of " + id, e);
+                }
+            }
+        };
+    }
+}
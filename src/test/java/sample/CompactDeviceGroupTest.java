@@ -0,0 +1,145 @@
+package sample;
+
+import akka.actor.ActorIdentity;
+import akka.actor.Identify;
+import akka.actor.testkit.typed.javadsl.TestKitJunitResource;
+import akka.actor.testkit.typed.javadsl.TestProbe;
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.javadsl.Adapter;
+import org.junit.ClassRule;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+public class CompactDeviceGroupTest {
+
+    @ClassRule
+    public static final TestKitJunitResource testKit = new TestKitJunitResource();
+
+    private static ActorRef<DeviceGroup.Command> spawnGroup(String groupId, String... deviceIds) {
+        DeviceSettings settings =
+                DeviceSettings.create(testKit.system().settings().config().getConfig("iot.device"))
+                        .withCompact(true)
+                        .withAckInterval(Duration.ofMillis(100));
+        ActorRef<DeviceGroup.Command> group = testKit.spawn(DeviceGroup.create(groupId, settings));
+        TestProbe<DeviceManager.DeviceRegistered> registeredProbe =
+                testKit.createTestProbe(DeviceManager.DeviceRegistered.class);
+        for (String deviceId : deviceIds) {
+            group.tell(new DeviceManager.RequestTrackDevice(groupId, deviceId, registeredProbe.getRef()));
+            assertNull(registeredProbe.receiveMessage().device);
+        }
+        return group;
+    }
+
+    @Test
+    public void testRecordAndReadThroughEnvelopes() {
+        ActorRef<DeviceGroup.Command> group = spawnGroup("compact1", "device1", "device2");
+        TestProbe<Device.TemperatureRecorded> recordProbe = testKit.createTestProbe(Device.TemperatureRecorded.class);
+        TestProbe<Device.RespondTemperature> readProbe = testKit.createTestProbe(Device.RespondTemperature.class);
+
+        group.tell(new DeviceManager.DeviceEnvelope(
+                "compact1", "device1", new Device.ReadTemperature(1L, readProbe.getRef())));
+        assertEquals(false, readProbe.receiveMessage().hasValue);
+
+        group.tell(new DeviceManager.DeviceEnvelope(
+                "compact1", "device1", new Device.RecordTemperature(2L, 24.0, recordProbe.getRef())));
+        assertEquals(2L, recordProbe.receiveMessage().requestId);
+        group.tell(new DeviceManager.DeviceEnvelope(
+                "compact1", "device1", new Device.ReadTemperature(3L, readProbe.getRef())));
+        Device.RespondTemperature response = readProbe.receiveMessage();
+        assertEquals(3L, response.requestId);
+        assertEquals(24.0, response.value, 0.0);
+
+        group.tell(new DeviceManager.DeviceEnvelope(
+                "compact1", "device2", new Device.SubscribeAckWatermark(recordProbe.getRef())));
+        group.tell(new DeviceManager.DeviceEnvelope(
+                "compact1", "device2", new Device.RecordTemperatureNoAck(7L, 1.0)));
+        assertEquals(7L, recordProbe.receiveMessage().requestId);
+
+        TestProbe<DeviceManager.ReplyDeviceList> deviceListProbe =
+                testKit.createTestProbe(DeviceManager.ReplyDeviceList.class);
+        group.tell(new DeviceManager.DeviceEnvelope("compact1", "device2", Device.Passivate.INSTANCE));
+        group.tell(new DeviceManager.RequestDeviceList(4L, "compact1", deviceListProbe.getRef()));
+        assertEquals(Collections.singleton("device1"), deviceListProbe.receiveMessage().ids);
+    }
+
+    @Test
+    public void testRegisterWithoutActorsAndTellThroughTheGroup() {
+        ActorRef<DeviceGroup.Command> group = spawnGroup("compact-refs");
+        TestProbe<DeviceManager.DevicesRegistered> bulkProbe =
+                testKit.createTestProbe(DeviceManager.DevicesRegistered.class);
+        List<String> deviceIds = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            deviceIds.add("device" + i);
+        }
+        group.tell(new DeviceManager.RequestTrackDevices(1L, "compact-refs", deviceIds, bulkProbe.getRef()));
+        DeviceManager.DevicesRegistered registered = bulkProbe.receiveMessage();
+        assertEquals(new HashSet<>(deviceIds), registered.devices.keySet());
+        TestProbe<DeviceManager.DeviceRegistered> registeredProbe =
+                testKit.createTestProbe(DeviceManager.DeviceRegistered.class);
+        group.tell(new DeviceManager.RequestTrackDevice("compact-refs", "device1000", registeredProbe.getRef()));
+        DeviceManager.DeviceRegistered single = registeredProbe.receiveMessage();
+        assertNull(single.device);
+
+        // the group started no actor for any of its devices
+        TestProbe<ActorIdentity> children = testKit.createTestProbe(ActorIdentity.class);
+        Adapter.toClassic(testKit.system())
+                .actorSelection(group.path().child("*").toString())
+                .tell(new Identify(1), Adapter.toClassic(children.getRef()));
+        // a selection that matches nothing answers with an empty identity
+        assertFalse(children.receiveMessage().getActorRef().isPresent());
+        children.expectNoMessage(Duration.ofMillis(300));
+
+        TestProbe<Device.TemperatureRecorded> recordProbe = testKit.createTestProbe(Device.TemperatureRecorded.class);
+        TestProbe<Device.RespondTemperature> readProbe = testKit.createTestProbe(Device.RespondTemperature.class);
+        registered.tell("device2", new Device.RecordTemperature(2L, 21.0, recordProbe.getRef()));
+        assertEquals(2L, recordProbe.receiveMessage().requestId);
+        single.tell(new Device.RecordTemperature(3L, 22.0, recordProbe.getRef()));
+        assertEquals(3L, recordProbe.receiveMessage().requestId);
+        group.tell(new DeviceManager.DeviceEnvelope(
+                "compact-refs", "device2", new Device.ReadTemperature(4L, readProbe.getRef())));
+        assertEquals(21.0, readProbe.receiveMessage().value, 0.0);
+        group.tell(new DeviceManager.DeviceEnvelope(
+                "compact-refs", "device1000", new Device.ReadTemperature(5L, readProbe.getRef())));
+        assertEquals(22.0, readProbe.receiveMessage().value, 0.0);
+    }
+
+    @Test
+    public void testBatchAndQueryAllTemperatures() {
+        ActorRef<DeviceGroup.Command> group = spawnGroup("compact2", "device1", "device2", "device3");
+
+        TestProbe<DeviceManager.TemperatureBatchRecorded> batchProbe =
+                testKit.createTestProbe(DeviceManager.TemperatureBatchRecorded.class);
+        group.tell(new DeviceManager.RecordTemperatureBatch(
+                1L,
+                "compact2",
+                new String[] {"device1", "device2", "device4", "device1"},
+                new double[] {1.0, 2.0, 3.0, 4.0},
+                new long[] {10L, 10L, 10L, 20L},
+                batchProbe.getRef()));
+        DeviceManager.TemperatureBatchRecorded recorded = batchProbe.receiveMessage();
+        assertEquals(3, recorded.recorded);
+        assertEquals(Collections.singleton("device4"), recorded.unknownDeviceIds);
+
+        TestProbe<DeviceManager.RespondAllTemperatures> allProbe =
+                testKit.createTestProbe(DeviceManager.RespondAllTemperatures.class);
+        group.tell(new DeviceManager.RequestAllTemperatures(2L, "compact2", allProbe.getRef()));
+        DeviceManager.RespondAllTemperatures all = allProbe.receiveMessage();
+        assertEquals(2L, all.requestId);
+        assertEquals(
+                Stream.of("device1", "device2", "device3").collect(Collectors.toSet()), all.temperatures.keySet());
+        assertEquals(new DeviceManager.Temperature(4.0), all.temperatures.get("device1"));
+        assertEquals(new DeviceManager.Temperature(2.0), all.temperatures.get("device2"));
+        assertEquals(DeviceManager.TemperatureNotAvailable.INSTANCE, all.temperatures.get("device3"));
+    }
+}
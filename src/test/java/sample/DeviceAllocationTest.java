@@ -0,0 +1,112 @@
+package sample;
+
+import akka.actor.testkit.typed.javadsl.BehaviorTestKit;
+import akka.dispatch.Envelope;
+import com.typesafe.config.ConfigFactory;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * What the ingest path allocates per reading. The device itself allocates nothing, which is measured without a
+ * mailbox. Through a mailbox every message costs the {@link Envelope} the sender's tell creates and a node of the
+ * mailbox's queue, which is measured with the devices' {@link IotMailbox}. DeviceIngestBenchmark with
+ * {@code -prof gc} has the end-to-end numbers.
+ */
+public class DeviceAllocationTest {
+
+    private static final int READINGS = 100_000;
+
+    private final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    // the stub system of BehaviorTestKit has no extensions, so no IotMetrics to count into
+    private static BehaviorTestKit<Device.Command> device() {
+        return BehaviorTestKit.create(
+                Device.uninstrumented("group", "device", DeviceSettings.forGroup(ConfigFactory.load(), "group")));
+    }
+
+    @Test
+    public void testRecordingDoesNotAllocate() {
+        assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+
+        // BehaviorTestKit runs the behavior on the calling thread and does not allocate itself per message
+        BehaviorTestKit<Device.Command> device = device();
+        Device.Command[] readings = new Device.Command[READINGS];
+        for (int i = 0; i < READINGS; i++) {
+            readings[i] = new Device.RecordTemperatureNoAck(i, i);
+        }
+
+        warmUp(device, readings);
+        assertEquals(0L, allocatedBytes(() -> runAll(device, readings)) / READINGS);
+    }
+
+    @Test
+    public void testBatchRecordingDoesNotAllocate() {
+        assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+
+        BehaviorTestKit<Device.Command> device = device();
+        double[] values = new double[READINGS];
+        long[] timestamps = new long[READINGS];
+        Device.Command[] readings = new Device.Command[READINGS];
+        for (int i = 0; i < READINGS; i++) {
+            values[i] = i;
+            timestamps[i] = i;
+            readings[i] = new Device.RecordTemperatures(values, timestamps, new int[] {i});
+        }
+
+        warmUp(device, readings);
+        assertEquals(0L, allocatedBytes(() -> runAll(device, readings)) / READINGS);
+    }
+
+    @Test
+    public void testMailboxAllocatesOnlyItsQueueNode() {
+        assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+
+        // as the devices' mailbox is with a capacity, without metrics
+        IotMailbox.Queue queue = new IotMailbox.Queue(READINGS, true, false, 0, new MailboxMetrics.Counters(), null);
+        Envelope[] envelopes = new Envelope[READINGS];
+        for (int i = 0; i < READINGS; i++) {
+            envelopes[i] = new Envelope(new Device.RecordTemperatureNoAck(i, i), null);
+        }
+
+        for (int round = 0; round < 10; round++) {
+            passThrough(queue, envelopes);
+        }
+        // a ConcurrentLinkedQueue node, 24 bytes with compressed oops and 32 without
+        assertTrue(allocatedBytes(() -> passThrough(queue, envelopes)) / READINGS <= 32L);
+    }
+
+    private static void passThrough(IotMailbox.Queue queue, Envelope[] envelopes) {
+        for (Envelope envelope : envelopes) {
+            queue.enqueue(null, envelope);
+        }
+        while (queue.dequeue() != null) {
+            // drained
+        }
+    }
+
+    // until the JIT has compiled the path, escape analysis does not apply and the interpreter allocates
+    private static void warmUp(BehaviorTestKit<Device.Command> device, Device.Command[] messages) {
+        for (int round = 0; round < 10; round++) {
+            runAll(device, messages);
+        }
+    }
+
+    private static void runAll(BehaviorTestKit<Device.Command> device, Device.Command[] messages) {
+        for (Device.Command message : messages) {
+            device.run(message);
+        }
+    }
+
+    private long allocatedBytes(Runnable work) {
+        long threadId = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(threadId);
+        work.run();
+        return threads.getThreadAllocatedBytes(threadId) - before;
+    }
+}
@@ -0,0 +1,76 @@
+package sample;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.read.ListAppender;
+import com.typesafe.config.ConfigFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Duration;
+
+import static org.junit.Assert.assertEquals;
+
+public class DeviceEventsTest {
+
+    private final Logger ingest = (Logger) DeviceEvents.INGEST;
+    private final ListAppender<ILoggingEvent> appender = new ListAppender<>();
+    private Level level;
+
+    @Before
+    public void captureIngestEvents() {
+        level = ingest.getLevel();
+        appender.start();
+        ingest.addAppender(appender);
+    }
+
+    @After
+    public void restoreIngestLogger() {
+        ingest.detachAppender(appender);
+        ingest.setLevel(level);
+    }
+
+    private static DeviceEvents events(Duration interval) {
+        DeviceSettings settings =
+                DeviceSettings.forGroup(ConfigFactory.load(), "group").withIngestEventInterval(interval);
+        return new DeviceEvents("group", "device", settings);
+    }
+
+    @Test
+    public void testLogAtMostOneReadingPerInterval() {
+        ingest.setLevel(Level.DEBUG);
+        DeviceEvents events = events(Duration.ofSeconds(1));
+        long start = System.nanoTime();
+        events.readings(1L, 1, 1.0, start);
+        events.readings(2L, 1, 2.0, start + 1_000_000L);
+        events.readings(-1L, 3, 3.0, start + 2_000_000L);
+        events.readings(4L, 1, 4.0, start + 1_000_000_000L);
+
+        assertEquals(2, appender.list.size());
+        assertEquals(
+                "event=reading group=group device=device requestId=1 value=1.0 count=1 skipped=0",
+                appender.list.get(0).getFormattedMessage());
+        assertEquals(
+                "event=reading group=group device=device requestId=4 value=4.0 count=1 skipped=4",
+                appender.list.get(1).getFormattedMessage());
+    }
+
+    @Test
+    public void testSwitchIngestEventsAtRuntime() {
+        DeviceEvents events = events(Duration.ZERO);
+        ingest.setLevel(Level.INFO);
+        events.readings(1L, 1, 1.0);
+        assertEquals(0, appender.list.size());
+
+        ingest.setLevel(Level.DEBUG);
+        events.readings(2L, 1, 2.0);
+        events.readings(3L, 1, 3.0);
+        assertEquals(2, appender.list.size());
+
+        ingest.setLevel(Level.INFO);
+        events.readings(4L, 1, 4.0);
+        assertEquals(2, appender.list.size());
+    }
+}
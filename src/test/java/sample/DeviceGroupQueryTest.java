@@ -7,9 +7,9 @@ import org.junit.ClassRule;
 import org.junit.Test;
 
 import java.time.Duration;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Optional;
 
 import static org.junit.Assert.assertEquals;
 
@@ -39,11 +39,11 @@ public class DeviceGroupQueryTest {
 
         queryActor.tell(
                 new DeviceGroupQuery.WrappedRespondTemperature(
-                        new Device.RespondTemperature(0L, "device1", Optional.of(1.0))));
+                        new Device.RespondTemperature(0L, "device1", 1.0)));
 
         queryActor.tell(
                 new DeviceGroupQuery.WrappedRespondTemperature(
-                        new Device.RespondTemperature(0L, "device2", Optional.of(2.0))));
+                        new Device.RespondTemperature(0L, "device2", 2.0)));
 
         DeviceManager.RespondAllTemperatures response = requester.receiveMessage();
         assertEquals(1L, response.requestId);
@@ -72,10 +72,10 @@ public class DeviceGroupQueryTest {
                                 deviceIdToActor, 1L, requester.getRef(), Duration.ofSeconds(3)));
 
         queryActor.tell(new DeviceGroupQuery.WrappedRespondTemperature(
-                new Device.RespondTemperature(0L, "device1", Optional.empty())));
+                new Device.RespondTemperature(0L, "device1")));
 
         queryActor.tell(new DeviceGroupQuery.WrappedRespondTemperature(
-                new Device.RespondTemperature(0L, "device2", Optional.of(2.0))));
+                new Device.RespondTemperature(0L, "device2", 2.0)));
 
         DeviceManager.RespondAllTemperatures response = requester.receiveMessage();
         assertEquals(1L, response.requestId);
@@ -108,7 +108,7 @@ public class DeviceGroupQueryTest {
 
         queryActor.tell(
                 new DeviceGroupQuery.WrappedRespondTemperature(
-                        new Device.RespondTemperature(0L, "device1", Optional.of(1.0))));
+                        new Device.RespondTemperature(0L, "device1", 1.0)));
 
         device2.stop();
 
@@ -143,11 +143,11 @@ public class DeviceGroupQueryTest {
 
         queryActor.tell(
                 new DeviceGroupQuery.WrappedRespondTemperature(
-                        new Device.RespondTemperature(0L, "device1", Optional.of(1.0))));
+                        new Device.RespondTemperature(0L, "device1", 1.0)));
 
         queryActor.tell(
                 new DeviceGroupQuery.WrappedRespondTemperature(
-                        new Device.RespondTemperature(0L, "device2", Optional.of(2.0))));
+                        new Device.RespondTemperature(0L, "device2", 2.0)));
 
         device2.stop();
 
@@ -182,7 +182,7 @@ public class DeviceGroupQueryTest {
 
         queryActor.tell(
                 new DeviceGroupQuery.WrappedRespondTemperature(
-                        new Device.RespondTemperature(0L, "device1", Optional.of(1.0))));
+                        new Device.RespondTemperature(0L, "device1", 1.0)));
 
         // no reply from device2
 
@@ -196,6 +196,52 @@ public class DeviceGroupQueryTest {
         assertEquals(expectedTemperatures, response.temperatures);
     }
 
+    @Test
+    public void testAnswerSlowDevicesFromTheirLastReading() {
+        TestProbe<DeviceManager.RespondAllTemperatures> requester =
+                testKit.createTestProbe(DeviceManager.RespondAllTemperatures.class);
+        TestProbe<DeviceGroup.Command> group = testKit.createTestProbe(DeviceGroup.Command.class);
+        TestProbe<Device.Command> device1 = testKit.createTestProbe(Device.Command.class);
+        TestProbe<Device.Command> device2 = testKit.createTestProbe(Device.Command.class);
+
+        Map<String, ActorRef<Device.Command>> deviceIdToActor = new HashMap<>();
+        deviceIdToActor.put("device1", device1.getRef());
+        deviceIdToActor.put("device2", device2.getRef());
+        Map<String, Double> lastReadings = new HashMap<>();
+        lastReadings.put("device2", 5.0);
+
+        ActorRef<DeviceGroupQuery.Command> queryActor =
+                testKit.spawn(
+                        DeviceGroupQuery.create(
+                                deviceIdToActor,
+                                Collections.emptyMap(),
+                                1L,
+                                requester.getRef(),
+                                Duration.ofSeconds(3),
+                                Duration.ofMillis(100),
+                                lastReadings,
+                                group.getRef()));
+
+        device1.expectMessageClass(Device.ReadTemperature.class);
+        device2.expectMessageClass(Device.ReadTemperature.class);
+        queryActor.tell(
+                new DeviceGroupQuery.WrappedRespondTemperature(
+                        new Device.RespondTemperature(0L, "device1", 1.0)));
+
+        // device2 never answers, it is reported with its last reading long before the timeout
+        DeviceManager.RespondAllTemperatures response = requester.receiveMessage(Duration.ofSeconds(1));
+        Map<String, DeviceManager.TemperatureReading> expectedTemperatures = new HashMap<>();
+        expectedTemperatures.put("device1", new DeviceManager.Temperature(1.0));
+        expectedTemperatures.put("device2", new DeviceManager.StaleTemperature(5.0));
+        assertEquals(expectedTemperatures, response.temperatures);
+
+        DeviceGroup.QueryReplies replies = (DeviceGroup.QueryReplies) group.receiveMessage();
+        assertEquals(2, replies.latencyCount);
+        assertEquals(1, replies.replyCount);
+        assertEquals("device1", replies.deviceIds[0]);
+        assertEquals(1.0, replies.values[0], 0.0);
+    }
+
     @Test
     public void testCollectTemperaturesFromAllActiveDevices() {
         TestProbe<DeviceManager.DeviceRegistered> registeredProbe =
@@ -1,16 +1,31 @@
 package sample;
 
+import akka.actor.DeadLetter;
 import akka.actor.testkit.typed.javadsl.TestKitJunitResource;
 import akka.actor.testkit.typed.javadsl.TestProbe;
 import akka.actor.typed.ActorRef;
+import akka.actor.typed.eventstream.EventStream;
+import akka.actor.typed.javadsl.Behaviors;
 import org.junit.ClassRule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
 public class DeviceGroupTest {
 
@@ -60,6 +75,31 @@ public class DeviceGroupTest {
         assertEquals(registered1.device, registered2.device);
     }
 
+    @Test
+    public void testTrackDevicesInBulk() {
+        TestProbe<DeviceManager.DeviceRegistered> probe = testKit.createTestProbe(DeviceManager.DeviceRegistered.class);
+        ActorRef<DeviceGroup.Command> groupActor = testKit.spawn(DeviceGroup.create("group"));
+        groupActor.tell(new DeviceManager.RequestTrackDevice("group", "device1", probe.getRef()));
+        ActorRef<Device.Command> device1 = probe.receiveMessage().device;
+
+        TestProbe<DeviceManager.DevicesRegistered> bulkProbe =
+                testKit.createTestProbe(DeviceManager.DevicesRegistered.class);
+        groupActor.tell(new DeviceManager.RequestTrackDevices(
+                1L, "group", Arrays.asList("device1", "device2", "device3"), bulkProbe.getRef()));
+        DeviceManager.DevicesRegistered registered = bulkProbe.receiveMessage();
+        assertEquals(1L, registered.requestId);
+        assertEquals(Stream.of("device1", "device2", "device3").collect(Collectors.toSet()), registered.devices.keySet());
+        assertEquals(device1, registered.devices.get("device1"));
+
+        TestProbe<Device.TemperatureRecorded> recordProbe = testKit.createTestProbe(Device.TemperatureRecorded.class);
+        registered.devices.get("device3").tell(new Device.RecordTemperature(2L, 1.0, recordProbe.getRef()));
+        assertEquals(2L, recordProbe.receiveMessage().requestId);
+
+        groupActor.tell(new DeviceManager.RequestTrackDevices(
+                3L, "wrongGroup", Collections.singletonList("device4"), bulkProbe.getRef()));
+        bulkProbe.expectNoMessage();
+    }
+
     @Test
     public void testListActiveDevices() {
         TestProbe<DeviceManager.DeviceRegistered> registeredProbe =
@@ -122,4 +162,394 @@ public class DeviceGroupTest {
                     return null;
                 });
     }
+
+    @Test
+    public void testListDevicesInPagesAndChanges() {
+        TestProbe<DeviceManager.DevicesRegistered> registeredProbe =
+                testKit.createTestProbe(DeviceManager.DevicesRegistered.class);
+        ActorRef<DeviceGroup.Command> groupActor = testKit.spawn(DeviceGroup.create("listing"));
+        groupActor.tell(new DeviceManager.RequestTrackDevices(
+                0L, "listing", Arrays.asList("device3", "device1", "device2"), registeredProbe.getRef()));
+        ActorRef<Device.Command> device2 = registeredProbe.receiveMessage().devices.get("device2");
+
+        TestProbe<DeviceManager.ReplyDeviceList> listProbe = testKit.createTestProbe(DeviceManager.ReplyDeviceList.class);
+        groupActor.tell(new DeviceManager.RequestDeviceList(1L, "listing", null, 2, listProbe.getRef()));
+        DeviceManager.ReplyDeviceList first = listProbe.receiveMessage();
+        assertEquals(Arrays.asList("device1", "device2"), new ArrayList<>(first.ids));
+        assertEquals("device2", first.next);
+        groupActor.tell(new DeviceManager.RequestDeviceList(2L, "listing", first.next, 2, listProbe.getRef()));
+        DeviceManager.ReplyDeviceList second = listProbe.receiveMessage();
+        assertEquals(Collections.singleton("device3"), second.ids);
+        assertNull(second.next);
+        assertEquals(first.version, second.version);
+
+        device2.tell(Device.Passivate.INSTANCE);
+        registeredProbe.expectTerminated(device2, registeredProbe.getRemainingOrDefault());
+        groupActor.tell(new DeviceManager.RequestTrackDevices(
+                3L, "listing", Collections.singletonList("device4"), registeredProbe.getRef()));
+        registeredProbe.receiveMessage();
+
+        TestProbe<DeviceManager.ReplyDeviceChanges> changesProbe =
+                testKit.createTestProbe(DeviceManager.ReplyDeviceChanges.class);
+        registeredProbe.awaitAssert(
+                () -> {
+                    groupActor.tell(new DeviceManager.RequestDeviceChanges(
+                            4L, "listing", first.version, changesProbe.getRef()));
+                    DeviceManager.ReplyDeviceChanges changes = changesProbe.receiveMessage();
+                    assertTrue(changes.complete);
+                    assertEquals(first.version + 2, changes.version);
+                    assertEquals(Collections.singleton("device4"), changes.added);
+                    assertEquals(Collections.singleton("device2"), changes.removed);
+                    return null;
+                });
+
+        // three devices joined to get to first.version, the group knows no version before that
+        groupActor.tell(new DeviceManager.RequestDeviceChanges(5L, "listing", first.version - 4, changesProbe.getRef()));
+        assertFalse(changesProbe.receiveMessage().complete);
+    }
+
+    @Test
+    public void testPushGroupTemperatureChanges() {
+        TestProbe<DeviceManager.DevicesRegistered> registeredProbe =
+                testKit.createTestProbe(DeviceManager.DevicesRegistered.class);
+        ActorRef<DeviceGroup.Command> groupActor = testKit.spawn(DeviceGroup.create("subscribed"));
+        groupActor.tell(new DeviceManager.RequestTrackDevices(
+                0L, "subscribed", Arrays.asList("device1", "device2"), registeredProbe.getRef()));
+        DeviceManager.DevicesRegistered registered = registeredProbe.receiveMessage();
+        TestProbe<Device.TemperatureRecorded> recordProbe = testKit.createTestProbe(Device.TemperatureRecorded.class);
+        registered.devices.get("device1").tell(new Device.RecordTemperature(1L, 10.0, recordProbe.getRef()));
+        recordProbe.receiveMessage();
+
+        TestProbe<DeviceManager.GroupTemperaturesChanged> probe =
+                testKit.createTestProbe(DeviceManager.GroupTemperaturesChanged.class);
+        groupActor.tell(new DeviceManager.SubscribeGroupTemperatures(
+                "subscribed", 0.5, Duration.ofMillis(200), probe.getRef()));
+        assertEquals(Collections.singletonMap("device1", 10.0), probe.receiveMessage().temperatures);
+
+        registered.devices.get("device1").tell(new Device.RecordTemperatureNoAck(2L, 10.1));
+        registered.devices.get("device1").tell(new Device.RecordTemperatureNoAck(3L, 11.0));
+        registered.devices.get("device2").tell(new Device.RecordTemperatureNoAck(4L, 5.0));
+        registered.devices.get("device2").tell(new Device.RecordTemperatureNoAck(5L, 6.0));
+        Map<String, Double> expected = new HashMap<>();
+        expected.put("device1", 11.0);
+        expected.put("device2", 6.0);
+        // the first change after the subscription is sent on its own, the rest together once the interval is over
+        Map<String, Double> temperatures = new HashMap<>(probe.receiveMessage().temperatures);
+        while (!temperatures.equals(expected)) {
+            temperatures.putAll(probe.receiveMessage().temperatures);
+        }
+
+        groupActor.tell(new DeviceManager.UnsubscribeGroupTemperatures("subscribed", probe.getRef()));
+        registered.devices.get("device1").tell(new Device.RecordTemperatureNoAck(6L, 20.0));
+        probe.expectNoMessage(Duration.ofMillis(400));
+    }
+
+    @Test
+    public void testForgetSubscribersThatStop() {
+        TestProbe<DeviceManager.DevicesRegistered> registeredProbe =
+                testKit.createTestProbe(DeviceManager.DevicesRegistered.class);
+        ActorRef<DeviceGroup.Command> groupActor = testKit.spawn(DeviceGroup.create("watched"));
+        groupActor.tell(new DeviceManager.RequestTrackDevices(
+                0L, "watched", Collections.singletonList("device1"), registeredProbe.getRef()));
+        ActorRef<Device.Command> device = registeredProbe.receiveMessage().devices.get("device1");
+        TestProbe<DeadLetter> deadLetters = testKit.createTestProbe(DeadLetter.class);
+        testKit.system().eventStream().tell(new EventStream.Subscribe<>(DeadLetter.class, deadLetters.getRef()));
+
+        TestProbe<DeviceManager.GroupTemperaturesChanged> probe =
+                testKit.createTestProbe(DeviceManager.GroupTemperaturesChanged.class);
+        ActorRef<DeviceManager.GroupTemperaturesChanged> subscriber = testKit.spawn(Behaviors.receiveMessage(m -> {
+            probe.getRef().tell(m);
+            return Behaviors.same();
+        }));
+        groupActor.tell(new DeviceManager.SubscribeGroupTemperatures("watched", 0.0, Duration.ZERO, subscriber));
+        device.tell(new Device.RecordTemperatureNoAck(1L, 10.0));
+        assertEquals(Collections.singletonMap("device1", 10.0), probe.receiveMessage().temperatures);
+
+        // a second subscriber starts from the reading the group has, without the devices sending theirs again
+        TestProbe<DeviceManager.GroupTemperaturesChanged> second =
+                testKit.createTestProbe(DeviceManager.GroupTemperaturesChanged.class);
+        groupActor.tell(new DeviceManager.SubscribeGroupTemperatures("watched", 0.0, Duration.ZERO, second.getRef()));
+        assertEquals(Collections.singletonMap("device1", 10.0), second.receiveMessage().temperatures);
+        second.expectNoMessage(Duration.ofMillis(200));
+        probe.expectNoMessage();
+
+        // the stopped subscriber is unsubscribed, nothing is sent to it anymore
+        testKit.stop(subscriber);
+        deadLetters.expectNoMessage(Duration.ofMillis(200));
+        device.tell(new Device.RecordTemperatureNoAck(2L, 11.0));
+        assertEquals(Collections.singletonMap("device1", 11.0), second.receiveMessage().temperatures);
+        deadLetters.expectNoMessage(Duration.ofMillis(200));
+    }
+
+    @Test
+    public void testRecordTemperatureBatch() {
+        TestProbe<DeviceManager.DeviceRegistered> registeredProbe =
+                testKit.createTestProbe(DeviceManager.DeviceRegistered.class);
+        ActorRef<DeviceGroup.Command> groupActor = testKit.spawn(DeviceGroup.create("group"));
+
+        groupActor.tell(
+                new DeviceManager.RequestTrackDevice("group", "device1", registeredProbe.getRef()));
+        ActorRef<Device.Command> device1 = registeredProbe.receiveMessage().device;
+
+        groupActor.tell(
+                new DeviceManager.RequestTrackDevice("group", "device2", registeredProbe.getRef()));
+        ActorRef<Device.Command> device2 = registeredProbe.receiveMessage().device;
+
+        TestProbe<DeviceManager.TemperatureBatchRecorded> batchProbe =
+                testKit.createTestProbe(DeviceManager.TemperatureBatchRecorded.class);
+        groupActor.tell(new DeviceManager.RecordTemperatureBatch(
+                7L,
+                "group",
+                new String[] {"device1", "device2", "device3", "device1"},
+                new double[] {1.0, 2.0, 3.0, 4.0},
+                new long[] {10L, 10L, 10L, 20L},
+                batchProbe.getRef()));
+        DeviceManager.TemperatureBatchRecorded recorded = batchProbe.receiveMessage();
+        assertEquals(7L, recorded.requestId);
+        assertEquals(3, recorded.recorded);
+        assertEquals(Collections.singleton("device3"), recorded.unknownDeviceIds);
+
+        TestProbe<Device.RespondTemperature> readProbe = testKit.createTestProbe(Device.RespondTemperature.class);
+        device1.tell(new Device.ReadTemperature(1L, readProbe.getRef()));
+        assertEquals(4.0, readProbe.receiveMessage().value, 0.0);
+        device2.tell(new Device.ReadTemperature(2L, readProbe.getRef()));
+        assertEquals(2.0, readProbe.receiveMessage().value, 0.0);
+    }
+
+    @Test
+    public void testReadingsInMappedLogOutliveTheGroup() throws Exception {
+        TemporaryFolder folder = new TemporaryFolder();
+        folder.create();
+        try {
+            DeviceSettings defaults = DeviceSettings.create(testKit.system().settings().config().getConfig("iot.device"));
+            DeviceSettings settings =
+                    defaults.withStorage(
+                            defaults.storage
+                                    .withEngine(StorageSettings.MAPPED_LOG)
+                                    .withDirectory(folder.getRoot().getPath()));
+            TestProbe<DeviceManager.DeviceRegistered> registeredProbe =
+                    testKit.createTestProbe(DeviceManager.DeviceRegistered.class);
+            TestProbe<Device.RespondAggregate> aggregateProbe = testKit.createTestProbe(Device.RespondAggregate.class);
+
+            ActorRef<DeviceGroup.Command> groupActor = testKit.spawn(DeviceGroup.create("logged", settings));
+            groupActor.tell(new DeviceManager.RequestTrackDevice("logged", "device1", registeredProbe.getRef()));
+            ActorRef<Device.Command> device = registeredProbe.receiveMessage().device;
+            device.tell(new Device.RecordTemperatures(new double[] {1.0, 3.0}, new long[] {10L, 20L}, new int[] {0, 1}));
+            device.tell(new Device.ReadAggregate(1L, 0L, Long.MAX_VALUE, aggregateProbe.getRef()));
+            assertEquals(2, aggregateProbe.receiveMessage().count);
+            testKit.stop(groupActor);
+
+            ActorRef<DeviceGroup.Command> restarted = testKit.spawn(DeviceGroup.create("logged", settings));
+            restarted.tell(new DeviceManager.RequestTrackDevice("logged", "device1", registeredProbe.getRef()));
+            registeredProbe.receiveMessage().device.tell(
+                    new Device.ReadAggregate(2L, 0L, Long.MAX_VALUE, aggregateProbe.getRef()));
+            Device.RespondAggregate aggregate = aggregateProbe.receiveMessage();
+            assertEquals(2, aggregate.count);
+            assertEquals(2.0, aggregate.mean, 0.0);
+            testKit.stop(restarted);
+        } finally {
+            folder.delete();
+        }
+    }
+
+    @Test
+    public void testPassivateIdleDevices() {
+        DeviceSettings settings =
+                DeviceSettings.create(testKit.system().settings().config().getConfig("iot.device"))
+                        .withPassivateAfter(Duration.ofMillis(200));
+        TestProbe<DeviceManager.DeviceRegistered> registeredProbe =
+                testKit.createTestProbe(DeviceManager.DeviceRegistered.class);
+        ActorRef<DeviceGroup.Command> groupActor = testKit.spawn(DeviceGroup.create("idle", settings));
+
+        groupActor.tell(new DeviceManager.RequestTrackDevice("idle", "device1", registeredProbe.getRef()));
+        ActorRef<Device.Command> device1 = registeredProbe.receiveMessage().device;
+        groupActor.tell(new DeviceManager.RequestTrackDevice("idle", "device2", registeredProbe.getRef()));
+        registeredProbe.receiveMessage();
+        TestProbe<Device.TemperatureRecorded> recordProbe = testKit.createTestProbe(Device.TemperatureRecorded.class);
+        device1.tell(new Device.RecordTemperature(1L, 21.5, recordProbe.getRef()));
+        recordProbe.receiveMessage();
+
+        registeredProbe.expectTerminated(device1, Duration.ofSeconds(3));
+        TestProbe<DeviceManager.GroupMetrics> metricsProbe = testKit.createTestProbe(DeviceManager.GroupMetrics.class);
+        metricsProbe.awaitAssert(
+                () -> {
+                    groupActor.tell(new DeviceManager.RequestGroupMetrics(1L, "idle", metricsProbe.getRef()));
+                    DeviceManager.GroupMetrics metrics = metricsProbe.receiveMessage();
+                    assertEquals(0, metrics.liveDevices);
+                    assertEquals(2, metrics.passivatedDevices);
+                    assertEquals(2L, metrics.passivations);
+                    return null;
+                });
+
+        // answered from the group without starting the devices
+        TestProbe<DeviceManager.RespondAllTemperatures> allProbe =
+                testKit.createTestProbe(DeviceManager.RespondAllTemperatures.class);
+        groupActor.tell(new DeviceManager.RequestAllTemperatures(2L, "idle", allProbe.getRef()));
+        DeviceManager.RespondAllTemperatures all = allProbe.receiveMessage();
+        assertEquals(new DeviceManager.Temperature(21.5), all.temperatures.get("device1"));
+        assertEquals(DeviceManager.TemperatureNotAvailable.INSTANCE, all.temperatures.get("device2"));
+
+        TestProbe<DeviceManager.ReplyDeviceList> deviceListProbe =
+                testKit.createTestProbe(DeviceManager.ReplyDeviceList.class);
+        groupActor.tell(new DeviceManager.RequestDeviceList(3L, "idle", deviceListProbe.getRef()));
+        assertEquals(Stream.of("device1", "device2").collect(Collectors.toSet()), deviceListProbe.receiveMessage().ids);
+
+        TestProbe<Device.RespondTemperature> readProbe = testKit.createTestProbe(Device.RespondTemperature.class);
+        groupActor.tell(new DeviceManager.DeviceEnvelope(
+                "idle", "device1", new Device.ReadTemperature(4L, readProbe.getRef())));
+        assertEquals(21.5, readProbe.receiveMessage().value, 0.0);
+
+        groupActor.tell(new DeviceManager.RequestGroupMetrics(5L, "idle", metricsProbe.getRef()));
+        DeviceManager.GroupMetrics metrics = metricsProbe.receiveMessage();
+        assertEquals(1, metrics.liveDevices);
+        assertEquals(1, metrics.passivatedDevices);
+        assertEquals(1L, metrics.rehydrations);
+    }
+
+    @Test
+    public void testKeepDevicesWithSubscribersRunning() {
+        DeviceSettings settings =
+                DeviceSettings.create(testKit.system().settings().config().getConfig("iot.device"))
+                        .withPassivateAfter(Duration.ofMillis(200));
+        TestProbe<DeviceManager.DevicesRegistered> registeredProbe =
+                testKit.createTestProbe(DeviceManager.DevicesRegistered.class);
+        ActorRef<DeviceGroup.Command> groupActor = testKit.spawn(DeviceGroup.create("subscribed-idle", settings));
+        groupActor.tell(new DeviceManager.RequestTrackDevices(
+                0L, "subscribed-idle", Arrays.asList("device1", "device2"), registeredProbe.getRef()));
+        DeviceManager.DevicesRegistered registered = registeredProbe.receiveMessage();
+        ActorRef<Device.Command> device1 = registered.devices.get("device1");
+        ActorRef<Device.Command> device2 = registered.devices.get("device2");
+
+        // the group subscribes its devices for this, which does not keep them running
+        TestProbe<DeviceManager.GroupTemperaturesChanged> groupProbe =
+                testKit.createTestProbe(DeviceManager.GroupTemperaturesChanged.class);
+        groupActor.tell(new DeviceManager.SubscribeGroupTemperatures(
+                "subscribed-idle", 0.0, Duration.ZERO, groupProbe.getRef()));
+        TestProbe<Device.TemperatureChanged> temperatureProbe = testKit.createTestProbe(Device.TemperatureChanged.class);
+        device1.tell(new Device.SubscribeTemperature(0.0, Duration.ZERO, temperatureProbe.getRef()));
+        TestProbe<Device.TemperatureRecorded> ackProbe = testKit.createTestProbe(Device.TemperatureRecorded.class);
+        device2.tell(new Device.SubscribeAckWatermark(ackProbe.getRef()));
+
+        registeredProbe.expectNoMessage(Duration.ofMillis(600));
+        TestProbe<DeviceManager.GroupMetrics> metricsProbe = testKit.createTestProbe(DeviceManager.GroupMetrics.class);
+        groupActor.tell(new DeviceManager.RequestGroupMetrics(1L, "subscribed-idle", metricsProbe.getRef()));
+        assertEquals(2, metricsProbe.receiveMessage().liveDevices);
+
+        device1.tell(new Device.UnsubscribeTemperature(temperatureProbe.getRef()));
+        device2.tell(new Device.UnsubscribeAckWatermark(ackProbe.getRef()));
+        registeredProbe.expectTerminated(device1, Duration.ofSeconds(3));
+        registeredProbe.expectTerminated(device2, Duration.ofSeconds(3));
+    }
+
+    @Test
+    public void testPassivateDevicesWhoseAckSubscriberStopped() {
+        DeviceSettings settings =
+                DeviceSettings.create(testKit.system().settings().config().getConfig("iot.device"))
+                        .withPassivateAfter(Duration.ofMillis(200));
+        TestProbe<DeviceManager.DeviceRegistered> registeredProbe =
+                testKit.createTestProbe(DeviceManager.DeviceRegistered.class);
+        ActorRef<DeviceGroup.Command> groupActor = testKit.spawn(DeviceGroup.create("stopped-subscriber", settings));
+        groupActor.tell(
+                new DeviceManager.RequestTrackDevice("stopped-subscriber", "device1", registeredProbe.getRef()));
+        ActorRef<Device.Command> device1 = registeredProbe.receiveMessage().device;
+
+        TestProbe<Device.TemperatureRecorded> ackProbe = testKit.createTestProbe(Device.TemperatureRecorded.class);
+        device1.tell(new Device.SubscribeAckWatermark(ackProbe.getRef()));
+        registeredProbe.expectNoMessage(Duration.ofMillis(600));
+
+        ackProbe.stop();
+        registeredProbe.expectTerminated(device1, Duration.ofSeconds(3));
+    }
+
+    @Test
+    public void testAllTemperaturesFromCachedReadings() {
+        DeviceSettings settings =
+                DeviceSettings.create(testKit.system().settings().config().getConfig("iot.device"))
+                        .withQueryMaxStaleness(Duration.ofMillis(200));
+        TestProbe<DeviceManager.DeviceRegistered> registeredProbe =
+                testKit.createTestProbe(DeviceManager.DeviceRegistered.class);
+        ActorRef<DeviceGroup.Command> groupActor = testKit.spawn(DeviceGroup.create("cached", settings));
+        groupActor.tell(new DeviceManager.RequestTrackDevice("cached", "device1", registeredProbe.getRef()));
+        ActorRef<Device.Command> device1 = registeredProbe.receiveMessage().device;
+        groupActor.tell(new DeviceManager.RequestTrackDevice("cached", "device2", registeredProbe.getRef()));
+        registeredProbe.receiveMessage();
+
+        TestProbe<Device.TemperatureRecorded> recordProbe = testKit.createTestProbe(Device.TemperatureRecorded.class);
+        device1.tell(new Device.RecordTemperature(1L, 20.0, recordProbe.getRef()));
+        recordProbe.receiveMessage();
+        // recorded within the push interval of the first reading, so it reaches the group with a delay
+        device1.tell(new Device.RecordTemperature(2L, 22.0, recordProbe.getRef()));
+        recordProbe.receiveMessage();
+
+        TestProbe<DeviceManager.RespondAllTemperatures> allProbe =
+                testKit.createTestProbe(DeviceManager.RespondAllTemperatures.class);
+        allProbe.awaitAssert(
+                () -> {
+                    groupActor.tell(new DeviceManager.RequestAllTemperatures(3L, "cached", allProbe.getRef()));
+                    DeviceManager.RespondAllTemperatures all = allProbe.receiveMessage();
+                    assertEquals(new DeviceManager.Temperature(22.0), all.temperatures.get("device1"));
+                    assertEquals(DeviceManager.TemperatureNotAvailable.INSTANCE, all.temperatures.get("device2"));
+                    return null;
+                });
+
+        // nothing changed, so the same snapshot is handed out again
+        groupActor.tell(new DeviceManager.RequestAllTemperatures(4L, "cached", allProbe.getRef()));
+        DeviceManager.RespondAllTemperatures first = allProbe.receiveMessage();
+        groupActor.tell(new DeviceManager.RequestAllTemperatures(5L, "cached", allProbe.getRef()));
+        DeviceManager.RespondAllTemperatures second = allProbe.receiveMessage();
+        assertEquals(5L, second.requestId);
+        assertSame(first.temperatures, second.temperatures);
+    }
+
+    @Test
+    public void testCoalesceConcurrentAllTemperaturesRequests() {
+        DeviceSettings defaults = DeviceSettings.create(testKit.system().settings().config().getConfig("iot.device"));
+        DeviceSettings settings = defaults.withQuery(defaults.query.withCoalesceWindow(Duration.ofSeconds(1)));
+        TestProbe<DeviceManager.DeviceRegistered> registeredProbe =
+                testKit.createTestProbe(DeviceManager.DeviceRegistered.class);
+        ActorRef<DeviceGroup.Command> groupActor = testKit.spawn(DeviceGroup.create("coalesced", settings));
+        groupActor.tell(new DeviceManager.RequestTrackDevice("coalesced", "device1", registeredProbe.getRef()));
+        ActorRef<Device.Command> device1 = registeredProbe.receiveMessage().device;
+        TestProbe<Device.TemperatureRecorded> recordProbe = testKit.createTestProbe(Device.TemperatureRecorded.class);
+        device1.tell(new Device.RecordTemperature(1L, 20.0, recordProbe.getRef()));
+        recordProbe.receiveMessage();
+
+        TestProbe<DeviceManager.RespondAllTemperatures> allProbe =
+                testKit.createTestProbe(DeviceManager.RespondAllTemperatures.class);
+        groupActor.tell(new DeviceManager.RequestAllTemperatures(2L, "coalesced", allProbe.getRef()));
+        groupActor.tell(new DeviceManager.RequestAllTemperatures(3L, "coalesced", allProbe.getRef()));
+        // a different timeout gets a query of its own
+        groupActor.tell(
+                new DeviceManager.RequestAllTemperatures(4L, "coalesced", Duration.ofSeconds(2), allProbe.getRef()));
+
+        DeviceManager.RespondAllTemperatures[] responses = new DeviceManager.RespondAllTemperatures[3];
+        for (int i = 0; i < 3; i++) {
+            DeviceManager.RespondAllTemperatures response = allProbe.receiveMessage();
+            responses[(int) response.requestId - 2] = response;
+            assertEquals(
+                    Collections.singletonMap("device1", new DeviceManager.Temperature(20.0)), response.temperatures);
+        }
+        assertSame(responses[0].temperatures, responses[1].temperatures);
+        assertNotSame(responses[0].temperatures, responses[2].temperatures);
+    }
+
+    @Test
+    public void testQueryIsToldAboutDevicesThatStop() {
+        TestProbe<DeviceManager.DeviceRegistered> registeredProbe =
+                testKit.createTestProbe(DeviceManager.DeviceRegistered.class);
+        ActorRef<DeviceGroup.Command> groupActor = testKit.spawn(DeviceGroup.create("stopping"));
+        groupActor.tell(new DeviceManager.RequestTrackDevice("stopping", "device1", registeredProbe.getRef()));
+        ActorRef<Device.Command> device1 = registeredProbe.receiveMessage().device;
+        groupActor.tell(new DeviceManager.RequestTrackDevice("stopping", "device2", registeredProbe.getRef()));
+        registeredProbe.receiveMessage();
+
+        // the query does not watch device1, it learns from the group that it is gone instead of timing out
+        device1.tell(Device.Passivate.INSTANCE);
+        TestProbe<DeviceManager.RespondAllTemperatures> allProbe =
+                testKit.createTestProbe(DeviceManager.RespondAllTemperatures.class);
+        groupActor.tell(new DeviceManager.RequestAllTemperatures(1L, "stopping", allProbe.getRef()));
+        DeviceManager.RespondAllTemperatures response = allProbe.receiveMessage(Duration.ofSeconds(1));
+        assertEquals(DeviceManager.TemperatureNotAvailable.INSTANCE, response.temperatures.get("device2"));
+        assertNotEquals(DeviceManager.DeviceTimedOut.INSTANCE, response.temperatures.get("device1"));
+    }
 }
@@ -6,6 +6,7 @@ import akka.actor.typed.ActorRef;
 import org.junit.ClassRule;
 import org.junit.Test;
 
+import java.time.Duration;
 import java.util.Collections;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -88,4 +89,186 @@ public class DeviceManagerTest {
         assertEquals(0L, reply.requestId);
         assertEquals(Stream.of("device1", "device2").collect(Collectors.toSet()), reply.ids);
     }
+
+    @Test
+    public void testRecordTemperatureBatchForUnknownGroup() {
+        ActorRef<DeviceManager.Command> managerActor = testKit.spawn(DeviceManager.create());
+        TestProbe<DeviceManager.TemperatureBatchRecorded> probe =
+                testKit.createTestProbe(DeviceManager.TemperatureBatchRecorded.class);
+
+        managerActor.tell(new DeviceManager.RecordTemperatureBatch(
+                1L, "group", new String[] {"device1"}, new double[] {1.0}, new long[] {10L}, probe.getRef()));
+        DeviceManager.TemperatureBatchRecorded recorded = probe.receiveMessage();
+        assertEquals(0, recorded.recorded);
+        assertEquals(Collections.singleton("device1"), recorded.unknownDeviceIds);
+    }
+
+    @Test
+    public void testRouteRecordTemperatureBatchToGroup() {
+        TestProbe<DeviceManager.DeviceRegistered> registeredProbe =
+                testKit.createTestProbe(DeviceManager.DeviceRegistered.class);
+        ActorRef<DeviceManager.Command> managerActor = testKit.spawn(DeviceManager.create());
+
+        managerActor.tell(
+                new DeviceManager.RequestTrackDevice("group", "device1", registeredProbe.getRef()));
+        registeredProbe.receiveMessage();
+
+        TestProbe<DeviceManager.TemperatureBatchRecorded> probe =
+                testKit.createTestProbe(DeviceManager.TemperatureBatchRecorded.class);
+        managerActor.tell(new DeviceManager.RecordTemperatureBatch(
+                2L, "group", new String[] {"device1"}, new double[] {1.0}, new long[] {10L}, probe.getRef()));
+        DeviceManager.TemperatureBatchRecorded recorded = probe.receiveMessage();
+        assertEquals(2L, recorded.requestId);
+        assertEquals(1, recorded.recorded);
+        assertEquals(Collections.emptySet(), recorded.unknownDeviceIds);
+    }
+
+    @Test
+    public void testRouteDeviceEnvelopes() {
+        TestProbe<DeviceManager.DeviceRegistered> probe = testKit.createTestProbe(DeviceManager.DeviceRegistered.class);
+        ActorRef<DeviceManager.Command> managerActor = testKit.spawn(DeviceManager.create());
+        managerActor.tell(new DeviceManager.RequestTrackDevice("group", "device1", probe.getRef()));
+        probe.receiveMessage();
+
+        TestProbe<Device.TemperatureRecorded> recordProbe = testKit.createTestProbe(Device.TemperatureRecorded.class);
+        managerActor.tell(new DeviceManager.DeviceEnvelope(
+                "group", "device1", new Device.RecordTemperature(1L, 3.0, recordProbe.getRef())));
+        assertEquals(1L, recordProbe.receiveMessage().requestId);
+
+        TestProbe<DeviceManager.GroupMetrics> metricsProbe = testKit.createTestProbe(DeviceManager.GroupMetrics.class);
+        managerActor.tell(new DeviceManager.RequestGroupMetrics(2L, "group", metricsProbe.getRef()));
+        assertEquals(1, metricsProbe.receiveMessage().liveDevices);
+        managerActor.tell(new DeviceManager.RequestGroupMetrics(3L, "unknown", metricsProbe.getRef()));
+        DeviceManager.GroupMetrics unknown = metricsProbe.receiveMessage();
+        assertEquals(3L, unknown.requestId);
+        assertEquals(0, unknown.liveDevices);
+        assertEquals(0, unknown.passivatedDevices);
+    }
+
+    @Test
+    public void testQueryTemperaturesOfSeveralGroups() {
+        TestProbe<DeviceManager.DeviceRegistered> probe = testKit.createTestProbe(DeviceManager.DeviceRegistered.class);
+        ActorRef<DeviceManager.Command> managerActor = testKit.spawn(DeviceManager.create());
+        managerActor.tell(new DeviceManager.RequestTrackDevice("group1", "device1", probe.getRef()));
+        probe.receiveMessage();
+        managerActor.tell(new DeviceManager.RequestTrackDevice("group2", "device2", probe.getRef()));
+        probe.receiveMessage();
+        TestProbe<Device.TemperatureRecorded> recordProbe = testKit.createTestProbe(Device.TemperatureRecorded.class);
+        managerActor.tell(new DeviceManager.DeviceEnvelope(
+                "group1", "device1", new Device.RecordTemperature(1L, 19.0, recordProbe.getRef())));
+        recordProbe.receiveMessage();
+
+        TestProbe<DeviceManager.RespondAllTemperatures> allProbe =
+                testKit.createTestProbe(DeviceManager.RespondAllTemperatures.class);
+        managerActor.tell(new DeviceManager.RequestAllTemperatures(2L, "group1", allProbe.getRef()));
+        assertEquals(
+                Collections.singletonMap("device1", new DeviceManager.Temperature(19.0)),
+                allProbe.receiveMessage().temperatures);
+        managerActor.tell(new DeviceManager.RequestAllTemperatures(3L, "unknown", allProbe.getRef()));
+        assertEquals(Collections.emptyMap(), allProbe.receiveMessage().temperatures);
+
+        TestProbe<DeviceManager.RespondGroupsTemperatures> groupsProbe =
+                testKit.createTestProbe(DeviceManager.RespondGroupsTemperatures.class);
+        managerActor.tell(new DeviceManager.RequestGroupsTemperatures(
+                4L, Collections.emptySet(), Duration.ofSeconds(3), groupsProbe.getRef()));
+        DeviceManager.RespondGroupsTemperatures all = groupsProbe.receiveMessage();
+        assertEquals(4L, all.requestId);
+        assertEquals(Stream.of("group1", "group2").collect(Collectors.toSet()), all.temperatures.keySet());
+        assertEquals(
+                Collections.singletonMap("device2", DeviceManager.TemperatureNotAvailable.INSTANCE),
+                all.temperatures.get("group2"));
+
+        managerActor.tell(new DeviceManager.RequestGroupsTemperatures(
+                5L, Stream.of("group2", "group9").collect(Collectors.toSet()), Duration.ofSeconds(3),
+                groupsProbe.getRef()));
+        DeviceManager.RespondGroupsTemperatures some = groupsProbe.receiveMessage();
+        assertEquals(Collections.singleton("group2"), some.temperatures.keySet());
+        assertEquals(Collections.singleton("group9"), some.unknownGroupIds);
+    }
+
+    @Test
+    public void testStreamAllTemperaturesOfAGroup() {
+        TestProbe<DeviceManager.DeviceRegistered> registeredProbe =
+                testKit.createTestProbe(DeviceManager.DeviceRegistered.class);
+        ActorRef<DeviceManager.Command> manager = testKit.spawn(DeviceManager.create());
+
+        manager.tell(new DeviceManager.RequestTrackDevice("group", "device1", registeredProbe.getRef()));
+        registeredProbe.receiveMessage();
+
+        TestProbe<DeviceManager.TemperatureChunk> requester =
+                testKit.createTestProbe(DeviceManager.TemperatureChunk.class);
+        manager.tell(new DeviceManager.RequestAllTemperaturesStream(1L, "group", 10, requester.getRef()));
+        DeviceManager.TemperatureChunk chunk = requester.receiveMessage();
+        assertTrue(chunk.last);
+        assertArrayEquals(new String[] {"device1"}, chunk.deviceIds);
+        assertEquals(DeviceManager.TemperatureNotAvailable.INSTANCE, chunk.readings[0]);
+
+        manager.tell(new DeviceManager.RequestAllTemperaturesStream(2L, "unknown", 10, requester.getRef()));
+        chunk = requester.receiveMessage();
+        assertEquals(2L, chunk.requestId);
+        assertTrue(chunk.last);
+        assertEquals(0, chunk.deviceIds.length);
+    }
+
+    @Test
+    public void testPartitionedManagerRoutesEveryGroupToItsPartition() {
+        TestProbe<DeviceManager.DeviceRegistered> registeredProbe =
+                testKit.createTestProbe(DeviceManager.DeviceRegistered.class);
+        ActorRef<DeviceManager.Command> manager = testKit.spawn(DeviceManager.createPartitioned(4));
+
+        for (int i = 0; i < 8; i++) {
+            manager.tell(new DeviceManager.RequestTrackDevice("group" + i, "device", registeredProbe.getRef()));
+            registeredProbe.receiveMessage();
+        }
+
+        TestProbe<DeviceManager.ReplyDeviceList> listProbe = testKit.createTestProbe(DeviceManager.ReplyDeviceList.class);
+        manager.tell(new DeviceManager.RequestDeviceList(1L, "group5", listProbe.getRef()));
+        assertEquals(Collections.singleton("device"), listProbe.receiveMessage().ids);
+
+        // every group is answered by the partition the routing function gives for it
+        TestProbe<DeviceManager.Partitions> partitionsProbe = testKit.createTestProbe(DeviceManager.Partitions.class);
+        manager.tell(new DeviceManager.RequestPartitions(partitionsProbe.getRef()));
+        DeviceManager.Partitions partitions = partitionsProbe.receiveMessage();
+        assertEquals(4, partitions.partitions.size());
+        for (int i = 0; i < 8; i++) {
+            partitions.partitionFor("group" + i)
+                    .tell(new DeviceManager.RequestDeviceList(i, "group" + i, listProbe.getRef()));
+            assertEquals(Collections.singleton("device"), listProbe.receiveMessage().ids);
+        }
+
+        TestProbe<DeviceManager.RespondGroupsTemperatures> groupsProbe =
+                testKit.createTestProbe(DeviceManager.RespondGroupsTemperatures.class);
+        manager.tell(new DeviceManager.RequestGroupsTemperatures(
+                2L, Collections.emptySet(), Duration.ofSeconds(3), groupsProbe.getRef()));
+        DeviceManager.RespondGroupsTemperatures all = groupsProbe.receiveMessage();
+        assertEquals(2L, all.requestId);
+        assertEquals(8, all.temperatures.size());
+
+        manager.tell(new DeviceManager.RequestGroupsTemperatures(
+                3L, Stream.of("group1", "group6", "group9").collect(Collectors.toSet()), Duration.ofSeconds(3),
+                groupsProbe.getRef()));
+        DeviceManager.RespondGroupsTemperatures some = groupsProbe.receiveMessage();
+        assertEquals(Stream.of("group1", "group6").collect(Collectors.toSet()), some.temperatures.keySet());
+        assertEquals(Collections.singleton("group9"), some.unknownGroupIds);
+    }
+
+    @Test
+    public void testTrackDevicesDirectlyWithTheGroup() {
+        ActorRef<DeviceManager.Command> manager = testKit.spawn(DeviceManager.createPartitioned(2));
+
+        TestProbe<DeviceManager.GroupRef> groupProbe = testKit.createTestProbe(DeviceManager.GroupRef.class);
+        manager.tell(new DeviceManager.RequestGroup("group", groupProbe.getRef()));
+        ActorRef<DeviceGroup.Command> group = groupProbe.receiveMessage().group;
+        manager.tell(new DeviceManager.RequestGroup("group", groupProbe.getRef()));
+        assertEquals(group, groupProbe.receiveMessage().group);
+
+        TestProbe<DeviceManager.DeviceRegistered> registeredProbe =
+                testKit.createTestProbe(DeviceManager.DeviceRegistered.class);
+        group.tell(new DeviceManager.RequestTrackDevice("group", "device", registeredProbe.getRef()));
+        assertNotNull(registeredProbe.receiveMessage().device);
+
+        TestProbe<DeviceManager.ReplyDeviceList> listProbe = testKit.createTestProbe(DeviceManager.ReplyDeviceList.class);
+        manager.tell(new DeviceManager.RequestDeviceList(1L, "group", listProbe.getRef()));
+        assertEquals(Collections.singleton("device"), listProbe.receiveMessage().ids);
+    }
 }
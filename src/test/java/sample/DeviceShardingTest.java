@@ -0,0 +1,106 @@
+package sample;
+
+import akka.actor.testkit.typed.javadsl.ActorTestKit;
+import akka.actor.testkit.typed.javadsl.TestProbe;
+import akka.actor.typed.ActorRef;
+import akka.cluster.MemberStatus;
+import akka.cluster.typed.Cluster;
+import akka.cluster.typed.Join;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/** Two nodes on localhost, so that the groups end up on both and every message crosses the network somewhere. */
+public class DeviceShardingTest {
+
+    private static final Config CLUSTER_CONFIG =
+            ConfigFactory.parseString(
+                    "akka.actor.provider = cluster\n"
+                            + "akka.remote.artery.canonical.hostname = \"127.0.0.1\"\n"
+                            + "akka.remote.artery.canonical.port = 0\n"
+                            + "iot.sharding.remember-entities = off\n")
+                    .withFallback(ConfigFactory.load());
+
+    private static ActorTestKit node1;
+    private static ActorTestKit node2;
+
+    @BeforeClass
+    public static void startCluster() {
+        node1 = ActorTestKit.create("DeviceShardingTest", CLUSTER_CONFIG);
+        node2 = ActorTestKit.create("DeviceShardingTest", CLUSTER_CONFIG);
+        Cluster cluster1 = Cluster.get(node1.system());
+        Cluster cluster2 = Cluster.get(node2.system());
+        cluster1.manager().tell(Join.create(cluster1.selfMember().address()));
+        cluster2.manager().tell(Join.create(cluster1.selfMember().address()));
+        node1.createTestProbe().awaitAssert(
+                Duration.ofSeconds(10),
+                () -> {
+                    assertEquals(MemberStatus.up(), cluster1.selfMember().status());
+                    assertEquals(MemberStatus.up(), cluster2.selfMember().status());
+                    return null;
+                });
+        DeviceSharding.init(node1.system());
+    }
+
+    @AfterClass
+    public static void stopCluster() {
+        node2.shutdownTestKit();
+        node1.shutdownTestKit();
+    }
+
+    @Test
+    public void testTrackRecordAndQueryGroupsOnBothNodes() {
+        ActorRef<DeviceManager.Command> manager =
+                node2.spawn(DeviceSharding.manager(DeviceSharding.init(node2.system())));
+
+        TestProbe<DeviceManager.DeviceRegistered> registeredProbe =
+                node2.createTestProbe(DeviceManager.DeviceRegistered.class);
+        TestProbe<Device.TemperatureRecorded> recordProbe = node2.createTestProbe(Device.TemperatureRecorded.class);
+        Set<String> groupIds = new HashSet<>();
+        int remoteDevices = 0;
+        for (int i = 0; i < 10; i++) {
+            String groupId = "group" + i;
+            groupIds.add(groupId);
+            manager.tell(new DeviceManager.RequestTrackDevice(groupId, "device", registeredProbe.getRef()));
+            ActorRef<Device.Command> device = registeredProbe.receiveMessage(Duration.ofSeconds(10)).device;
+            if (device.path().address().hasGlobalScope()) {
+                remoteDevices++;
+            }
+            device.tell(new Device.RecordTemperature(i, i, recordProbe.getRef()));
+            assertEquals(i, recordProbe.receiveMessage().requestId);
+        }
+        assertTrue("some groups run on node1", remoteDevices > 0);
+        assertTrue("some groups run on node2", remoteDevices < 10);
+
+        TestProbe<DeviceManager.RespondAllTemperatures> allProbe =
+                node2.createTestProbe(DeviceManager.RespondAllTemperatures.class);
+        manager.tell(new DeviceManager.RequestAllTemperatures(1L, "group3", allProbe.getRef()));
+        assertEquals(
+                Collections.singletonMap("device", new DeviceManager.Temperature(3.0)),
+                allProbe.receiveMessage().temperatures);
+
+        manager.tell(new DeviceManager.DeviceEnvelope(
+                "group4", "device", new Device.RecordTemperature(40L, 40.0, recordProbe.getRef())));
+        assertEquals(40L, recordProbe.receiveMessage().requestId);
+
+        TestProbe<DeviceManager.RespondGroupsTemperatures> groupsProbe =
+                node2.createTestProbe(DeviceManager.RespondGroupsTemperatures.class);
+        manager.tell(new DeviceManager.RequestGroupsTemperatures(
+                2L, new HashSet<>(Arrays.asList("group4", "group5")), Duration.ofSeconds(3), groupsProbe.getRef()));
+        DeviceManager.RespondGroupsTemperatures groups = groupsProbe.receiveMessage(Duration.ofSeconds(5));
+        assertEquals(new DeviceManager.Temperature(40.0), groups.temperatures.get("group4").get("device"));
+        assertEquals(new DeviceManager.Temperature(5.0), groups.temperatures.get("group5").get("device"));
+        assertTrue(groups.timedOutGroupIds.isEmpty());
+    }
+}
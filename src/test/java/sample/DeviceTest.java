@@ -6,9 +6,11 @@ import akka.actor.typed.ActorRef;
 import org.junit.ClassRule;
 import org.junit.Test;
 
-import java.util.Optional;
+import java.time.Duration;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 public class DeviceTest {
 
@@ -22,7 +24,7 @@ public class DeviceTest {
         deviceActor.tell(new Device.ReadTemperature(42L, probe.getRef()));
         Device.RespondTemperature response = probe.receiveMessage();
         assertEquals(42L, response.requestId);
-        assertEquals(Optional.empty(), response.value);
+        assertFalse(response.hasValue);
     }
 
     @Test
@@ -37,7 +39,8 @@ public class DeviceTest {
         deviceActor.tell(new Device.ReadTemperature(2L, readProbe.getRef()));
         Device.RespondTemperature response1 = readProbe.receiveMessage();
         assertEquals(2L, response1.requestId);
-        assertEquals(Optional.of(24.0), response1.value);
+        assertTrue(response1.hasValue);
+        assertEquals(24.0, response1.value, 0.0);
 
         deviceActor.tell(new Device.RecordTemperature(3L, 55.0, recordProbe.getRef()));
         assertEquals(3L, recordProbe.receiveMessage().requestId);
@@ -45,6 +48,84 @@ public class DeviceTest {
         deviceActor.tell(new Device.ReadTemperature(4L, readProbe.getRef()));
         Device.RespondTemperature response2 = readProbe.receiveMessage();
         assertEquals(4L, response2.requestId);
-        assertEquals(Optional.of(55.0), response2.value);
+        assertTrue(response2.hasValue);
+        assertEquals(55.0, response2.value, 0.0);
+    }
+
+    @Test
+    public void testNoAckRecordingIsOnlyCoveredByWatermark() {
+        TestProbe<Device.TemperatureRecorded> ackProbe = testKit.createTestProbe(Device.TemperatureRecorded.class);
+        TestProbe<Device.RespondTemperature> readProbe = testKit.createTestProbe(Device.RespondTemperature.class);
+        DeviceSettings settings =
+                DeviceSettings.forGroup(testKit.system().settings().config(), "group")
+                        .withAckInterval(Duration.ofMillis(100));
+        ActorRef<Device.Command> deviceActor = testKit.spawn(Device.create("group", "device", settings));
+
+        deviceActor.tell(new Device.SubscribeAckWatermark(ackProbe.getRef()));
+        deviceActor.tell(new Device.RecordTemperatureNoAck(1L, 24.0));
+        deviceActor.tell(new Device.RecordTemperatureNoAck(2L, 25.0));
+        deviceActor.tell(new Device.RecordTemperatureNoAck(3L, 26.0));
+
+        deviceActor.tell(new Device.ReadTemperature(4L, readProbe.getRef()));
+        assertEquals(26.0, readProbe.receiveMessage().value, 0.0);
+
+        assertEquals(3L, ackProbe.receiveMessage().requestId);
+        // nothing recorded since the last watermark
+        ackProbe.expectNoMessage(Duration.ofMillis(300));
+
+        // an older request arriving late does not move the watermark back
+        deviceActor.tell(new Device.RecordTemperatureNoAck(5L, 27.0));
+        deviceActor.tell(new Device.RecordTemperatureNoAck(4L, 26.5));
+        assertEquals(5L, ackProbe.receiveMessage().requestId);
+
+        deviceActor.tell(new Device.UnsubscribeAckWatermark(ackProbe.getRef()));
+        deviceActor.tell(new Device.RecordTemperatureNoAck(6L, 28.0));
+        ackProbe.expectNoMessage(Duration.ofMillis(300));
+    }
+
+    @Test
+    public void testPushConflatedTemperatureChanges() {
+        TestProbe<Device.TemperatureChanged> probe = testKit.createTestProbe(Device.TemperatureChanged.class);
+        ActorRef<Device.Command> deviceActor = testKit.spawn(Device.create("group", "device"));
+        deviceActor.tell(new Device.RecordTemperatureNoAck(1L, 20.0));
+        deviceActor.tell(new Device.SubscribeTemperature(1.0, Duration.ofMillis(300), probe.getRef()));
+        assertEquals(20.0, probe.receiveMessage().value, 0.0);
+
+        // less than minDelta from what the subscriber has
+        deviceActor.tell(new Device.RecordTemperatureNoAck(2L, 20.5));
+        // within the interval, only the latest is sent once it is over
+        deviceActor.tell(new Device.RecordTemperatureNoAck(3L, 22.0));
+        deviceActor.tell(new Device.RecordTemperatureNoAck(4L, 23.0));
+        deviceActor.tell(new Device.RecordTemperatureNoAck(5L, 24.0));
+        Device.TemperatureChanged changed = probe.receiveMessage();
+        assertEquals("device", changed.deviceId);
+        assertEquals(24.0, changed.value, 0.0);
+        probe.expectNoMessage(Duration.ofMillis(400));
+
+        deviceActor.tell(new Device.UnsubscribeTemperature(probe.getRef()));
+        deviceActor.tell(new Device.RecordTemperatureNoAck(6L, 30.0));
+        probe.expectNoMessage(Duration.ofMillis(400));
+    }
+
+    @Test
+    public void testReplyWithAggregateOverHistory() {
+        TestProbe<Device.RespondAggregate> probe = testKit.createTestProbe(Device.RespondAggregate.class);
+        DeviceSettings settings =
+                DeviceSettings.forGroup(testKit.system().settings().config(), "group").withHistoryCapacity(16);
+        ActorRef<Device.Command> deviceActor = testKit.spawn(Device.create("group", "device", settings));
+
+        double[] values = {20.0, 22.0, 24.0, 26.0};
+        long[] timestamps = {1000L, 2000L, 3000L, 4000L};
+        deviceActor.tell(new Device.RecordTemperatures(values, timestamps, new int[] {0, 1, 2, 3}));
+
+        deviceActor.tell(new Device.ReadAggregate(1L, 2000L, 3000L, probe.getRef()));
+        Device.RespondAggregate aggregate = probe.receiveMessage();
+        assertEquals(1L, aggregate.requestId);
+        assertEquals("device", aggregate.deviceId);
+        assertEquals(2, aggregate.count);
+        assertEquals(22.0, aggregate.min, 0.0);
+        assertEquals(24.0, aggregate.max, 0.0);
+        assertEquals(23.0, aggregate.mean, 0.0);
+        assertEquals(24.0, aggregate.p95, 0.0);
     }
 }
@@ -0,0 +1,71 @@
+package sample;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class IdTableTest {
+
+    @Test
+    public void testReuseNumbersOfRemovedIds() {
+        IdTable table = new IdTable(4);
+        assertEquals(0, table.add("device1"));
+        assertEquals(1, table.add("device2"));
+        assertEquals(0, table.add("device1"));
+        assertEquals(2, table.size());
+
+        assertEquals(0, table.remove("device1"));
+        assertEquals(-1, table.remove("device1"));
+        assertEquals(-1, table.numberOf("device1"));
+        assertNull(table.id(0));
+
+        assertEquals(0, table.add("device3"));
+        assertEquals("device3", table.id(0));
+        assertEquals(2, table.highWater());
+    }
+
+    @Test
+    public void testFindIdsPastRemovedCollisions() {
+        // "Aa", "BB" and "AaAa", "BBBB", "AaBB" have the same hash codes
+        IdTable table = new IdTable(4);
+        for (String id : new String[] {"Aa", "BB", "AaAa", "BBBB", "AaBB"}) {
+            table.add(id);
+        }
+        table.remove("Aa");
+        table.remove("AaAa");
+        assertEquals(1, table.numberOf("BB"));
+        assertEquals(3, table.numberOf("BBBB"));
+        assertEquals(4, table.numberOf("AaBB"));
+        assertEquals(-1, table.numberOf("Aa"));
+    }
+
+    @Test
+    public void testAgreeWithHashMap() {
+        IdTable table = new IdTable(16);
+        Map<String, Integer> expected = new HashMap<>();
+        Random random = new Random(23);
+        for (int i = 0; i < 200_000; i++) {
+            String id = "device" + random.nextInt(5_000);
+            if (random.nextInt(3) == 0) {
+                Integer number = expected.remove(id);
+                assertEquals(number == null ? -1 : number, table.remove(id));
+            } else {
+                int number = table.add(id);
+                Integer previous = expected.put(id, number);
+                if (previous != null) {
+                    assertEquals((int) previous, number);
+                }
+            }
+        }
+        assertEquals(expected.size(), table.size());
+        for (Map.Entry<String, Integer> entry : expected.entrySet()) {
+            assertEquals((int) entry.getValue(), table.numberOf(entry.getKey()));
+            assertEquals(entry.getKey(), table.id(entry.getValue()));
+        }
+    }
+}
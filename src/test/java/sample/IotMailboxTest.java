@@ -0,0 +1,154 @@
+package sample;
+
+import akka.dispatch.Envelope;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class IotMailboxTest {
+
+    private static void enqueue(IotMailbox.Queue queue, Object message) {
+        queue.enqueue(null, new Envelope(message, null));
+    }
+
+    private static Object dequeue(IotMailbox.Queue queue) {
+        return queue.dequeue().message();
+    }
+
+    @Test
+    public void testServeControlMessagesFirstWithPriority() {
+        IotMailbox.Queue queue = new IotMailbox.Queue(0, true, false, 0, new MailboxMetrics.Counters(), null);
+        Device.RecordTemperatureNoAck reading = new Device.RecordTemperatureNoAck(1L, 1.0);
+        Device.ReadTemperature read = new Device.ReadTemperature(2L, null);
+        enqueue(queue, reading);
+        enqueue(queue, read);
+        enqueue(queue, Device.Passivate.INSTANCE);
+
+        assertSame(read, dequeue(queue));
+        assertSame(Device.Passivate.INSTANCE, dequeue(queue));
+        assertSame(reading, dequeue(queue));
+        assertFalse(queue.hasMessages());
+
+        IotMailbox.Queue fifo = new IotMailbox.Queue(0, false, false, 0, new MailboxMetrics.Counters(), null);
+        enqueue(fifo, reading);
+        enqueue(fifo, read);
+        assertSame(reading, dequeue(fifo));
+        assertSame(read, dequeue(fifo));
+    }
+
+    @Test
+    public void testDropOnlyUnacknowledgedReadingsWhenFull() {
+        MailboxMetrics.Counters counters = new MailboxMetrics.Counters();
+        IotMailbox.Queue queue = new IotMailbox.Queue(2, false, false, 0, counters, null);
+        for (int i = 0; i < 5; i++) {
+            enqueue(queue, new Device.RecordTemperatureNoAck(i, i));
+        }
+        assertEquals(2, queue.numberOfMessages());
+        assertEquals(3L, counters.dropped.sum());
+
+        // whoever sent these waits for them
+        enqueue(queue, new Device.RecordTemperature(5L, 5.0, null));
+        enqueue(queue, Device.Passivate.INSTANCE);
+        assertEquals(4, queue.numberOfMessages());
+        assertEquals(3L, counters.dropped.sum());
+
+        assertEquals(0L, ((Device.RecordTemperatureNoAck) dequeue(queue)).requestId);
+        assertEquals(1L, ((Device.RecordTemperatureNoAck) dequeue(queue)).requestId);
+        assertEquals(5L, ((Device.RecordTemperature) dequeue(queue)).requestId);
+        assertSame(Device.Passivate.INSTANCE, dequeue(queue));
+        assertFalse(queue.hasMessages());
+    }
+
+    @Test
+    public void testDropOnlyUnacknowledgedReadingsOfGroupsWhenFull() {
+        MailboxMetrics.Counters counters = new MailboxMetrics.Counters();
+        IotMailbox.Queue queue = new IotMailbox.Queue(2, false, false, 0, counters, null);
+        enqueue(queue, new DeviceGroup.ReadingUpdated("device1", 1.0));
+        enqueue(queue, new DeviceManager.DeviceEnvelope(
+                "group", "device1", new Device.RecordTemperatureNoAck(1L, 1.0)));
+        enqueue(queue, new DeviceGroup.ReadingUpdated("device2", 2.0));
+        enqueue(queue, new DeviceManager.DeviceEnvelope(
+                "group", "device2", new Device.RecordTemperatureNoAck(2L, 2.0)));
+        assertEquals(2, queue.numberOfMessages());
+        assertEquals(2L, counters.dropped.sum());
+
+        DeviceManager.DeviceEnvelope acked =
+                new DeviceManager.DeviceEnvelope("group", "device2", new Device.RecordTemperature(3L, 3.0, null));
+        enqueue(queue, acked);
+        assertEquals(3, queue.numberOfMessages());
+        assertEquals(2L, counters.dropped.sum());
+
+        assertEquals("device1", ((DeviceGroup.ReadingUpdated) dequeue(queue)).deviceId);
+        assertEquals("device1", ((DeviceManager.DeviceEnvelope) dequeue(queue)).deviceId);
+        assertSame(acked, dequeue(queue));
+        assertFalse(queue.hasMessages());
+    }
+
+    @Test
+    public void testCoalesceReadingsThatDoNotFit() {
+        MailboxMetrics.Counters counters = new MailboxMetrics.Counters();
+        IotMailbox.Queue queue = new IotMailbox.Queue(2, false, true, 0, counters, null);
+        Device.RecordTemperature acked = new Device.RecordTemperature(0L, 0.0, null);
+        enqueue(queue, acked);
+        enqueue(queue, new Device.RecordTemperatureNoAck(1L, 1.0));
+        enqueue(queue, new Device.RecordTemperatureNoAck(2L, 2.0));
+        // replaces the reading kept aside
+        enqueue(queue, new Device.RecordTemperatureNoAck(3L, 3.0));
+        Device.ReadTemperature read = new Device.ReadTemperature(4L, null);
+        enqueue(queue, read);
+        assertEquals(4, queue.numberOfMessages());
+        assertEquals(1L, counters.coalesced.sum());
+        assertEquals(0L, counters.dropped.sum());
+
+        assertSame(acked, dequeue(queue));
+        assertEquals(1L, ((Device.RecordTemperatureNoAck) dequeue(queue)).requestId);
+        // the read came after the reading kept aside, which was queued ahead of it
+        enqueue(queue, new Device.RecordTemperatureNoAck(5L, 5.0));
+        assertEquals(3L, ((Device.RecordTemperatureNoAck) dequeue(queue)).requestId);
+        assertSame(read, dequeue(queue));
+        assertEquals(5L, ((Device.RecordTemperatureNoAck) dequeue(queue)).requestId);
+        assertFalse(queue.hasMessages());
+        assertEquals(1L, counters.coalesced.sum());
+        assertEquals(0L, counters.depth.sum());
+    }
+
+    @Test
+    public void testLaterAcknowledgedReadingWins() {
+        MailboxMetrics.Counters counters = new MailboxMetrics.Counters();
+        IotMailbox.Queue queue = new IotMailbox.Queue(1, false, true, 0, counters, null);
+        enqueue(queue, new Device.RecordTemperatureNoAck(0L, 0.0));
+        enqueue(queue, new Device.RecordTemperatureNoAck(1L, 1.0));
+        enqueue(queue, new Device.RecordTemperature(2L, 2.0, null));
+        enqueue(queue, new Device.RecordTemperatureNoAck(3L, 3.0));
+
+        assertEquals(0L, ((Device.RecordTemperatureNoAck) dequeue(queue)).requestId);
+        assertEquals(1L, ((Device.RecordTemperatureNoAck) dequeue(queue)).requestId);
+        assertEquals(2L, ((Device.RecordTemperature) dequeue(queue)).requestId);
+        assertEquals(3L, ((Device.RecordTemperatureNoAck) dequeue(queue)).requestId);
+        assertFalse(queue.hasMessages());
+        assertEquals(0L, counters.depth.sum());
+    }
+
+    @Test
+    public void testCountQueuedMessagesAndTheirWait() throws Exception {
+        MailboxMetrics.Counters counters = new MailboxMetrics.Counters();
+        IotMailbox.Queue queue = new IotMailbox.Queue(3, false, true, 1, counters, null);
+        for (int i = 0; i < 3; i++) {
+            enqueue(queue, new Device.RecordTemperatureNoAck(i, i));
+        }
+        assertEquals(3L, counters.depth.sum());
+        // kept aside
+        enqueue(queue, new Device.RecordTemperatureNoAck(3L, 3.0));
+        assertEquals(4L, counters.depth.sum());
+
+        Thread.sleep(2);
+        for (int i = 0; i < 4; i++) {
+            dequeue(queue);
+        }
+        assertNull(queue.dequeue());
+        assertEquals(0L, counters.depth.sum());
+        // the first one, the others were queued while it was timed
+        assertEquals(1L, counters.waiting.count());
+        assertTrue(counters.waiting.valueAt(1.0) >= 2_000_000L);
+    }
+}
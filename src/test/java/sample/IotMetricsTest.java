@@ -0,0 +1,110 @@
+package sample;
+
+import akka.actor.testkit.typed.javadsl.TestKitJunitResource;
+import akka.actor.testkit.typed.javadsl.TestProbe;
+import akka.actor.typed.ActorRef;
+import com.typesafe.config.ConfigFactory;
+import org.junit.ClassRule;
+import org.junit.Test;
+
+import javax.management.ObjectName;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class IotMetricsTest {
+
+    private static final int PORT = freePort();
+
+    @ClassRule
+    public static final TestKitJunitResource testKit =
+            new TestKitJunitResource(ConfigFactory.parseString(
+                    "iot.metrics.time-every = 1\n"
+                            + "iot.metrics.prometheus {\n"
+                            + "  enabled = on\n"
+                            + "  port = " + PORT + "\n"
+                            + "}\n"));
+
+    private static int freePort() {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static String scrape() throws IOException {
+        HttpURLConnection connection =
+                (HttpURLConnection) new URL("http://127.0.0.1:" + PORT + "/metrics").openConnection();
+        assertEquals(200, connection.getResponseCode());
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try (InputStream in = connection.getInputStream()) {
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                body.write(buffer, 0, n);
+            }
+        }
+        return new String(body.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testCountMessagesDevicesAndQueries() throws Exception {
+        ActorRef<DeviceManager.Command> manager = testKit.spawn(DeviceManager.create());
+        TestProbe<DeviceManager.DevicesRegistered> registeredProbe =
+                testKit.createTestProbe(DeviceManager.DevicesRegistered.class);
+        manager.tell(new DeviceManager.RequestTrackDevices(
+                0L, "metrics", Arrays.asList("device1", "device2"), registeredProbe.getRef()));
+        DeviceManager.DevicesRegistered registered = registeredProbe.receiveMessage();
+
+        TestProbe<Device.TemperatureRecorded> recordProbe = testKit.createTestProbe(Device.TemperatureRecorded.class);
+        registered.devices.get("device1").tell(new Device.RecordTemperature(1L, 21.0, recordProbe.getRef()));
+        recordProbe.receiveMessage();
+
+        TestProbe<DeviceManager.RespondAllTemperatures> queryProbe =
+                testKit.createTestProbe(DeviceManager.RespondAllTemperatures.class);
+        manager.tell(new DeviceManager.RequestAllTemperatures(2L, "metrics", queryProbe.getRef()));
+        queryProbe.receiveMessage();
+
+        IotMetrics metrics = IotMetrics.get(testKit.system());
+        assertTrue(metrics.enabled());
+        assertEquals(1L, metrics.messages(IotProps.DEVICE, Device.RecordTemperature.class));
+        assertEquals(1L, metrics.messages(IotProps.GROUP, DeviceManager.RequestTrackDevices.class));
+        assertEquals(1L, metrics.messages(IotProps.MANAGER, DeviceManager.RequestAllTemperatures.class));
+        assertTrue(metrics.messages(IotProps.QUERY, DeviceGroupQuery.WrappedRespondTemperature.class) >= 1L);
+        assertTrue(metrics.queries() >= 1L);
+
+        String text = scrape();
+        assertTrue(text, text.contains("# TYPE iot_messages_total counter\n"));
+        // handled by the manager the test spawned, which has the default mailbox
+        assertTrue(text, text.contains(
+                "iot_message_handling_seconds_count{actor=\"manager\",type=\"sample.DeviceManager$RequestAllTemperatures\"} 1.0\n"));
+        assertTrue(text, text.contains(
+                "iot_message_handling_seconds_count{actor=\"device\",type=\"sample.Device$RecordTemperature\"} 1.0\n"));
+        assertTrue(text, text.contains("iot_group_devices{group=\"metrics\",state=\"live\"} 2.0\n"));
+        assertTrue(text, text.contains("iot_query_fanout_count "));
+        assertTrue(text, text.contains("iot_mailbox_depth{mailbox=\"device\"} "));
+        assertTrue(text, text.contains("iot_mailbox_wait_seconds{mailbox=\"device\",quantile=\"0.99\"} "));
+
+        ObjectName name = new ObjectName("sample:type=IotMetrics,system=" + testKit.system().name());
+        Object total = ManagementFactory.getPlatformMBeanServer().getAttribute(name, "iot_queries_total");
+        assertEquals((double) metrics.queries(), (Double) total, 0.0);
+    }
+
+    @Test
+    public void testEscapeLabelValues() {
+        IotMetrics.Family family = new IotMetrics.Family("f", "gauge", "");
+        family.add(1.0, "group", "a\"b\\c");
+        assertEquals("f{group=\"a\\\"b\\\\c\"}", family.samples.get(0).key());
+    }
+}
@@ -0,0 +1,43 @@
+package sample;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testCountSmallValuesExactly() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i);
+        }
+        assertEquals(100L, histogram.count());
+        assertEquals(5050L, histogram.sum());
+        assertEquals(50L, histogram.valueAt(0.5));
+        assertEquals(99L, histogram.valueAt(0.99));
+        assertEquals(100L, histogram.valueAt(1.0));
+    }
+
+    @Test
+    public void testKeepLargeValuesWithinTwoPercent() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long value = 1_000L; value <= 1_000_000_000L; value *= 10) {
+            histogram.record(value);
+        }
+        long p50 = histogram.valueAt(0.5);
+        assertTrue(String.valueOf(p50), p50 >= 1_000_000L && p50 < 1_020_000L);
+        long max = histogram.valueAt(1.0);
+        assertTrue(String.valueOf(max), max >= 1_000_000_000L && max < 1_020_000_000L);
+        assertEquals(0L, new LatencyHistogram().valueAt(0.5));
+    }
+
+    @Test
+    public void testBucketsAreContiguous() {
+        for (int index = 1; index < 2000; index++) {
+            assertEquals(index, LatencyHistogram.indexOf(LatencyHistogram.highestValueAt(index - 1) + 1));
+            assertEquals(index, LatencyHistogram.indexOf(LatencyHistogram.highestValueAt(index)));
+        }
+    }
+}
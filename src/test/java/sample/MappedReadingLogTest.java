@@ -0,0 +1,147 @@
+package sample;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class MappedReadingLogTest {
+
+    // room for 4 records per segment
+    private static final int SEGMENT_SIZE = 8 + 4 * MappedReadingLog.RECORD_SIZE;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testAggregateAcrossSegments() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        try (MappedReadingLog log = MappedReadingLog.open(directory, SEGMENT_SIZE, 100)) {
+            ReadingStore device1 = log.forDevice(log.indexOf("device1"));
+            ReadingStore device2 = log.forDevice(log.indexOf("device2"));
+            for (int i = 1; i <= 10; i++) {
+                device1.append(i, i);
+                device2.append(i, -i);
+            }
+            assertEquals(5, log.segmentCount());
+
+            Device.RespondAggregate all = device1.aggregate(1L, "device1", 0L, Long.MAX_VALUE);
+            assertEquals(10, all.count);
+            assertEquals(1.0, all.min, 0.0);
+            assertEquals(10.0, all.max, 0.0);
+            assertEquals(5.5, all.mean, 1e-9);
+            assertEquals(10.0, all.p95, 0.0);
+
+            Device.RespondAggregate window = device2.aggregate(2L, "device2", 3L, 6L);
+            assertEquals(4, window.count);
+            assertEquals(-6.0, window.min, 0.0);
+            assertEquals(-3.0, window.max, 0.0);
+        }
+    }
+
+    @Test
+    public void testCompactionKeepsLatestReadingPerDevice() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        try (MappedReadingLog log = MappedReadingLog.open(directory, SEGMENT_SIZE, 2)) {
+            ReadingStore device1 = log.forDevice(log.indexOf("device1"));
+            ReadingStore device2 = log.forDevice(log.indexOf("device2"));
+            // fills three segments and starts a fourth, the three full ones are compacted into one
+            for (int i = 1; i <= 6; i++) {
+                device1.append(i, i);
+                device2.append(i, -i);
+            }
+            device1.append(7L, 7.0);
+            assertEquals(2, log.segmentCount());
+
+            Device.RespondAggregate device1Readings = device1.aggregate(1L, "device1", 0L, Long.MAX_VALUE);
+            assertEquals(2, device1Readings.count);
+            assertEquals(6.0, device1Readings.min, 0.0);
+            assertEquals(7.0, device1Readings.max, 0.0);
+
+            Device.RespondAggregate device2Readings = device2.aggregate(2L, "device2", 0L, Long.MAX_VALUE);
+            assertEquals(1, device2Readings.count);
+            assertEquals(-6.0, device2Readings.mean, 0.0);
+        }
+    }
+
+    @Test
+    public void testReopen() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        try (MappedReadingLog log = MappedReadingLog.open(directory, SEGMENT_SIZE, 100)) {
+            log.indexOf("device1");
+            ReadingStore device2 = log.forDevice(log.indexOf("device2"));
+            for (int i = 1; i <= 5; i++) {
+                device2.append(i, i);
+            }
+        }
+
+        try (MappedReadingLog log = MappedReadingLog.open(directory, SEGMENT_SIZE, 100)) {
+            assertEquals(1, log.indexOf("device2"));
+            assertEquals(2, log.segmentCount());
+            ReadingStore device2 = log.forDevice(1);
+            device2.append(6L, 6.0);
+
+            Device.RespondAggregate aggregate = device2.aggregate(1L, "device2", 0L, Long.MAX_VALUE);
+            assertEquals(6, aggregate.count);
+            assertEquals(3.5, aggregate.mean, 1e-9);
+            assertEquals(0, log.forDevice(log.indexOf("device3")).aggregate(2L, "device3", 0L, 10L).count);
+        }
+    }
+
+    @Test
+    public void testReopenAfterInterruptedCompaction() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        try (MappedReadingLog log = MappedReadingLog.open(directory, SEGMENT_SIZE, 2)) {
+            ReadingStore device1 = log.forDevice(log.indexOf("device1"));
+            // the three full segments are compacted into the one with sequence 3, the 13th reading starts 4
+            for (int i = 1; i <= 13; i++) {
+                device1.append(i, i);
+            }
+            assertEquals(2, log.segmentCount());
+        }
+        // a compaction that stopped after writing its temporary file, and one that stopped before deleting
+        // the segments it compacted
+        Files.write(directory.resolve("compacting.log"), new byte[SEGMENT_SIZE]);
+        Files.copy(directory.resolve(segment(4L)), directory.resolve(segment(0L)));
+
+        try (MappedReadingLog log = MappedReadingLog.open(directory, SEGMENT_SIZE, 2)) {
+            assertEquals(2, log.segmentCount());
+            assertFalse(Files.exists(directory.resolve("compacting.log")));
+            assertFalse(Files.exists(directory.resolve(segment(0L))));
+            ReadingStore device1 = log.forDevice(log.indexOf("device1"));
+            // the one kept by the compaction and the one after it
+            assertEquals(2, device1.aggregate(1L, "device1", 0L, Long.MAX_VALUE).count);
+
+            // compacts again, the temporary file is created anew
+            for (int i = 14; i <= 21; i++) {
+                device1.append(i, i);
+            }
+            assertEquals(2, log.segmentCount());
+            Device.RespondAggregate aggregate = device1.aggregate(2L, "device1", 0L, Long.MAX_VALUE);
+            assertEquals(2, aggregate.count);
+            assertEquals(20.0, aggregate.min, 0.0);
+        }
+        try (Stream<Path> files = Files.list(directory)) {
+            assertEquals(
+                    Stream.of("devices", "segment-00000000000000000006.compacted", segment(7L))
+                            .collect(Collectors.toSet()),
+                    files.map(file -> file.getFileName().toString()).collect(Collectors.toSet()));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectMoreSegmentsThanCompactionCanNumber() {
+        MappedReadingLog.open(folder.getRoot().toPath(), SEGMENT_SIZE, MappedReadingLog.MAX_SEGMENTS + 1);
+    }
+
+    private static String segment(long sequence) {
+        return String.format("segment-%020d.log", sequence);
+    }
+}
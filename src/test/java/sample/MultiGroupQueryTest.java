@@ -0,0 +1,93 @@
+package sample;
+
+import akka.actor.testkit.typed.javadsl.TestKitJunitResource;
+import akka.actor.testkit.typed.javadsl.TestProbe;
+import akka.actor.typed.ActorRef;
+import org.junit.ClassRule;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+public class MultiGroupQueryTest {
+
+    @ClassRule
+    public static final TestKitJunitResource testKit = new TestKitJunitResource();
+
+    private static DeviceManager.RequestAllTemperatures expectRequest(TestProbe<DeviceGroup.Command> group) {
+        return group.expectMessageClass(DeviceManager.RequestAllTemperatures.class);
+    }
+
+    @Test
+    public void testMergeAnswersOfAllGroups() {
+        TestProbe<DeviceManager.RespondGroupsTemperatures> requester =
+                testKit.createTestProbe(DeviceManager.RespondGroupsTemperatures.class);
+        TestProbe<DeviceGroup.Command> group1 = testKit.createTestProbe(DeviceGroup.Command.class);
+        TestProbe<DeviceGroup.Command> group2 = testKit.createTestProbe(DeviceGroup.Command.class);
+        Map<String, ActorRef<DeviceGroup.Command>> groups = new HashMap<>();
+        groups.put("group1", group1.getRef());
+        groups.put("group2", group2.getRef());
+
+        testKit.spawn(MultiGroupQuery.create(
+                groups,
+                Collections.singleton("group3"),
+                new DeviceManager.RequestGroupsTemperatures(
+                        1L, Collections.emptySet(), Duration.ofSeconds(3), requester.getRef())));
+
+        DeviceManager.RequestAllTemperatures request1 = expectRequest(group1);
+        DeviceManager.RequestAllTemperatures request2 = expectRequest(group2);
+        // less the slack their answers get to arrive in
+        assertEquals(Duration.ofMillis(2900), request1.timeout);
+        assertEquals(Duration.ofMillis(2900), request2.timeout);
+        Map<String, DeviceManager.TemperatureReading> readings1 =
+                Collections.singletonMap("device1", new DeviceManager.Temperature(1.0));
+        Map<String, DeviceManager.TemperatureReading> readings2 =
+                Collections.singletonMap("device2", DeviceManager.TemperatureNotAvailable.INSTANCE);
+        request2.replyTo.tell(new DeviceManager.RespondAllTemperatures(request2.requestId, readings2));
+        request1.replyTo.tell(new DeviceManager.RespondAllTemperatures(request1.requestId, readings1));
+
+        DeviceManager.RespondGroupsTemperatures response = requester.receiveMessage();
+        assertEquals(1L, response.requestId);
+        Map<String, Map<String, DeviceManager.TemperatureReading>> expected = new HashMap<>();
+        expected.put("group1", readings1);
+        expected.put("group2", readings2);
+        assertEquals(expected, response.temperatures);
+        assertEquals(Collections.emptySet(), response.timedOutGroupIds);
+        assertEquals(Collections.singleton("group3"), response.unknownGroupIds);
+    }
+
+    @Test
+    public void testPartialResultAtDeadline() {
+        TestProbe<DeviceManager.RespondGroupsTemperatures> requester =
+                testKit.createTestProbe(DeviceManager.RespondGroupsTemperatures.class);
+        TestProbe<DeviceGroup.Command> group1 = testKit.createTestProbe(DeviceGroup.Command.class);
+        TestProbe<DeviceGroup.Command> slow = testKit.createTestProbe(DeviceGroup.Command.class);
+        TestProbe<DeviceGroup.Command> stopped = testKit.createTestProbe(DeviceGroup.Command.class);
+        Map<String, ActorRef<DeviceGroup.Command>> groups = new HashMap<>();
+        groups.put("group1", group1.getRef());
+        groups.put("slow", slow.getRef());
+        groups.put("stopped", stopped.getRef());
+
+        testKit.spawn(MultiGroupQuery.create(
+                groups,
+                Collections.emptySet(),
+                new DeviceManager.RequestGroupsTemperatures(
+                        2L, Collections.emptySet(), Duration.ofMillis(300), requester.getRef())));
+
+        DeviceManager.RequestAllTemperatures request1 = expectRequest(group1);
+        assertEquals(Duration.ofMillis(270), request1.timeout);
+        expectRequest(slow);
+        expectRequest(stopped);
+        request1.replyTo.tell(new DeviceManager.RespondAllTemperatures(request1.requestId, Collections.emptyMap()));
+        stopped.stop();
+
+        DeviceManager.RespondGroupsTemperatures response = requester.receiveMessage();
+        assertEquals(Collections.singleton("group1"), response.temperatures.keySet());
+        assertEquals(Collections.singleton("slow"), response.timedOutGroupIds);
+        assertEquals(Collections.singleton("stopped"), response.unknownGroupIds);
+    }
+}
@@ -0,0 +1,228 @@
+package sample;
+
+import akka.actor.testkit.typed.javadsl.ActorTestKit;
+import akka.actor.testkit.typed.javadsl.TestKitJunitResource;
+import akka.actor.testkit.typed.javadsl.TestProbe;
+import akka.actor.typed.ActorRef;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import org.junit.ClassRule;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PersistentDeviceTest {
+
+    @ClassRule
+    public static final TestKitJunitResource testKit =
+            new TestKitJunitResource(ConfigFactory.parseString(
+                    "akka.persistence.journal.inmem.test-serialization = on\n"
+                            + "akka.persistence.snapshot-store.local.dir = \"target/snapshots-"
+                            + System.nanoTime() + "\"\n"
+                            + "iot.groups.persistent {\n"
+                            + "  ack-interval = 100ms\n"
+                            + "  persistence {\n"
+                            + "    enabled = on\n"
+                            + "    journal-plugin = \"akka.persistence.journal.inmem\"\n"
+                            + "    snapshot-every = 2\n"
+                            + "    write-batch-size = 3\n"
+                            + "    write-batch-interval = 200ms\n"
+                            + "  }\n"
+                            + "}\n"));
+
+    private static DeviceSettings settings() {
+        return DeviceSettings.forGroup(testKit.system().settings().config(), "persistent");
+    }
+
+    @Test
+    public void testRecoverLastReadingAfterRestart() {
+        TestProbe<Device.TemperatureRecorded> recordProbe = testKit.createTestProbe(Device.TemperatureRecorded.class);
+        TestProbe<Device.RespondTemperature> readProbe = testKit.createTestProbe(Device.RespondTemperature.class);
+
+        ActorRef<Device.Command> device = testKit.spawn(PersistentDevice.create("persistent", "device1", settings()));
+        device.tell(new Device.ReadTemperature(0L, readProbe.getRef()));
+        assertFalse(readProbe.receiveMessage().hasValue);
+        for (long i = 1; i <= 5; i++) {
+            device.tell(new Device.RecordTemperature(i, 20.0 + i, recordProbe.getRef()));
+            assertEquals(i, recordProbe.receiveMessage().requestId);
+        }
+        device.tell(Device.Passivate.INSTANCE);
+        readProbe.expectTerminated(device, readProbe.getRemainingOrDefault());
+
+        ActorRef<Device.Command> restarted =
+                testKit.spawn(PersistentDevice.create("persistent", "device1", settings()));
+        restarted.tell(new Device.ReadTemperature(6L, readProbe.getRef()));
+        Device.RespondTemperature response = readProbe.receiveMessage();
+        assertEquals(6L, response.requestId);
+        assertTrue(response.hasValue);
+        assertEquals(25.0, response.value, 0.0);
+    }
+
+    @Test
+    public void testWatermarkOnlyCoversWrittenReadings() {
+        TestProbe<Device.TemperatureRecorded> ackProbe = testKit.createTestProbe(Device.TemperatureRecorded.class);
+        TestProbe<Device.RespondTemperature> readProbe = testKit.createTestProbe(Device.RespondTemperature.class);
+
+        ActorRef<Device.Command> device = testKit.spawn(PersistentDevice.create("persistent", "device2", settings()));
+        device.tell(new Device.SubscribeAckWatermark(ackProbe.getRef()));
+
+        // a full write batch is written right away
+        device.tell(new Device.RecordTemperatureNoAck(1L, 21.0));
+        device.tell(new Device.RecordTemperatureNoAck(2L, 22.0));
+        device.tell(new Device.RecordTemperatureNoAck(3L, 23.0));
+        assertEquals(3L, ackProbe.receiveMessage().requestId);
+
+        // a partial one after write-batch-interval
+        device.tell(new Device.RecordTemperatureNoAck(4L, 24.0));
+        assertEquals(4L, ackProbe.receiveMessage().requestId);
+
+        // buffered readings are written before passivating
+        device.tell(new Device.RecordTemperatureNoAck(5L, 25.0));
+        device.tell(Device.Passivate.INSTANCE);
+        readProbe.expectTerminated(device, readProbe.getRemainingOrDefault());
+
+        ActorRef<Device.Command> restarted =
+                testKit.spawn(PersistentDevice.create("persistent", "device2", settings()));
+        restarted.tell(new Device.ReadTemperature(6L, readProbe.getRef()));
+        assertEquals(25.0, readProbe.receiveMessage().value, 0.0);
+    }
+
+    @Test
+    public void testPassivateAfterAckSubscriberStopped() {
+        TestProbe<DeviceManager.DeviceRegistered> registeredProbe =
+                testKit.createTestProbe(DeviceManager.DeviceRegistered.class);
+        DeviceSettings settings = settings().withPassivateAfter(Duration.ofMillis(200));
+        ActorRef<DeviceGroup.Command> group = testKit.spawn(DeviceGroup.create("persistent-idle", settings));
+        group.tell(new DeviceManager.RequestTrackDevice("persistent-idle", "device1", registeredProbe.getRef()));
+        ActorRef<Device.Command> device = registeredProbe.receiveMessage().device;
+
+        TestProbe<Device.TemperatureRecorded> ackProbe = testKit.createTestProbe(Device.TemperatureRecorded.class);
+        device.tell(new Device.SubscribeAckWatermark(ackProbe.getRef()));
+        registeredProbe.expectNoMessage(Duration.ofMillis(600));
+
+        ackProbe.stop();
+        registeredProbe.expectTerminated(device, Duration.ofSeconds(3));
+    }
+
+    @Test
+    public void testGroupRecoversDevicesAfterRestart() {
+        TestProbe<DeviceManager.DeviceRegistered> registeredProbe =
+                testKit.createTestProbe(DeviceManager.DeviceRegistered.class);
+        TestProbe<Device.TemperatureRecorded> recordProbe = testKit.createTestProbe(Device.TemperatureRecorded.class);
+
+        ActorRef<DeviceGroup.Command> group = testKit.spawn(DeviceGroup.create("persistent"));
+        group.tell(new DeviceManager.RequestTrackDevice("persistent", "device3", registeredProbe.getRef()));
+        ActorRef<Device.Command> device3 = registeredProbe.receiveMessage().device;
+        group.tell(new DeviceManager.RequestTrackDevice("persistent", "device4", registeredProbe.getRef()));
+        registeredProbe.receiveMessage();
+        device3.tell(new Device.RecordTemperature(1L, 30.0, recordProbe.getRef()));
+        recordProbe.receiveMessage();
+
+        testKit.stop(group);
+
+        ActorRef<DeviceGroup.Command> restarted = testKit.spawn(DeviceGroup.create("persistent"));
+        TestProbe<DeviceManager.ReplyDeviceList> deviceListProbe =
+                testKit.createTestProbe(DeviceManager.ReplyDeviceList.class);
+        deviceListProbe.awaitAssert(
+                () -> {
+                    restarted.tell(new DeviceManager.RequestDeviceList(0L, "persistent", deviceListProbe.getRef()));
+                    assertEquals(
+                            Stream.of("device3", "device4").collect(Collectors.toSet()),
+                            deviceListProbe.receiveMessage().ids);
+                    return null;
+                });
+
+        restarted.tell(new DeviceManager.RequestTrackDevice("persistent", "device3", registeredProbe.getRef()));
+        TestProbe<Device.RespondTemperature> readProbe = testKit.createTestProbe(Device.RespondTemperature.class);
+        registeredProbe.receiveMessage().device.tell(new Device.ReadTemperature(2L, readProbe.getRef()));
+        assertEquals(30.0, readProbe.receiveMessage().value, 0.0);
+    }
+
+    @Test
+    public void testGroupRecoversBulkRegisteredDevicesAfterRestart() {
+        TestProbe<DeviceManager.DevicesRegistered> registeredProbe =
+                testKit.createTestProbe(DeviceManager.DevicesRegistered.class);
+
+        ActorRef<DeviceGroup.Command> group = testKit.spawn(DeviceGroup.create("bulk", settings()));
+        group.tell(new DeviceManager.RequestTrackDevices(
+                1L, "bulk", Arrays.asList("device1", "device2", "device3"), registeredProbe.getRef()));
+        assertEquals(3, registeredProbe.receiveMessage().devices.size());
+
+        testKit.stop(group);
+
+        ActorRef<DeviceGroup.Command> restarted = testKit.spawn(DeviceGroup.create("bulk", settings()));
+        TestProbe<DeviceManager.ReplyDeviceList> deviceListProbe =
+                testKit.createTestProbe(DeviceManager.ReplyDeviceList.class);
+        deviceListProbe.awaitAssert(
+                () -> {
+                    restarted.tell(new DeviceManager.RequestDeviceList(0L, "bulk", deviceListProbe.getRef()));
+                    assertEquals(
+                            Stream.of("device1", "device2", "device3").collect(Collectors.toSet()),
+                            deviceListProbe.receiveMessage().ids);
+                    return null;
+                });
+    }
+
+    @Test
+    public void testManagerStartsPersistentGroupsAfterSystemRestart() {
+        String directory = "target/restart-" + System.nanoTime();
+        Config config = ConfigFactory.parseString(
+                "akka.persistence.journal.leveldb.dir = \"" + directory + "/journal\"\n"
+                        + "akka.persistence.snapshot-store.local.dir = \"" + directory + "/snapshots\"\n"
+                        + "iot.groups.kitchen.persistence.enabled = on\n"
+                        + "iot.groups.hall.persistence.enabled = on\n")
+                .withFallback(ConfigFactory.load());
+
+        ActorTestKit first = ActorTestKit.create("PersistentDeviceTest-first", config);
+        try {
+            ActorRef<DeviceManager.Command> manager = first.spawn(DeviceManager.createPartitioned(2), "manager");
+            TestProbe<DeviceManager.DevicesRegistered> registeredProbe =
+                    first.createTestProbe(DeviceManager.DevicesRegistered.class);
+            TestProbe<Device.TemperatureRecorded> recordProbe = first.createTestProbe(Device.TemperatureRecorded.class);
+            for (String groupId : new String[] {"kitchen", "hall"}) {
+                manager.tell(new DeviceManager.RequestTrackDevices(
+                        0L, groupId, Arrays.asList("device1", "device2"), registeredProbe.getRef()));
+                registeredProbe.receiveMessage().devices.get("device1")
+                        .tell(new Device.RecordTemperature(1L, 21.0, recordProbe.getRef()));
+                recordProbe.receiveMessage();
+            }
+        } finally {
+            first.shutdownTestKit();
+        }
+
+        ActorTestKit second = ActorTestKit.create("PersistentDeviceTest-second", config);
+        try {
+            ActorRef<DeviceManager.Command> manager = second.spawn(DeviceManager.createPartitioned(2), "manager");
+            // nothing tracks a device before the queries
+            TestProbe<DeviceManager.RespondGroupsTemperatures> queryProbe =
+                    second.createTestProbe(DeviceManager.RespondGroupsTemperatures.class);
+            queryProbe.awaitAssert(() -> {
+                manager.tell(new DeviceManager.RequestGroupsTemperatures(
+                        2L, Collections.emptySet(), Duration.ofSeconds(3), queryProbe.getRef()));
+                DeviceManager.RespondGroupsTemperatures response = queryProbe.receiveMessage();
+                assertEquals(Stream.of("kitchen", "hall").collect(Collectors.toSet()), response.temperatures.keySet());
+                for (Map<String, DeviceManager.TemperatureReading> group : response.temperatures.values()) {
+                    assertEquals(new DeviceManager.Temperature(21.0), group.get("device1"));
+                    assertEquals(DeviceManager.TemperatureNotAvailable.INSTANCE, group.get("device2"));
+                }
+                return null;
+            });
+
+            TestProbe<DeviceManager.ReplyDeviceList> deviceListProbe =
+                    second.createTestProbe(DeviceManager.ReplyDeviceList.class);
+            manager.tell(new DeviceManager.RequestDeviceList(3L, "hall", deviceListProbe.getRef()));
+            assertEquals(Stream.of("device1", "device2").collect(Collectors.toSet()), deviceListProbe.receiveMessage().ids);
+        } finally {
+            second.shutdownTestKit();
+        }
+    }
+}
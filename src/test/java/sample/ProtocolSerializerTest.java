@@ -0,0 +1,196 @@
+package sample;
+
+import akka.actor.testkit.typed.javadsl.TestKitJunitResource;
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.javadsl.Adapter;
+import akka.serialization.Serialization;
+import akka.serialization.SerializationExtension;
+import akka.serialization.Serializer;
+import akka.serialization.SerializerWithStringManifest;
+import org.junit.ClassRule;
+import org.junit.Test;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ProtocolSerializerTest {
+
+    @ClassRule
+    public static final TestKitJunitResource testKit = new TestKitJunitResource();
+
+    private static <T> ActorRef<T> ref(Class<T> type) {
+        return testKit.createTestProbe(type).getRef();
+    }
+
+    private static Set<String> set(String... strings) {
+        return Stream.of(strings).collect(Collectors.toSet());
+    }
+
+    private static List<Object> messages() {
+        ActorRef<Device.Command> device = ref(Device.Command.class);
+        Map<String, ActorRef<Device.Command>> devices = new HashMap<>();
+        devices.put("device1", device);
+        devices.put("device2", null);
+        Map<String, DeviceManager.TemperatureReading> readings = new HashMap<>();
+        readings.put("device1", new DeviceManager.Temperature(21.5));
+        readings.put("device2", new DeviceManager.StaleTemperature(-3.0));
+        readings.put("device3", DeviceManager.TemperatureNotAvailable.INSTANCE);
+        readings.put("device4", DeviceManager.DeviceNotAvailable.INSTANCE);
+        readings.put("device5", DeviceManager.DeviceTimedOut.INSTANCE);
+        Map<String, Double> temperatures = new HashMap<>();
+        temperatures.put("device1", 21.5);
+        temperatures.put("device2", Double.NaN);
+        return Arrays.asList(
+                new DeviceManager.RequestTrackDevice("group", "device", ref(DeviceManager.DeviceRegistered.class)),
+                new DeviceManager.DeviceRegistered(device),
+                new DeviceManager.DeviceRegistered("group", "device1", ref(DeviceManager.DeviceEnvelope.class)),
+                new DeviceManager.RequestTrackDevices(
+                        1L, "group", Arrays.asList("device1", "device2"), ref(DeviceManager.DevicesRegistered.class)),
+                new DeviceManager.DevicesRegistered(2L, devices),
+                new DeviceManager.DevicesRegistered(
+                        2L, Collections.singletonMap("device1", null), "group", ref(DeviceManager.DeviceEnvelope.class)),
+                new DeviceManager.RequestDeviceList(3L, "group", ref(DeviceManager.ReplyDeviceList.class)),
+                new DeviceManager.RequestDeviceList(
+                        4L, "group", "device1", 10, ref(DeviceManager.ReplyDeviceList.class)),
+                new DeviceManager.ReplyDeviceList(5L, set("device1", "device2"), 42L, "device2"),
+                new DeviceManager.ReplyDeviceList(6L, Collections.emptySet(), 0L, null),
+                new DeviceManager.RequestDeviceChanges(7L, "group", 40L, ref(DeviceManager.ReplyDeviceChanges.class)),
+                new DeviceManager.ReplyDeviceChanges(8L, 42L, set("device1"), set("device2", "device3"), true),
+                new DeviceManager.RecordTemperatureBatch(
+                        9L,
+                        "group",
+                        new String[] {"device1", "device2"},
+                        new double[] {21.5, 22.5},
+                        new long[] {1000L, 2000L},
+                        ref(DeviceManager.TemperatureBatchRecorded.class)),
+                new DeviceManager.TemperatureBatchRecorded(10L, 2, set("device3")),
+                new DeviceManager.DeviceEnvelope(
+                        "group", "device1", new Device.ReadTemperature(11L, ref(Device.RespondTemperature.class))),
+                new DeviceManager.RequestGroupMetrics(12L, "group", ref(DeviceManager.GroupMetrics.class)),
+                new DeviceManager.GroupMetrics(13L, 3, 4, 5L, 6L),
+                new DeviceManager.RequestAllTemperatures(
+                        14L, "group", ref(DeviceManager.RespondAllTemperatures.class)),
+                new DeviceManager.RequestAllTemperatures(
+                        15L, "group", Duration.ofMillis(1500), ref(DeviceManager.RespondAllTemperatures.class)),
+                new DeviceManager.RespondAllTemperatures(16L, readings),
+                new DeviceManager.RequestAllTemperaturesStream(
+                        17L, "group", 100, ref(DeviceManager.TemperatureChunk.class)),
+                new DeviceManager.TemperatureChunk(
+                        18L,
+                        3L,
+                        new String[] {"device1", "device2"},
+                        new DeviceManager.TemperatureReading[] {
+                            new DeviceManager.Temperature(1.0), DeviceManager.DeviceTimedOut.INSTANCE
+                        },
+                        true,
+                        ref(DeviceManager.TemperatureChunkAck.class)),
+                new DeviceManager.TemperatureChunkAck(19L),
+                new DeviceManager.RequestGroupsTemperatures(
+                        20L,
+                        set("group1", "group2"),
+                        Duration.ofSeconds(2),
+                        ref(DeviceManager.RespondGroupsTemperatures.class)),
+                new DeviceManager.RespondGroupsTemperatures(
+                        21L, Collections.singletonMap("group1", readings), set("group2"), set("group3")),
+                new DeviceManager.SubscribeGroupTemperatures(
+                        "group", 0.5, Duration.ofMillis(250), ref(DeviceManager.GroupTemperaturesChanged.class)),
+                new DeviceManager.UnsubscribeGroupTemperatures(
+                        "group", ref(DeviceManager.GroupTemperaturesChanged.class)),
+                new DeviceManager.GroupTemperaturesChanged("group", temperatures),
+                new Device.RecordTemperature(22L, 23.5, ref(Device.TemperatureRecorded.class)),
+                new Device.RecordTemperatureNoAck(23L, -1.5),
+                new Device.RecordTemperatures(new double[] {1.0, 2.0}, new long[] {10L, 20L}, new int[] {0, 1}),
+                new Device.TemperatureRecorded(24L),
+                new Device.SubscribeAckWatermark(ref(Device.TemperatureRecorded.class)),
+                new Device.UnsubscribeAckWatermark(ref(Device.TemperatureRecorded.class)),
+                new Device.SubscribeTemperature(0.25, Duration.ofSeconds(1), ref(Device.TemperatureChanged.class)),
+                new Device.UnsubscribeTemperature(ref(Device.TemperatureChanged.class)),
+                new Device.TemperatureChanged("device1", 24.5),
+                new Device.ReadTemperature(25L, ref(Device.RespondTemperature.class)),
+                new Device.RespondTemperature(26L, "device1", 25.5),
+                new Device.RespondTemperature(27L, "device1"),
+                new Device.ReadAggregate(28L, 1000L, 2000L, ref(Device.RespondAggregate.class)),
+                new Device.RespondAggregate(29L, "device1", 3, 1.0, 3.0, 2.0, 3.0),
+                new Device.RespondAggregate(30L, "device1", 0, Double.NaN, Double.NaN, Double.NaN, Double.NaN),
+                Device.Passivate.INSTANCE);
+    }
+
+    @Test
+    public void testRoundTripEveryManifest() throws Exception {
+        Serialization serialization = SerializationExtension.get(Adapter.toClassic(testKit.system()));
+        Set<String> manifests = new HashSet<>();
+        for (Object message : messages()) {
+            Serializer serializer = serialization.findSerializerFor(message);
+            assertTrue(message.getClass().getName(), serializer instanceof ProtocolSerializer);
+            SerializerWithStringManifest protocol = (SerializerWithStringManifest) serializer;
+            String manifest = protocol.manifest(message);
+            manifests.add(manifest);
+            Object copy = serialization.deserialize(
+                    serialization.serialize(message).get(), protocol.identifier(), manifest).get();
+            assertSameFields(message.getClass().getSimpleName(), message, copy);
+        }
+        assertEquals(manifests(), manifests);
+    }
+
+    /** The manifest constants of the serializer, so that a new message without a round trip here fails. */
+    private static Set<String> manifests() throws IllegalAccessException {
+        Set<String> manifests = new HashSet<>();
+        for (Field field : ProtocolSerializer.class.getDeclaredFields()) {
+            if (Modifier.isStatic(field.getModifiers()) && field.getType() == String.class) {
+                field.setAccessible(true);
+                manifests.add((String) field.get(null));
+            }
+        }
+        return manifests;
+    }
+
+    /** Compares the fields of messages, which have no equals of their own, and of what they hold. */
+    private static void assertSameFields(String path, Object expected, Object actual) throws IllegalAccessException {
+        if (expected == null) {
+            assertNull(path, actual);
+            return;
+        }
+        Class<?> type = expected.getClass();
+        if (type.isArray()) {
+            assertEquals(path, type, actual.getClass());
+            assertEquals(path, Array.getLength(expected), Array.getLength(actual));
+            for (int i = 0; i < Array.getLength(expected); i++) {
+                assertSameFields(path + "[" + i + "]", Array.get(expected, i), Array.get(actual, i));
+            }
+        } else if (type.getPackage() == ProtocolSerializerTest.class.getPackage() && !type.isEnum()
+                && !overridesEquals(type)) {
+            assertEquals(path, type, actual.getClass());
+            for (Field field : type.getDeclaredFields()) {
+                if (!Modifier.isStatic(field.getModifiers())) {
+                    field.setAccessible(true);
+                    assertSameFields(path + "." + field.getName(), field.get(expected), field.get(actual));
+                }
+            }
+        } else {
+            assertEquals(path, expected, actual);
+        }
+    }
+
+    private static boolean overridesEquals(Class<?> type) {
+        try {
+            return type.getMethod("equals", Object.class).getDeclaringClass() != Object.class;
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package sample;
+
+import akka.actor.testkit.typed.javadsl.TestKitJunitResource;
+import akka.actor.testkit.typed.javadsl.TestProbe;
+import akka.actor.typed.ActorRef;
+import org.junit.ClassRule;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class StreamingGroupQueryTest {
+
+    @ClassRule
+    public static final TestKitJunitResource testKit = new TestKitJunitResource();
+
+    @Test
+    public void testStreamChunksOnlyAsFastAsTheyAreAcked() {
+        TestProbe<DeviceManager.TemperatureChunk> requester =
+                testKit.createTestProbe(DeviceManager.TemperatureChunk.class);
+        Map<String, DeviceManager.TemperatureReading> knownReadings = new LinkedHashMap<>();
+        for (int i = 1; i <= 5; i++) {
+            knownReadings.put("device" + i, new DeviceManager.Temperature(i));
+        }
+
+        testKit.spawn(
+                StreamingGroupQuery.create(
+                        Collections.emptyMap(),
+                        knownReadings,
+                        new DeviceManager.RequestAllTemperaturesStream(1L, "group", 2, requester.getRef()),
+                        Duration.ofSeconds(3)));
+
+        Map<String, DeviceManager.TemperatureReading> received = new HashMap<>();
+        DeviceManager.TemperatureChunk chunk = requester.receiveMessage();
+        for (long seqNr = 0; ; seqNr++) {
+            assertEquals(1L, chunk.requestId);
+            assertEquals(seqNr, chunk.seqNr);
+            for (int i = 0; i < chunk.deviceIds.length; i++) {
+                received.put(chunk.deviceIds[i], chunk.readings[i]);
+            }
+            if (chunk.last) {
+                break;
+            }
+            assertEquals(2, chunk.deviceIds.length);
+            requester.expectNoMessage(Duration.ofMillis(100));
+            chunk.ackTo.tell(new DeviceManager.TemperatureChunkAck(chunk.seqNr));
+            chunk = requester.receiveMessage();
+        }
+        assertEquals(2L, chunk.seqNr);
+        assertEquals(knownReadings, received);
+    }
+
+    @Test
+    public void testAskDevicesAndReportTheOnesThatDoNotAnswer() {
+        TestProbe<DeviceManager.TemperatureChunk> requester =
+                testKit.createTestProbe(DeviceManager.TemperatureChunk.class);
+        TestProbe<Device.Command> device1 = testKit.createTestProbe(Device.Command.class);
+        TestProbe<Device.Command> device2 = testKit.createTestProbe(Device.Command.class);
+
+        Map<String, ActorRef<Device.Command>> deviceIdToActor = new HashMap<>();
+        deviceIdToActor.put("device1", device1.getRef());
+        deviceIdToActor.put("device2", device2.getRef());
+
+        testKit.spawn(
+                StreamingGroupQuery.create(
+                        deviceIdToActor,
+                        Collections.emptyMap(),
+                        new DeviceManager.RequestAllTemperaturesStream(1L, "group", 10, requester.getRef()),
+                        Duration.ofMillis(200)));
+
+        Device.ReadTemperature read = device1.expectMessageClass(Device.ReadTemperature.class);
+        device2.expectMessageClass(Device.ReadTemperature.class);
+        read.replyTo.tell(new Device.RespondTemperature(read.requestId, "device1", 1.0));
+
+        DeviceManager.TemperatureChunk chunk = requester.receiveMessage();
+        assertTrue(chunk.last);
+        Map<String, DeviceManager.TemperatureReading> received = new HashMap<>();
+        for (int i = 0; i < chunk.deviceIds.length; i++) {
+            received.put(chunk.deviceIds[i], chunk.readings[i]);
+        }
+        Map<String, DeviceManager.TemperatureReading> expected = new HashMap<>();
+        expected.put("device1", new DeviceManager.Temperature(1.0));
+        expected.put("device2", DeviceManager.DeviceTimedOut.INSTANCE);
+        assertEquals(expected, received);
+    }
+}
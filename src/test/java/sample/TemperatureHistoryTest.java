@@ -0,0 +1,74 @@
+package sample;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class TemperatureHistoryTest {
+
+    @Test
+    public void testAggregateOverWindow() {
+        TemperatureHistory history = new TemperatureHistory(200);
+        // shuffled so that the p95 selection has to reorder
+        for (int i = 0; i < 100; i++) {
+            int value = (i * 37) % 100 + 1;
+            history.append(value, value);
+        }
+
+        Device.RespondAggregate all = history.aggregate(1L, "device", 0L, Long.MAX_VALUE);
+        assertEquals(1L, all.requestId);
+        assertEquals(100, all.count);
+        assertEquals(1.0, all.min, 0.0);
+        assertEquals(100.0, all.max, 0.0);
+        assertEquals(50.5, all.mean, 1e-9);
+        assertEquals(95.0, all.p95, 0.0);
+
+        Device.RespondAggregate window = history.aggregate(2L, "device", 11L, 30L);
+        assertEquals(20, window.count);
+        assertEquals(11.0, window.min, 0.0);
+        assertEquals(30.0, window.max, 0.0);
+        assertEquals(29.0, window.p95, 0.0);
+    }
+
+    @Test
+    public void testOldestReadingsAreOverwritten() {
+        TemperatureHistory history = new TemperatureHistory(3);
+        for (int i = 1; i <= 5; i++) {
+            history.append(i, i * 10.0);
+        }
+        assertEquals(3, history.size());
+
+        Device.RespondAggregate aggregate = history.aggregate(1L, "device", 0L, Long.MAX_VALUE);
+        assertEquals(3, aggregate.count);
+        assertEquals(30.0, aggregate.min, 0.0);
+        assertEquals(50.0, aggregate.max, 0.0);
+        assertEquals(40.0, aggregate.mean, 0.0);
+    }
+
+    @Test
+    public void testGrowUpToCapacity() {
+        TemperatureHistory history = new TemperatureHistory(20);
+        for (int i = 1; i <= 30; i++) {
+            history.append(i, i);
+            assertEquals(Math.min(i, 20), history.size());
+        }
+
+        Device.RespondAggregate aggregate = history.aggregate(1L, "device", 0L, Long.MAX_VALUE);
+        assertEquals(20, aggregate.count);
+        assertEquals(11.0, aggregate.min, 0.0);
+        assertEquals(30.0, aggregate.max, 0.0);
+        assertEquals(20.5, aggregate.mean, 1e-9);
+        assertEquals(29.0, aggregate.p95, 0.0);
+    }
+
+    @Test
+    public void testEmptyWindow() {
+        TemperatureHistory history = new TemperatureHistory(0);
+        history.append(1L, 1.0);
+
+        Device.RespondAggregate aggregate = history.aggregate(1L, "device", 0L, Long.MAX_VALUE);
+        assertEquals(0, aggregate.count);
+        assertEquals(Double.NaN, aggregate.mean, 0.0);
+        assertEquals(Double.NaN, aggregate.p95, 0.0);
+    }
+}